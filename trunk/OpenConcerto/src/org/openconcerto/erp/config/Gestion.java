@@ -29,6 +29,7 @@ import org.openconcerto.sql.element.UISQLComponent;
 import org.openconcerto.sql.model.SQLBase;
 import org.openconcerto.sql.model.SQLDataSource;
 import org.openconcerto.sql.model.SQLRequestLog;
+import org.openconcerto.sql.model.SQLRequestStats;
 import org.openconcerto.sql.model.SQLSystem;
 import org.openconcerto.sql.request.ComboSQLRequest;
 import org.openconcerto.sql.sqlobject.ElementComboBox;
@@ -74,6 +75,7 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.ImageIcon;
 import javax.swing.JDialog;
@@ -262,6 +264,20 @@ public class Gestion {
         if (logRequests) {
             SQLRequestLog.setEnabled(true);
         }
+        // statistics are always recorded, but only exported if asked (e.g. to profile a client)
+        if (Boolean.valueOf(conf.getProperty("sqlStats", "false"))) {
+            final SQLRequestStats stats = SQLRequestStats.getInstance();
+            final String slowMs = conf.getProperty("sqlStats.slowMs");
+            if (slowMs != null)
+                stats.setSlowThreshold(Long.parseLong(slowMs), TimeUnit.MILLISECONDS);
+            try {
+                stats.registerMBean();
+            } catch (Exception e) {
+                ExceptionHandler.handle("Impossible d'enregistrer les statistiques SQL dans JMX", e);
+            }
+            final File statsDir = conf.getLogDir() != null ? conf.getLogDir() : new File(conf.getConfDir(), "logs");
+            stats.startExport(statsDir, Long.parseLong(conf.getProperty("sqlStats.periodMinutes", "5")), TimeUnit.MINUTES);
+        }
 
         if (Boolean.valueOf(conf.getProperty("minimal", "false"))) {
             System.setProperty(MINIMAL_PROP, Boolean.TRUE.toString());
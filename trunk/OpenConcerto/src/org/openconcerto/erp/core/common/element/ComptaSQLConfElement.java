@@ -54,6 +54,8 @@ import javax.swing.table.TableCellRenderer;
 public abstract class ComptaSQLConfElement extends SQLElement {
 
     private static DBRoot baseSociete;
+    // nombre de lignes chargées à la fois par les listes des grandes tables
+    protected static final int LIST_PAGE_SIZE = 500;
     public static final TableCellRenderer CURRENCY_RENDERER = new DefaultTableCellRenderer() {
         @Override
         public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row, int column) {
@@ -226,6 +226,12 @@ public class IListTotalPanel extends JPanel {
                     }
                 }
                 fireUpdated();
+                // le total porte sur toute la liste : charger les pages suivantes une à une, la
+                // première reste affichée sans attendre
+                final ITableModel model = list.getModel();
+                if (model != null && model.getLinesSource().hasNextPage()) {
+                    model.fetchNextPage();
+                }
             }
         });
     }
@@ -14,6 +14,8 @@
  package org.openconcerto.erp.core.common.ui;
 
 import org.openconcerto.erp.config.ComptaPropsConfiguration;
+import org.openconcerto.erp.core.humanresources.payroll.formule.FormuleContext;
+import org.openconcerto.erp.core.humanresources.payroll.formule.Formules;
 import org.openconcerto.sql.Configuration;
 import org.openconcerto.sql.model.SQLField;
 import org.openconcerto.sql.model.SQLRow;
@@ -27,29 +29,20 @@ import interpreterDJava.JavaEditor;
 
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import javax.swing.JComponent;
 import javax.swing.event.DocumentEvent;
 
-import koala.dynamicjava.interpreter.Interpreter;
 import koala.dynamicjava.interpreter.InterpreterException;
-import koala.dynamicjava.interpreter.TreeInterpreter;
-import koala.dynamicjava.parser.wrapper.JavaCCParserFactory;
 
 public class SQLJavaEditor extends JavaEditor implements ValueWrapper<String> {
 
-    private final List<Object> mVar;
+    private final Formules formules;
+    private FormuleContext context;
     private Map<String, SQLField> mapField;
     private Map<String, SQLRow> mapRow;
 
@@ -60,7 +53,7 @@ public class SQLJavaEditor extends JavaEditor implements ValueWrapper<String> {
 
         this.salarieID = 1;
 
-        this.mVar = new ArrayList<Object>();
+        this.formules = new Formules(m);
         this.mapField = new HashMap<String, SQLField>();
         this.mapRow = new HashMap<String, SQLRow>();
 
@@ -78,14 +71,12 @@ public class SQLJavaEditor extends JavaEditor implements ValueWrapper<String> {
                     String name = element2.getString("NOM").trim();
                     // System.err.println("Ajout de la row " + name);
                     this.addNewLitteral(name);
-                    this.mVar.add(o);
                     this.mapRow.put(name, element2);
                 } else if (o instanceof SQLField) {
                     final SQLField field2 = ((SQLField) o);
                     String name = field2.getTable().getName();
                     // System.err.println("Ajout du field " + name);
                     this.addNewLitteral(name);
-                    this.mVar.add(o);
                     this.mapField.put(name, field2);
                 }
             }
@@ -159,9 +150,6 @@ public class SQLJavaEditor extends JavaEditor implements ValueWrapper<String> {
      * @return la valeur de retour de la formule
      */
     public Object checkFormule(String formule, String varCallName) {
-        Map<String, SQLRow> mapCacheRow = new HashMap<String, SQLRow>();
-        BufferedReader bR = null;
-        File f = null;
         try {
 
             // Si la formule est vide --> OK
@@ -170,108 +158,16 @@ public class SQLJavaEditor extends JavaEditor implements ValueWrapper<String> {
                 this.setCodeValid(true);
                 return null;
             }
-            // Fichier temporaire qui contiendra la formule à interpreter
-            File dParent = new File(Configuration.getDefaultConfDir(), "Interpreter");
-            dParent.mkdir();
-            f = new File(dParent, "CalculVariable" + varCallName + ".txt");
 
-            Interpreter interpreter = new TreeInterpreter(new JavaCCParserFactory());
-
-            // Exportation des variables vers l'interpreteur
-            SQLTable tableSal = ((ComptaPropsConfiguration) Configuration.getInstance()).getSQLBaseSociete().getTable("SALARIE");
-
-            // SQLRow du salarié sur lequel on se base pour calculer la formule
-            SQLRow rowSal = tableSal.getRow(this.salarieID);
-
-            BufferedWriter bW = new BufferedWriter(new FileWriter(f));
-            Set<SQLRow> set = rowSal.getForeignRows();
-            for (SQLRow row : set) {
-                mapCacheRow.put(row.getTable().getName(), row);
-            }
-            // System.err.println("LOAD Variable");
-            for (final Object o : this.mVar) {
-                // Les SQLFields sont des fields des tables étrangères de la table salarié
-                if (o instanceof SQLField) {
-
-                    SQLField field = (SQLField) o;
-
-                    if (formule.indexOf(field.getName()) >= 0) {
-                        SQLRow rowAssoc = mapCacheRow.get(field.getTable().getName());
-
-                        // on recupere la row associee exemple : SALARIE.INFOS_SALARIE_PAYE
-                        final Set<SQLRow> foreignRows = null;
-                        if (rowAssoc == null) {
-                            rowSal.getForeignRows(field.getTable().getName());
-                        }
-
-                        if (rowAssoc != null || ((rowSal != null) && (foreignRows != null))) {
-                            if (rowAssoc == null) {
-                                Set<SQLRow> rowList = foreignRows;
-
-                                if (rowList.size() != 0) {
-                                    Iterator<SQLRow> iterList = rowList.iterator();
-                                    rowAssoc = iterList.next();
-                                    mapCacheRow.put(rowAssoc.getTable().getName(), rowAssoc);
-                                }
-                            }
-                            if (rowAssoc != null) {
-                                defineVariable(interpreter, bW, field.getName(), rowAssoc.getObject(field.getName()));
-                            } else {
-                                defineVariable(interpreter, bW, field.getName(), null);
-                            }
-                        } else {
-                            defineVariable(interpreter, bW, field.getName(), null);
-                        }
-                    }
-                } else {
-
-                    // FIXME Recursivite
-                    // Variables de paye deja definie
-                    if (o instanceof SQLRow) {
-
-                        SQLRow rowTmp = (SQLRow) o;
-
-                        if (formule.indexOf(rowTmp.getString("NOM")) >= 0) {
-                            if (rowTmp.getString("FORMULE").trim().length() == 0) {
-                                defineVariable(interpreter, bW, rowTmp.getString("NOM"), rowTmp.getObject("VALEUR"));
-                            } else {
-                                if (!rowTmp.getString("NOM").equalsIgnoreCase(varCallName)) {
-                                    Object ob = checkFormule(rowTmp.getString("FORMULE"), rowTmp.getString("NOM"));
-                                    defineVariable(interpreter, bW, rowTmp.getString("NOM"), ob == null ? new Float(1) : ob);
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-
-            bW.write(formule);
-            bW.flush();
-            bW.close();
-
-            // Interpret the script
-            bR = new BufferedReader(new FileReader(f));
-
-            Object interpreterResult = interpreter.interpret(bR, f.getAbsolutePath());
-            bR.close();
-            try {
-                // this.status.setText(interpreter.getVariableNames().toString());
-                this.status.setText("Code correct, valeur de retour = " + interpreter.getVariable(varCallName).toString());
+            final Object res = this.getContext().evaluate(formule, varCallName);
+            if (res != null) {
+                this.status.setText("Code correct, valeur de retour = " + res.toString());
                 this.setCodeValid(true);
-                return interpreter.getVariable(varCallName);
-            } catch (IllegalStateException iSE) {
-                if (interpreterResult != null) {
-                    // this.status.setText(interpreter.getVariableNames().toString());
-                    this.status.setText("Code correct, valeur de retour = " + interpreterResult.toString());
-                    this.setCodeValid(true);
-                    bR.close();
-                    return interpreterResult;
-                } else {
-                    // this.status.setText(interpreter.getVariableNames().toString());
-                    this.status.setText("Aucune valeur de retour");
-                    this.setCodeValid(false);
-                    return null;
-                }
+                return res;
+            } else {
+                this.status.setText("Aucune valeur de retour");
+                this.setCodeValid(false);
+                return null;
             }
         } catch (Exception e) {
             if (e instanceof InterpreterException) {
@@ -296,14 +192,19 @@ public class SQLJavaEditor extends JavaEditor implements ValueWrapper<String> {
                 e.printStackTrace();
             }
         }
-        // Highlight the occurrences of the word "public"
-        // highlight(textFormule, "int");
-
-        // Creates highlights around all occurrences of pattern in textComp
         this.setCodeValid(false);
         return null;
     }
 
+    // les valeurs du salarié ne sont chargées qu'une fois, cf. setSalarieID()
+    private FormuleContext getContext() {
+        if (this.context == null) {
+            SQLTable tableSal = ((ComptaPropsConfiguration) Configuration.getInstance()).getSQLBaseSociete().getTable("SALARIE");
+            this.context = this.formules.createContext(tableSal.getRow(this.salarieID));
+        }
+        return this.context;
+    }
+
     @Override
     protected void setCodeValid(boolean codeValid) {
         super.setCodeValid(codeValid);
@@ -313,6 +214,8 @@ public class SQLJavaEditor extends JavaEditor implements ValueWrapper<String> {
     public void setSalarieID(int id) {
         // System.err.println("------>> SELECTION_COMBO_CHANGE");
         this.salarieID = id;
+        // recharge les valeurs même si le salarié n'a pas changé
+        this.context = null;
         checkFormule(this.textFormule.getText().trim(), this.varAssign);
     }
 }
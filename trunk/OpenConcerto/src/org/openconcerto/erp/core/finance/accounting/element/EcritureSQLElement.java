@@ -119,6 +119,14 @@ public class EcritureSQLElement extends ComptaSQLConfElement {
         };
     }
 
+    @Override
+    protected SQLTableModelSourceOnline createTableSource() {
+        final SQLTableModelSourceOnline res = super.createTableSource();
+        // la liste peut contenir toutes les écritures de plusieurs exercices
+        res.setPageSize(LIST_PAGE_SIZE);
+        return res;
+    }
+
     @Override
     protected void _initTableSource(SQLTableModelSourceOnline res) {
         super._initTableSource(res);
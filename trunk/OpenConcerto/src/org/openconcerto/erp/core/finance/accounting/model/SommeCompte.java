@@ -17,20 +17,34 @@ import org.openconcerto.erp.config.ComptaPropsConfiguration;
 import org.openconcerto.sql.Configuration;
 import org.openconcerto.sql.model.SQLBase;
 import org.openconcerto.sql.model.SQLRow;
-import org.openconcerto.sql.model.SQLSelect;
-import org.openconcerto.sql.model.SQLTable;
-import org.openconcerto.sql.model.Where;
 
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
-
-import org.apache.commons.dbutils.handlers.ArrayListHandler;
+import java.util.Map;
 
 public class SommeCompte {
 
     private static final SQLBase base = ((ComptaPropsConfiguration) Configuration.getInstance()).getSQLBaseSociete();
+    private static SommeCompteCache cache = null;
+
+    /**
+     * Les soldes chargés par les instances, une requête par période au lieu d'une par somme.
+     * Partagés entre les instances seulement si {@link SommeCompteCache#setMaxAge(long)} le
+     * permet.
+     * 
+     * @return le cache des soldes.
+     */
+    public static synchronized SommeCompteCache getCache() {
+        if (cache == null)
+            cache = new SommeCompteCache(base);
+        return cache;
+    }
 
     private SQLRow rowAnalytique = null;
+    // periods read by this instance, e.g. all the sums of one document from the same query
+    private final Map<List<Date>, SommeCompteCache.Soldes> soldes = new HashMap<List<Date>, SommeCompteCache.Soldes>();
 
     public SommeCompte() {
         this(null);
@@ -40,16 +54,14 @@ public class SommeCompte {
         this.rowAnalytique = rowAnalytique;
     }
 
-    SQLTable ecritureTable = base.getTable("ECRITURE");
-    SQLTable compteTable = base.getTable("COMPTE_PCE");
-
-    private void addAnalytiqueJoin(SQLSelect sel) {
-        if (this.rowAnalytique != null) {
-            SQLTable tableAssoc = ecritureTable.getTable("ASSOCIATION_ANALYTIQUE");
-            Where join = new Where(tableAssoc.getField("ID_ECRITURE"), "=", ecritureTable.getKey());
-            join = join.and(new Where(tableAssoc.getField("ID_POSTE_ANALYTIQUE"), "=", this.rowAnalytique.getID()));
-            sel.addJoin("RIGHT", ecritureTable.getTable("ASSOCIATION_ANALYTIQUE"), join);
+    private SommeCompteCache.Soldes getSoldes(Date dateDebut, Date dateFin) {
+        final List<Date> key = Arrays.asList(dateDebut, dateFin);
+        SommeCompteCache.Soldes res = this.soldes.get(key);
+        if (res == null) {
+            res = getCache().getSoldes(dateDebut, dateFin, this.rowAnalytique);
+            this.soldes.put(key, res);
         }
+        return res;
     }
 
     /***********************************************************************************************
@@ -61,48 +73,7 @@ public class SommeCompte {
      * @return le solde debiteur
      **********************************************************************************************/
     public long sommeCompteFils(String numero, Date dateDebut, Date dateFin) {
-        long sommeDebit = 0;
-        long sommeCredit = 0;
-
-        SQLSelect sel = new SQLSelect(base);
-
-        sel.addSelect(ecritureTable.getField("DEBIT"), "SUM");
-        sel.addSelect(ecritureTable.getField("CREDIT"), "SUM");
-        // sel.addSelect(compteTable.getField("ID"));
-        // sel.addSelect(compteTable.getField("NUMERO"));
-
-        // Where w = new Where(ecritureTable.getField("ID_COMPTE_PCE"), "=",
-        // compteTable.getField("ID"));
-        sel.addJoin("LEFT", ecritureTable.getField("ID_COMPTE_PCE"));
-        Where w2 = new Where(compteTable.getField("NUMERO"), "LIKE", numero.trim() + "%");
-        Where w3 = new Where(ecritureTable.getField("DATE"), dateDebut, dateFin);
-        sel.setWhere(w2.and(w3));
-        addAnalytiqueJoin(sel);
-
-        // String req = sel.asString() +
-        // " GROUP BY \"COMPTE_PCE\".\"ID\",\"COMPTE_PCE\".\"NUMERO\" ORDER BY \"COMPTE_PCE\".\"NUMERO\"";
-        String req = sel.asString();
-        // System.out.println(req);
-
-        Object ob = base.getDataSource().execute(req, new ArrayListHandler());
-
-        List myList = (List) ob;
-
-        if (myList.size() != 0) {
-
-            for (int i = 0; i < myList.size(); i++) {
-
-                Object[] objTmp = (Object[]) myList.get(i);
-                if (objTmp[0] != null) {
-                    sommeDebit += ((Number) objTmp[0]).longValue();
-                }
-                if (objTmp[1] != null) {
-                    sommeCredit += ((Number) objTmp[1]).longValue();
-                }
-            }
-        }
-
-        return sommeDebit - sommeCredit;
+        return getSoldes(dateDebut, dateFin).sommeCompteFils(numero.trim());
     }
 
     /***********************************************************************************************
@@ -116,172 +87,17 @@ public class SommeCompte {
      * @return le solde debiteur total des comptes
      **********************************************************************************************/
     public long soldeCompte(int numeroStart, int numeroEnd, boolean includeAllEnd, Date dateDebut, Date dateFin) {
-
-        long sommeDebit = 0;
-        long sommeCredit = 0;
-
-        SQLTable ecritureTable = base.getTable("ECRITURE");
-        SQLTable compteTable = base.getTable("COMPTE_PCE");
-        SQLSelect sel = new SQLSelect(base);
-
-        sel.addSelect(ecritureTable.getField("DEBIT"), "SUM");
-        sel.addSelect(ecritureTable.getField("CREDIT"), "SUM");
-        // sel.addSelect(compteTable.getField("ID"));
-        // sel.addSelect(compteTable.getField("NUMERO"));
-
-        // Where w = new Where(ecritureTable.getField("ID_COMPTE_PCE"), "=",
-        // compteTable.getField("ID"));
-        sel.addJoin("LEFT", ecritureTable.getField("ID_COMPTE_PCE"));
-        Where w2 = new Where(compteTable.getField("NUMERO"), "LIKE", String.valueOf(numeroStart) + "%");
-        Where w4 = new Where(ecritureTable.getField("DATE"), dateDebut, dateFin);
-
-        for (int i = numeroStart + 1; i < numeroEnd + 1; i++) {
-            Where w3;
-            if ((i == numeroEnd) && (!includeAllEnd)) {
-                w3 = new Where(compteTable.getField("NUMERO"), "=", String.valueOf(i));
-            } else {
-                w3 = new Where(compteTable.getField("NUMERO"), "LIKE", String.valueOf(i) + "%");
-            }
-            w2 = w2.or(w3);
-        }
-
-        sel.setWhere(w2.and(w4));
-        addAnalytiqueJoin(sel);
-
-        // String req = sel.asString() +
-        // " GROUP BY \"COMPTE_PCE\".\"ID\",\"COMPTE_PCE\".\"NUMERO\" ORDER BY \"COMPTE_PCE\".\"NUMERO\"";
-        String req = sel.asString();
-
-        Object ob = base.getDataSource().execute(req, new ArrayListHandler());
-
-        List myList = (List) ob;
-
-        if (myList.size() != 0) {
-
-            for (int i = 0; i < myList.size(); i++) {
-
-                Object[] objTmp = (Object[]) myList.get(i);
-                if (objTmp[0] != null) {
-                    sommeDebit += ((Number) objTmp[0]).longValue();
-                }
-                if (objTmp[1] != null) {
-                    sommeCredit += ((Number) objTmp[1]).longValue();
-                }
-            }
-        }
-
-        return sommeDebit - sommeCredit;
+        return getSoldes(dateDebut, dateFin).soldeCompte(numeroStart, numeroEnd, includeAllEnd);
     }
 
     public long soldeCompteDebiteur(int numeroStart, int numeroEnd, boolean includeAllEnd, Date dateDebut, Date dateFin) {
-
-        SQLTable ecritureTable = base.getTable("ECRITURE");
-        SQLTable compteTable = base.getTable("COMPTE_PCE");
-        SQLSelect sel = new SQLSelect(base);
-
-        sel.addSelect(ecritureTable.getField("DEBIT"), "SUM");
-        sel.addSelect(ecritureTable.getField("CREDIT"), "SUM");
-
-        sel.addJoin("LEFT", ecritureTable.getField("ID_COMPTE_PCE"));
-        sel.addSelect(sel.getAlias(compteTable).getField("ID"));
-        sel.addSelect(sel.getAlias(compteTable).getField("NUMERO"));
-
-        // Where w = new Where(ecritureTable.getField("ID_COMPTE_PCE"), "=",
-        // compteTable.getField("ID"));
-
-        Where w2 = new Where(sel.getAlias(compteTable).getField("NUMERO"), "LIKE", String.valueOf(numeroStart) + "%");
-        Where w4 = new Where(ecritureTable.getField("DATE"), dateDebut, dateFin);
-
-        for (int i = numeroStart + 1; i < numeroEnd + 1; i++) {
-            Where w3;
-            if ((i == numeroEnd) && (!includeAllEnd)) {
-                w3 = new Where(sel.getAlias(compteTable).getField("NUMERO"), "=", String.valueOf(i));
-            } else {
-                w3 = new Where(sel.getAlias(compteTable).getField("NUMERO"), "LIKE", String.valueOf(i) + "%");
-            }
-            w2 = w2.or(w3);
-        }
-
-        sel.setWhere(w2.and(w4));
-        addAnalytiqueJoin(sel);
-        String req = sel.asString() + " GROUP BY \"COMPTE_PCE\".\"ID\",\"COMPTE_PCE\".\"NUMERO\" ORDER BY \"COMPTE_PCE\".\"NUMERO\"";
-
-        Object ob = base.getDataSource().execute(req, new ArrayListHandler());
-
-        List myList = (List) ob;
-
-        long debit = 0;
-        long credit = 0;
-        long solde = 0;
-        final int size = myList.size();
-        for (int i = 0; i < size; i++) {
-
-            Object[] objTmp = (Object[]) myList.get(i);
-            debit = ((Number) objTmp[0]).longValue();
-            credit = ((Number) objTmp[1]).longValue();
-            if ((debit - credit) > 0) {
-                solde += (debit - credit);
-            }
-        }
-
-        return solde;
-    } // MAYBE utiliser HAVING (credit - debit) > 0.0
+        return getSoldes(dateDebut, dateFin).soldeCompteDebiteur(numeroStart, numeroEnd, includeAllEnd);
+    }
 
     // FIXME soldeCompteCrediteur(47, 475, boolean includeAllEnd) --> LIKE 47, 48, 49, 50 , ...,
     // 474, 475
     public long soldeCompteCrediteur(int numeroStart, int numeroEnd, boolean includeAllEnd, Date dateDebut, Date dateFin) {
-
-        SQLTable ecritureTable = base.getTable("ECRITURE");
-        SQLTable compteTable = base.getTable("COMPTE_PCE");
-        SQLSelect sel = new SQLSelect(base);
-
-        sel.addSelect(ecritureTable.getField("DEBIT"), "SUM");
-        sel.addSelect(ecritureTable.getField("CREDIT"), "SUM");
-        sel.addJoin("LEFT", ecritureTable.getField("ID_COMPTE_PCE"));
-        sel.addSelect(sel.getAlias(compteTable).getField("ID"));
-        sel.addSelect(sel.getAlias(compteTable).getField("NUMERO"));
-
-        // Where w = new Where(ecritureTable.getField("ID_COMPTE_PCE"), "=",
-        // compteTable.getField("ID"));
-
-        Where w2 = new Where(sel.getAlias(compteTable).getField("NUMERO"), "LIKE", String.valueOf(numeroStart) + "%");
-        Where w4 = new Where(ecritureTable.getField("DATE"), dateDebut, dateFin);
-
-        for (int i = numeroStart + 1; i < numeroEnd + 1; i++) {
-            Where w3;
-            if ((i == numeroEnd) && (!includeAllEnd)) {
-                w3 = new Where(sel.getAlias(compteTable).getField("NUMERO"), "=", String.valueOf(i));
-            } else {
-                w3 = new Where(sel.getAlias(compteTable).getField("NUMERO"), "LIKE", String.valueOf(i) + "%");
-            }
-            w2 = w2.or(w3);
-        }
-
-        sel.setWhere(w2.and(w4));
-        addAnalytiqueJoin(sel);
-        String req = sel.asString();
-
-        req += " GROUP BY \"COMPTE_PCE\".\"ID\",\"COMPTE_PCE\".\"NUMERO\" ORDER BY \"COMPTE_PCE\".\"NUMERO\"";
-
-        Object ob = base.getDataSource().execute(req, new ArrayListHandler());
-        List myList = (List) ob;
-
-        long debit = 0;
-        long credit = 0;
-        long solde = 0;
-        final int size = myList.size();
-        for (int i = 0; i < size; i++) {
-
-            Object[] objTmp = (Object[]) myList.get(i);
-            debit = ((Number) objTmp[0]).longValue();
-            credit = ((Number) objTmp[1]).longValue();
-
-            if ((credit - debit) > 0) {
-                solde += (credit - debit);
-            }
-        }
-
-        return solde;
+        return getSoldes(dateDebut, dateFin).soldeCompteCrediteur(numeroStart, numeroEnd, includeAllEnd);
     }
 
     /***********************************************************************************************
@@ -291,35 +107,6 @@ public class SommeCompte {
      * @return le solde du compte passé en parametre
      **********************************************************************************************/
     public long soldeCompte(String numero) {
-        long sommeDebit = 0;
-        long sommeCredit = 0;
-
-        SQLTable ecritureTable = base.getTable("ECRITURE");
-        SQLTable compteTable = base.getTable("COMPTE_PCE");
-        SQLSelect sel = new SQLSelect(base);
-
-        sel.addSelect(ecritureTable.getField("DEBIT"), "SUM");
-        sel.addSelect(ecritureTable.getField("CREDIT"), "SUM");
-
-        Where w = new Where(ecritureTable.getField("ID_COMPTE_PCE"), "=", compteTable.getField("ID"));
-        Where w2 = new Where(compteTable.getField("NUMERO"), "=", numero.trim());
-        sel.setWhere(w.and(w2));
-        addAnalytiqueJoin(sel);
-        String req = sel.asString() + " GROUP BY \"COMPTE_PCE\".\"ID\",\"COMPTE_PCE\".\"NUMERO\" ORDER BY \"COMPTE_PCE\".\"NUMERO\"";
-        // System.out.println(req);
-
-        Object ob = base.getDataSource().execute(req, new ArrayListHandler());
-
-        List myList = (List) ob;
-
-        final int size = myList.size();
-        for (int i = 0; i < size; i++) {
-
-            Object[] objTmp = (Object[]) myList.get(i);
-            sommeDebit += ((Number) objTmp[0]).longValue();
-            sommeCredit += ((Number) objTmp[1]).longValue();
-        }
-
-        return sommeDebit - sommeCredit;
+        return getSoldes(null, null).soldeCompte(numero.trim());
     }
 }
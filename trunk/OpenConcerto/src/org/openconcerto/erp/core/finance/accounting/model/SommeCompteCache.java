@@ -0,0 +1,425 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.core.finance.accounting.model;
+
+import org.openconcerto.sql.model.SQLBase;
+import org.openconcerto.sql.model.SQLRow;
+import org.openconcerto.sql.model.SQLSelect;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.model.SQLTable.ListenerAndConfig;
+import org.openconcerto.sql.model.SQLTableEvent;
+import org.openconcerto.sql.model.SQLTableEvent.Mode;
+import org.openconcerto.sql.model.SQLTableModifiedListener;
+import org.openconcerto.sql.model.TableRef;
+import org.openconcerto.sql.model.Where;
+import org.openconcerto.utils.CompareUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.dbutils.handlers.ArrayListHandler;
+
+/**
+ * Soldes des comptes par période. Pour chaque période (et poste analytique) une seule requête
+ * groupée par compte est faite, ensuite toutes les sommes (par préfixe, par intervalle de
+ * comptes...) sont calculées en mémoire. Une modification d'écriture recharge les périodes
+ * contenant sa date. Par défaut une période n'est pas réutilisée d'un appel à l'autre, voir
+ * {@link #setMaxAge(long)}.
+ * 
+ * @see SommeCompte
+ */
+@ThreadSafe
+public class SommeCompteCache {
+
+    private static final Set<String> SOLDE_FIELDS = new HashSet<String>(Arrays.asList("DEBIT", "CREDIT", "DATE", "ID_COMPTE_PCE", "ARCHIVE"));
+    private static final int MAX_PERIODS = 16;
+
+    private final SQLBase base;
+    private final SQLTable ecritureTable, compteTable, assocTable;
+    private final ListenerAndConfig ecritureListener, assocListener;
+    @GuardedBy("this")
+    private final Map<Periode, Soldes> soldes;
+    @GuardedBy("this")
+    private long maxAge;
+
+    public SommeCompteCache(final SQLBase base) {
+        this.base = base;
+        this.ecritureTable = base.getTable("ECRITURE");
+        this.compteTable = base.getTable("COMPTE_PCE");
+        this.assocTable = base.getTable("ASSOCIATION_ANALYTIQUE");
+        this.soldes = new LinkedHashMap<Periode, Soldes>(MAX_PERIODS, 0.75f, true) {
+            private static final long serialVersionUID = 1162278943273530920L;
+
+            @Override
+            protected boolean removeEldestEntry(Entry<Periode, Soldes> eldest) {
+                return this.size() > MAX_PERIODS;
+            }
+        };
+        // other clients' changes are not notified, so by default always reload
+        this.maxAge = 0;
+        this.ecritureListener = new ListenerAndConfig(new SQLTableModifiedListener() {
+            @Override
+            public void tableModified(SQLTableEvent evt) {
+                ecritureModified(evt);
+            }
+        }, true);
+        this.ecritureTable.addTableModifiedListener(this.ecritureListener);
+        this.assocListener = new ListenerAndConfig(new SQLTableModifiedListener() {
+            @Override
+            public void tableModified(SQLTableEvent evt) {
+                clearAnalytique();
+            }
+        }, true);
+        this.assocTable.addTableModifiedListener(this.assocListener);
+    }
+
+    public final void die() {
+        this.ecritureTable.removeTableModifiedListener(this.ecritureListener);
+        this.assocTable.removeTableModifiedListener(this.assocListener);
+        this.clear();
+    }
+
+    /**
+     * Durée maximum pendant laquelle une période est utilisée sans être rechargée, les écritures
+     * modifiées par les autres postes ne sont pas notifiées. Les écritures modifiées par ce poste
+     * rechargent toujours les périodes concernées.
+     * 
+     * @param ms durée en millisecondes, 0 (par défaut) pour toujours recharger.
+     */
+    public synchronized final void setMaxAge(long ms) {
+        this.maxAge = ms;
+    }
+
+    public synchronized final long getMaxAge() {
+        return this.maxAge;
+    }
+
+    public synchronized final void clear() {
+        this.soldes.clear();
+    }
+
+    private synchronized void clearAnalytique() {
+        final Iterator<Periode> iter = this.soldes.keySet().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().idPoste != null)
+                iter.remove();
+        }
+    }
+
+    private synchronized void clear(final Date date) {
+        final Iterator<Periode> iter = this.soldes.keySet().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().contains(date))
+                iter.remove();
+        }
+    }
+
+    private void ecritureModified(final SQLTableEvent evt) {
+        if (evt.getRow() != null && evt.getMode() == Mode.ROW_UPDATED && Collections.disjoint(evt.getFieldNames(), SOLDE_FIELDS))
+            return;
+        // for added rows we can't know if they were committed before or after the query of a
+        // period (summing them again would count them twice), for the others we don't know the
+        // previous values : reload the periods containing the row, or all of them if its previous
+        // date is unknown
+        final Date date;
+        if (evt.getRow() == null || evt.getMode() == Mode.ROW_DELETED || (evt.getMode() == Mode.ROW_UPDATED && evt.getFieldNames().contains("DATE")) || !evt.getRow().exists())
+            date = null;
+        else
+            date = (Date) evt.getRow().getObject("DATE");
+        if (date == null)
+            this.clear();
+        else
+            this.clear(date);
+    }
+
+    /**
+     * Les soldes des comptes pour une période.
+     * 
+     * @param dateDebut le début de la période, <code>null</code> avec <code>dateFin</code> pour
+     *        toutes les écritures, sinon aucune écriture.
+     * @param dateFin la fin de la période, <code>null</code> avec <code>dateDebut</code> pour
+     *        toutes les écritures, sinon aucune écriture.
+     * @param rowPosteAnalytique le poste analytique, <code>null</code> pour toutes les écritures.
+     * @return les soldes.
+     */
+    public final Soldes getSoldes(final Date dateDebut, final Date dateFin, final SQLRow rowPosteAnalytique) {
+        final Periode p = new Periode(dateDebut, dateFin, rowPosteAnalytique == null ? null : rowPosteAnalytique.getID());
+        final Soldes res;
+        synchronized (this) {
+            final Soldes cached = this.soldes.get(p);
+            if (cached != null && this.maxAge > 0 && System.currentTimeMillis() - cached.loadTime <= this.maxAge) {
+                res = cached;
+            } else {
+                res = new Soldes(p);
+                this.soldes.put(p, res);
+            }
+        }
+        res.load();
+        return res;
+    }
+
+    private SQLSelect createSelect(final Periode p) {
+        final SQLSelect sel = new SQLSelect();
+        sel.addSelect(this.ecritureTable.getField("DEBIT"), "SUM");
+        sel.addSelect(this.ecritureTable.getField("CREDIT"), "SUM");
+        sel.addJoin("LEFT", this.ecritureTable.getField("ID_COMPTE_PCE"));
+        final TableRef compte = sel.getAlias(this.compteTable);
+        sel.addSelect(compte.getField("ID"));
+        sel.addSelect(compte.getField("NUMERO"));
+        // like SommeCompte used to, a single null bound matches no rows (BETWEEN NULL)
+        if (p.dateDebut != null || p.dateFin != null)
+            sel.setWhere(new Where(this.ecritureTable.getField("DATE"), p.dateDebut, p.dateFin));
+        if (p.idPoste != null) {
+            Where join = new Where(this.assocTable.getField("ID_ECRITURE"), "=", this.ecritureTable.getKey());
+            join = join.and(new Where(this.assocTable.getField("ID_POSTE_ANALYTIQUE"), "=", p.idPoste));
+            sel.addJoin("RIGHT", this.assocTable, join);
+        }
+        sel.addGroupBy(compte.getField("ID"));
+        sel.addGroupBy(compte.getField("NUMERO"));
+        return sel;
+    }
+
+    private static final class Periode {
+        private final Date dateDebut, dateFin;
+        private final Integer idPoste;
+
+        Periode(Date dateDebut, Date dateFin, Integer idPoste) {
+            super();
+            this.dateDebut = dateDebut;
+            this.dateFin = dateFin;
+            this.idPoste = idPoste;
+        }
+
+        final boolean contains(final Date d) {
+            if (this.dateDebut == null || this.dateFin == null)
+                return this.dateDebut == this.dateFin;
+            // DATE is a day, compare days to ignore the time of the bounds
+            return compareDays(this.dateDebut, d) <= 0 && compareDays(d, this.dateFin) <= 0;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + ((this.dateDebut == null) ? 0 : this.dateDebut.hashCode());
+            result = prime * result + ((this.dateFin == null) ? 0 : this.dateFin.hashCode());
+            result = prime * result + ((this.idPoste == null) ? 0 : this.idPoste.hashCode());
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null || getClass() != obj.getClass())
+                return false;
+            final Periode other = (Periode) obj;
+            return CompareUtils.equals(this.dateDebut, other.dateDebut) && CompareUtils.equals(this.dateFin, other.dateFin) && CompareUtils.equals(this.idPoste, other.idPoste);
+        }
+    }
+
+    private static final class Solde {
+        private long debit, credit;
+
+        final long getSolde() {
+            return this.debit - this.credit;
+        }
+    }
+
+    /**
+     * Les soldes des comptes d'une période, triés par numéro de compte.
+     */
+    @ThreadSafe
+    public final class Soldes {
+
+        private final Periode periode;
+        private final long loadTime;
+        @GuardedBy("this")
+        private boolean loaded;
+        @GuardedBy("this")
+        private final Map<Number, Solde> byID;
+        // several accounts can have the same number
+        @GuardedBy("this")
+        private final TreeMap<String, List<Solde>> byNumero;
+
+        Soldes(final Periode p) {
+            this.periode = p;
+            this.loadTime = System.currentTimeMillis();
+            this.loaded = false;
+            this.byID = new HashMap<Number, Solde>();
+            this.byNumero = new TreeMap<String, List<Solde>>();
+        }
+
+        synchronized void load() {
+            if (this.loaded)
+                return;
+            final List<?> l = (List<?>) base.getDataSource().execute(createSelect(this.periode).asString(), new ArrayListHandler());
+            for (final Object o : l) {
+                final Object[] objTmp = (Object[]) o;
+                final Number idCompte = (Number) objTmp[2];
+                // no account
+                if (idCompte == null)
+                    continue;
+                Solde s = this.byID.get(idCompte);
+                if (s == null) {
+                    s = new Solde();
+                    this.byID.put(idCompte, s);
+                    final String numero = (String) objTmp[3];
+                    List<Solde> soldes = this.byNumero.get(numero);
+                    if (soldes == null) {
+                        soldes = new ArrayList<Solde>(1);
+                        this.byNumero.put(numero, soldes);
+                    }
+                    soldes.add(s);
+                }
+                if (objTmp[0] != null)
+                    s.debit += ((Number) objTmp[0]).longValue();
+                if (objTmp[1] != null)
+                    s.credit += ((Number) objTmp[1]).longValue();
+            }
+            this.loaded = true;
+        }
+
+        private void addAll(final Collection<List<Solde>> soldes, final Map<Solde, Object> res) {
+            for (final List<Solde> l : soldes) {
+                for (final Solde s : l)
+                    res.put(s, null);
+            }
+        }
+
+        // comptes commençant par prefix
+        private void addFils(final String prefix, final Map<Solde, Object> res) {
+            this.addAll(this.byNumero.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values(), res);
+        }
+
+        private void addCompte(final String numero, final Map<Solde, Object> res) {
+            final List<Solde> l = this.byNumero.get(numero);
+            if (l != null)
+                this.addAll(Collections.singleton(l), res);
+        }
+
+        // même comptes que SommeCompte.soldeCompte(int, int, boolean, Date, Date)
+        private Collection<Solde> getComptes(int numeroStart, int numeroEnd, boolean includeAllEnd) {
+            // a compte can match more than one number, e.g. 47, 475
+            final Map<Solde, Object> res = new IdentityHashMap<Solde, Object>();
+            this.addFils(String.valueOf(numeroStart), res);
+            for (int i = numeroStart + 1; i < numeroEnd + 1; i++) {
+                if ((i == numeroEnd) && (!includeAllEnd)) {
+                    this.addCompte(String.valueOf(i), res);
+                } else {
+                    this.addFils(String.valueOf(i), res);
+                }
+            }
+            return res.keySet();
+        }
+
+        /**
+         * Le solde débiteur du sous arbre du PCE de racine <code>numero</code>.
+         * 
+         * @param numero numero du compte racine.
+         * @return le solde debiteur.
+         */
+        public synchronized long sommeCompteFils(final String numero) {
+            final Map<Solde, Object> comptes = new IdentityHashMap<Solde, Object>();
+            this.addFils(numero, comptes);
+            return sum(comptes.keySet(), 0);
+        }
+
+        /**
+         * Le solde d'un compte.
+         * 
+         * @param numero numero du compte.
+         * @return le solde du compte.
+         */
+        public synchronized long soldeCompte(final String numero) {
+            final Map<Solde, Object> comptes = new IdentityHashMap<Solde, Object>();
+            this.addCompte(numero, comptes);
+            return sum(comptes.keySet(), 0);
+        }
+
+        /**
+         * Le solde débiteur des comptes compris dans l'intervalle numeroStart numeroEnd.
+         * 
+         * @param numeroStart numero du compte de départ.
+         * @param numeroEnd numero du compte de fin.
+         * @param includeAllEnd indique si on inclus les sous comptes du compte numeroEnd.
+         * @return le solde debiteur total des comptes.
+         */
+        public synchronized long soldeCompte(int numeroStart, int numeroEnd, boolean includeAllEnd) {
+            return sum(this.getComptes(numeroStart, numeroEnd, includeAllEnd), 0);
+        }
+
+        /**
+         * La somme des soldes débiteurs des comptes compris dans l'intervalle.
+         * 
+         * @param numeroStart numero du compte de départ.
+         * @param numeroEnd numero du compte de fin.
+         * @param includeAllEnd indique si on inclus les sous comptes du compte numeroEnd.
+         * @return la somme des soldes positifs.
+         */
+        public synchronized long soldeCompteDebiteur(int numeroStart, int numeroEnd, boolean includeAllEnd) {
+            return sum(this.getComptes(numeroStart, numeroEnd, includeAllEnd), 1);
+        }
+
+        /**
+         * La somme des soldes créditeurs des comptes compris dans l'intervalle.
+         * 
+         * @param numeroStart numero du compte de départ.
+         * @param numeroEnd numero du compte de fin.
+         * @param includeAllEnd indique si on inclus les sous comptes du compte numeroEnd.
+         * @return la somme des soldes négatifs, en positif.
+         */
+        public synchronized long soldeCompteCrediteur(int numeroStart, int numeroEnd, boolean includeAllEnd) {
+            return -sum(this.getComptes(numeroStart, numeroEnd, includeAllEnd), -1);
+        }
+    }
+
+    static private int compareDays(final Date d1, final Date d2) {
+        return getDay(d1) - getDay(d2);
+    }
+
+    static private int getDay(final Date d) {
+        final Calendar c = Calendar.getInstance();
+        c.setTime(d);
+        return c.get(Calendar.YEAR) * 1000 + c.get(Calendar.DAY_OF_YEAR);
+    }
+
+    // sign : 0 all soldes, 1 only positive ones, -1 only negative ones
+    static private long sum(final Collection<Solde> soldes, final int sign) {
+        long res = 0;
+        for (final Solde s : soldes) {
+            final long solde = s.getSolde();
+            if (sign == 0 || Long.signum(solde) == sign)
+                res += solde;
+        }
+        return res;
+    }
+}
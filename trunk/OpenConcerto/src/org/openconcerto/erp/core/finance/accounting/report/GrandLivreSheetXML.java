@@ -16,26 +16,35 @@
 import org.openconcerto.erp.config.ComptaPropsConfiguration;
 import org.openconcerto.erp.core.finance.accounting.element.ComptePCESQLElement;
 import org.openconcerto.erp.generationDoc.AbstractListeSheetXml;
+import org.openconcerto.erp.generationDoc.OOgenerationListeXML;
 import org.openconcerto.erp.preferences.PrinterNXProps;
 import org.openconcerto.erp.rights.ComptaUserRight;
 import org.openconcerto.sql.Configuration;
+import org.openconcerto.sql.model.ConnectionHandlerNoSetup;
+import org.openconcerto.sql.model.SQLDataSource;
 import org.openconcerto.sql.model.SQLRow;
-import org.openconcerto.sql.model.SQLRowValues;
-import org.openconcerto.sql.model.SQLRowValuesListFetcher;
 import org.openconcerto.sql.model.SQLSelect;
+import org.openconcerto.sql.model.SQLSystem;
 import org.openconcerto.sql.model.SQLTable;
 import org.openconcerto.sql.model.Where;
 import org.openconcerto.sql.users.UserManager;
+import org.openconcerto.sql.utils.SQLUtils;
 import org.openconcerto.utils.GestionDevise;
 import org.openconcerto.utils.cc.ITransformer;
 
+import java.io.File;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 import org.apache.commons.dbutils.handlers.ArrayListHandler;
 
@@ -50,6 +59,14 @@ public class GrandLivreSheetXML extends AbstractListeSheetXml {
     private final static SQLTable tableMvt = base.getTable("MOUVEMENT");
     private final static SQLTable tableCompte = base.getTable("COMPTE_PCE");
 
+    // au delà, les lignes sont écrites au fur et à mesure de la lecture des écritures
+    private final static int STREAM_THRESHOLD = 20000;
+    private final static int FETCH_SIZE = 1000;
+    // colonnes de la requête des écritures, cf. iterateLines()
+    private final static String[] ECRITURE_FIELDS = { "ID_COMPTE_PCE", "COMPTE_NUMERO", "COMPTE_NOM", "JOURNAL_CODE", "CREDIT", "DEBIT", "DATE", "NOM", "LETTRAGE", "POINTEE", "DATE_LETTRAGE" };
+    private final static int COL_ID_COMPTE_PCE = 1, COL_COMPTE_NUMERO = 2, COL_COMPTE_NOM = 3, COL_JOURNAL_CODE = 4, COL_CREDIT = 5, COL_DEBIT = 6, COL_DATE = 7, COL_NOM = 8,
+            COL_LETTRAGE = 9, COL_POINTEE = 10, COL_DATE_LETTRAGE = 11, COL_MOUVEMENT_NUMERO = 12;
+
     private final static DateFormat dateFormat = DateFormat.getDateInstance(DateFormat.MEDIUM);
     private final static DateFormat dateFormatEcr = DateFormat.getDateInstance(DateFormat.SHORT);
     private SQLRow rowSociete = ((ComptaPropsConfiguration) Configuration.getInstance()).getRowSociete();
@@ -62,6 +79,9 @@ public class GrandLivreSheetXML extends AbstractListeSheetXml {
     private boolean centralClient = false;
     private boolean centralFourn = false;
     int idJrnlExclude = -1;
+    private List<Integer> lCompteSolde;
+    private Map<Integer, Long> mapCumul;
+    private boolean streamed = false;
 
     public static String TEMPLATE_ID = "GrandLivre";
     public static String TEMPLATE_PROPERTY_NAME = "LocationGrandLivre";
@@ -137,163 +157,268 @@ public class GrandLivreSheetXML extends AbstractListeSheetXml {
     protected void createListeValues() {
         Date d = new Date();
 
-        final SQLRowValues vals = new SQLRowValues(tableEcriture);
-        vals.put("ID_COMPTE_PCE", null);
-        vals.put("COMPTE_NUMERO", null);
-        vals.put("COMPTE_NOM", null);
-        vals.put("ID_JOURNAL", null);
-        vals.put("JOURNAL_CODE", null);
-        vals.putRowValues("ID_MOUVEMENT").put("NUMERO", null);
-        vals.put("CREDIT", null);
-        vals.put("DEBIT", null);
-        vals.put("DATE", null);
-        vals.put("NOM", null);
-        vals.put("LETTRAGE", null);
-        vals.put("POINTEE", null);
-        vals.put("DATE_LETTRAGE", null);
-        vals.put("DATE_POINTEE", null);
-
-        final List<Integer> lCompteSolde;
         if (GrandLivreSheetXML.this.excludeCompteSolde) {
-            lCompteSolde = getListeCompteSolde();
+            this.lCompteSolde = getListeCompteSolde();
         } else {
-            lCompteSolde = null;
+            this.lCompteSolde = null;
         }
-        Map<Integer, Long> mapCumul = getCumulsAnterieur(GrandLivreSheetXML.this.dateDu, lCompteSolde);
+        this.mapCumul = getCumulsAnterieur(GrandLivreSheetXML.this.dateDu, this.lCompteSolde);
 
-        final SQLRowValuesListFetcher fetcher = new SQLRowValuesListFetcher(vals);
-        fetcher.setSelTransf(new ITransformer<SQLSelect, SQLSelect>() {
-            @Override
-            public SQLSelect transformChecked(SQLSelect sel) {
+        final SQLSelect selCount = new SQLSelect();
+        selCount.addSelect(tableEcriture.getKey(), "COUNT");
+        selCount.setWhere(getWhereEcritures());
+        size = ((Number) base.getDataSource().executeScalar(selCount.asString())).intValue();
+        System.err.println("START CREATE Grand livre, NB ecritures  " + size);
 
-                Where w = (new Where(tableEcriture.getField("DATE"), GrandLivreSheetXML.this.dateDu, GrandLivreSheetXML.this.dateAu));
+        // Style des lignes
+        final Map<Integer, String> style = new HashMap<Integer, String>();
+        this.styleAllSheetValues.put(0, style);
 
-                if (GrandLivreSheetXML.this.compteDeb.equals(GrandLivreSheetXML.this.compteEnd)) {
-                    w = w.and(new Where(tableEcriture.getField("COMPTE_NUMERO"), "=", GrandLivreSheetXML.this.compteDeb));
-                } else {
-                    w = w.and(new Where(tableEcriture.getField("COMPTE_NUMERO"), (Object) GrandLivreSheetXML.this.compteDeb, (Object) GrandLivreSheetXML.this.compteEnd));
-                }
-                w = w.and(new Where(tableEcriture.getField("ID_JOURNAL"), "!=", idJrnlExclude));
-                w = w.and(new Where(tableEcriture.getField("ID_MOUVEMENT"), "=", tableMvt.getField("ID")));
+        // Valeur à l'extérieur de la liste
+        final Map<String, Object> sheetVals = new HashMap<String, Object>();
+        this.mapAllSheetValues.put(0, sheetVals);
 
-                if (GrandLivreSheetXML.this.lettrage == MODELETTREE) {
-                    Object o = null;
-                    w = w.and(new Where(tableEcriture.getField("LETTRAGE"), "<>", o));
-                    w = w.and(new Where(tableEcriture.getField("LETTRAGE"), "!=", ""));
-                } else {
-                    if (GrandLivreSheetXML.this.lettrage == MODENONLETTREE) {
-                        Object o = null;
-                        Where w2 = new Where(tableEcriture.getField("LETTRAGE"), "=", o);
-                        w = w.and(w2.or(new Where(tableEcriture.getField("LETTRAGE"), "=", "")));
+        // Au delà du seuil les lignes sont produites pendant l'écriture du fichier, cf.
+        // genereStreamed()
+        this.streamed = size > STREAM_THRESHOLD;
+        if (!this.streamed) {
+            // Valeur de la liste
+            final List<Map<String, Object>> tableauVals = new ArrayList<Map<String, Object>>();
+            this.listAllSheetValues.put(0, tableauVals);
+            try {
+                iterateLines(style, sheetVals, false, new ITransformer<LineIterator, Object>() {
+                    @Override
+                    public Object transformChecked(LineIterator input) {
+                        while (input.hasNext()) {
+                            tableauVals.add(input.next());
+                        }
+                        return null;
                     }
-                }
+                });
+            } catch (SQLException e) {
+                throw new IllegalStateException("Impossible de lire les écritures", e);
+            }
+        }
 
-                if (GrandLivreSheetXML.this.excludeCompteSolde) {
-                    System.err.println("Exclude compte");
+        sheetVals.put("TITRE_1", "GRAND LIVRE " + this.rowSociete.getString("TYPE") + " " + this.rowSociete.getString("NOM"));
+        sheetVals.put("DATE_EDITION", new Date());
+        sheetVals.put("TITRE_2", "Compte : " + this.compteDeb + " à " + this.compteEnd + ". Période du " + dateFormatEcr.format(this.dateDu) + " au " + dateFormatEcr.format(this.dateAu) + ".");
 
-                    w = w.and(new Where(tableEcriture.getField("ID_COMPTE_PCE"), lCompteSolde).not());
-                }
+        Date end = new Date();
+        System.err.println("///////// TAKE " + (end.getTime() - d.getTime()) + " millisecondes TO CREATE MAP");
+    }
 
-                if (!UserManager.getInstance().getCurrentUser().getRights().haveRight(ComptaUserRight.ACCES_NOT_RESCTRICTED_TO_411)) {
-                    // TODO Show Restricted acces in UI
-                    w = w.and(new Where(tableEcriture.getField("COMPTE_NUMERO"), "LIKE", "411%"));
-                }
+    @Override
+    protected boolean isStreamed() {
+        return this.streamed;
+    }
 
-                sel.setWhere(w);
-                sel.addFieldOrder(tableEcriture.getField("COMPTE_NUMERO"));
-                sel.addFieldOrder(tableEcriture.getField("DATE"));
-                sel.addFieldOrder(tableMvt.getField("NUMERO"));
-                System.err.println(sel.asString());
-                return sel;
+    @Override
+    protected File genereStreamed() throws SQLException {
+        // les totaux du pied de page sont ajoutés à mapAllSheetValues à la fin des lignes
+        return iterateLines(this.styleAllSheetValues.get(0), this.mapAllSheetValues.get(0), true, new ITransformer<LineIterator, File>() {
+            @Override
+            public File transformChecked(LineIterator input) {
+                return OOgenerationListeXML.genereStreamed(getTemplateId(), getDocumentOutputDirectory(), getValidFileName(getName()), listAllSheetValues, mapAllSheetValues,
+                        styleAllSheetValues, sheetNames, null, 0, input);
             }
         });
+    }
 
-        List<SQLRowValues> list = fetcher.fetch();
-        size = list.size();
-        System.err.println("START CREATE Grand livre, NB ecritures  " + size);
+    private Where getWhereEcritures() {
+        Where w = (new Where(tableEcriture.getField("DATE"), GrandLivreSheetXML.this.dateDu, GrandLivreSheetXML.this.dateAu));
 
-        long totalDebit, totalCredit, sousTotalDebit, sousTotalCredit, totalCreditAntC, totalDebitAntC, totalCreditAntF, totalDebitAntF;
-
-        totalDebit = 0;
-        totalCredit = 0;
-        sousTotalCredit = 0;
-        sousTotalDebit = 0;
-        totalCreditAntC = 0;
-        totalDebitAntC = 0;
-        totalCreditAntF = 0;
-        totalDebitAntF = 0;
-        SQLRowValues rowFirstEcr = null;
-        int idCptFirstEcr = 1;
-
-        boolean setTitle = true;
-        boolean setLine = false;
-        boolean setCumuls = true;
-        boolean firstEcrCentC = true;
-        boolean firstEcrCentF = true;
-        String numCptFirstEcr = "411";
-        String numCptClient = "411";
-        String nomCptClient = "Clients";
-        String numCptFourn = "401";
-        String nomCptFourn = "Fournisseurs";
-        int idCptClient = ComptePCESQLElement.getId(numCptClient, nomCptClient);
-        int idCptFourn = ComptePCESQLElement.getId(numCptFourn, nomCptFourn);
-
-        final String titre3 = "Titre 3";
-        final String cumulAntString = "Cumuls antérieurs";
-        // int j = 0;
-
-        // Valeur de la liste
-        // listAllSheetValues ;
+        if (GrandLivreSheetXML.this.compteDeb.equals(GrandLivreSheetXML.this.compteEnd)) {
+            w = w.and(new Where(tableEcriture.getField("COMPTE_NUMERO"), "=", GrandLivreSheetXML.this.compteDeb));
+        } else {
+            w = w.and(new Where(tableEcriture.getField("COMPTE_NUMERO"), (Object) GrandLivreSheetXML.this.compteDeb, (Object) GrandLivreSheetXML.this.compteEnd));
+        }
+        w = w.and(new Where(tableEcriture.getField("ID_JOURNAL"), "!=", idJrnlExclude));
+        w = w.and(new Where(tableEcriture.getField("ID_MOUVEMENT"), "=", tableMvt.getField("ID")));
 
-        // Style des lignes
-        // styleAllSheetValues;
+        if (GrandLivreSheetXML.this.lettrage == MODELETTREE) {
+            Object o = null;
+            w = w.and(new Where(tableEcriture.getField("LETTRAGE"), "<>", o));
+            w = w.and(new Where(tableEcriture.getField("LETTRAGE"), "!=", ""));
+        } else {
+            if (GrandLivreSheetXML.this.lettrage == MODENONLETTREE) {
+                Object o = null;
+                Where w2 = new Where(tableEcriture.getField("LETTRAGE"), "=", o);
+                w = w.and(w2.or(new Where(tableEcriture.getField("LETTRAGE"), "=", "")));
+            }
+        }
 
-        // Valeur à l'extérieur de la liste
-        // mapAllSheetValues
+        if (GrandLivreSheetXML.this.excludeCompteSolde) {
+            System.err.println("Exclude compte");
 
-        List<Map<String, Object>> tableauVals = new ArrayList<Map<String, Object>>();
-        this.listAllSheetValues.put(0, tableauVals);
+            w = w.and(new Where(tableEcriture.getField("ID_COMPTE_PCE"), this.lCompteSolde).not());
+        }
 
-        Map<Integer, String> style = new HashMap<Integer, String>();
-        this.styleAllSheetValues.put(0, style);
+        if (!UserManager.getInstance().getCurrentUser().getRights().haveRight(ComptaUserRight.ACCES_NOT_RESCTRICTED_TO_411)) {
+            // TODO Show Restricted acces in UI
+            w = w.and(new Where(tableEcriture.getField("COMPTE_NUMERO"), "LIKE", "411%"));
+        }
+        return w;
+    }
+
+    /**
+     * Parcourt les écritures triées par compte et date avec un curseur, sans les charger en mémoire.
+     * 
+     * @param style le style des lignes, rempli au fur et à mesure.
+     * @param sheetVals reçoit les totaux après la dernière ligne.
+     * @param streamed <code>true</code> si les lignes sont écrites au fur et à mesure : le style
+     *        des lignes déjà lues est supprimé.
+     * @param t utilise les lignes, appelé pendant que le curseur est ouvert.
+     * @return ce que retourne <code>t</code>.
+     * @throws SQLException si la requête échoue.
+     */
+    private <T> T iterateLines(final Map<Integer, String> style, final Map<String, Object> sheetVals, final boolean streamed, final ITransformer<LineIterator, T> t)
+            throws SQLException {
+        final SQLSelect sel = new SQLSelect();
+        for (final String f : ECRITURE_FIELDS) {
+            sel.addSelect(tableEcriture.getField(f));
+        }
+        sel.addSelect(tableMvt.getField("NUMERO"));
+        sel.setWhere(getWhereEcritures());
+        sel.addFieldOrder(tableEcriture.getField("COMPTE_NUMERO"));
+        sel.addFieldOrder(tableEcriture.getField("DATE"));
+        sel.addFieldOrder(tableMvt.getField("NUMERO"));
+        final String req = sel.asString();
+
+        // PostgreSQL n'utilise un curseur que dans une transaction
+        return SQLUtils.executeAtomic(base.getDataSource(), new ConnectionHandlerNoSetup<T, SQLException>() {
+            @Override
+            public T handle(SQLDataSource ds) throws SQLException {
+                final Statement stmt = ds.getConnection().createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                try {
+                    // MySQL ne lit les lignes une à une qu'avec Integer.MIN_VALUE
+                    stmt.setFetchSize(ds.getSystem() == SQLSystem.MYSQL ? Integer.MIN_VALUE : FETCH_SIZE);
+                    final ResultSet rs = stmt.executeQuery(req);
+                    try {
+                        return t.transformChecked(new LineIterator(rs, style, sheetVals, streamed));
+                    } finally {
+                        rs.close();
+                    }
+                } finally {
+                    stmt.close();
+                }
+            }
+        });
+    }
 
+    /**
+     * Les lignes du grand livre, calculées à partir du curseur des écritures : titre, cumuls
+     * antérieurs et sous-total de chaque compte, soldes progressifs et centralisation des comptes
+     * clients et fournisseurs.
+     */
+    private final class LineIterator implements Iterator<Map<String, Object>> {
+
+        private final ResultSet rs;
+        private final Map<Integer, String> style;
+        private final Map<String, Object> sheetVals;
+        private final boolean streamed;
+        // index de la prochaine ligne
+        private int index;
+        // l'écriture courante n'a pas encore été consommée
+        private boolean hasEcr;
+        private final boolean empty;
+        private boolean sousTotalDone;
+
+        private long totalDebit, totalCredit, sousTotalDebit, sousTotalCredit, totalCreditAntC, totalDebitAntC, totalCreditAntF, totalDebitAntF;
+        private boolean hasFirstEcr = false;
+        private int idCptFirstEcr = 1;
+        private String numCptFirstEcr = "411";
         // Affiche le nom du compte
-        setTitle = true;
+        private boolean setTitle = true;
         // ligne vide avant de mettre le setTitle
-        setLine = false;
-        for (int i = 0; i < size;) {
-            // System.err.println(i);
-            // // System.err.println("START NEW PAGE; POS : " + posLine);
-            //
-            // /***************************************************************************************
-            // * ENTETE
-            // **************************************************************************************/
-            // // makeEntete(posLine);
-            // // posLine += debutFill - 1;
-
-            /***************************************************************************************
-             * CONTENU
-             **************************************************************************************/
-            final Double doubleZero = Double.valueOf("0");
+        private boolean setLine = false;
+        private boolean setCumuls = true;
+        private boolean firstEcrCentC = true;
+        private boolean firstEcrCentF = true;
+
+        private final String numCptClient = "411";
+        private final String nomCptClient = "Clients";
+        private final String numCptFourn = "401";
+        private final String nomCptFourn = "Fournisseurs";
+        private final int idCptClient = ComptePCESQLElement.getId(this.numCptClient, this.nomCptClient);
+        private final int idCptFourn = ComptePCESQLElement.getId(this.numCptFourn, this.nomCptFourn);
+
+        public LineIterator(final ResultSet rs, final Map<Integer, String> style, final Map<String, Object> sheetVals, final boolean streamed) {
+            this.rs = rs;
+            this.style = style;
+            this.sheetVals = sheetVals;
+            this.streamed = streamed;
+            this.index = 0;
+            this.nextEcr();
+            this.empty = !this.hasEcr;
+            this.sousTotalDone = false;
+        }
+
+        private void nextEcr() {
+            try {
+                this.hasEcr = this.rs.next();
+            } catch (SQLException e) {
+                throw new IllegalStateException("Impossible de lire les écritures", e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            // après la dernière écriture : le sous-total
+            return this.hasEcr || (!this.empty && !this.sousTotalDone);
+        }
+
+        @Override
+        public Map<String, Object> next() {
+            if (!this.hasNext())
+                throw new NoSuchElementException();
+            final int pos = this.index++;
+            // les styles des lignes déjà écrites ne sont plus utiles
+            if (this.streamed)
+                this.style.remove(pos - 2);
+            final Map<String, Object> ooLine = new HashMap<String, Object>();
+            if (this.hasEcr) {
+                try {
+                    this.fillLine(ooLine, pos);
+                } catch (SQLException e) {
+                    throw new IllegalStateException("Impossible de lire l'écriture de la ligne " + pos, e);
+                }
+            } else {
+                makeSousTotal(ooLine, this.style, pos, this.sousTotalDebit, this.sousTotalCredit);
+                this.sousTotalDone = true;
 
-            SQLRowValues rowEcr = list.get(i);
+                this.sheetVals.put("TOTAL_DEBIT", (this.totalDebit == 0) ? 0 : new Double(GestionDevise.currencyToString(this.totalDebit, false)));
+                this.sheetVals.put("TOTAL_CREDIT", (this.totalCredit == 0) ? 0 : new Double(GestionDevise.currencyToString(this.totalCredit, false)));
+                this.sheetVals.put("TOTAL_SOLDE", (this.totalDebit - this.totalCredit == 0) ? 0 : new Double(GestionDevise.currencyToString(this.totalDebit - this.totalCredit, false)));
+            }
+            return ooLine;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        // une itération de l'ancienne boucle, ne consomme pas forcément l'écriture courante
+        private void fillLine(final Map<String, Object> ooLine, final int pos) throws SQLException {
+            final Double doubleZero = Double.valueOf("0");
+            final String titre3 = "Titre 3";
+            final String cumulAntString = "Cumuls antérieurs";
 
-            int idCpt = rowEcr.getInt("ID_COMPTE_PCE");
-            String nomCpt = rowEcr.getString("COMPTE_NOM");
-            String numCpt = rowEcr.getString("COMPTE_NUMERO");
+            int idCpt = this.rs.getInt(COL_ID_COMPTE_PCE);
+            String nomCpt = this.rs.getString(COL_COMPTE_NOM);
+            String numCpt = this.rs.getString(COL_COMPTE_NUMERO);
 
-            Map<String, Object> ooLine = new HashMap<String, Object>();
-            tableauVals.add(ooLine);
             // Cumuls antérieurs
-            if (setCumuls && this.cumul && !setTitle) {
+            if (this.setCumuls && GrandLivreSheetXML.this.cumul && !this.setTitle) {
 
-                style.put(tableauVals.size(), titre3);
+                this.style.put(pos + 1, titre3);
                 ooLine.put("DATE", "");
                 ooLine.put("JOURNAL", "");
                 ooLine.put("MOUVEMENT", "");
 
                 ooLine.put("LIBELLE", cumulAntString);
-                Long longSolde = mapCumul.get(idCpt);
+                Long longSolde = GrandLivreSheetXML.this.mapCumul.get(idCpt);
 
                 if (longSolde == null) {
                     longSolde = Long.valueOf(0);
@@ -310,29 +435,29 @@ public class GrandLivreSheetXML extends AbstractListeSheetXml {
                 ooLine.put("CREDIT", (creditCumulAnt == 0) ? doubleZero : Double.valueOf(GestionDevise.currencyToString(creditCumulAnt, false)));
                 ooLine.put("SOLDE", (longSolde == 0) ? doubleZero : Double.valueOf(GestionDevise.currencyToString(longSolde, false)));
 
-                totalCredit += creditCumulAnt;
-                totalDebit += debitCumulAnt;
+                this.totalCredit += creditCumulAnt;
+                this.totalDebit += debitCumulAnt;
 
-                sousTotalCredit += creditCumulAnt;
-                sousTotalDebit += debitCumulAnt;
-                setCumuls = false;
+                this.sousTotalCredit += creditCumulAnt;
+                this.sousTotalDebit += debitCumulAnt;
+                this.setCumuls = false;
             } else {
                 // Titre
-                if (setTitle) {
-                    if (!setLine) {
-                        style.put(tableauVals.size() - 1, "Titre 1");
+                if (this.setTitle) {
+                    if (!this.setLine) {
+                        this.style.put(pos, "Titre 1");
 
                         // Si on centralise les comptes clients ou fournisseurs on affiche le
                         // compte 401 ou 411
-                        if (this.centralClient && nomCpt.startsWith("411")) {
-                            nomCpt = nomCptClient;
-                            numCpt = numCptClient;
-                            idCpt = idCptClient;
+                        if (GrandLivreSheetXML.this.centralClient && nomCpt.startsWith("411")) {
+                            nomCpt = this.nomCptClient;
+                            numCpt = this.numCptClient;
+                            idCpt = this.idCptClient;
                         }
-                        if (this.centralFourn && nomCpt.startsWith("401")) {
-                            nomCpt = nomCptFourn;
-                            numCpt = numCptFourn;
-                            idCpt = idCptFourn;
+                        if (GrandLivreSheetXML.this.centralFourn && nomCpt.startsWith("401")) {
+                            nomCpt = this.nomCptFourn;
+                            numCpt = this.numCptFourn;
+                            idCpt = this.idCptFourn;
                         }
                         ooLine.put("DATE", numCpt);
                         ooLine.put("JOURNAL", nomCpt);
@@ -341,177 +466,105 @@ public class GrandLivreSheetXML extends AbstractListeSheetXml {
                         ooLine.put("DEBIT", "");
                         ooLine.put("CREDIT", "");
                         ooLine.put("SOLDE", "");
-                        setTitle = false;
-                        setLine = true;
+                        this.setTitle = false;
+                        this.setLine = true;
 
-                        if (rowFirstEcr == null) {
-                            rowFirstEcr = rowEcr;
-                            idCptFirstEcr = rowEcr.getInt("ID_COMPTE_PCE");
-                            numCptFirstEcr = rowEcr.getString("COMPTE_NUMERO");
+                        if (!this.hasFirstEcr) {
+                            this.hasFirstEcr = true;
+                            this.idCptFirstEcr = this.rs.getInt(COL_ID_COMPTE_PCE);
+                            this.numCptFirstEcr = this.rs.getString(COL_COMPTE_NUMERO);
                         }
 
                     } else {
-                        style.put(tableauVals.size() - 1, "Normal");
-                        setLine = false;
+                        this.style.put(pos, "Normal");
+                        this.setLine = false;
                     }
                 } else {
 
                     // si on change de compte alors on applique le style Titre 1
-                    if (rowFirstEcr != null && idCptFirstEcr != idCpt && (!this.centralFourn || (!(numCptFirstEcr.startsWith("401") && numCpt.startsWith("401"))))
-                            && (!this.centralClient || (!(numCptFirstEcr.startsWith("411") && numCpt.startsWith("411"))))) {
-
-                        rowFirstEcr = rowEcr;
-                        idCptFirstEcr = rowFirstEcr.getInt("ID_COMPTE_PCE");
-                        numCptFirstEcr = rowEcr.getString("COMPTE_NUMERO");
-                        makeSousTotal(ooLine, style, tableauVals.size() - 1, sousTotalDebit, sousTotalCredit);
-
-                        sousTotalCredit = 0;
-                        sousTotalDebit = 0;
-                        setTitle = true;
-                        setCumuls = true;
+                    if (this.hasFirstEcr && this.idCptFirstEcr != idCpt
+                            && (!GrandLivreSheetXML.this.centralFourn || (!(this.numCptFirstEcr.startsWith("401") && numCpt.startsWith("401"))))
+                            && (!GrandLivreSheetXML.this.centralClient || (!(this.numCptFirstEcr.startsWith("411") && numCpt.startsWith("411"))))) {
+
+                        this.idCptFirstEcr = idCpt;
+                        this.numCptFirstEcr = numCpt;
+                        makeSousTotal(ooLine, this.style, pos, this.sousTotalDebit, this.sousTotalCredit);
+
+                        this.sousTotalCredit = 0;
+                        this.sousTotalDebit = 0;
+                        this.setTitle = true;
+                        this.setCumuls = true;
                     } else {
-                        long cred = rowEcr.getLong("CREDIT");
-                        long deb = rowEcr.getLong("DEBIT");
+                        long cred = this.rs.getLong(COL_CREDIT);
+                        long deb = this.rs.getLong(COL_DEBIT);
                         // Centralisation fournisseur
-                        if (this.centralFourn && numCpt.startsWith("401")) {
-                            i++;
-
-                            if (firstEcrCentF) {
-                                // posLine++;
+                        if (GrandLivreSheetXML.this.centralFourn && numCpt.startsWith("401")) {
+                            if (this.firstEcrCentF) {
                                 ooLine.put("LIBELLE", "Centralisation des comptes fournisseurs");
-                                style.put(tableauVals.size() - 1, "Normal");
-                                firstEcrCentF = false;
+                                this.style.put(pos, "Normal");
+                                this.firstEcrCentF = false;
                             }
 
-                            totalCreditAntF += cred;
-                            totalDebitAntF += deb;
-                            sousTotalCredit += cred;
-                            sousTotalDebit += deb;
-                            long solde = totalDebitAntF - totalCreditAntF;
-                            ooLine.put("DEBIT", (totalDebitAntF == 0) ? doubleZero : new Double(GestionDevise.currencyToString(totalDebitAntF, false)));
-                            ooLine.put("CREDIT", (totalCreditAntF == 0) ? doubleZero : new Double(GestionDevise.currencyToString(totalCreditAntF, false)));
+                            this.totalCreditAntF += cred;
+                            this.totalDebitAntF += deb;
+                            this.sousTotalCredit += cred;
+                            this.sousTotalDebit += deb;
+                            long solde = this.totalDebitAntF - this.totalCreditAntF;
+                            ooLine.put("DEBIT", (this.totalDebitAntF == 0) ? doubleZero : new Double(GestionDevise.currencyToString(this.totalDebitAntF, false)));
+                            ooLine.put("CREDIT", (this.totalCreditAntF == 0) ? doubleZero : new Double(GestionDevise.currencyToString(this.totalCreditAntF, false)));
                             ooLine.put("SOLDE", (solde == 0) ? doubleZero : new Double(GestionDevise.currencyToString(solde, false)));
 
-                            continue;
+                            this.nextEcr();
+                            return;
                         }
                         // Centralisation client
-                        if (this.centralClient && numCpt.startsWith("411")) {
-                            i++;
-                            if (firstEcrCentC) {
-                                // posLine++;
+                        if (GrandLivreSheetXML.this.centralClient && numCpt.startsWith("411")) {
+                            if (this.firstEcrCentC) {
                                 ooLine.put("LIBELLE", "Centralisation des comptes clients");
-                                style.put(tableauVals.size() - 1, "Normal");
-                                firstEcrCentC = false;
+                                this.style.put(pos, "Normal");
+                                this.firstEcrCentC = false;
                             }
 
-                            totalCreditAntC += cred;
-                            totalDebitAntC += deb;
-                            sousTotalCredit += cred;
-                            sousTotalDebit += deb;
-                            long solde = totalDebitAntC - totalCreditAntC;
-                            ooLine.put("DEBIT", (totalDebitAntC == 0) ? doubleZero : Double.valueOf(GestionDevise.currencyToString(totalDebitAntC, false)));
-                            ooLine.put("CREDIT", (totalCreditAntC == 0) ? doubleZero : Double.valueOf(GestionDevise.currencyToString(totalCreditAntC, false)));
+                            this.totalCreditAntC += cred;
+                            this.totalDebitAntC += deb;
+                            this.sousTotalCredit += cred;
+                            this.sousTotalDebit += deb;
+                            long solde = this.totalDebitAntC - this.totalCreditAntC;
+                            ooLine.put("DEBIT", (this.totalDebitAntC == 0) ? doubleZero : Double.valueOf(GestionDevise.currencyToString(this.totalDebitAntC, false)));
+                            ooLine.put("CREDIT", (this.totalCreditAntC == 0) ? doubleZero : Double.valueOf(GestionDevise.currencyToString(this.totalCreditAntC, false)));
                             ooLine.put("SOLDE", (solde == 0) ? doubleZero : Double.valueOf(GestionDevise.currencyToString(solde, false)));
 
-                            continue;
+                            this.nextEcr();
+                            return;
                         }
 
-                        ooLine.put("DATE", dateFormatEcr.format((Date) rowEcr.getObject("DATE")));
+                        ooLine.put("DATE", dateFormatEcr.format(this.rs.getDate(COL_DATE)));
 
-                        ooLine.put("JOURNAL", rowEcr.getString("JOURNAL_CODE"));
-                        ooLine.put("MOUVEMENT", rowEcr.getForeign("ID_MOUVEMENT").getObject("NUMERO"));
-                        ooLine.put("LIBELLE", rowEcr.getObject("NOM"));
-                        ooLine.put("CODE_LETTRAGE", rowEcr.getObject("LETTRAGE"));
-                        ooLine.put("CODE_POINTAGE", rowEcr.getObject("POINTEE"));
-                        ooLine.put("DATE_LETTRAGE", rowEcr.getObject("DATE_LETTRAGE"));
-                        ooLine.put("DATE_POINTAGE", rowEcr.getObject("DATE_LETTRAGE"));
+                        ooLine.put("JOURNAL", this.rs.getString(COL_JOURNAL_CODE));
+                        ooLine.put("MOUVEMENT", this.rs.getObject(COL_MOUVEMENT_NUMERO));
+                        ooLine.put("LIBELLE", this.rs.getObject(COL_NOM));
+                        ooLine.put("CODE_LETTRAGE", this.rs.getObject(COL_LETTRAGE));
+                        ooLine.put("CODE_POINTAGE", this.rs.getObject(COL_POINTEE));
+                        ooLine.put("DATE_LETTRAGE", this.rs.getObject(COL_DATE_LETTRAGE));
+                        ooLine.put("DATE_POINTAGE", this.rs.getObject(COL_DATE_LETTRAGE));
 
-                        totalCredit += cred;
-                        totalDebit += deb;
+                        this.totalCredit += cred;
+                        this.totalDebit += deb;
 
-                        sousTotalCredit += cred;
-                        sousTotalDebit += deb;
-                        long solde = sousTotalDebit - sousTotalCredit;
+                        this.sousTotalCredit += cred;
+                        this.sousTotalDebit += deb;
+                        long solde = this.sousTotalDebit - this.sousTotalCredit;
 
                         ooLine.put("DEBIT", (deb == 0) ? doubleZero : Double.valueOf(GestionDevise.currencyToString(deb, false)));
                         ooLine.put("CREDIT", (cred == 0) ? doubleZero : Double.valueOf(GestionDevise.currencyToString(cred, false)));
                         ooLine.put("SOLDE", (solde == 0) ? doubleZero : Double.valueOf(GestionDevise.currencyToString(solde, false)));
 
-                        style.put(tableauVals.size() - 1, "Normal");
-                        i++;
+                        this.style.put(pos, "Normal");
+                        this.nextEcr();
                     }
-
                 }
-
             }
-
-            // if (i >= size && j < endFill - debutFill + 1) {
-            // makeSousTotal(posLine, sousTotalDebit, sousTotalCredit);
-            // }
-            //
-            // posLine = firstLine + endFill;
-            /*
-             * if (this.mapStyleRow.get(new Integer(posLine - 1)) != null) {
-             * this.mapStyleRow.put(new Integer(posLine - 1), "Titre 2"); }
-             */
-
-            // Total
-            // this.mCell.put("E" + posLine, (totalDebit == 0) ? doubleZero : new
-            // Double(GestionDevise.currencyToString(totalDebit, false)));
-            // this.mCell.put("F" + posLine, (totalCredit == 0) ? doubleZero : new
-            // Double(GestionDevise.currencyToString(totalCredit, false)));
-            // this.mCell.put("G" + posLine, (totalDebit - totalCredit == 0) ? doubleZero : new
-            // Double(GestionDevise.currencyToString(totalDebit - totalCredit, false)));
-            //
-            // posLine += 2;
-            //
-            // // bas de page
-            // makePiedPage(posLine, this.compteDeb + " à " + this.compteEnd);
-            //
-            // posLine++;
-            // firstLine = posLine;
-            // this.nbPage++;
-            //
-            // if (i >= size && j >= (endFill - debutFill + 1)) {
-            //
-            // makeEntete(posLine);
-            // posLine += debutFill - 1;
-            // makeSousTotal(posLine, sousTotalDebit, sousTotalCredit);
-            // this.nbPage++;
-            // }
-
         }
-
-        // Total
-        // this.mCell.put("E" + posLine, (totalDebit == 0) ? doubleZero : new
-        // Double(GestionDevise.currencyToString(totalDebit, false)));
-        // this.mCell.put("F" + posLine, (totalCredit == 0) ? doubleZero : new
-        // Double(GestionDevise.currencyToString(totalCredit, false)));
-        // this.mCell.put("G" + posLine, (totalDebit - totalCredit == 0) ? doubleZero : new
-        // Double(GestionDevise.currencyToString(totalDebit - totalCredit, false)));
-        Map<String, Object> sheetVals = new HashMap<String, Object>();
-        this.mapAllSheetValues.put(0, sheetVals);
-
-        if (size > 0) {
-            Map<String, Object> ooLine = new HashMap<String, Object>();
-            tableauVals.add(ooLine);
-            makeSousTotal(ooLine, style, tableauVals.size() - 1, sousTotalDebit, sousTotalCredit);
-
-            sheetVals.put("TOTAL_DEBIT", (totalDebit == 0) ? 0 : new Double(GestionDevise.currencyToString(totalDebit, false)));
-            sheetVals.put("TOTAL_CREDIT", (totalCredit == 0) ? 0 : new Double(GestionDevise.currencyToString(totalCredit, false)));
-            sheetVals.put("TOTAL_SOLDE", (totalDebit - totalCredit == 0) ? 0 : new Double(GestionDevise.currencyToString(totalDebit - totalCredit, false)));
-        }
-
-        sheetVals.put("TITRE_1", "GRAND LIVRE " + this.rowSociete.getString("TYPE") + " " + this.rowSociete.getString("NOM"));
-        sheetVals.put("DATE_EDITION", new Date());
-        sheetVals.put("TITRE_2", "Compte : " + this.compteDeb + " à " + this.compteEnd + ". Période du " + dateFormatEcr.format(this.dateDu) + " au " + dateFormatEcr.format(this.dateAu) + ".");
-        // on conserve la page d'origine du model
-        // if (this.nbPage > 0) {
-        // this.nbPage--;
-        // }
-
-        Date end = new Date();
-        System.err.println("///////// TAKE " + (end.getTime() - d.getTime()) + " millisecondes TO CREATE MAP");
     }
 
     private List<Integer> getListeCompteSolde() {
@@ -0,0 +1,58 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.core.humanresources.payroll.formule;
+
+import org.openconcerto.sql.model.SQLField;
+import org.openconcerto.sql.model.SQLRow;
+
+import java.util.List;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * Une formule de paye analysée : le texte et les variables qu'il utilise, dans l'ordre où elles
+ * doivent être définies. Ne dépend pas du salarié, cf. {@link FormuleContext}.
+ * 
+ * @see Formules#getFormule(String)
+ */
+@Immutable
+final class Formule {
+
+    private final String text;
+    // SQLField ou SQLRow de VARIABLE_PAYE
+    private final List<Object> variables;
+
+    Formule(final String text, final List<Object> variables) {
+        this.text = text;
+        this.variables = variables;
+    }
+
+    public final String getText() {
+        return this.text;
+    }
+
+    /**
+     * Les variables dont dépend la formule.
+     * 
+     * @return les {@link SQLField} et les {@link SQLRow} de VARIABLE_PAYE utilisés.
+     */
+    public final List<Object> getVariables() {
+        return this.variables;
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getSimpleName() + " " + this.text;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.core.humanresources.payroll.formule;
+
+import org.openconcerto.sql.model.SQLField;
+import org.openconcerto.sql.model.SQLRow;
+import org.openconcerto.sql.model.SQLTable;
+
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import koala.dynamicjava.interpreter.Interpreter;
+import koala.dynamicjava.interpreter.InterpreterException;
+import koala.dynamicjava.interpreter.TreeInterpreter;
+import koala.dynamicjava.parser.wrapper.JavaCCParserFactory;
+
+/**
+ * Les valeurs des variables de paye d'un salarié, chargées une fois puis gardées en mémoire. Les
+ * variables de paye définies par une formule ne sont calculées qu'une fois, jusqu'au prochain
+ * changement de valeur (e.g. {@link #setValues(SQLTable, int, Map)} quand le brut de la fiche
+ * change). Pas thread-safe, un contexte par fiche de paye.
+ */
+public class FormuleContext {
+
+    private final Formules formules;
+    private final int salarieID;
+    // ligne étrangère du salarié par table
+    private final Map<String, SQLRow> foreignRows;
+    // valeur des champs par nom de table puis nom de champ
+    private final Map<String, Map<String, Object>> values;
+    // valeur des variables de paye par nom
+    private final Map<String, Object> variables;
+    private final Map<String, Object> results;
+    private final Set<String> inProgress;
+
+    FormuleContext(final Formules formules, final SQLRow rowSal) {
+        this.formules = formules;
+        this.salarieID = rowSal.getID();
+        this.foreignRows = new HashMap<String, SQLRow>();
+        for (final SQLRow row : rowSal.getForeignRows()) {
+            this.foreignRows.put(row.getTable().getName(), row);
+        }
+        this.values = new HashMap<String, Map<String, Object>>();
+        for (final Object o : formules.getVariables()) {
+            if (o instanceof SQLField) {
+                final SQLField field = (SQLField) o;
+                final SQLRow rowAssoc = this.foreignRows.get(field.getTable().getName());
+                if (rowAssoc != null)
+                    this.getValues(field.getTable().getName()).put(field.getName(), rowAssoc.getObject(field.getName()));
+            }
+        }
+        this.variables = new HashMap<String, Object>();
+        this.results = new HashMap<String, Object>();
+        this.inProgress = new HashSet<String>();
+    }
+
+    private Map<String, Object> getValues(final String tableName) {
+        Map<String, Object> res = this.values.get(tableName);
+        if (res == null) {
+            res = new HashMap<String, Object>();
+            this.values.put(tableName, res);
+        }
+        return res;
+    }
+
+    public final int getSalarieID() {
+        return this.salarieID;
+    }
+
+    /**
+     * Change les valeurs d'une ligne étrangère du salarié, sans passer par la base.
+     * 
+     * @param t la table, e.g. FICHE_PAYE.
+     * @param id l'identifiant de la ligne, ignoré si ce n'est pas celle du salarié.
+     * @param vals les nouvelles valeurs par nom de champ.
+     * @return <code>true</code> si <code>id</code> est la ligne du salarié.
+     */
+    public final boolean setValues(final SQLTable t, final int id, final Map<String, ?> vals) {
+        final SQLRow rowAssoc = this.foreignRows.get(t.getName());
+        if (rowAssoc == null || rowAssoc.getID() != id)
+            return false;
+        this.getValues(t.getName()).putAll(vals);
+        // les variables de paye peuvent dépendre des valeurs
+        this.variables.clear();
+        this.results.clear();
+        return true;
+    }
+
+    /**
+     * Calcule une formule.
+     * 
+     * @param formule le texte de la formule.
+     * @param varCallName la variable qui reçoit la formule.
+     * @return la valeur de <code>varCallName</code> ou à défaut la valeur de la dernière
+     *         instruction, <code>null</code> si la formule est vide ou ne retourne rien.
+     * @throws InterpreterException si la formule est incorrecte.
+     */
+    public final Object evaluate(final String formule, final String varCallName) throws InterpreterException {
+        if (formule.trim().length() == 0)
+            return null;
+        final String key = varCallName + '\n' + formule;
+        if (this.results.containsKey(key))
+            return this.results.get(key);
+        final Object res = this.interpret(this.formules.getFormule(formule), varCallName);
+        this.results.put(key, res);
+        return res;
+    }
+
+    private Object interpret(final Formule f, final String varCallName) throws InterpreterException {
+        final Interpreter interpreter = new TreeInterpreter(new JavaCCParserFactory());
+        // les valeurs numériques sont déclarées dans le script, les autres dans l'interpréteur
+        final StringBuilder script = new StringBuilder(f.getText().length() + 32 * f.getVariables().size());
+        for (final Object o : f.getVariables()) {
+            if (o instanceof SQLField) {
+                final SQLField field = (SQLField) o;
+                final Map<String, Object> tableValues = this.values.get(field.getTable().getName());
+                defineVariable(interpreter, script, field.getName(), tableValues == null ? null : tableValues.get(field.getName()));
+            } else {
+                // Variables de paye deja definie
+                final SQLRow rowTmp = (SQLRow) o;
+                final String name = rowTmp.getString("NOM");
+                if (rowTmp.getString("FORMULE").trim().length() == 0) {
+                    defineVariable(interpreter, script, name, rowTmp.getObject("VALEUR"));
+                } else if (!name.equalsIgnoreCase(varCallName) && !this.inProgress.contains(name)) {
+                    final Object ob = this.getVariable(rowTmp);
+                    defineVariable(interpreter, script, name, ob == null ? Float.valueOf(1) : ob);
+                }
+            }
+        }
+        script.append(f.getText());
+
+        final Object interpreterResult = interpreter.interpret(new StringReader(script.toString()), "CalculVariable" + varCallName);
+        try {
+            return interpreter.getVariable(varCallName);
+        } catch (IllegalStateException iSE) {
+            return interpreterResult;
+        }
+    }
+
+    // valeur d'une variable de paye avec formule, null si elle est incorrecte
+    private Object getVariable(final SQLRow rowVar) {
+        final String name = rowVar.getString("NOM");
+        if (this.variables.containsKey(name))
+            return this.variables.get(name);
+        Object res;
+        this.inProgress.add(name);
+        try {
+            res = this.interpret(this.formules.getFormule(rowVar.getString("FORMULE")), name);
+        } catch (Exception e) {
+            System.err.println("Variable " + name + " incorrecte");
+            e.printStackTrace();
+            res = null;
+        } finally {
+            this.inProgress.remove(name);
+        }
+        this.variables.put(name, res);
+        return res;
+    }
+
+    static private void defineVariable(final Interpreter interpret, final StringBuilder b, final String varName, final Object value) {
+        if (value == null) {
+            b.append("float ").append(varName).append(" = 1.0F;\n");
+        } else if (value instanceof Integer) {
+            b.append("int ").append(varName).append(" = ").append(value).append(";\n");
+        } else if (value instanceof Float) {
+            b.append("float ").append(varName).append(" = ").append(value).append("F;\n");
+        } else if (value instanceof Double) {
+            b.append("double ").append(varName).append(" = ").append(value).append(";\n");
+        } else {
+            interpret.defineVariable(varName, value);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.core.humanresources.payroll.formule;
+
+import org.openconcerto.sql.model.SQLField;
+import org.openconcerto.sql.model.SQLRow;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Les variables utilisables dans les formules de paye et le cache des formules analysées. Chaque
+ * formule n'est analysée qu'une fois (par texte), puis évaluée pour chaque salarié dans un
+ * {@link FormuleContext}.
+ * 
+ * @see org.openconcerto.erp.core.humanresources.payroll.element.VariablePayeSQLElement#getMapTree()
+ */
+@ThreadSafe
+public class Formules {
+
+    // SQLField ou SQLRow de VARIABLE_PAYE, dans l'ordre de définition
+    private final List<Object> variables;
+    private final ConcurrentMap<String, Formule> cache;
+
+    /**
+     * Crée les variables à partir de l'arbre de l'éditeur.
+     * 
+     * @param m les variables par catégorie, seuls les {@link SQLField} (des tables étrangères du
+     *        salarié) et les {@link SQLRow} (de VARIABLE_PAYE) sont utilisés.
+     */
+    public Formules(final Map<String, List<?>> m) {
+        final List<Object> vars = new ArrayList<Object>();
+        for (final List<?> l : m.values()) {
+            for (final Object o : l) {
+                if (o instanceof SQLRow || o instanceof SQLField)
+                    vars.add(o);
+            }
+        }
+        this.variables = Collections.unmodifiableList(vars);
+        this.cache = new ConcurrentHashMap<String, Formule>();
+    }
+
+    final List<Object> getVariables() {
+        return this.variables;
+    }
+
+    /**
+     * Analyse une formule, ou la retrouve si elle l'a déjà été.
+     * 
+     * @param text le texte de la formule.
+     * @return la formule analysée.
+     */
+    final Formule getFormule(final String text) {
+        Formule res = this.cache.get(text);
+        if (res == null) {
+            final List<Object> used = new ArrayList<Object>();
+            final Set<String> names = new HashSet<String>();
+            for (final Object o : this.variables) {
+                final String name = getName(o);
+                // une variable ne peut être définie qu'une fois
+                if (text.indexOf(name) >= 0 && names.add(name))
+                    used.add(o);
+            }
+            res = new Formule(text, Collections.unmodifiableList(used));
+            final Formule prev = this.cache.putIfAbsent(text, res);
+            if (prev != null)
+                res = prev;
+        }
+        return res;
+    }
+
+    static String getName(final Object var) {
+        if (var instanceof SQLField)
+            return ((SQLField) var).getName();
+        else
+            return ((SQLRow) var).getString("NOM");
+    }
+
+    /**
+     * Crée le contexte pour calculer les formules d'un salarié.
+     * 
+     * @param rowSal le salarié, ses lignes étrangères sont chargées une fois pour toutes.
+     * @return un nouveau contexte.
+     */
+    public final FormuleContext createContext(final SQLRow rowSal) {
+        return new FormuleContext(this, rowSal);
+    }
+
+    /**
+     * Le nombre de formules analysées.
+     * 
+     * @return le nombre de formules en cache.
+     */
+    public final int getCachedCount() {
+        return this.cache.size();
+    }
+}
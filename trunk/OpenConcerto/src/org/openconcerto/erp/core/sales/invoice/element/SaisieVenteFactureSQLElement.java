@@ -285,6 +285,8 @@ public class SaisieVenteFactureSQLElement extends ComptaSQLConfElement {
     @Override
     protected SQLTableModelSourceOnline createTableSource() {
         SQLTableModelSourceOnline table = super.createTableSource();
+        // les factures de tous les exercices
+        table.setPageSize(LIST_PAGE_SIZE);
 
         final BaseSQLTableModelColumn colAvancement = new BaseSQLTableModelColumn("Avancement réglement", BigDecimal.class) {
 
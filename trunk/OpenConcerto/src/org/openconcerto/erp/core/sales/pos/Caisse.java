@@ -27,6 +27,7 @@ import org.openconcerto.erp.core.sales.pos.model.Article;
 import org.openconcerto.erp.core.sales.pos.model.Paiement;
 import org.openconcerto.erp.core.sales.pos.model.ReceiptCode;
 import org.openconcerto.erp.core.sales.pos.model.Ticket;
+import org.openconcerto.erp.core.sales.pos.model.TicketJournal;
 import org.openconcerto.erp.core.sales.pos.model.TicketLine;
 import org.openconcerto.erp.core.supplychain.stock.element.StockItemsUpdater;
 import org.openconcerto.erp.core.supplychain.stock.element.StockItemsUpdater.Type;
@@ -62,8 +63,10 @@ import java.math.RoundingMode;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
@@ -146,162 +149,67 @@ public class Caisse {
         }
     }
 
+    // nombre de tickets par transaction
+    private static final int COMMIT_BATCH_SIZE = 50;
+
     public static void commitAll(final List<Ticket> tickets) {
         // createConnexion();
         try {
-            SQLUtils.executeAtomic(Configuration.getInstance().getSystemRoot().getDataSource(), new SQLUtils.SQLFactory<Object>() {
-                @Override
-                public Object create() throws SQLException {
-                    SQLElement elt = Configuration.getInstance().getDirectory().getElement("TICKET_CAISSE");
-                    SQLElement eltFact = Configuration.getInstance().getDirectory().getElement("SAISIE_VENTE_FACTURE_ELEMENT");
-                    SQLElement eltEnc = Configuration.getInstance().getDirectory().getElement("ENCAISSER_MONTANT");
-                    SQLElement eltMode = Configuration.getInstance().getDirectory().getElement("MODE_REGLEMENT");
-                    SQLElement eltArticle = Configuration.getInstance().getDirectory().getElement("ARTICLE");
-                    int imported = 0;
-                    for (Ticket ticket : tickets) {
-                        SQLSelect sel = new SQLSelect(Configuration.getInstance().getBase());
-                        sel.addSelect(elt.getTable().getField("NUMERO"));
-                        sel.setWhere(new Where(elt.getTable().getField("NUMERO"), "=", ticket.getCode()));
-                        List<?> l = Configuration.getInstance().getBase().getDataSource().executeCol(sel.asString());
-                        if (l != null && l.size() == 0) {
-
-                            SQLRowValues rowVals = new SQLRowValues(elt.getTable());
-                            rowVals.put("NUMERO", ticket.getCode());
-                            rowVals.put("DATE", ticket.getCreationDate());
-                            rowVals.put("ID_CAISSE", getID());
-
-                            TotalCalculator calc = new TotalCalculator("T_PA_HT", "T_PV_HT", null);
-
-                            String val = DefaultNXProps.getInstance().getStringProperty("ArticleService");
-                            Boolean bServiceActive = Boolean.valueOf(val);
-                            calc.setServiceActive(bServiceActive != null && bServiceActive);
-
-                            // Articles
-                            for (Pair<Article, Integer> item : ticket.getArticles()) {
-                                SQLRowValues rowValsElt = new SQLRowValues(eltFact.getTable());
-                                final Article article = item.getFirst();
-                                final Integer nb = item.getSecond();
-                                rowValsElt.put("QTE", nb);
-                                rowValsElt.put("PV_HT", article.getPriceHTInCents());
-                                Float tauxFromId = TaxeCache.getCache().getTauxFromId(article.getIdTaxe());
-                                BigDecimal tauxTVA = new BigDecimal(tauxFromId).movePointLeft(2).add(BigDecimal.ONE);
-
-                                final BigDecimal valueHT = article.getPriceHTInCents().multiply(new BigDecimal(nb), MathContext.DECIMAL128);
-
-                                rowValsElt.put("T_PV_HT", valueHT);
-                                rowValsElt.put("T_PV_TTC", valueHT.multiply(tauxTVA, MathContext.DECIMAL128));
-                                rowValsElt.put("ID_TAXE", article.getIdTaxe());
-                                rowValsElt.put("CODE", article.getCode());
-                                rowValsElt.put("NOM", article.getName());
-                                rowValsElt.put("ID_TICKET_CAISSE", rowVals);
-                                rowValsElt.put("ID_ARTICLE", article.getId());
-                                calc.addLine(rowValsElt, eltArticle.getTable().getRow(article.getId()), 0, false);
-                            }
-                            calc.checkResult();
-                            long longValueTotalHT = calc.getTotalHT().movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValue();
-                            rowVals.put("TOTAL_HT", longValueTotalHT);
-
-                            long longValueTotal = calc.getTotalTTC().movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValue();
-                            rowVals.put("TOTAL_TTC", longValueTotal);
-                            long longValueTotalTVA = calc.getTotalTVA().movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValue();
-                            rowVals.put("TOTAL_TVA", longValueTotalTVA);
-
-                            // Paiements
-                            for (Paiement paiement : ticket.getPaiements()) {
-                                if (paiement.getMontantInCents() > 0) {
-                                    SQLRowValues rowValsElt = new SQLRowValues(eltEnc.getTable());
-                                    SQLRowValues rowValsEltMode = new SQLRowValues(eltMode.getTable());
-                                    if (paiement.getType() == Paiement.CB) {
-                                        rowValsEltMode.put("ID_TYPE_REGLEMENT", TypeReglementSQLElement.CB);
-                                    } else if (paiement.getType() == Paiement.CHEQUE) {
-                                        rowValsEltMode.put("ID_TYPE_REGLEMENT", TypeReglementSQLElement.CHEQUE);
-                                    } else if (paiement.getType() == Paiement.ESPECES) {
-                                        rowValsEltMode.put("ID_TYPE_REGLEMENT", TypeReglementSQLElement.ESPECE);
-                                    }
-
-                                    rowValsElt.put("ID_MODE_REGLEMENT", rowValsEltMode);
-                                    try {
-                                        rowValsElt.put("ID_CLIENT", getClientCaisse().getID());
-                                    } catch (SQLException e) {
-                                        e.printStackTrace();
-                                    }
-                                    long montant = Long.valueOf(paiement.getMontantInCents());
-                                    if (ticket.getPaiements().size() == 1 && paiement.getType() == Paiement.ESPECES) {
-                                        montant = longValueTotal;
-                                    }
-                                    rowValsElt.put("MONTANT", montant);
-                                    rowValsElt.put("NOM", "Ticket " + ticket.getCode());
-                                    rowValsElt.put("DATE", ticket.getCreationDate());
-                                    rowValsElt.put("ID_TICKET_CAISSE", rowVals);
-                                }
-                            }
-
-                            SQLRow rowFinal = rowVals.insert();
-                            imported++;
-                            GenerationMvtTicketCaisse mvt = new GenerationMvtTicketCaisse(rowFinal);
-                            final Integer idMvt;
-                            try {
-                                idMvt = mvt.genereMouvement().call();
-
-                                SQLRowValues valTicket = rowFinal.asRowValues();
-                                valTicket.put("ID_MOUVEMENT", Integer.valueOf(idMvt));
-                                rowFinal = valTicket.update();
-
-                                // msie à jour du mouvement
-                                List<SQLRow> rowsEnc = rowFinal.getReferentRows(eltEnc.getTable());
-                                long totalEnc = 0;
-                                for (SQLRow sqlRow : rowsEnc) {
-                                    long montant = sqlRow.getLong("MONTANT");
-                                    PrixTTC ttc = new PrixTTC(montant);
-                                    totalEnc += montant;
-                                    new GenerationReglementVenteNG("Règlement " + sqlRow.getForeignRow("ID_MODE_REGLEMENT").getForeignRow("ID_TYPE_REGLEMENT").getString("NOM") + " Ticket "
-                                            + rowFinal.getString("NUMERO"), getClientCaisse(), ttc, sqlRow.getDate("DATE").getTime(), sqlRow.getForeignRow("ID_MODE_REGLEMENT"), rowFinal, rowFinal
-                                            .getForeignRow("ID_MOUVEMENT"), false);
-                                }
-                                if (totalEnc > longValueTotal) {
-                                    final SQLTable table = Configuration.getInstance().getDirectory().getElement("TYPE_REGLEMENT").getTable();
-                                    int idComptePceCaisse = table.getRow(TypeReglementSQLElement.ESPECE).getInt("ID_COMPTE_PCE_CLIENT");
-                                    if (idComptePceCaisse == table.getUndefinedID()) {
-                                        idComptePceCaisse = ComptePCESQLElement.getId(ComptePCESQLElement.getComptePceDefault("VenteEspece"));
-                                    }
-                                    new GenerationMvtVirement(idComptePceCaisse, getClientCaisse().getInt("ID_COMPTE_PCE"), 0, totalEnc - longValueTotal, "Rendu sur règlement " + " Ticket "
-                                            + rowFinal.getString("NUMERO"), new Date(), JournalSQLElement.CAISSES, " Ticket " + rowFinal.getString("NUMERO")).genereMouvement();
-                                }
-                            } catch (Exception exn) {
-                                exn.printStackTrace();
-                                throw new SQLException(exn);
-                            }
-                            updateStock(rowFinal.getID());
-
+            final SQLTable tableTicket = Configuration.getInstance().getDirectory().getElement("TICKET_CAISSE").getTable();
+            int imported = 0;
+            // une transaction par lot : une erreur n'annule pas les lots déjà importés, qui ne
+            // seront pas réimportés
+            for (int i = 0; i < tickets.size(); i += COMMIT_BATCH_SIZE) {
+                final List<Ticket> batch = tickets.subList(i, Math.min(tickets.size(), i + COMMIT_BATCH_SIZE));
+                imported += SQLUtils.executeAtomic(Configuration.getInstance().getSystemRoot().getDataSource(), new SQLUtils.SQLFactory<Integer>() {
+                    @Override
+                    public Integer create() throws SQLException {
+                        final List<String> codes = new ArrayList<String>(batch.size());
+                        for (final Ticket ticket : batch) {
+                            codes.add(ticket.getCode());
                         }
-                    }
-                    // mark imported
-                    for (Ticket ticket : tickets) {
-                        final ReceiptCode code = ticket.getReceiptCode();
-                        try {
-                            // it's OK if some files cannot be moved, the next call will try again
-                            // (the above code doesn't import duplicates)
-                            code.markImported();
-                        } catch (IOException e) {
-                            e.printStackTrace();
+                        final SQLSelect sel = new SQLSelect();
+                        sel.addSelect(tableTicket.getField("NUMERO"));
+                        sel.setWhere(new Where(tableTicket.getField("NUMERO"), codes));
+                        @SuppressWarnings("unchecked")
+                        final List<Object> numeros = Configuration.getInstance().getBase().getDataSource().executeCol(sel.asString());
+                        final Set<Object> existing = new HashSet<Object>(numeros);
+                        int res = 0;
+                        for (final Ticket ticket : batch) {
+                            if (!existing.contains(ticket.getCode())) {
+                                importTicket(ticket);
+                                res++;
+                            }
                         }
+                        return res;
                     }
-                    // archive to avoid parsing more and more receipts
-                    try {
-                        // it's OK if some files cannot be moved, the next call will try again
-                        ReceiptCode.archiveCompletelyImported();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    final String count = imported + "/" + tickets.size();
-                    SwingUtilities.invokeLater(new Runnable() {
+                });
+                // mark imported
+                final List<ReceiptCode> codes = new ArrayList<ReceiptCode>(batch.size());
+                for (final Ticket ticket : batch) {
+                    codes.add(ticket.getReceiptCode());
+                }
+                try {
+                    // it's OK if some receipts cannot be marked, the next call will try again
+                    // (the above code doesn't import duplicates)
+                    ReceiptCode.markImported(codes);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            // archive to avoid parsing more and more receipts
+            try {
+                // it's OK if some files cannot be moved, the next call will try again
+                ReceiptCode.archiveCompletelyImported();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            final String count = imported + "/" + tickets.size();
+            SwingUtilities.invokeLater(new Runnable() {
 
-                        @Override
-                        public void run() {
-                            JOptionPane.showMessageDialog(null, count + " ticket(s) importé(s). Clôture de la caisse terminée.");
-                        }
-                    });
-                    return null;
+                @Override
+                public void run() {
+                    JOptionPane.showMessageDialog(null, count + " ticket(s) importé(s). Clôture de la caisse terminée.");
                 }
             });
         } catch (Exception exn) {
@@ -310,6 +218,120 @@ public class Caisse {
 
     }
 
+    private static void importTicket(final Ticket ticket) throws SQLException {
+        SQLElement elt = Configuration.getInstance().getDirectory().getElement("TICKET_CAISSE");
+        SQLElement eltFact = Configuration.getInstance().getDirectory().getElement("SAISIE_VENTE_FACTURE_ELEMENT");
+        SQLElement eltEnc = Configuration.getInstance().getDirectory().getElement("ENCAISSER_MONTANT");
+        SQLElement eltMode = Configuration.getInstance().getDirectory().getElement("MODE_REGLEMENT");
+        SQLElement eltArticle = Configuration.getInstance().getDirectory().getElement("ARTICLE");
+        SQLRowValues rowVals = new SQLRowValues(elt.getTable());
+        rowVals.put("NUMERO", ticket.getCode());
+        rowVals.put("DATE", ticket.getCreationDate());
+        rowVals.put("ID_CAISSE", getID());
+
+        TotalCalculator calc = new TotalCalculator("T_PA_HT", "T_PV_HT", null);
+
+        String val = DefaultNXProps.getInstance().getStringProperty("ArticleService");
+        Boolean bServiceActive = Boolean.valueOf(val);
+        calc.setServiceActive(bServiceActive != null && bServiceActive);
+
+        // Articles
+        for (Pair<Article, Integer> item : ticket.getArticles()) {
+            SQLRowValues rowValsElt = new SQLRowValues(eltFact.getTable());
+            final Article article = item.getFirst();
+            final Integer nb = item.getSecond();
+            rowValsElt.put("QTE", nb);
+            rowValsElt.put("PV_HT", article.getPriceHTInCents());
+            Float tauxFromId = TaxeCache.getCache().getTauxFromId(article.getIdTaxe());
+            BigDecimal tauxTVA = new BigDecimal(tauxFromId).movePointLeft(2).add(BigDecimal.ONE);
+
+            final BigDecimal valueHT = article.getPriceHTInCents().multiply(new BigDecimal(nb), MathContext.DECIMAL128);
+
+            rowValsElt.put("T_PV_HT", valueHT);
+            rowValsElt.put("T_PV_TTC", valueHT.multiply(tauxTVA, MathContext.DECIMAL128));
+            rowValsElt.put("ID_TAXE", article.getIdTaxe());
+            rowValsElt.put("CODE", article.getCode());
+            rowValsElt.put("NOM", article.getName());
+            rowValsElt.put("ID_TICKET_CAISSE", rowVals);
+            rowValsElt.put("ID_ARTICLE", article.getId());
+            calc.addLine(rowValsElt, eltArticle.getTable().getRow(article.getId()), 0, false);
+        }
+        calc.checkResult();
+        long longValueTotalHT = calc.getTotalHT().movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValue();
+        rowVals.put("TOTAL_HT", longValueTotalHT);
+
+        long longValueTotal = calc.getTotalTTC().movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValue();
+        rowVals.put("TOTAL_TTC", longValueTotal);
+        long longValueTotalTVA = calc.getTotalTVA().movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValue();
+        rowVals.put("TOTAL_TVA", longValueTotalTVA);
+
+        // Paiements
+        for (Paiement paiement : ticket.getPaiements()) {
+            if (paiement.getMontantInCents() > 0) {
+                SQLRowValues rowValsElt = new SQLRowValues(eltEnc.getTable());
+                SQLRowValues rowValsEltMode = new SQLRowValues(eltMode.getTable());
+                if (paiement.getType() == Paiement.CB) {
+                    rowValsEltMode.put("ID_TYPE_REGLEMENT", TypeReglementSQLElement.CB);
+                } else if (paiement.getType() == Paiement.CHEQUE) {
+                    rowValsEltMode.put("ID_TYPE_REGLEMENT", TypeReglementSQLElement.CHEQUE);
+                } else if (paiement.getType() == Paiement.ESPECES) {
+                    rowValsEltMode.put("ID_TYPE_REGLEMENT", TypeReglementSQLElement.ESPECE);
+                }
+
+                rowValsElt.put("ID_MODE_REGLEMENT", rowValsEltMode);
+                try {
+                    rowValsElt.put("ID_CLIENT", getClientCaisse().getID());
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+                long montant = Long.valueOf(paiement.getMontantInCents());
+                if (ticket.getPaiements().size() == 1 && paiement.getType() == Paiement.ESPECES) {
+                    montant = longValueTotal;
+                }
+                rowValsElt.put("MONTANT", montant);
+                rowValsElt.put("NOM", "Ticket " + ticket.getCode());
+                rowValsElt.put("DATE", ticket.getCreationDate());
+                rowValsElt.put("ID_TICKET_CAISSE", rowVals);
+            }
+        }
+
+        SQLRow rowFinal = rowVals.insert();
+        GenerationMvtTicketCaisse mvt = new GenerationMvtTicketCaisse(rowFinal);
+        final Integer idMvt;
+        try {
+            idMvt = mvt.genereMouvement().call();
+
+            SQLRowValues valTicket = rowFinal.asRowValues();
+            valTicket.put("ID_MOUVEMENT", Integer.valueOf(idMvt));
+            rowFinal = valTicket.update();
+
+            // msie à jour du mouvement
+            List<SQLRow> rowsEnc = rowFinal.getReferentRows(eltEnc.getTable());
+            long totalEnc = 0;
+            for (SQLRow sqlRow : rowsEnc) {
+                long montant = sqlRow.getLong("MONTANT");
+                PrixTTC ttc = new PrixTTC(montant);
+                totalEnc += montant;
+                new GenerationReglementVenteNG("Règlement " + sqlRow.getForeignRow("ID_MODE_REGLEMENT").getForeignRow("ID_TYPE_REGLEMENT").getString("NOM") + " Ticket "
+                        + rowFinal.getString("NUMERO"), getClientCaisse(), ttc, sqlRow.getDate("DATE").getTime(), sqlRow.getForeignRow("ID_MODE_REGLEMENT"), rowFinal, rowFinal
+                        .getForeignRow("ID_MOUVEMENT"), false);
+            }
+            if (totalEnc > longValueTotal) {
+                final SQLTable table = Configuration.getInstance().getDirectory().getElement("TYPE_REGLEMENT").getTable();
+                int idComptePceCaisse = table.getRow(TypeReglementSQLElement.ESPECE).getInt("ID_COMPTE_PCE_CLIENT");
+                if (idComptePceCaisse == table.getUndefinedID()) {
+                    idComptePceCaisse = ComptePCESQLElement.getId(ComptePCESQLElement.getComptePceDefault("VenteEspece"));
+                }
+                new GenerationMvtVirement(idComptePceCaisse, getClientCaisse().getInt("ID_COMPTE_PCE"), 0, totalEnc - longValueTotal, "Rendu sur règlement " + " Ticket "
+                        + rowFinal.getString("NUMERO"), new Date(), JournalSQLElement.CAISSES, " Ticket " + rowFinal.getString("NUMERO")).genereMouvement();
+            }
+        } catch (Exception exn) {
+            exn.printStackTrace();
+            throw new SQLException(exn);
+        }
+        updateStock(rowFinal.getID());
+    }
+
     private static SQLRow rowClient = null;
 
     private static SQLRow getClientCaisse() throws SQLException {
@@ -376,12 +398,20 @@ public class Caisse {
 
     public static List<Ticket> allTickets() {
         final List<Ticket> l = new ArrayList<Ticket>();
+        // anciens tickets, un fichier XML par ticket
         for (final File f : ReceiptCode.getReceiptsToImport(Caisse.getID())) {
             final Ticket ticket = Ticket.parseFile(f);
             if (ticket != null) {
                 l.add(ticket);
             }
         }
+        try {
+            for (final TicketJournal journal : TicketJournal.getJournals(Caisse.getID())) {
+                l.addAll(journal.getTicketsToImport());
+            }
+        } catch (IOException e) {
+            ExceptionHandler.handle("Impossible de lire les tickets.", e);
+        }
         return l;
     }
 
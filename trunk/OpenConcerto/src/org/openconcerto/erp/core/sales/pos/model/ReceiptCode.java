@@ -28,15 +28,19 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 
 public class ReceiptCode {
 
     // year/month/day
     static private final int DIR_DEPTH = 3;
-    static private final int FILE_DEPTH = DIR_DEPTH + 1;
+    static final int FILE_DEPTH = DIR_DEPTH + 1;
     static private final String EXT = ".xml";
     static private final String DELETED_SUFFIX = "_deleted";
     static private final String DELETED_EXT = EXT + DELETED_SUFFIX;
@@ -115,7 +119,8 @@ public class ReceiptCode {
         final File todayDir = getDayDir(Ticket.getCalendar(), false);
         for (final File dir : dirs) {
             // if all receipts are deleted or imported : archive
-            if (!todayDir.equals(dir) && dir.listFiles(createFF("", false, false)).length == 0) {
+            if (!todayDir.equals(dir) && dir.listFiles(createFF("", false, false)).length == 0 && !hasTicketsToImport(dir)) {
+                TicketJournal.close(dir);
                 final File destDir = new File(archiveDir, FileUtils.relative(rootDir, dir));
                 FileUtils.mkParentDirs(destDir);
                 if (!destDir.exists()) {
@@ -135,6 +140,55 @@ public class ReceiptCode {
         }
     }
 
+    static private boolean hasTicketsToImport(final File dir) throws IOException {
+        for (final File f : dir.listFiles(TicketJournal.createFF(""))) {
+            if (TicketJournal.get(f).hasTicketsToImport())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Mark receipts as imported, only writing once to each journal.
+     * 
+     * @param codes the receipts.
+     * @throws IOException if a receipt couldn't be marked, the others are still marked.
+     */
+    static public void markImported(final Collection<ReceiptCode> codes) throws IOException {
+        final Map<TicketJournal, List<String>> byJournal = new LinkedHashMap<TicketJournal, List<String>>();
+        IOException exn = null;
+        for (final ReceiptCode code : codes) {
+            try {
+                if (code.getFile().exists()) {
+                    code.mark(IMPORTED_SUFFIX);
+                } else {
+                    final TicketJournal journal = code.getJournal();
+                    List<String> l = byJournal.get(journal);
+                    if (l == null) {
+                        l = new ArrayList<String>();
+                        byJournal.put(journal, l);
+                    }
+                    l.add(code.getCode());
+                }
+            } catch (IOException e) {
+                exn = e;
+            }
+        }
+        for (final Entry<TicketJournal, List<String>> e : byJournal.entrySet()) {
+            try {
+                e.getKey().markImported(e.getValue());
+            } catch (IOException e1) {
+                exn = e1;
+            }
+        }
+        if (exn != null)
+            throw exn;
+    }
+
+    static final String formatCaisseNb(final int caisseNb) {
+        return DIGIT2_FORMAT.format(caisseNb);
+    }
+
     static private final DecimalFormat DIGIT2_FORMAT = new DecimalFormat("00");
     static private final DecimalFormat DIGIT4_FORMAT = new DecimalFormat("0000");
     static private final DecimalFormat INDEX_FORMAT = new DecimalFormat("00000");
@@ -247,12 +301,25 @@ public class ReceiptCode {
         return getCode().replace(' ', '_') + EXT;
     }
 
+    /**
+     * The journal of this receipt, i.e. for the same cash register and day.
+     * 
+     * @return the journal of this receipt.
+     * @throws IOException if the journal couldn't be read.
+     */
+    public final TicketJournal getJournal() throws IOException {
+        return TicketJournal.get(new File(getDir(false), getCodePrefix() + TicketJournal.EXT));
+    }
+
     public void markDeleted() throws IOException {
-        mark(DELETED_SUFFIX);
+        if (getFile().exists())
+            mark(DELETED_SUFFIX);
+        else
+            getJournal().markDeleted(getCode());
     }
 
     public void markImported() throws IOException {
-        mark(IMPORTED_SUFFIX);
+        markImported(Collections.singleton(this));
     }
 
     private final void mark(final String suffix) throws IOException {
@@ -264,13 +331,21 @@ public class ReceiptCode {
     public final List<ReceiptCode> getSameDayCodes(final boolean includeAll) {
         final File dir = getDir(false);
         final File[] listFiles = dir.listFiles(createFF(getCodePrefix(), includeAll, includeAll));
+        final List<ReceiptCode> journalCodes;
+        try {
+            journalCodes = getJournal().getCodes(includeAll);
+        } catch (IOException e) {
+            // don't risk reusing a number
+            throw new IllegalStateException("Couldn't read the journal of " + getCodePrefix(), e);
+        }
         if (listFiles == null)
-            return Collections.emptyList();
+            return journalCodes;
 
-        final List<ReceiptCode> res = new ArrayList<ReceiptCode>(listFiles.length);
+        final List<ReceiptCode> res = new ArrayList<ReceiptCode>(listFiles.length + journalCodes.size());
         for (final File f : listFiles) {
             res.add(fromFile(f));
         }
+        res.addAll(journalCodes);
         return res;
     }
 }
@@ -24,10 +24,12 @@ import org.openconcerto.erp.preferences.DefaultNXProps;
 import org.openconcerto.sql.Configuration;
 import org.openconcerto.sql.model.SQLRowValues;
 import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.utils.ExceptionHandler;
 import org.openconcerto.utils.Pair;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.MathContext;
@@ -39,12 +41,9 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 
-import org.jdom.Attribute;
 import org.jdom.Document;
 import org.jdom.Element;
 import org.jdom.input.SAXBuilder;
-import org.jdom.output.Format;
-import org.jdom.output.XMLOutputter;
 
 public class Ticket {
     static public Calendar getCalendar() {
@@ -65,8 +64,12 @@ public class Ticket {
 
     public static Ticket getTicketFromCode(String code) {
         try {
-            // Loading file
-            return parseFile(new ReceiptCode(code).getFile());
+            final ReceiptCode receiptCode = new ReceiptCode(code);
+            final Ticket res = receiptCode.getJournal().getTicket(receiptCode.getCode());
+            if (res != null)
+                return res;
+            // Loading file (saved before the journal)
+            return parseFile(receiptCode.getFile());
         } catch (Exception e) {
             System.err.println("Error with ticket code : " + code);
             e.printStackTrace();
@@ -152,10 +155,70 @@ public class Ticket {
         }
     }
 
+    /**
+     * Read a ticket written by {@link #write(DataOutputStream)}.
+     * 
+     * @param receiptCode the code of the ticket.
+     * @param in the input.
+     * @return the ticket.
+     * @throws IOException if an error occurs while reading.
+     */
+    static Ticket read(final ReceiptCode receiptCode, final DataInputStream in) throws IOException {
+        final Calendar c = (Calendar) receiptCode.getDay().clone();
+        c.set(Calendar.HOUR_OF_DAY, in.readByte());
+        c.set(Calendar.MINUTE, in.readByte());
+        final Ticket t = new Ticket(receiptCode.getCaisseNb(), false);
+        t.setCreationCal(c);
+        t.setNumber(receiptCode.getDayIndex());
+
+        final int articleCount = in.readInt();
+        for (int i = 0; i < articleCount; i++) {
+            final int qte = in.readInt();
+            final BigDecimal prix = new BigDecimal(in.readUTF());
+            final BigDecimal prixHT = new BigDecimal(in.readUTF());
+            final int idTaxe = in.readInt();
+            final String categorie = readString(in);
+            final String name = readString(in);
+            final String codebarre = readString(in);
+            final String codeArt = readString(in);
+            final int id = in.readInt();
+            final Article art = new Article(new Categorie(categorie), name, id);
+            art.setPriceInCents(prix);
+            art.setCode(codeArt);
+            art.setPriceHTInCents(prixHT);
+            art.setIdTaxe(idTaxe);
+            art.barCode = codebarre;
+            t.items.add(new Pair<Article, Integer>(art, qte));
+        }
+        final int paiementCount = in.readInt();
+        for (int i = 0; i < paiementCount; i++) {
+            final Paiement p = new Paiement(in.readInt());
+            p.setMontantInCents(in.readInt());
+            t.paiements.add(p);
+        }
+        return t;
+    }
+
+    static private String readString(final DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    static private void writeString(final DataOutputStream out, final String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null)
+            out.writeUTF(s);
+    }
+
     public Ticket(int caisse) {
+        this(caisse, true);
+    }
+
+    private Ticket(int caisse, final boolean initNumber) {
         this.caisseNumber = caisse;
         this.creationCal = getCalendar();
-        initNumber();
+        // the number of a read ticket is in its code
+        if (initNumber)
+            initNumber();
     }
 
     public void setNumber(int i) {
@@ -197,59 +260,51 @@ public class Ticket {
     }
 
     public void save() {
+        try {
+            getReceiptCode().getJournal().save(this);
+        } catch (IOException e) {
+            ExceptionHandler.handle("Impossible d'enregistrer le ticket " + getCode(), e);
+        }
+    }
+
+    /**
+     * Write this ticket, except its code.
+     * 
+     * @param out the output.
+     * @throws IOException if an error occurs while writing.
+     * @see #read(ReceiptCode, DataInputStream)
+     */
+    void write(final DataOutputStream out) throws IOException {
         // Update Hour & Minute
-        int hour = getCalendar().get(Calendar.HOUR_OF_DAY);
-        int minute = getCalendar().get(Calendar.MINUTE);
-
-        // Hierarchie: 2010/04/05/01_05042010_00002.xml
-        final File f = getFile();
-        Element topLevel = new Element("ticket");
-        topLevel.setAttribute(new Attribute("code", this.getCode()));
-        topLevel.setAttribute("hour", String.valueOf(hour));
-        topLevel.setAttribute("minute", String.valueOf(minute));
+        final Calendar now = getCalendar();
+        out.writeByte(now.get(Calendar.HOUR_OF_DAY));
+        out.writeByte(now.get(Calendar.MINUTE));
         // Articles
+        out.writeInt(this.items.size());
         for (Pair<Article, Integer> item : this.items) {
-            Element e = new Element("article");
-            e.setAttribute("qte", String.valueOf(item.getSecond()));
+            final Article article = item.getFirst();
+            out.writeInt(item.getSecond());
             // Prix unitaire
-            e.setAttribute("prix", String.valueOf(item.getFirst().getPriceInCents()));
-            e.setAttribute("prixHT", String.valueOf(item.getFirst().getPriceHTInCents()));
-            e.setAttribute("idTaxe", String.valueOf(item.getFirst().getIdTaxe()));
-            e.setAttribute("categorie", item.getFirst().getCategorie().getName());
-            e.setAttribute("codebarre", item.getFirst().getBarCode());
-            e.setAttribute("code", item.getFirst().getCode());
-            e.setAttribute("id", String.valueOf(item.getFirst().getId()));
-            e.setText(item.getFirst().getName());
-            topLevel.addContent(e);
+            out.writeUTF(String.valueOf(article.getPriceInCents()));
+            out.writeUTF(String.valueOf(article.getPriceHTInCents()));
+            out.writeInt(article.getIdTaxe());
+            writeString(out, article.getCategorie().getName());
+            writeString(out, article.getName());
+            writeString(out, article.getBarCode());
+            writeString(out, article.getCode());
+            out.writeInt(article.getId());
         }
         // Paiements
+        final List<Paiement> toWrite = new ArrayList<Paiement>(this.paiements.size());
         for (Paiement paiement : this.paiements) {
-            final int montantInCents = paiement.getMontantInCents();
-            if (montantInCents > 0) {
-                final Element e = new Element("paiement");
-                String type = "";
-                if (paiement.getType() == Paiement.CB) {
-                    type = "CB";
-                } else if (paiement.getType() == Paiement.CHEQUE) {
-                    type = "CHEQUE";
-                } else if (paiement.getType() == Paiement.ESPECES) {
-                    type = "ESPECES";
-                }
-                e.setAttribute("type", type);
-                e.setAttribute("montant", String.valueOf(montantInCents));
-                topLevel.addContent(e);
-            }
-
+            if (paiement.getMontantInCents() > 0)
+                toWrite.add(paiement);
         }
-        try {
-            final XMLOutputter out = new XMLOutputter(Format.getPrettyFormat());
-            final FileOutputStream fileOutputStream = new FileOutputStream(f);
-            out.output(topLevel, fileOutputStream);
-            fileOutputStream.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        out.writeInt(toWrite.size());
+        for (Paiement paiement : toWrite) {
+            out.writeInt(paiement.getType());
+            out.writeInt(paiement.getMontantInCents());
         }
-
     }
 
     public void print(TicketPrinter prt) {
@@ -366,10 +421,6 @@ public class Ticket {
         }
     }
 
-    private File getFile() {
-        return getReceiptCode().getFile();
-    }
-
     public Date getCreationDate() {
         return this.getCreationCal().getTime();
     }
@@ -0,0 +1,445 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.core.sales.pos.model;
+
+import org.openconcerto.utils.FileUtils;
+import org.openconcerto.utils.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * The receipts of one cash register for one day, in an append-only file. Each record is its
+ * length, its type, its content and a CRC32 : a record partially written when the program stopped
+ * is ignored (and overwritten) when the journal is next opened, a corrupted record before the end
+ * is skipped. Saved, deleted and imported
+ * receipts are all records, the last one for a code wins. An index of the records is kept in
+ * memory, so that receipts can be found without reading the whole file.
+ * <p>
+ * Writes are synchronous, but concurrent writers share the same <code>fsync</code>.
+ * </p>
+ * 
+ * @see ReceiptCode#getJournal()
+ */
+@ThreadSafe
+public final class TicketJournal implements Closeable {
+
+    static final String EXT = ".journal";
+
+    static private final byte SAVED = 1;
+    static private final byte DELETED = 2;
+    static private final byte IMPORTED = 3;
+    // length + type, then CRC
+    static private final int HEADER_SIZE = 4 + 1;
+    static private final int FOOTER_SIZE = 4;
+    // a receipt is a few KB, anything larger is corrupted
+    static private final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    @GuardedBy("JOURNALS")
+    static private final Map<File, TicketJournal> JOURNALS = new HashMap<File, TicketJournal>();
+
+    /**
+     * Return the journal stored in the passed file, opening it if needed.
+     * 
+     * @param f the file, created by the first write.
+     * @return the shared journal for <code>f</code>.
+     * @throws IOException if the file couldn't be read.
+     */
+    static TicketJournal get(final File f) throws IOException {
+        final File key = f.getAbsoluteFile();
+        synchronized (JOURNALS) {
+            TicketJournal res = JOURNALS.get(key);
+            if (res == null) {
+                res = new TicketJournal(key);
+                JOURNALS.put(key, res);
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Close the journals in the passed directory, e.g. before moving it.
+     * 
+     * @param dir a directory.
+     * @throws IOException if a journal couldn't be closed.
+     */
+    static void close(final File dir) throws IOException {
+        final List<TicketJournal> toClose = new ArrayList<TicketJournal>();
+        final File absDir = dir.getAbsoluteFile();
+        synchronized (JOURNALS) {
+            for (final Entry<File, TicketJournal> e : JOURNALS.entrySet()) {
+                if (e.getKey().getParentFile().equals(absDir))
+                    toClose.add(e.getValue());
+            }
+        }
+        for (final TicketJournal j : toClose)
+            j.close();
+    }
+
+    static FileFilter createFF(final String prefix) {
+        return new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && f.getName().startsWith(prefix) && f.getName().endsWith(EXT);
+            }
+        };
+    }
+
+    /**
+     * All journals of a cash register.
+     * 
+     * @param caisseNb the number of the cash register.
+     * @return the journals, sorted by day.
+     * @throws IOException if a journal couldn't be read.
+     */
+    static public List<TicketJournal> getJournals(final int caisseNb) throws IOException {
+        final List<File> files = FileUtils.list(ReceiptCode.getRootDir(), ReceiptCode.FILE_DEPTH, ReceiptCode.FILE_DEPTH, createFF(ReceiptCode.formatCaisseNb(caisseNb)), true);
+        final List<TicketJournal> res = new ArrayList<TicketJournal>(files.size());
+        for (final File f : files)
+            res.add(get(f));
+        return res;
+    }
+
+    private final File file;
+    @GuardedBy("this")
+    private RandomAccessFile raf;
+    @GuardedBy("this")
+    private long writtenSize;
+    // offset of the last SAVED record and the type of the last record by code
+    @GuardedBy("this")
+    private final Map<String, Long> offsets;
+    @GuardedBy("this")
+    private final Map<String, Byte> states;
+
+    private final Object syncLock = new Object();
+    @GuardedBy("syncLock")
+    private long syncedSize;
+
+    private TicketJournal(final File f) throws IOException {
+        this.file = f;
+        this.offsets = new LinkedHashMap<String, Long>();
+        this.states = new HashMap<String, Byte>();
+        this.writtenSize = 0;
+        if (f.exists())
+            this.readIndex();
+        this.syncedSize = this.writtenSize;
+    }
+
+    public final File getFile() {
+        return this.file;
+    }
+
+    private synchronized FileChannel getChannel(final boolean create) throws IOException {
+        if (this.raf == null) {
+            if (!create && !this.file.exists())
+                return null;
+            if (create)
+                FileUtils.mkdir_p(this.file.getParentFile());
+            this.raf = new RandomAccessFile(this.file, "rw");
+        }
+        return this.raf.getChannel();
+    }
+
+    private synchronized void readIndex() throws IOException {
+        final FileChannel channel = this.getChannel(false);
+        final long size = channel.size();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long pos = 0;
+        while (true) {
+            final ByteBuffer content = readContent(channel, pos, header, size);
+            if (content == null)
+                break;
+            final int length = content.capacity() - FOOTER_SIZE;
+            final long next = pos + HEADER_SIZE + length + FOOTER_SIZE;
+            if (!checkCRC(header, content)) {
+                // only the last record can have been partially written
+                if (next == size)
+                    break;
+                Log.get().warning("Skipping corrupted record at " + pos + " in " + this.file);
+                pos = next;
+                continue;
+            }
+            final byte[] record = new byte[length];
+            System.arraycopy(content.array(), 0, record, 0, length);
+            final byte type = header.get(4);
+            final String code = new DataInputStream(new ByteArrayInputStream(record)).readUTF();
+            if (type == SAVED)
+                this.offsets.put(code, pos);
+            else if (!this.offsets.containsKey(code))
+                this.offsets.put(code, null);
+            this.states.put(code, type);
+            pos = next;
+        }
+        if (pos < size) {
+            Log.get().warning("Ignoring " + (size - pos) + " bytes at the end of " + this.file);
+            channel.truncate(pos);
+        }
+        this.writtenSize = pos;
+    }
+
+    // the content of the record at pos, null if there's none, it is incomplete or corrupted
+    static private byte[] readRecord(final FileChannel channel, final long pos, final ByteBuffer header, final long size) throws IOException {
+        final ByteBuffer content = readContent(channel, pos, header, size);
+        if (content == null || !checkCRC(header, content))
+            return null;
+        final int length = content.capacity() - FOOTER_SIZE;
+        final byte[] res = new byte[length];
+        System.arraycopy(content.array(), 0, res, 0, length);
+        return res;
+    }
+
+    // the content and the CRC of the record at pos, null if there's none or it is incomplete
+    static private ByteBuffer readContent(final FileChannel channel, final long pos, final ByteBuffer header, final long size) throws IOException {
+        if (pos + HEADER_SIZE + FOOTER_SIZE > size)
+            return null;
+        header.clear();
+        readFully(channel, header, pos);
+        final int length = header.getInt(0);
+        if (length < 0 || length > MAX_RECORD_SIZE || pos + HEADER_SIZE + length + FOOTER_SIZE > size)
+            return null;
+        final ByteBuffer content = ByteBuffer.allocate(length + FOOTER_SIZE);
+        readFully(channel, content, pos + HEADER_SIZE);
+        return content;
+    }
+
+    static private boolean checkCRC(final ByteBuffer header, final ByteBuffer content) {
+        final int length = content.capacity() - FOOTER_SIZE;
+        final CRC32 crc = new CRC32();
+        crc.update(header.get(4));
+        crc.update(content.array(), 0, length);
+        return (int) crc.getValue() == content.getInt(length);
+    }
+
+    static private void readFully(final FileChannel channel, final ByteBuffer buf, final long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0)
+                throw new EOFException();
+        }
+    }
+
+    /**
+     * Append records and wait until they're on disk.
+     * 
+     * @param type the type of the records.
+     * @param contents the records, each starting with the code of its receipt.
+     * @throws IOException if the records couldn't be written.
+     */
+    private void append(final byte type, final List<byte[]> contents) throws IOException {
+        final long end;
+        synchronized (this) {
+            final FileChannel channel = this.getChannel(true);
+            final ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bOut);
+            final List<Long> offsets = new ArrayList<Long>(contents.size());
+            for (final byte[] content : contents) {
+                offsets.add(this.writtenSize + bOut.size());
+                final CRC32 crc = new CRC32();
+                crc.update(type);
+                crc.update(content);
+                out.writeInt(content.length);
+                out.writeByte(type);
+                out.write(content);
+                out.writeInt((int) crc.getValue());
+            }
+            final ByteBuffer buf = ByteBuffer.wrap(bOut.toByteArray());
+            while (buf.hasRemaining())
+                channel.write(buf, this.writtenSize + buf.position());
+            this.writtenSize += buf.limit();
+            end = this.writtenSize;
+            for (int i = 0; i < contents.size(); i++) {
+                final String code = new DataInputStream(new ByteArrayInputStream(contents.get(i))).readUTF();
+                if (type == SAVED)
+                    this.offsets.put(code, offsets.get(i));
+                else if (!this.offsets.containsKey(code))
+                    this.offsets.put(code, null);
+                this.states.put(code, type);
+            }
+        }
+        this.sync(end);
+    }
+
+    // group commit : a writer finding its data already synced by another one returns at once
+    private void sync(final long end) throws IOException {
+        synchronized (this.syncLock) {
+            if (this.syncedSize >= end)
+                return;
+            final long target;
+            final FileChannel channel;
+            synchronized (this) {
+                target = this.writtenSize;
+                channel = this.getChannel(true);
+            }
+            channel.force(false);
+            this.syncedSize = target;
+        }
+    }
+
+    /**
+     * Save a receipt.
+     * 
+     * @param t the receipt.
+     * @throws IOException if the receipt couldn't be written.
+     */
+    public final void save(final Ticket t) throws IOException {
+        final ByteArrayOutputStream bOut = new ByteArrayOutputStream(512);
+        final DataOutputStream out = new DataOutputStream(bOut);
+        out.writeUTF(t.getCode());
+        t.write(out);
+        out.close();
+        this.append(SAVED, Collections.singletonList(bOut.toByteArray()));
+    }
+
+    public final void markDeleted(final String code) throws IOException {
+        this.mark(DELETED, Collections.singleton(code));
+    }
+
+    /**
+     * Mark receipts as imported, with only one write to the disk.
+     * 
+     * @param codes the codes of the receipts.
+     * @throws IOException if the records couldn't be written.
+     */
+    public final void markImported(final Collection<String> codes) throws IOException {
+        this.mark(IMPORTED, codes);
+    }
+
+    private void mark(final byte type, final Collection<String> codes) throws IOException {
+        if (codes.isEmpty())
+            return;
+        final List<byte[]> contents = new ArrayList<byte[]>(codes.size());
+        for (final String code : codes) {
+            final ByteArrayOutputStream bOut = new ByteArrayOutputStream(32);
+            final DataOutputStream out = new DataOutputStream(bOut);
+            out.writeUTF(code);
+            out.close();
+            contents.add(bOut.toByteArray());
+        }
+        this.append(type, contents);
+    }
+
+    public final synchronized boolean contains(final String code) {
+        return this.states.containsKey(code);
+    }
+
+    /**
+     * Read a saved receipt.
+     * 
+     * @param code the code of the receipt.
+     * @return the last saved version of the receipt, <code>null</code> if it wasn't saved in this
+     *         journal.
+     * @throws IOException if the receipt couldn't be read.
+     */
+    public final Ticket getTicket(final String code) throws IOException {
+        final Long offset;
+        final FileChannel channel;
+        final long size;
+        synchronized (this) {
+            offset = this.offsets.get(code);
+            if (offset == null)
+                return null;
+            channel = this.getChannel(false);
+            size = this.writtenSize;
+        }
+        final byte[] record = readRecord(channel, offset, ByteBuffer.allocate(HEADER_SIZE), size);
+        if (record == null)
+            throw new IOException("Invalid record at " + offset + " in " + this.file);
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        try {
+            return Ticket.read(new ReceiptCode(in.readUTF()), in);
+        } catch (ParseException e) {
+            throw new IOException("Invalid code at " + offset + " in " + this.file, e);
+        }
+    }
+
+    /**
+     * The codes of the receipts in this journal.
+     * 
+     * @param includeAll <code>true</code> to also return deleted and imported receipts.
+     * @return the codes in the order they were first written.
+     */
+    public final synchronized List<ReceiptCode> getCodes(final boolean includeAll) {
+        final List<ReceiptCode> res = new ArrayList<ReceiptCode>(this.offsets.size());
+        for (final String code : this.offsets.keySet()) {
+            if (includeAll || this.states.get(code) == SAVED) {
+                try {
+                    res.add(new ReceiptCode(code));
+                } catch (ParseException e) {
+                    // cannot happen, codes come from ReceiptCode
+                    throw new IllegalStateException("Invalid code " + code, e);
+                }
+            }
+        }
+        return res;
+    }
+
+    public final synchronized boolean hasTicketsToImport() {
+        return this.states.containsValue(SAVED);
+    }
+
+    /**
+     * The receipts neither imported nor deleted.
+     * 
+     * @return the receipts to import.
+     * @throws IOException if a receipt couldn't be read.
+     */
+    public final List<Ticket> getTicketsToImport() throws IOException {
+        final List<ReceiptCode> codes = this.getCodes(false);
+        final List<Ticket> res = new ArrayList<Ticket>(codes.size());
+        for (final ReceiptCode code : codes) {
+            res.add(this.getTicket(code.getCode()));
+        }
+        return res;
+    }
+
+    @Override
+    public final void close() throws IOException {
+        synchronized (JOURNALS) {
+            JOURNALS.remove(this.file);
+        }
+        synchronized (this) {
+            if (this.raf != null) {
+                this.raf.close();
+                this.raf = null;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getSimpleName() + " " + this.file;
+    }
+}
@@ -51,8 +51,12 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
@@ -243,70 +247,47 @@ public class MouvementStockSQLElement extends ComptaSQLConfElement {
 
         final ListMap<SQLRow, SQLRowValues> map = new ListMap<SQLRow, SQLRowValues>();
         SQLTable tableCmdElt = Configuration.getInstance().getBase().getTable("COMMANDE_ELEMENT");
-        for (SQLRow rowMvtStock : rowsMvt) {
-
-            // Mise à jour des stocks
-            SQLTable sqlTableArticle = ((ComptaPropsConfiguration) Configuration.getInstance()).getRootSociete().getTable("ARTICLE");
-            SQLElement eltArticle = Configuration.getInstance().getDirectory().getElement(sqlTableArticle);
-            SQLElement eltStock = Configuration.getInstance().getDirectory().getElement("STOCK");
-            final SQLRow rowArticle = rowMvtStock.getForeignRow("ID_ARTICLE");
 
-            SQLRow rowStock = rowArticle.getForeignRow(("ID_STOCK"));
+        // Cumul des mouvements par article, les stocks sont lus en une requête
+        final Set<Integer> idsArticle = new HashSet<Integer>();
+        for (SQLRow rowMvtStock : rowsMvt) {
+            if (!rowMvtStock.isForeignEmpty("ID_ARTICLE"))
+                idsArticle.add(rowMvtStock.getInt("ID_ARTICLE"));
+        }
+        final Map<Integer, StockItem> stockItems = StockItemsUpdater.getStock(this.sqlTableArticle.getDBRoot(), idsArticle);
+        // articles dont le stock réel a changé
+        final Set<Integer> idsArticleReel = new HashSet<Integer>();
+        for (SQLRow rowMvtStock : rowsMvt) {
+            final StockItem stockItem = stockItems.get(rowMvtStock.getInt("ID_ARTICLE"));
+            if (stockItem == null) {
+                continue;
+            }
+            final float qteMvt = rowMvtStock.getFloat("QTE");
             if (rowMvtStock.getBoolean("REEL")) {
-                float qte = rowStock.getFloat("QTE_REEL");
-                float qteMvt = rowMvtStock.getFloat("QTE");
-
-                SQLRowValues rowVals = new SQLRowValues(eltStock.getTable());
-
-                float qteNvlle;
-                float qteNvlleEnAttenteRecept = rowStock.getFloat("QTE_RECEPT_ATTENTE");
-                float qteNvlleEnAttenteExp = rowStock.getFloat("QTE_LIV_ATTENTE");
-                if (archive) {
-                    qteNvlle = qte - qteMvt;
-                    // Réception
-                    if (qteMvt > 0) {
-                        qteNvlleEnAttenteRecept += qteMvt;
-                    } else {
-                        // Livraison
-                        qteNvlleEnAttenteExp -= qteMvt;
-                    }
-                } else {
-                    qteNvlle = qte + qteMvt;
-                    // Réception
-                    if (qteMvt > 0) {
-                        qteNvlleEnAttenteRecept -= qteMvt;
-                    } else {
-                        // Livraison
-                        qteNvlleEnAttenteExp += qteMvt;
-                    }
-                }
-                rowVals.put("QTE_REEL", qteNvlle);
-                rowVals.put("QTE_RECEPT_ATTENTE", qteNvlleEnAttenteRecept);
-                rowVals.put("QTE_LIV_ATTENTE", qteNvlleEnAttenteExp);
-
-                try {
-                    if (rowStock.getID() <= 1) {
-                        SQLRow row = rowVals.insert();
-                        SQLRowValues rowValsArt = new SQLRowValues(eltArticle.getTable());
-                        rowValsArt.put("ID_STOCK", row.getID());
-
-                        final int idArticle = rowArticle.getID();
-                        if (idArticle > 1) {
-                            rowValsArt.update(idArticle);
-                        }
-                    } else {
-                        rowVals.update(rowStock.getID());
-                    }
-                } catch (SQLException e) {
+                stockItem.updateQty(qteMvt, StockItem.Type.REEL, archive);
+                idsArticleReel.add(stockItem.getArticle().getID());
+            } else {
+                stockItem.updateQty(qteMvt, StockItem.Type.THEORIQUE, archive);
+            }
+        }
 
-                    ExceptionHandler.handle("Erreur lors de la mise à jour du stock pour l'article " + rowArticle.getString("CODE"));
-                }
+        // Mise à jour des stocks
+        try {
+            StockItemsUpdater.updateStock(this.sqlTableArticle.getForeignTable("ID_STOCK"), stockItems.values(), Collections.<String> emptyList());
+        } catch (SQLException e) {
+            ExceptionHandler.handle("Erreur lors de la mise à jour du stock", e);
+            return map;
+        }
 
-                DefaultProps props = DefaultNXProps.getInstance();
-                String stockMin = props.getStringProperty("ArticleStockMin");
-                Boolean bStockMin = !stockMin.equalsIgnoreCase("false");
-                boolean gestionStockMin = (bStockMin == null || bStockMin.booleanValue());
-                if (!archive && rowArticle.getTable().getFieldsName().contains("QTE_MIN") && gestionStockMin && rowArticle.getObject("QTE_MIN") != null && qteNvlle < rowArticle.getInt("QTE_MIN")) {
+        DefaultProps props = DefaultNXProps.getInstance();
+        String stockMin = props.getStringProperty("ArticleStockMin");
+        Boolean bStockMin = !stockMin.equalsIgnoreCase("false");
+        boolean gestionStockMin = (bStockMin == null || bStockMin.booleanValue());
+        if (!archive && gestionStockMin && this.sqlTableArticle.contains("QTE_MIN")) {
+            for (final Integer idArticle : idsArticleReel) {
+                final float qteNvlle = (float) stockItems.get(idArticle).getRealQty();
+                final SQLRow rowArticle = this.sqlTableArticle.getRow(idArticle);
+                if (rowArticle.getObject("QTE_MIN") != null && qteNvlle < rowArticle.getInt("QTE_MIN")) {
                     // final float qteShow = qteNvlle;
                     SQLInjector inj = SQLInjector.getInjector(rowArticle.getTable(), tableCmdElt);
                     SQLRowValues rowValsElt = new SQLRowValues(inj.createRowValuesFrom(rowArticle));
@@ -326,60 +307,8 @@ public class MouvementStockSQLElement extends ComptaSQLConfElement {
                     rowValsElt.put("T_PA_TTC", rowValsElt.getLong("T_PA_HT") * (rowValsElt.getForeign("ID_TAXE").getFloat("TAUX") / 100.0 + 1.0));
 
                     map.add(rowArticle.getForeignRow("ID_FOURNISSEUR"), rowValsElt);
-
-                }
-            } else {
-                float qte = rowStock.getFloat("QTE_TH");
-                float qteMvt = rowMvtStock.getFloat("QTE");
-
-                SQLRowValues rowVals = new SQLRowValues(eltStock.getTable());
-
-                float qteNvlle;
-                float qteNvlleEnAttenteRecept = rowStock.getFloat("QTE_RECEPT_ATTENTE");
-                float qteNvlleEnAttenteExp = rowStock.getFloat("QTE_LIV_ATTENTE");
-
-                if (archive) {
-                    qteNvlle = qte - qteMvt;
-                    // CommandeF
-                    if (qteMvt > 0) {
-                        qteNvlleEnAttenteRecept -= qteMvt;
-                    } else {
-                        // CommanceC
-                        qteNvlleEnAttenteExp += qteMvt;
-                    }
-                } else {
-                    qteNvlle = qte + qteMvt;
-                    // CommandeF
-                    if (qteMvt > 0) {
-                        qteNvlleEnAttenteRecept += qteMvt;
-                    } else {
-                        // CommanceC
-                        qteNvlleEnAttenteExp -= qteMvt;
-                    }
-                }
-                rowVals.put("QTE_TH", qteNvlle);
-                rowVals.put("QTE_RECEPT_ATTENTE", qteNvlleEnAttenteRecept);
-                rowVals.put("QTE_LIV_ATTENTE", qteNvlleEnAttenteExp);
-
-                try {
-                    if (rowStock.getID() <= 1) {
-                        SQLRow row = rowVals.insert();
-                        SQLRowValues rowValsArt = new SQLRowValues(eltArticle.getTable());
-                        rowValsArt.put("ID_STOCK", row.getID());
-
-                        final int idArticle = rowArticle.getID();
-                        if (idArticle > 1) {
-                            rowValsArt.update(idArticle);
-                        }
-                    } else {
-                        rowVals.update(rowStock.getID());
-                    }
-                } catch (SQLException e) {
-
-                    ExceptionHandler.handle("Erreur lors de la mise à jour du stock pour l'article " + rowArticle.getString("CODE"));
                 }
             }
-
         }
         return map;
     }
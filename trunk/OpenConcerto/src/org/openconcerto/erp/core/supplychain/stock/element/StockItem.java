@@ -13,6 +13,8 @@
  
  package org.openconcerto.erp.core.supplychain.stock.element;
 
+import org.openconcerto.sql.model.SQLBase;
+import org.openconcerto.sql.model.SQLField;
 import org.openconcerto.sql.model.SQLRowAccessor;
 import org.openconcerto.sql.model.SQLTable;
 import org.openconcerto.sql.model.Where;
@@ -28,6 +30,9 @@ public class StockItem {
     };
 
     private double realQty, virtualQty, receiptQty, deliverQty;
+    // variations depuis la création, appliquées telles quelles à la base pour ne pas écraser les
+    // mouvements faits en même temps par un autre poste
+    private double realDelta, virtualDelta, receiptDelta, deliverDelta;
     public SQLRowAccessor article;
 
     List<StockItemComponent> components = new ArrayList<StockItemComponent>();
@@ -92,59 +97,38 @@ public class StockItem {
      * @param archive annulation du stock
      */
     public void updateQty(double qty, Type t, boolean archive) {
-
+        // annuler un mouvement revient à ajouter son opposé
+        final double q = archive ? -qty : qty;
         if (t == Type.REEL) {
-            final double qteNvlle;
-            final double qteOrigin = this.realQty;
-            if (archive) {
-                qteNvlle = qteOrigin - qty;
-                // Réception
-                if (qty > 0) {
-                    this.receiptQty += qty;
-                } else {
-                    // Livraison
-                    this.deliverQty -= qty;
-                }
+            // Réception
+            if (qty > 0) {
+                add(q, 0, -q, 0);
             } else {
-                qteNvlle = qteOrigin + qty;
-                // Réception
-                if (qty > 0) {
-                    this.receiptQty -= qty;
-                } else {
-                    // Livraison
-                    this.deliverQty += qty;
-                }
+                // Livraison
+                add(q, 0, 0, q);
             }
-
-            this.realQty = qteNvlle;
-
         } else {
-            final double qteNvlle;
-            final double qteOrigin = this.virtualQty;
-            if (archive) {
-                qteNvlle = qteOrigin - qty;
-                // Réception
-                if (qty > 0) {
-                    this.receiptQty -= qty;
-                } else {
-                    // Livraison
-                    this.deliverQty += qty;
-                }
+            // Réception
+            if (qty > 0) {
+                add(0, q, q, 0);
             } else {
-                qteNvlle = qteOrigin + qty;
-                // Réception
-                if (qty > 0) {
-                    this.receiptQty += qty;
-                } else {
-                    // Livraison
-                    this.deliverQty -= qty;
-                }
+                // Livraison
+                add(0, q, 0, -q);
             }
-
-            this.virtualQty = qteNvlle;
         }
     }
 
+    private void add(double real, double virtual, double receipt, double deliver) {
+        this.realQty += real;
+        this.virtualQty += virtual;
+        this.receiptQty += receipt;
+        this.deliverQty += deliver;
+        this.realDelta += real;
+        this.virtualDelta += virtual;
+        this.receiptDelta += receipt;
+        this.deliverDelta += deliver;
+    }
+
     public double getDeliverQty() {
         return deliverQty;
     }
@@ -161,6 +145,25 @@ public class StockItem {
         return virtualQty;
     }
 
+    /**
+     * Le stock prévisionnel, c'est à dire le stock réel après les réceptions et livraisons en
+     * attente.
+     * 
+     * @return la quantité prévisionnelle.
+     */
+    public double getProjectedQty() {
+        return this.realQty + this.receiptQty - this.deliverQty;
+    }
+
+    /**
+     * Si les quantités ont changé depuis la création.
+     * 
+     * @return <code>true</code> si {@link #getUpdateDeltaRequest()} doit être exécutée.
+     */
+    public boolean hasDelta() {
+        return this.realDelta != 0 || this.virtualDelta != 0 || this.receiptDelta != 0 || this.deliverDelta != 0;
+    }
+
     public boolean isStockInit() {
         return !this.article.isForeignEmpty("ID_STOCK");
     }
@@ -176,4 +179,28 @@ public class StockItem {
         return update.asString();
     }
 
+    /**
+     * La requête ajoutant au stock les variations de quantités. Contrairement à
+     * {@link #getUpdateRequest()} les quantités ne sont pas écrasées, les mouvements validés en
+     * même temps sur un autre poste sont donc conservés.
+     * 
+     * @return la requête <code>UPDATE STOCK SET QTE_REEL = QTE_REEL + ?, ...</code>.
+     */
+    public String getUpdateDeltaRequest() {
+        final SQLTable stockTable = this.article.getTable().getForeignTable("ID_STOCK");
+        UpdateBuilder update = new UpdateBuilder(stockTable);
+        update.setWhere(new Where(stockTable.getKey(), "=", getArticle().getForeign("ID_STOCK").getID()));
+        setDelta(update, stockTable.getField("QTE_REEL"), this.realDelta);
+        setDelta(update, stockTable.getField("QTE_TH"), this.virtualDelta);
+        setDelta(update, stockTable.getField("QTE_LIV_ATTENTE"), this.deliverDelta);
+        setDelta(update, stockTable.getField("QTE_RECEPT_ATTENTE"), this.receiptDelta);
+        return update.asString();
+    }
+
+    private static void setDelta(final UpdateBuilder update, final SQLField f, final double delta) {
+        if (delta != 0) {
+            final String name = SQLBase.quoteIdentifier(f.getName());
+            update.set(f.getName(), "COALESCE(" + name + ", 0) + " + f.getType().toString(delta));
+        }
+    }
 }
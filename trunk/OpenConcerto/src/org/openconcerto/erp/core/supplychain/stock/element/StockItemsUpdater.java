@@ -14,6 +14,8 @@
  package org.openconcerto.erp.core.supplychain.stock.element;
 
 import org.openconcerto.sql.model.DBRoot;
+import org.openconcerto.sql.model.SQLDataSource;
+import org.openconcerto.sql.model.SQLRow;
 import org.openconcerto.sql.model.SQLRowAccessor;
 import org.openconcerto.sql.model.SQLRowValues;
 import org.openconcerto.sql.model.SQLRowValuesListFetcher;
@@ -29,12 +31,20 @@ import java.math.MathContext;
 import java.sql.SQLException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+
+import javax.swing.SwingUtilities;
 
 import org.apache.commons.dbutils.ResultSetHandler;
 
 public class StockItemsUpdater {
 
+    private static final List<String> STOCK_FIELDS = Arrays.asList("QTE_REEL", "QTE_TH", "QTE_LIV_ATTENTE", "QTE_RECEPT_ATTENTE");
+
     private final StockLabel label;
     private final List<? extends SQLRowAccessor> items;
     private final Type type;
@@ -73,58 +83,144 @@ public class StockItemsUpdater {
         this.rowSource = rowSource;
     }
 
-    List<String> requests = new ArrayList<String>();
-
     public void update() throws SQLException {
         final SQLTable stockTable = this.rowSource.getTable().getTable("STOCK");
+        // un seul StockItem par article, cumulant les mouvements de toutes les lignes de la pièce
+        final Map<Integer, StockItem> stockItems = new LinkedHashMap<Integer, StockItem>();
+        final List<String> requests = new ArrayList<String>();
 
         if (this.createMouvementStock) {
-            clearExistingMvt(this.rowSource);
+            clearExistingMvt(stockItems, requests);
         }
 
         // Mise à jour des stocks des articles non composés
-        List<StockItem> stockItems = fetch();
+        fetch(stockItems, requests);
+        final List<StockItem> items = new ArrayList<StockItem>(stockItems.values());
+        updateStock(stockTable, items, requests);
 
-        for (StockItem stockItem : stockItems) {
-            if (stockItem.isStockInit()) {
-                requests.add(stockItem.getUpdateRequest());
-            } else {
-                SQLRowValues rowVals = new SQLRowValues(stockTable);
-                rowVals.put("QTE_REEL", stockItem.getRealQty());
-                rowVals.put("QTE_TH", stockItem.getVirtualQty());
-                rowVals.put("QTE_LIV_ATTENTE", stockItem.getDeliverQty());
-                rowVals.put("QTE_RECEPT_ATTENTE", stockItem.getReceiptQty());
-                SQLRowValues rowValsArt = stockItem.getArticle().createEmptyUpdateRow();
-                rowValsArt.put("ID_STOCK", rowVals);
-                rowValsArt.commit();
-            }
+        final DBRoot root = this.rowSource.getTable().getDBRoot();
+        if (root.contains("ARTICLE_ELEMENT")) {
+            ComposedItemStockUpdater comp = new ComposedItemStockUpdater(root, items);
+            comp.update();
         }
 
-        List<? extends ResultSetHandler> handlers = new ArrayList<ResultSetHandler>(requests.size());
-        for (String s : requests) {
-            handlers.add(null);
+    }
+
+    /**
+     * Enregistre les variations des stocks en une transaction. Les stocks existants sont mis à jour
+     * en ajoutant les variations (une requête par article, envoyées en une fois) et non en écrasant
+     * les quantités, ainsi deux postes validant en même temps des pièces du même article ne perdent
+     * pas de mouvement. Les listes et caches de la table STOCK sont notifiés une fois la
+     * transaction validée.
+     * 
+     * @param stockTable la table STOCK.
+     * @param items les stocks à mettre à jour, un seul par article.
+     * @param requests les requêtes à exécuter avec les mises à jour (e.g. création des mouvements).
+     * @throws SQLException si les stocks n'ont pu être mis à jour.
+     */
+    static void updateStock(final SQLTable stockTable, final Collection<StockItem> items, final List<String> requests) throws SQLException {
+        final SQLDataSource ds = stockTable.getDBSystemRoot().getDataSource();
+        // stocks modifiés par les requêtes, qui ne notifient pas
+        final List<Integer> idsStock = new ArrayList<Integer>();
+        SQLUtils.executeAtomic(ds, new SQLUtils.SQLFactory<Object>() {
+            @Override
+            public Object create() throws SQLException {
+                idsStock.clear();
+                final List<String> allRequests = new ArrayList<String>(requests);
+                for (StockItem stockItem : items) {
+                    if (stockItem.isStockInit()) {
+                        if (stockItem.hasDelta()) {
+                            allRequests.add(stockItem.getUpdateDeltaRequest());
+                            idsStock.add(stockItem.getArticle().getForeign("ID_STOCK").getID());
+                        }
+                    } else {
+                        SQLRowValues rowVals = new SQLRowValues(stockTable);
+                        rowVals.put("QTE_REEL", stockItem.getRealQty());
+                        rowVals.put("QTE_TH", stockItem.getVirtualQty());
+                        rowVals.put("QTE_LIV_ATTENTE", stockItem.getDeliverQty());
+                        rowVals.put("QTE_RECEPT_ATTENTE", stockItem.getReceiptQty());
+                        SQLRowValues rowValsArt = stockItem.getArticle().createEmptyUpdateRow();
+                        rowValsArt.put("ID_STOCK", rowVals);
+                        rowValsArt.commit();
+                    }
+                }
+
+                if (!allRequests.isEmpty()) {
+                    List<? extends ResultSetHandler> handlers = new ArrayList<ResultSetHandler>(allRequests.size());
+                    for (String s : allRequests) {
+                        handlers.add(null);
+                    }
+                    SQLUtils.executeMultiple(stockTable.getDBSystemRoot(), allRequests, handlers);
+                }
+                return null;
+            }
+        });
+        if (!idsStock.isEmpty())
+            stockTable.fireTableModified(idsStock.size() == 1 ? idsStock.get(0) : SQLRow.NONEXISTANT_ID, STOCK_FIELDS);
+    }
+
+    /**
+     * Le stock des articles, lu en une requête. Ne doit pas être appelé depuis l'EDT.
+     * 
+     * @param root la base.
+     * @param idsArticle les articles.
+     * @return le stock par ID d'article, cf. {@link StockItem#getProjectedQty()} pour le stock
+     *         prévisionnel.
+     * @throws IllegalStateException si appelé depuis l'EDT.
+     */
+    public static Map<Integer, StockItem> fetchStock(final DBRoot root, final Collection<Integer> idsArticle) {
+        if (SwingUtilities.isEventDispatchThread()) {
+            throw new IllegalStateException("This method must be called outside of EDT");
         }
-        // FIXME FIRE TABLE CHANGED TO UPDATE ILISTE ??
-        SQLUtils.executeMultiple(stockTable.getDBSystemRoot(), requests, handlers);
+        return getStock(root, idsArticle);
+    }
 
-        final DBRoot root = this.rowSource.getTable().getDBRoot();
-        if (root.contains("ARTICLE_ELEMENT")) {
-            ComposedItemStockUpdater comp = new ComposedItemStockUpdater(root, stockItems);
-            comp.update();
+    static Map<Integer, StockItem> getStock(final DBRoot root, final Collection<Integer> idsArticle) {
+        final SQLTable tableArticle = root.getTable("ARTICLE");
+        final SQLRowValues rowValsArt = new SQLRowValues(tableArticle);
+        rowValsArt.put(tableArticle.getKey().getName(), null);
+        SQLRowValues rowValsStock = new SQLRowValues(tableArticle.getForeignTable("ID_STOCK"));
+        rowValsStock.put("QTE_REEL", null);
+        rowValsStock.put("QTE_TH", null);
+        rowValsStock.put("QTE_RECEPT_ATTENTE", null);
+        rowValsStock.put("QTE_LIV_ATTENTE", null);
+        rowValsArt.put("ID_STOCK", rowValsStock);
+
+        final Map<Integer, StockItem> res = new LinkedHashMap<Integer, StockItem>();
+        if (idsArticle.isEmpty())
+            return res;
+        SQLRowValuesListFetcher fetcher = SQLRowValuesListFetcher.create(rowValsArt);
+        fetcher.setSelTransf(new ITransformer<SQLSelect, SQLSelect>() {
+
+            @Override
+            public SQLSelect transformChecked(SQLSelect input) {
+                input.setWhere(new Where(tableArticle.getKey(), idsArticle));
+                return input;
+            }
+        });
+        for (SQLRowValues article : fetcher.fetch()) {
+            res.put(article.getID(), new StockItem(article));
         }
+        return res;
+    }
 
+    private static StockItem getStockItem(final Map<Integer, StockItem> stockItems, final SQLRowAccessor article) {
+        StockItem res = stockItems.get(article.getID());
+        if (res == null) {
+            res = new StockItem(article);
+            stockItems.put(article.getID(), res);
+        }
+        return res;
     }
 
     /**
      * Suppression des anciens mouvements
      * 
-     * @param rowSource
-     * @throws SQLException
+     * @param stockItems les stocks par article, complétés par cette méthode.
+     * @param multipleRequests les requêtes à exécuter, complétées par cette méthode.
      * @throws RTInterruptedException
      */
-    private void clearExistingMvt(SQLRowAccessor rowSource) throws RTInterruptedException, SQLException {
-
-        List<String> multipleRequests = new ArrayList<String>();
+    private void clearExistingMvt(final Map<Integer, StockItem> stockItems, final List<String> multipleRequests) throws RTInterruptedException {
 
         final SQLTable table = this.rowSource.getTable().getTable("MOUVEMENT_STOCK");
         SQLRowValues rowVals = new SQLRowValues(table);
@@ -154,7 +250,7 @@ public class StockItemsUpdater {
 
         List<SQLRowValues> result = fetcher.fetch();
         for (SQLRowValues sqlRowValues : result) {
-            StockItem item = new StockItem(sqlRowValues.getForeign("ID_ARTICLE"));
+            StockItem item = getStockItem(stockItems, sqlRowValues.getForeign("ID_ARTICLE"));
             final StockItem.Type t;
             if (sqlRowValues.getBoolean("REEL")) {
                 t = StockItem.Type.REEL;
@@ -164,24 +260,17 @@ public class StockItemsUpdater {
             item.updateQty(sqlRowValues.getFloat("QTE"), t, true);
             String req = "UPDATE " + sqlRowValues.getTable().getSQLName().quote() + " SET \"ARCHIVE\"=1 WHERE \"ID\"=" + sqlRowValues.getID();
             multipleRequests.add(req);
-            multipleRequests.add(item.getUpdateRequest());
-        }
-
-        List<? extends ResultSetHandler> handlers = new ArrayList<ResultSetHandler>(multipleRequests.size());
-        for (String s : multipleRequests) {
-            handlers.add(null);
         }
-        SQLUtils.executeMultiple(table.getDBSystemRoot(), multipleRequests, handlers);
     }
 
     /**
      * Récupére les stocks associés aux articles non composés et les met à jour
      * 
-     * @return la liste des stocks à jour
+     * @param stockItems les stocks par article, complétés par cette méthode.
+     * @param requests les requêtes à exécuter, complétées par cette méthode.
      */
-    private List<StockItem> fetch() {
+    private void fetch(final Map<Integer, StockItem> stockItems, final List<String> requests) {
         SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-        List<StockItem> stockItems = new ArrayList<StockItem>(items.size());
         StockItem.Type stockItemType = this.type.isVirtual() ? StockItem.Type.THEORIQUE : StockItem.Type.REEL;
         for (SQLRowAccessor item : items) {
 
@@ -191,7 +280,7 @@ public class StockItemsUpdater {
                 // FIXME Create FIELD COMPOSED
                 // if (!article.getBoolean("COMPOSED") && article.getBoolean("GESTION_STOCK")) {
                 if (article.getBoolean("GESTION_STOCK")) {
-                    StockItem stockItem = new StockItem(article);
+                    StockItem stockItem = getStockItem(stockItems, article);
 
                     final int qte = item.getInt("QTE");
                     final BigDecimal qteUV = item.getBigDecimal("QTE_UNITAIRE");
@@ -200,17 +289,15 @@ public class StockItemsUpdater {
                         qteFinal = -qteFinal;
                     }
                     stockItem.updateQty(qteFinal, stockItemType);
-                    stockItems.add(stockItem);
                     if (this.createMouvementStock) {
                         String mvtStockQuery = "INSERT INTO " + article.getTable().getTable("MOUVEMENT_STOCK").getSQLName().quote()
                                 + " (\"QTE\",\"DATE\",\"ID_ARTICLE\",\"SOURCE\",\"IDSOURCE\",\"NOM\",\"REEL\") VALUES(" + qteFinal + ",'" + dateFormat.format(this.rowSource.getDate("DATE").getTime())
                                 + "'," + article.getID() + ",'" + this.rowSource.getTable().getName() + "'," + this.rowSource.getID() + ",'" + this.label.getLabel(this.rowSource, item) + "',"
                                 + String.valueOf(!this.type.isVirtual()) + ")";
-                        this.requests.add(mvtStockQuery);
+                        requests.add(mvtStockQuery);
                     }
                 }
             }
         }
-        return stockItems;
     }
 }
@@ -18,6 +18,7 @@ import org.openconcerto.erp.config.Gestion;
 import org.openconcerto.erp.preferences.PrinterNXProps;
 import org.openconcerto.erp.preferences.TemplateNXProps;
 import org.openconcerto.odtemplate.Template;
+import org.openconcerto.odtemplate.TemplateCache;
 import org.openconcerto.odtemplate.engine.OGNLDataModel;
 import org.openconcerto.openoffice.ODSingleXMLDocument;
 import org.jopendocument.link.Component;
@@ -134,7 +135,6 @@ public abstract class AbstractJOOReportsSheet {
         try {
 
             String fileName = getFileName();
-            final InputStream fileTemplate = TemplateManager.getInstance().getTemplate(this.templateId);
             File outputDir = DocumentLocalStorageManager.getInstance().getDocumentOutputDirectory(getDefaultTemplateID());
             File fileOutOO = getDocumentFile();
             if (fileOutOO.exists() && overwrite) {
@@ -150,7 +150,21 @@ public abstract class AbstractJOOReportsSheet {
 
             if (!fileOutOO.exists()) {
                 fileOutOO.getParentFile().mkdirs();
-                Template template = new Template(new BufferedInputStream(fileTemplate));
+                // a local template is parsed once for all documents
+                final File templateFile = TemplateManager.getInstance().getTemplateFile(this.templateId, null, null);
+                final Template template;
+                if (templateFile != null) {
+                    template = TemplateCache.getInstance().getTemplate(templateFile);
+                } else {
+                    final InputStream fileTemplate = TemplateManager.getInstance().getTemplate(this.templateId);
+                    if (fileTemplate == null)
+                        throw new FileNotFoundException(this.templateId);
+                    try {
+                        template = new Template(new BufferedInputStream(fileTemplate));
+                    } finally {
+                        fileTemplate.close();
+                    }
+                }
 
                 // creation du document
                 final Map createMap = createMap();
@@ -55,8 +55,12 @@ public abstract class AbstractListeSheetXml extends SheetXml {
             public SheetXml call() throws Exception {
                 try {
                     createListeValues();
-                    generatedOpenDocumentFile = OOgenerationListeXML.genere(getTemplateId(), getDocumentOutputDirectory(), getValidFileName(getName()), listAllSheetValues, mapAllSheetValues,
-                            styleAllSheetValues, sheetNames, null);
+                    if (isStreamed()) {
+                        generatedOpenDocumentFile = genereStreamed();
+                    } else {
+                        generatedOpenDocumentFile = OOgenerationListeXML.genere(getTemplateId(), getDocumentOutputDirectory(), getValidFileName(getName()), listAllSheetValues, mapAllSheetValues,
+                                styleAllSheetValues, sheetNames, null);
+                    }
                     // Flush values after creation
                     if (listAllSheetValues != null) {
                         listAllSheetValues.clear();
@@ -89,6 +93,46 @@ public abstract class AbstractListeSheetXml extends SheetXml {
      */
     protected abstract void createListeValues();
 
+    /**
+     * Whether the list of the last sheet should be written row by row instead of being filled in
+     * memory. Needed for very large exports, the pages are the same but their references don't
+     * include the page count.
+     * 
+     * @return <code>true</code> to use {@link #genereStreamed()}, called after
+     *         {@link #createListeValues()}.
+     * @see #getLineCount()
+     */
+    protected boolean isStreamed() {
+        return false;
+    }
+
+    /**
+     * Generate the document if {@link #isStreamed()}. By default the list of the last sheet is
+     * taken from {@link #listAllSheetValues}, but this can be overridden to produce the lines while
+     * they're written, e.g. from a database cursor.
+     * 
+     * @return the generated file.
+     * @throws Exception if an error occurs.
+     */
+    protected File genereStreamed() throws Exception {
+        return OOgenerationListeXML.genereStreamed(getTemplateId(), getDocumentOutputDirectory(), getValidFileName(getName()), this.listAllSheetValues, this.mapAllSheetValues,
+                this.styleAllSheetValues, this.sheetNames, null);
+    }
+
+    /**
+     * The total number of lines of all sheets, useful to decide in {@link #isStreamed()}.
+     * 
+     * @return the number of lines created by {@link #createListeValues()}.
+     */
+    protected final int getLineCount() {
+        int res = 0;
+        for (final List<Map<String, Object>> l : this.listAllSheetValues.values()) {
+            if (l != null)
+                res += l.size();
+        }
+        return res;
+    }
+
     @Override
     protected String getStoragePathP() {
         return StringUtils.firstUp(elt.getPluralName());
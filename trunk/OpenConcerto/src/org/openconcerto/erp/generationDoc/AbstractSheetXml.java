@@ -43,25 +43,7 @@ public abstract class AbstractSheetXml extends SheetXml {
             @Override
             public SheetXml call() throws Exception {
                 try {
-                    String templateId = getTemplateId();
-                    final String modeleFinal = templateId;
-
-                    String langage = getRowLanguage() != null ? getRowLanguage().getString("CHEMIN") : null;
-                    InputStream templateStream = TemplateManager.getInstance().getTemplate(templateId, langage, getType());
-                    if (templateStream == null) {
-                        SwingUtilities.invokeLater(new Runnable() {
-
-                            @Override
-                            public void run() {
-                                JOptionPane.showMessageDialog(null, "Impossible de trouver le modele " + modeleFinal + ". \n Le modéle par défaut sera utilisé!");
-                            }
-                        });
-                        templateId = getDefaultTemplateId();
-                    }
-                    final OOgenerationXML oXML = new OOgenerationXML(AbstractSheetXml.this.row);
-                    AbstractSheetXml.this.generatedOpenDocumentFile = oXML.createDocument(templateId, getType(), getDocumentOutputDirectory(), getValidFileName(getName()), getRowLanguage(),
-                            AbstractSheetXml.this.getMetaGeneration());
-
+                    generate(null, null);
                 } catch (Exception e) {
                     DEFAULT_HANDLER.uncaughtException(null, e);
                     // rethrow exception so that the unsuspecting caller can use this as the
@@ -77,6 +59,39 @@ public abstract class AbstractSheetXml extends SheetXml {
         return runnableQueue.submit(c);
     }
 
+    /**
+     * Generate the document in the current thread.
+     * 
+     * @param prefetched rows already fetched for several documents, can be <code>null</code>.
+     * @param overwrite what to do if the document already exists, see
+     *        {@link OOgenerationXML#setOverwrite(Boolean)}.
+     * @return the generated file, <code>null</code> if the generation failed.
+     * @throws IOException if the template can't be read.
+     */
+    final File generate(final OOXMLCache prefetched, final Boolean overwrite) throws IOException {
+        String templateId = getTemplateId();
+        final String modeleFinal = templateId;
+
+        String langage = getRowLanguage() != null ? getRowLanguage().getString("CHEMIN") : null;
+        InputStream templateStream = TemplateManager.getInstance().getTemplate(templateId, langage, getType());
+        if (templateStream == null) {
+            SwingUtilities.invokeLater(new Runnable() {
+
+                @Override
+                public void run() {
+                    JOptionPane.showMessageDialog(null, "Impossible de trouver le modele " + modeleFinal + ". \n Le modéle par défaut sera utilisé!");
+                }
+            });
+            templateId = getDefaultTemplateId();
+        } else {
+            templateStream.close();
+        }
+        final OOgenerationXML oXML = new OOgenerationXML(this.row, prefetched);
+        oXML.setOverwrite(overwrite);
+        this.generatedOpenDocumentFile = oXML.createDocument(templateId, getType(), getDocumentOutputDirectory(), getValidFileName(getName()), getRowLanguage(), this.getMetaGeneration());
+        return this.generatedOpenDocumentFile;
+    }
+
     public String getType() {
         return null;
     }
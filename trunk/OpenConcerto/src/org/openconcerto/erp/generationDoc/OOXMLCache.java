@@ -18,46 +18,208 @@ import org.openconcerto.sql.model.SQLRow;
 import org.openconcerto.sql.model.SQLRowAccessor;
 import org.openconcerto.sql.model.SQLRowListRSH;
 import org.openconcerto.sql.model.SQLRowValues;
+import org.openconcerto.sql.model.SQLRowValuesListFetcher;
 import org.openconcerto.sql.model.SQLSelect;
 import org.openconcerto.sql.model.SQLTable;
 import org.openconcerto.sql.model.Where;
+import org.openconcerto.sql.model.graph.Link;
+import org.openconcerto.utils.ListMap;
+import org.openconcerto.utils.cc.ITransformer;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.jdom.Element;
+
+/**
+ * Cache des lignes utilisées pour la génération d'un document. Les lignes étrangères et référentes
+ * peuvent être chargées en une fois avec {@link #prefetchForeignRows(Collection, Collection)} et
+ * {@link #getReferentRows(List, SQLTable)}, au lieu d'une requête par ligne. Pour plusieurs
+ * documents, les lignes peuvent être chargées une fois dans un cache partagé, passé comme parent
+ * au cache de chaque document : le parent ne doit alors plus être modifié.
+ */
 public class OOXMLCache {
 
+    private final OOXMLCache parent;
     private Map<SQLRowAccessor, Map<SQLTable, List<SQLRowAccessor>>> cacheReferent = new HashMap<SQLRowAccessor, Map<SQLTable, List<SQLRowAccessor>>>();
-    private Map<String, Map<Integer, SQLRowAccessor>> cacheForeign = new HashMap<String, Map<Integer, SQLRowAccessor>>();
+    private Map<SQLField, Map<Number, SQLRowAccessor>> cacheForeign = new HashMap<SQLField, Map<Number, SQLRowAccessor>>();
+    private int hitCount = 0;
+    private int missCount = 0;
 
-    protected SQLRowAccessor getForeignRow(SQLRowAccessor row, SQLField field) {
-        Map<Integer, SQLRowAccessor> c = cacheForeign.get(field.getName());
+    public OOXMLCache() {
+        this(null);
+    }
+
+    /**
+     * Crée un cache.
+     * 
+     * @param parent les lignes déjà chargées, lu seulement, peut être <code>null</code>.
+     */
+    public OOXMLCache(final OOXMLCache parent) {
+        this.parent = parent;
+    }
 
+    private SQLRowAccessor getCachedForeign(final SQLField field, final Number id) {
+        final Map<Number, SQLRowAccessor> c = this.cacheForeign.get(field);
+        final SQLRowAccessor res = c == null ? null : c.get(id);
+        return res == null && this.parent != null ? this.parent.getCachedForeign(field, id) : res;
+    }
+
+    private List<SQLRowAccessor> getCachedReferent(final SQLRowAccessor row, final SQLTable tableForeign) {
+        final Map<SQLTable, List<SQLRowAccessor>> c = this.cacheReferent.get(row);
+        final List<SQLRowAccessor> res = c == null ? null : c.get(tableForeign);
+        return res == null && this.parent != null ? this.parent.getCachedReferent(row, tableForeign) : res;
+    }
+
+    protected SQLRowAccessor getForeignRow(SQLRowAccessor row, SQLField field) {
         if (row.getObject(field.getName()) == null) {
             return null;
         }
 
-        int i = row.getInt(field.getName());
+        final Number i = row.getForeignIDNumber(field.getName());
+        final SQLRowAccessor cached = getCachedForeign(field, i);
 
-        if (c != null && c.get(i) != null) {
-            return c.get(i);
+        if (cached != null) {
+            this.hitCount++;
+            return cached;
         } else {
-
+            this.missCount++;
             SQLRowAccessor foreign = row.getForeign(field.getName());
+            putForeign(field, i, foreign);
+            return foreign;
+        }
 
-            if (c == null) {
-                Map<Integer, SQLRowAccessor> map = new HashMap<Integer, SQLRowAccessor>();
-                map.put(i, foreign);
-                cacheForeign.put(field.getName(), map);
-            } else {
-                c.put(i, foreign);
+    }
+
+    private void putForeign(final SQLField field, final Number id, final SQLRowAccessor foreign) {
+        Map<Number, SQLRowAccessor> c = cacheForeign.get(field);
+        if (c == null) {
+            c = new HashMap<Number, SQLRowAccessor>();
+            cacheForeign.put(field, c);
+        }
+        c.put(id, foreign);
+    }
+
+    /**
+     * Charge en une requête par clef étrangère les lignes nécessaires pour remplir les éléments
+     * passés. Par exemple pour une facture de 300 lignes avec &lt;field name="ID_ARTICLE"&gt;
+     * &lt;field name="ID_FAMILLE_ARTICLE"&gt;, une seule requête récupère les articles et leurs
+     * familles.
+     * 
+     * @param rows les lignes qui vont être utilisées pour remplir les éléments.
+     * @param elements les éléments &lt;element&gt; du modèle.
+     */
+    public void prefetchForeignRows(final Collection<? extends SQLRowAccessor> rows, final Collection<Element> elements) {
+        if (rows.isEmpty())
+            return;
+        final Map<SQLTable, Map<SQLField, ForeignNode>> byTable = new HashMap<SQLTable, Map<SQLField, ForeignNode>>();
+        for (final SQLRowAccessor r : rows) {
+            if (r != null && !byTable.containsKey(r.getTable())) {
+                final Map<SQLField, ForeignNode> nodes = new LinkedHashMap<SQLField, ForeignNode>();
+                for (final Element elt : elements) {
+                    addForeignNodes(r.getTable(), getFieldChildren(elt), nodes);
+                }
+                byTable.put(r.getTable(), nodes);
+            }
+        }
+        for (final Map<SQLField, ForeignNode> nodes : byTable.values()) {
+            for (final ForeignNode n : nodes.values()) {
+                prefetch(rows, n);
             }
+        }
+    }
 
-            return foreign;
+    private static void addForeignNodes(final SQLTable t, final List<Element> fieldElts, final Map<SQLField, ForeignNode> res) {
+        for (final Element fieldElt : fieldElts) {
+            final String name = fieldElt.getAttributeValue("name");
+            final List<Element> children = getFieldChildren(fieldElt);
+            if (name == null || children.isEmpty() || !t.contains(name.trim()))
+                continue;
+            final SQLField field = t.getField(name.trim());
+            if (!t.getForeignKeys().contains(field))
+                continue;
+            ForeignNode n = res.get(field);
+            if (n == null) {
+                n = new ForeignNode(field);
+                res.put(field, n);
+            }
+            addForeignNodes(n.getForeignTable(), children, n.children);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Element> getFieldChildren(final Element elt) {
+        return elt.getChildren("field");
+    }
+
+    private void prefetch(final Collection<? extends SQLRowAccessor> rows, final ForeignNode n) {
+        final String fieldName = n.field.getName();
+        final Set<Number> ids = new HashSet<Number>();
+        for (final SQLRowAccessor r : rows) {
+            if (r != null && r.getTable() == n.field.getTable() && !r.isUndefined() && r.getObject(fieldName) != null) {
+                final Number id = r.getForeignIDNumber(fieldName);
+                if (getCachedForeign(n.field, id) == null)
+                    ids.add(id);
+            }
         }
+        if (ids.isEmpty())
+            return;
 
+        final SQLRowValuesListFetcher fetcher = new SQLRowValuesListFetcher(n.createGraph());
+        // same rows as SQLRowAccessor.getForeign()
+        fetcher.setFullOnly(false);
+        fetcher.setIncludeForeignUndef(true);
+        fetcher.setSelTransf(new ITransformer<SQLSelect, SQLSelect>() {
+            @Override
+            public SQLSelect transformChecked(SQLSelect input) {
+                input.setArchivedPolicy(SQLSelect.BOTH);
+                return input.andWhere(new Where(n.getForeignTable().getKey(), ids));
+            }
+        });
+        for (final SQLRowValues vals : fetcher.fetch()) {
+            this.putForeign(n, vals);
+        }
+    }
+
+    private void putForeign(final ForeignNode n, final SQLRowValues vals) {
+        final SQLRow r = vals.asRow();
+        // only cache complete rows, otherwise let getForeign() fetch it
+        if (r.getFields().containsAll(vals.getTable().getFieldsName()))
+            putForeign(n.field, r.getIDNumber(), r);
+        for (final ForeignNode child : n.children.values()) {
+            final Object o = vals.getObject(child.field.getName());
+            if (o instanceof SQLRowValues)
+                putForeign(child, (SQLRowValues) o);
+        }
+    }
+
+    // a foreign key used by the template and the foreign keys used from its table
+    private static final class ForeignNode {
+        private final SQLField field;
+        private final Map<SQLField, ForeignNode> children;
+
+        ForeignNode(final SQLField field) {
+            this.field = field;
+            this.children = new LinkedHashMap<SQLField, ForeignNode>();
+        }
+
+        final SQLTable getForeignTable() {
+            return this.field.getTable().getForeignTable(this.field.getName());
+        }
+
+        final SQLRowValues createGraph() {
+            final SQLRowValues res = new SQLRowValues(this.getForeignTable()).setAllToNull();
+            for (final ForeignNode child : this.children.values()) {
+                res.put(child.field.getName(), child.createGraph());
+            }
+            return res;
+        }
     }
 
     protected List<? extends SQLRowAccessor> getReferentRows(List<? extends SQLRowAccessor> row, SQLTable tableForeign) {
@@ -65,22 +227,18 @@ public class OOXMLCache {
     }
 
     protected List<? extends SQLRowAccessor> getReferentRows(List<? extends SQLRowAccessor> row, final SQLTable tableForeign, String groupBy) {
-        Map<SQLTable, List<SQLRowAccessor>> c = cacheReferent.get(row.get(0));
+        final List<SQLRowAccessor> cached = getCachedReferent(row.get(0), tableForeign);
 
-        if (c != null && c.get(tableForeign) != null) {
-            System.err.println("get referent rows From Cache ");
-            return c.get(tableForeign);
+        if (cached != null) {
+            this.hitCount++;
+            return cached;
         } else {
+            this.missCount++;
             List<SQLRowAccessor> list;
             if (row.isEmpty() || (row.size() > 0 && row.get(0).isUndefined())) {
                 list = new ArrayList<SQLRowAccessor>();
             } else if (row.size() > 0 && (groupBy == null || groupBy.trim().length() == 0)) {
-                list = new ArrayList<SQLRowAccessor>();
-                for (SQLRowAccessor sqlRowAccessor : row) {
-                    if (sqlRowAccessor != null && !sqlRowAccessor.isUndefined()) {
-                        list.addAll(sqlRowAccessor.getReferentRows(tableForeign));
-                    }
-                }
+                list = fetchReferentRows(row, tableForeign);
             } else {
 
                 final List<String> params = SQLRow.toList(groupBy);
@@ -90,15 +248,11 @@ public class OOXMLCache {
                     sel.addSelect(tableForeign.getField(params.get(i)));
                 }
 
-                Where w = null;
+                final Set<Number> ids = new HashSet<Number>();
                 for (SQLRowAccessor rowAccess : row) {
-                    if (w == null) {
-                        w = new Where((SQLField) tableForeign.getForeignKeys(rowAccess.getTable()).toArray()[0], "=", rowAccess.getID());
-                    } else {
-                        w = w.or(new Where((SQLField) tableForeign.getForeignKeys(rowAccess.getTable()).toArray()[0], "=", rowAccess.getID()));
-                    }
+                    ids.add(rowAccess.getIDNumber());
                 }
-                sel.setWhere(w);
+                sel.setWhere(new Where((SQLField) tableForeign.getForeignKeys(row.get(0).getTable()).toArray()[0], ids));
                 System.err.println(sel.asString());
                 List<SQLRow> result = (List<SQLRow>) row.get(0).getTable().getBase().getDataSource().execute(sel.asString(), new SQLRowListRSH(tableForeign));
 
@@ -121,19 +275,116 @@ public class OOXMLCache {
                 }
             }
 
-            if (c == null) {
-                Map<SQLTable, List<SQLRowAccessor>> map = new HashMap<SQLTable, List<SQLRowAccessor>>();
-                map.put(tableForeign, list);
-                cacheReferent.put(row.get(0), map);
-            } else {
-                c.put(tableForeign, list);
-            }
+            putReferent(row.get(0), tableForeign, list);
 
             return list;
         }
         // return row.getReferentRows(tableForeign);
     }
 
+    private void putReferent(final SQLRowAccessor row, final SQLTable tableForeign, final List<SQLRowAccessor> list) {
+        Map<SQLTable, List<SQLRowAccessor>> c = cacheReferent.get(row);
+        if (c == null) {
+            c = new HashMap<SQLTable, List<SQLRowAccessor>>();
+            cacheReferent.put(row, c);
+        }
+        c.put(tableForeign, list);
+    }
+
+    /**
+     * Charge en une requête par lien les lignes de <code>tableForeign</code> pointant sur chacune
+     * des lignes passées, comme si {@link #getReferentRows(List, SQLTable)} avait été appelée pour
+     * chacune (sans groupBy). Par exemple les éléments de toutes les factures du mois.
+     * 
+     * @param rows des lignes de la même table.
+     * @param tableForeign la table des lignes à charger.
+     * @return les lignes chargées.
+     */
+    public List<SQLRowAccessor> prefetchReferentRows(final Collection<? extends SQLRow> rows, final SQLTable tableForeign) {
+        final List<SQLRowAccessor> res = new ArrayList<SQLRowAccessor>();
+        final Set<Number> ids = new HashSet<Number>();
+        SQLTable t = null;
+        for (final SQLRow r : rows) {
+            if (r != null && !r.isUndefined() && getCachedReferent(r, tableForeign) == null) {
+                if (t != null && t != r.getTable())
+                    throw new IllegalArgumentException("Lignes de plusieurs tables : " + t + " et " + r.getTable());
+                t = r.getTable();
+                ids.add(r.getIDNumber());
+            }
+        }
+        if (t == null)
+            return res;
+
+        final Map<Link, ListMap<Number, SQLRow>> byLink = fetchReferentRows(t, ids, tableForeign);
+        for (final SQLRow r : rows) {
+            if (r != null && ids.contains(r.getIDNumber())) {
+                final List<SQLRowAccessor> list = new ArrayList<SQLRowAccessor>();
+                for (final ListMap<Number, SQLRow> m : byLink.values()) {
+                    list.addAll(m.getNonNull(r.getIDNumber()));
+                }
+                putReferent(r, tableForeign, list);
+                res.addAll(list);
+            }
+        }
+        return res;
+    }
+
+    // same as calling getReferentRows() on each row, but with one request per link
+    private List<SQLRowAccessor> fetchReferentRows(final List<? extends SQLRowAccessor> rows, final SQLTable tableForeign) {
+        final List<SQLRowAccessor> list = new ArrayList<SQLRowAccessor>();
+        final Set<Number> ids = new HashSet<Number>();
+        SQLTable t = null;
+        for (SQLRowAccessor sqlRowAccessor : rows) {
+            if (sqlRowAccessor != null && !sqlRowAccessor.isUndefined()) {
+                // SQLRowValues can have referents that are not in the database
+                if (!(sqlRowAccessor instanceof SQLRow) || (t != null && t != sqlRowAccessor.getTable())) {
+                    for (SQLRowAccessor r : rows) {
+                        if (r != null && !r.isUndefined()) {
+                            list.addAll(r.getReferentRows(tableForeign));
+                        }
+                    }
+                    return list;
+                }
+                t = sqlRowAccessor.getTable();
+                ids.add(sqlRowAccessor.getIDNumber());
+            }
+        }
+        if (t == null)
+            return list;
+
+        final Map<Link, ListMap<Number, SQLRow>> byLink = fetchReferentRows(t, ids, tableForeign);
+        for (SQLRowAccessor sqlRowAccessor : rows) {
+            if (sqlRowAccessor != null && !sqlRowAccessor.isUndefined()) {
+                for (final ListMap<Number, SQLRow> m : byLink.values()) {
+                    list.addAll(m.getNonNull(sqlRowAccessor.getIDNumber()));
+                }
+            }
+        }
+        return list;
+    }
+
+    // rows of tableForeign by link and referenced ID
+    private static Map<Link, ListMap<Number, SQLRow>> fetchReferentRows(final SQLTable t, final Set<Number> ids, final SQLTable tableForeign) {
+        final List<Link> links = new ArrayList<Link>();
+        for (final Link l : t.getDBSystemRoot().getGraph().getReferentLinks(t)) {
+            if (l.getSource() == tableForeign)
+                links.add(l);
+        }
+        final Map<Link, ListMap<Number, SQLRow>> byLink = new LinkedHashMap<Link, ListMap<Number, SQLRow>>();
+        for (final Link l : links) {
+            final SQLSelect sel = new SQLSelect();
+            sel.addSelectStar(tableForeign);
+            sel.setWhere(new Where(l.getLabel(), ids));
+            sel.addOrderSilent(tableForeign.getName());
+            final ListMap<Number, SQLRow> m = new ListMap<Number, SQLRow>();
+            for (final SQLRow r : SQLRowListRSH.execute(sel)) {
+                m.add(r.getForeignIDNumber(l.getLabel().getName()), r);
+            }
+            byLink.put(l, m);
+        }
+        return byLink;
+    }
+
     private void cumulRows(final List<String> params, SQLRow sqlRow, SQLRowValues rowVals) {
 
         for (int i = 1; i < params.size(); i++) {
@@ -159,5 +410,30 @@ public class OOXMLCache {
     public void clearCache() {
         cacheReferent.clear();
         cacheForeign.clear();
+        this.hitCount = 0;
+        this.missCount = 0;
+    }
+
+    /**
+     * The number of rows returned without a request since the last {@link #clearCache()}.
+     * 
+     * @return the number of cache hits.
+     */
+    public final int getHitCount() {
+        return this.hitCount;
+    }
+
+    public final int getMissCount() {
+        return this.missCount;
+    }
+
+    /**
+     * The proportion of rows returned without a request since the last {@link #clearCache()}.
+     * 
+     * @return the hit rate between 0 and 1.
+     */
+    public final float getHitRate() {
+        final int total = this.hitCount + this.missCount;
+        return total == 0 ? 0 : (float) this.hitCount / total;
     }
 }
@@ -136,7 +136,8 @@ public class OOXMLElement {
     }
 
 
-    public static DateFormat format = new SimpleDateFormat("dd/MM/yyyy");
+    // not static : SimpleDateFormat isn't thread-safe and documents can be generated concurrently
+    protected final DateFormat format = new SimpleDateFormat("dd/MM/yyyy");
 
     protected String getStringProposition(SQLRowAccessor rowProp) {
 
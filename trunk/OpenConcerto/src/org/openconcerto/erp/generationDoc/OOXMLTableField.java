@@ -154,7 +154,7 @@ public class OOXMLTableField extends OOXMLField {
      * @param row
      * @return la date + la localisation
      */
-    private static String getLocalisation(SQLRowAccessor row) {
+    private String getLocalisation(SQLRowAccessor row) {
         StringBuffer string = new StringBuffer();
         String site = row.getString("LOCAL_OBJET_INSPECTE");
         if (site != null) {
@@ -18,6 +18,7 @@ import org.openconcerto.erp.core.common.element.StyleSQLElement;
 import org.openconcerto.openoffice.ODPackage;
 import org.openconcerto.openoffice.spreadsheet.MutableCell;
 import org.openconcerto.openoffice.spreadsheet.Sheet;
+import org.openconcerto.openoffice.spreadsheet.SheetStreamWriter;
 import org.openconcerto.openoffice.spreadsheet.SpreadSheet;
 import org.openconcerto.sql.Configuration;
 import org.openconcerto.sql.model.SQLRow;
@@ -26,14 +27,22 @@ import org.openconcerto.utils.StreamUtils;
 import org.openconcerto.utils.StringUtils;
 
 import java.awt.Point;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
@@ -56,29 +65,13 @@ public class OOgenerationListeXML {
     public static File genere(String templateId, File pathDest, String fileDest, Map<Integer, List<Map<String, Object>>> liste, Map<Integer, Map<String, Object>> values,
             Map<Integer, Map<Integer, String>> mapStyle, List<String> sheetName, SQLRow rowLanguage) {
         cacheStyle.clear();
-        final SAXBuilder builder = new SAXBuilder();
         try {
-            InputStream xmlConfiguration = TemplateManager.getInstance().getTemplateConfiguration(templateId, rowLanguage != null ? rowLanguage.getString("CHEMIN") : null, null);
-            if (xmlConfiguration == null) {
-                throw new IllegalStateException("Template configuration " + templateId + " not found");
-            }
-            Document doc = builder.build(xmlConfiguration);
-
             // On initialise un nouvel élément racine avec l'élément racine du
             // document.
-            final Element racine = doc.getRootElement();
+            final Element racine = getConfiguration(templateId, rowLanguage).getRootElement();
 
             // Création et génération du fichier OO
-            final InputStream template = TemplateManager.getInstance().getTemplate(templateId, rowLanguage != null ? rowLanguage.getString("CHEMIN") : null, null);
-
-            final SpreadSheet spreadSheet = new ODPackage(template).getSpreadSheet();
-            Sheet sheet0 = spreadSheet.getSheet(0);
-            if (sheetName != null && sheetName.size() > 0) {
-                for (int i = 1; i < sheetName.size(); i++) {
-                    sheet0.copy(i, (sheetName != null) ? sheetName.get(i) : "Feuille " + i);
-                }
-                spreadSheet.getSheet(0).setName(sheetName.get(0));
-            }
+            final SpreadSheet spreadSheet = createSpreadSheet(templateId, sheetName, rowLanguage);
 
             for (Integer i : liste.keySet()) {
                 final Sheet sheet = spreadSheet.getSheet(i);
@@ -106,6 +99,139 @@ public class OOgenerationListeXML {
         return null;
     }
 
+    /**
+     * Comme {@link #genere(String, File, String, Map, Map, Map, List, SQLRow)} mais la liste de la
+     * dernière feuille est écrite ligne par ligne avec {@link SheetStreamWriter}, sans construire
+     * le document en mémoire. Permet d'exporter de très grandes listes. Les pages sont découpées
+     * comme avec {@link #genere(String, File, String, Map, Map, Map, List, SQLRow)} (en-tête du
+     * modèle répété, pied du modèle sur la dernière page) mais le nombre total de pages n'étant
+     * pas connu pendant l'écriture, la référence de page ne l'indique pas.
+     */
+    public static File genereStreamed(String templateId, File pathDest, String fileDest, Map<Integer, List<Map<String, Object>>> liste, Map<Integer, Map<String, Object>> values,
+            Map<Integer, Map<Integer, String>> mapStyle, List<String> sheetName, SQLRow rowLanguage) {
+        if (liste.isEmpty()) {
+            return genere(templateId, pathDest, fileDest, liste, values, mapStyle, sheetName, rowLanguage);
+        }
+        final Integer streamedIndex = Collections.max(liste.keySet());
+        final List<Map<String, Object>> streamedList = liste.get(streamedIndex);
+        return genereStreamed(templateId, pathDest, fileDest, liste, values, mapStyle, sheetName, rowLanguage, streamedIndex, streamedList == null ? null : streamedList.iterator());
+    }
+
+    /**
+     * Comme {@link #genereStreamed(String, File, String, Map, Map, Map, List, SQLRow)} mais les
+     * lignes de la feuille <code>streamedIndex</code> sont lues au fur et à mesure de l'écriture,
+     * elles peuvent donc être produites à la volée (e.g. depuis un curseur). Le style d'une ligne
+     * est lu dans <code>mapStyle</code> juste après l'avoir obtenue de <code>streamedLines</code>.
+     * Les valeurs de cette feuille placées dans le pied du modèle (après <code>endLine</code>), e.g.
+     * les totaux, sont lues après toutes les lignes et peuvent donc être calculées pendant leur
+     * parcours.
+     * 
+     * @param liste les lignes des autres feuilles.
+     * @param streamedIndex l'index de la feuille écrite ligne par ligne.
+     * @param streamedLines les lignes de cette feuille, <code>null</code> pour ne rien écrire.
+     */
+    public static File genereStreamed(String templateId, File pathDest, String fileDest, Map<Integer, List<Map<String, Object>>> liste, Map<Integer, Map<String, Object>> values,
+            Map<Integer, Map<Integer, String>> mapStyle, List<String> sheetName, SQLRow rowLanguage, Integer streamedIndex, Iterator<? extends Map<String, Object>> streamedLines) {
+        cacheStyle.clear();
+        try {
+            final Element racine = getConfiguration(templateId, rowLanguage).getRootElement();
+            final SpreadSheet spreadSheet = createSpreadSheet(templateId, sheetName, rowLanguage);
+
+            final Set<Integer> indexes = new TreeSet<Integer>(liste.keySet());
+            indexes.add(streamedIndex);
+            Element streamedTable = null;
+            for (Integer i : indexes) {
+                final Sheet sheet = spreadSheet.getSheet(i);
+                parseElementsXML(getElements(racine, i), sheet, values.get(i));
+                Element child = racine.getChild("table" + i);
+                if (child == null) {
+                    child = racine.getChild("table");
+                }
+                if (i.equals(streamedIndex)) {
+                    streamedTable = child;
+                } else {
+                    parseListeXML(child, liste.get(i), sheet, mapStyle.get(i));
+                }
+            }
+
+            final File fDest = createDestFile(pathDest, fileDest);
+            final Sheet sheet = spreadSheet.getSheet(streamedIndex);
+            if (streamedTable == null || streamedLines == null) {
+                spreadSheet.saveAs(fDest);
+            } else {
+                final int firstLine = Integer.valueOf(streamedTable.getAttributeValue("firstLine"));
+                final Map<String, Map<Integer, String>> mapStyleOO = searchStyle(sheet, getLastColumn(streamedTable, sheet), Integer.valueOf(streamedTable.getAttributeValue("endPageLine")));
+                final OutputStream out;
+                try {
+                    out = new BufferedOutputStream(new FileOutputStream(fDest), 512 * 1024);
+                } catch (FileNotFoundException e) {
+                    showCannotCreate(fDest);
+                    e.printStackTrace();
+                    return fDest;
+                }
+                // les lignes sont numérotées à partir de 1 dans la configuration
+                final SheetStreamWriter w = new SheetStreamWriter(spreadSheet.getPackage(), streamedIndex, firstLine - 1, out);
+                try {
+                    final StreamedPages pages = new StreamedPages(streamedTable, sheet, w);
+                    streamTable(streamedTable, streamedLines, sheet, mapStyleOO, mapStyle.get(streamedIndex), pages);
+                    pages.close(getElements(racine, streamedIndex), values.get(streamedIndex));
+                } finally {
+                    w.close();
+                }
+            }
+            cacheStyle.clear();
+            copyPrintConfiguration(pathDest, fileDest, templateId, rowLanguage);
+            return fDest;
+        } catch (JDOMException e) {
+            ExceptionHandler.handle("Erreur lors de la génération du fichier " + fileDest, e);
+        } catch (IOException e) {
+            ExceptionHandler.handle("Erreur lors de la création du fichier " + fileDest, e);
+        }
+        cacheStyle.clear();
+        return null;
+    }
+
+    private static Document getConfiguration(String templateId, SQLRow rowLanguage) throws JDOMException, IOException {
+        InputStream xmlConfiguration = TemplateManager.getInstance().getTemplateConfiguration(templateId, rowLanguage != null ? rowLanguage.getString("CHEMIN") : null, null);
+        if (xmlConfiguration == null) {
+            throw new IllegalStateException("Template configuration " + templateId + " not found");
+        }
+        return new SAXBuilder().build(xmlConfiguration);
+    }
+
+    // les éléments de la feuille i, sinon ceux communs à toutes les feuilles
+    @SuppressWarnings("unchecked")
+    private static List<Element> getElements(Element racine, int i) {
+        List<Element> children = racine.getChildren("element" + i);
+        if (children.size() == 0) {
+            children = racine.getChildren("element");
+        }
+        return children;
+    }
+
+    private static SpreadSheet createSpreadSheet(String templateId, List<String> sheetName, SQLRow rowLanguage) throws IOException {
+        final InputStream template = TemplateManager.getInstance().getTemplate(templateId, rowLanguage != null ? rowLanguage.getString("CHEMIN") : null, null);
+
+        final SpreadSheet spreadSheet = new ODPackage(template).getSpreadSheet();
+        Sheet sheet0 = spreadSheet.getSheet(0);
+        if (sheetName != null && sheetName.size() > 0) {
+            for (int i = 1; i < sheetName.size(); i++) {
+                sheet0.copy(i, (sheetName != null) ? sheetName.get(i) : "Feuille " + i);
+            }
+            spreadSheet.getSheet(0).setName(sheetName.get(0));
+        }
+        return spreadSheet;
+    }
+
+    private static int getLastColumn(Element tableau, Sheet sheet) {
+        Object oLastColTmp = tableau.getAttributeValue("lastColumn");
+        int lastColumn = -1;
+        if (oLastColTmp != null) {
+            lastColumn = sheet.resolveHint(oLastColTmp.toString() + 1).x + 1;
+        }
+        return lastColumn;
+    }
+
     private static void parseElementsXML(List<Element> elts, Sheet sheet, Map<String, Object> values) {
         if (values == null) {
             return;
@@ -138,12 +264,8 @@ public class OOgenerationListeXML {
         if (liste == null || tableau == null) {
             return;
         }
-        Object oLastColTmp = tableau.getAttributeValue("lastColumn");
-        int lastColumn = -1;
+        int lastColumn = getLastColumn(tableau, sheet);
         int endPageLine = Integer.valueOf(tableau.getAttributeValue("endPageLine"));
-        if (oLastColTmp != null) {
-            lastColumn = sheet.resolveHint(oLastColTmp.toString() + 1).x + 1;
-        }
         Map<String, Map<Integer, String>> mapStyle = searchStyle(sheet, lastColumn, endPageLine);
 
         int nbPage = fillTable(tableau, liste, sheet, mapStyle, true, style);
@@ -352,6 +474,245 @@ public class OOgenerationListeXML {
         return nbPage;
     }
 
+    /**
+     * Ecrit les lignes du tableau à la suite, avec les mêmes sous-totaux et totaux que
+     * {@link #fillTable(Element, List, Sheet, Map, boolean, Map)}.
+     * 
+     * @param tableau Element Xml contenant les informations sur le tableau
+     * @param liste les valeurs des lignes, parcourues une seule fois
+     * @param sheet feuille du modèle, pour trouver les colonnes
+     * @param mapStyle styles trouvés dans la page
+     * @param style style de chaque ligne
+     * @param w où écrire les lignes
+     * @throws IOException si une erreur survient pendant l'écriture
+     */
+    private static void streamTable(Element tableau, Iterator<? extends Map<String, Object>> liste, Sheet sheet, Map<String, Map<Integer, String>> mapStyle, Map<Integer, String> style, StreamedPages w)
+            throws IOException {
+        final int firstLine = Integer.valueOf(tableau.getAttributeValue("firstLine"));
+        final List<Element> listElts = new ArrayList<Element>();
+        final Map<String, Integer> columns = new HashMap<String, Integer>();
+        int columnCount = 1;
+        for (Object o : tableau.getChildren("element")) {
+            final Element e = (Element) o;
+            // Type normaux fill ou replace
+            if (e.getAttributeValue("type").equalsIgnoreCase("fill") || e.getAttributeValue("type").equalsIgnoreCase("replace")) {
+                listElts.add(e);
+                final String loc = e.getAttributeValue("location").trim();
+                final int x = sheet.resolveHint(loc + firstLine).x;
+                columns.put(loc, x);
+                columnCount = Math.max(columnCount, x + 1);
+            }
+        }
+        final String columnSousTotal = tableau.getAttributeValue("groupSousTotalColumn");
+        Element groupElt = null;
+        for (Element e : listElts) {
+            if (e.getAttributeValue("location").trim().equals(columnSousTotal)) {
+                groupElt = e;
+            }
+        }
+
+        final Map<String, Double> mapSousTotal = new HashMap<String, Double>();
+        final Map<String, Double> mapTotal = new HashMap<String, Double>();
+        final Object[] rowValues = new Object[columnCount];
+        final String[] rowStyles = new String[columnCount];
+        Object o = null;
+
+        for (int i = 0; liste.hasNext(); i++) {
+            final Map<String, Object> mValues = liste.next();
+            final String styleName = style == null ? null : style.get(i);
+            final Map<Integer, String> mTmp = styleName == null ? null : mapStyle.get(styleName);
+            Arrays.fill(rowValues, null);
+            Arrays.fill(rowStyles, null);
+
+            // changement de groupe avant de totaliser la ligne
+            if (groupElt != null) {
+                final Object value = getElementValue(groupElt, mValues);
+                if (o != null && !o.equals(value)) {
+                    // la ligne de sous total puis une ligne vide avant le nouveau groupe
+                    writeTotalRow(w, "Sous total", mapSousTotal, columns, mapStyle.get(styleName == null ? "Titre 1" : styleName), columnCount);
+                    w.writeRow(Collections.emptyList(), null);
+                    mapSousTotal.clear();
+                }
+                o = value;
+            }
+
+            for (Element e : listElts) {
+                final String loc = e.getAttributeValue("location").trim();
+                final int x = columns.get(loc).intValue();
+                final Object value = getElementValue(e, mValues);
+                if (value instanceof Number) {
+                    final String attributeValue = e.getAttributeValue("total");
+                    if (attributeValue != null && attributeValue.equalsIgnoreCase("true")) {
+                        incrementTotal(loc, (Number) value, mapTotal);
+                    }
+
+                    final String attributeValue2 = e.getAttributeValue("sousTotal");
+                    if (attributeValue2 != null && attributeValue2.equalsIgnoreCase("true")) {
+                        incrementTotal(loc, (Number) value, mapSousTotal);
+                    }
+                }
+                rowValues[x] = value;
+                if (mTmp != null) {
+                    rowStyles[x] = mTmp.get(Integer.valueOf(x));
+                }
+            }
+            w.writeRow(Arrays.asList(rowValues), Arrays.asList(rowStyles));
+        }
+        if (mapSousTotal.isEmpty()) {
+            w.writeRow(Collections.emptyList(), null);
+        } else {
+            writeTotalRow(w, "Sous total", mapSousTotal, columns, mapStyle.get("Titre 1"), columnCount);
+        }
+        if (!mapTotal.isEmpty()) {
+            writeTotalRow(w, "Total", mapTotal, columns, mapStyle.get("Titre 1"), columnCount);
+        }
+    }
+
+    private static void writeTotalRow(StreamedPages w, String label, Map<String, Double> totals, Map<String, Integer> columns, Map<Integer, String> mStyle, int columnCount)
+            throws IOException {
+        final Object[] rowValues = new Object[columnCount];
+        final String[] rowStyles = new String[columnCount];
+        rowValues[0] = label;
+        if (mStyle != null) {
+            rowStyles[0] = mStyle.get(Integer.valueOf(0));
+        }
+        for (String object : totals.keySet()) {
+            final int x = columns.get(object).intValue();
+            rowValues[x] = totals.get(object);
+            if (mStyle != null) {
+                rowStyles[x] = mStyle.get(Integer.valueOf(x));
+            }
+        }
+        w.writeRow(Arrays.asList(rowValues), Arrays.asList(rowStyles));
+    }
+
+    /**
+     * Découpe les lignes écrites avec {@link SheetStreamWriter} en pages comme
+     * {@link OOgenerationListeXML#parseListeXML(Element, List, Sheet, Map)} : chaque page a
+     * <code>endPageLine</code> lignes et commence par l'en-tête du modèle, la dernière page se
+     * termine par le pied du modèle (de <code>endLine</code> à <code>endPageLine</code>).
+     */
+    private static final class StreamedPages {
+        private final Sheet sheet;
+        private final SheetStreamWriter w;
+        // index des lignes du modèle, à partir de 0
+        private final int headerEnd, endLine, endPageLine;
+        private final Point pageRef;
+        private int page;
+        private int rowInPage;
+
+        StreamedPages(Element tableau, Sheet sheet, SheetStreamWriter w) {
+            this.sheet = sheet;
+            this.w = w;
+            this.headerEnd = Integer.valueOf(tableau.getAttributeValue("firstLine")) - 1;
+            this.endLine = Integer.valueOf(tableau.getAttributeValue("endLine"));
+            this.endPageLine = Integer.valueOf(tableau.getAttributeValue("endPageLine"));
+            if (this.endPageLine > w.getTemplateRowCount())
+                throw new IllegalArgumentException("endPageLine after the end of the template : " + this.endPageLine + " > " + w.getTemplateRowCount());
+            final String pageRefAttr = tableau.getAttributeValue("pageRef");
+            if (pageRefAttr != null && pageRefAttr.trim().length() > 0) {
+                final Point p = sheet.resolveHint(pageRefAttr.trim());
+                // seule la référence dans l'en-tête est répétée
+                this.pageRef = p.y < this.headerEnd ? p : null;
+            } else {
+                this.pageRef = null;
+            }
+            this.page = 1;
+            // l'en-tête de la première page est déjà dans la feuille
+            this.rowInPage = this.headerEnd;
+        }
+
+        // comme parseListeXML() les lignes ajoutées à une page sont des copies de la deuxième
+        // ligne du tableau
+        private int getTemplateRow() {
+            return this.rowInPage < this.endLine ? this.rowInPage : Math.min(this.headerEnd + 1, this.endLine - 1);
+        }
+
+        void writeRow(List<?> values, List<String> cellStyles) throws IOException {
+            if (this.rowInPage >= this.endPageLine) {
+                this.newPage();
+            }
+            this.w.writeRow(this.getTemplateRow(), values, cellStyles);
+            this.rowInPage++;
+        }
+
+        private void newPage() throws IOException {
+            this.page++;
+            for (int i = 0; i < this.headerEnd; i++) {
+                if (this.pageRef != null && this.pageRef.y == i) {
+                    final List<Object> values = Arrays.asList(new Object[this.pageRef.x + 1]);
+                    values.set(this.pageRef.x, "Page " + this.page);
+                    this.w.writeRow(i, values, null);
+                } else {
+                    this.w.writeRow(i);
+                }
+            }
+            this.rowInPage = this.headerEnd;
+        }
+
+        /**
+         * Termine la dernière page avec le pied du modèle.
+         * 
+         * @param elts les éléments de la feuille, ceux placés dans le pied sont remplis.
+         * @param values les valeurs de la feuille.
+         * @throws IOException si une erreur survient pendant l'écriture
+         */
+        void close(List<Element> elts, Map<String, Object> values) throws IOException {
+            // le pied ne tient plus dans la page
+            if (this.rowInPage > this.endLine) {
+                while (this.rowInPage < this.endPageLine) {
+                    this.writeRow(Collections.emptyList(), null);
+                }
+                this.newPage();
+            }
+            while (this.rowInPage < this.endLine) {
+                this.writeRow(Collections.emptyList(), null);
+            }
+
+            final Map<Integer, List<Object>> footer = new HashMap<Integer, List<Object>>();
+            if (values != null) {
+                for (Element elt : elts) {
+                    final Object result = values.get(elt.getAttributeValue("ValueName"));
+                    final Point p = this.sheet.resolveHint(elt.getAttributeValue("location"));
+                    if (result != null && p.y >= this.endLine && p.y < this.endPageLine) {
+                        List<Object> rowValues = footer.get(p.y);
+                        if (rowValues == null) {
+                            rowValues = new ArrayList<Object>();
+                            footer.put(p.y, rowValues);
+                        }
+                        while (rowValues.size() <= p.x) {
+                            rowValues.add(null);
+                        }
+                        rowValues.set(p.x, resizeValue(elt, result));
+                    }
+                }
+            }
+            for (int i = this.endLine; i < this.endPageLine; i++) {
+                final List<Object> rowValues = footer.get(i);
+                this.w.writeRow(i, rowValues == null ? Collections.emptyList() : rowValues, null);
+            }
+            this.rowInPage = this.endPageLine;
+
+            if (this.page > 1) {
+                if (this.pageRef != null) {
+                    this.sheet.getCellAt(this.pageRef.x, this.pageRef.y).setValue("Page 1");
+                }
+                // la zone d'impression couvre toutes les pages
+                final Object printRangeObj = this.sheet.getPrintRanges();
+                if (printRangeObj != null) {
+                    final String s = printRangeObj.toString();
+                    final String[] range = s.split(":");
+                    if (range.length > 1) {
+                        final int rowEnd = this.sheet.resolveHint(range[1].substring(range[1].indexOf('.') + 1)).y + 1;
+                        final String rowEndString = String.valueOf(rowEnd);
+                        final int index = s.lastIndexOf(rowEndString);
+                        this.sheet.setPrintRanges(s.substring(0, index) + (this.endPageLine * this.page) + s.substring(index + rowEndString.length()));
+                    }
+                }
+            }
+        }
+    }
+
     private static void incrementTotal(String field, Number value, Map<String, Double> map) {
         Double d = map.get(field);
         if (d == null) {
@@ -521,7 +882,28 @@ public class OOgenerationListeXML {
     private static File saveSpreadSheet(SpreadSheet ssheet, File pathDest, String fileName, String templateId, SQLRow rowLanguage) throws IOException {
 
         // Test des arguments
-        if (ssheet == null || pathDest == null || fileName.trim().length() == 0) {
+        if (ssheet == null) {
+            throw new IllegalArgumentException();
+        }
+
+        File fDest = createDestFile(pathDest, fileName);
+
+        // Sauvegarde
+        try {
+            ssheet.saveAs(fDest);
+        } catch (FileNotFoundException e) {
+            showCannotCreate(fDest);
+            e.printStackTrace();
+        }
+
+        copyPrintConfiguration(pathDest, fileName, templateId, rowLanguage);
+
+        return fDest;
+    }
+
+    private static File createDestFile(File pathDest, String fileName) {
+        // Test des arguments
+        if (pathDest == null || fileName.trim().length() == 0) {
             throw new IllegalArgumentException();
         }
 
@@ -533,25 +915,22 @@ public class OOgenerationListeXML {
         }
 
         SheetUtils.convertToOldFile(((ComptaPropsConfiguration) Configuration.getInstance()).getRootSociete(), fileName, pathDest, fDest);
+        return fDest;
+    }
 
-        // Sauvegarde
-        try {
-            ssheet.saveAs(fDest);
-        } catch (FileNotFoundException e) {
-            final File F = fDest;
-            SwingUtilities.invokeLater(new Runnable() {
-                public void run() {
-                    try {
-                        JOptionPane.showMessageDialog(null, "Le fichier " + F.getCanonicalPath() + " n'a pu être créé. \n Vérifiez qu'il n'est pas déjà ouvert.");
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+    private static void showCannotCreate(final File f) {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                try {
+                    JOptionPane.showMessageDialog(null, "Le fichier " + f.getCanonicalPath() + " n'a pu être créé. \n Vérifiez qu'il n'est pas déjà ouvert.");
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
-            });
-
-            e.printStackTrace();
-        }
+            }
+        });
+    }
 
+    private static void copyPrintConfiguration(File pathDest, String fileName, String templateId, SQLRow rowLanguage) throws IOException {
         // Copie de l'odsp
         try {
             File odspOut = new File(pathDest, fileName + ".odsp");
@@ -562,8 +941,6 @@ public class OOgenerationListeXML {
         } catch (FileNotFoundException e) {
             System.err.println("Le fichier odsp n'existe pas.");
         }
-
-        return fDest;
     }
 
     /**
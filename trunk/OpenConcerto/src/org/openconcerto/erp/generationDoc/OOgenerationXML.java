@@ -40,10 +40,12 @@ import java.math.MathContext;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
@@ -51,7 +53,6 @@ import javax.swing.SwingUtilities;
 import org.jdom.Document;
 import org.jdom.Element;
 import org.jdom.JDOMException;
-import org.jdom.input.SAXBuilder;
 
 /**
  * Génération d'un document sxc à partir d'un modéle sxc et d'un fichier xml du meme nom (doc.sxc et
@@ -64,22 +65,44 @@ import org.jdom.input.SAXBuilder;
  * 
  */
 public class OOgenerationXML {
-    private static int answer = JOptionPane.NO_OPTION;
 
     private DateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy");
 
     // Cache pour la recherche des styles
     private Map<Sheet, Map<String, Map<Integer, String>>> cacheStyle = new HashMap<Sheet, Map<String, Map<Integer, String>>>();
     private Map<SQLRowAccessor, Map<String, Object>> taxe = new HashMap<SQLRowAccessor, Map<String, Object>>();
-    private Map<String, Map<Integer, SQLRowAccessor>> cacheForeign = new HashMap<String, Map<Integer, SQLRowAccessor>>();
 
     // Cache pour les SQLRow du tableau
     private Map<String, List<? extends SQLRowAccessor>> rowsEltCache = new HashMap<String, List<? extends SQLRowAccessor>>();
-    private final OOXMLCache rowRefCache = new OOXMLCache();
+    private final OOXMLCache rowRefCache;
     private final SQLRow row;
+    // null to ask
+    private Boolean overwrite = null;
 
     public OOgenerationXML(SQLRow row) {
+        this(row, null);
+    }
+
+    /**
+     * Crée une génération.
+     * 
+     * @param row la ligne du document.
+     * @param prefetched les lignes déjà chargées pour plusieurs documents, voir
+     *        {@link OOXMLCache#OOXMLCache(OOXMLCache)}, peut être <code>null</code>.
+     */
+    public OOgenerationXML(SQLRow row, OOXMLCache prefetched) {
         this.row = row;
+        this.rowRefCache = new OOXMLCache(prefetched);
+    }
+
+    /**
+     * Que faire si le document existe déjà.
+     * 
+     * @param overwrite <code>true</code> pour le regénérer, <code>false</code> pour le garder,
+     *        <code>null</code> pour le demander à l'utilisateur.
+     */
+    public synchronized void setOverwrite(Boolean overwrite) {
+        this.overwrite = overwrite;
     }
 
     public synchronized File createDocument(String templateId, String typeTemplate, File outputDirectory, final String expectedFileName, SQLRow rowLanguage) {
@@ -93,37 +116,38 @@ public class OOgenerationXML {
         rowRefCache.clearCache();
         rowsEltCache.clear();
         taxe.clear();
-        cacheForeign.clear();
 
         File fDest = new File(outputDirectory, expectedFileName);
 
-        if (fDest.exists()) {
-
-            if (SwingUtilities.isEventDispatchThread()) {
-                answer = JOptionPane.showConfirmDialog(null, "Voulez vous regénérer et écraser l'ancien document?", "Génération du document", JOptionPane.YES_NO_OPTION);
-                Thread.dumpStack();
-            } else {
-                try {
-                    SwingUtilities.invokeAndWait(new Runnable() {
-                        @Override
-                        public void run() {
+        if (fDest.exists() && !Boolean.TRUE.equals(this.overwrite)) {
+            // not static since documents can be generated concurrently
+            final int[] answer = new int[] { JOptionPane.NO_OPTION };
+            if (this.overwrite == null) {
+                if (SwingUtilities.isEventDispatchThread()) {
+                    answer[0] = JOptionPane.showConfirmDialog(null, "Voulez vous regénérer et écraser l'ancien document?", "Génération du document", JOptionPane.YES_NO_OPTION);
+                    Thread.dumpStack();
+                } else {
+                    try {
+                        SwingUtilities.invokeAndWait(new Runnable() {
+                            @Override
+                            public void run() {
 
-                            answer = JOptionPane.showConfirmDialog(null, "Voulez vous regénérer et écraser l'ancien document?", "Génération du document", JOptionPane.YES_NO_OPTION);
-                        }
-                    });
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                } catch (InvocationTargetException e) {
-                    e.printStackTrace();
+                                answer[0] = JOptionPane.showConfirmDialog(null, "Voulez vous regénérer et écraser l'ancien document?", "Génération du document", JOptionPane.YES_NO_OPTION);
+                            }
+                        });
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    } catch (InvocationTargetException e) {
+                        e.printStackTrace();
+                    }
                 }
             }
-            if (answer != JOptionPane.YES_OPTION) {
+            if (answer[0] != JOptionPane.YES_OPTION) {
                 return fDest;
             }
         }
 
         Date d = new Date();
-        SAXBuilder builder = new SAXBuilder();
         try {
 
             if (needAnnexe(templateId, typeTemplate, row, rowLanguage)) {
@@ -137,9 +161,8 @@ public class OOgenerationXML {
             }
 
             System.err.println("Using template id: " + templateId);
-            final InputStream xmlConfiguration = TemplateManager.getInstance().getTemplateConfiguration(templateId, langage, typeTemplate);
-
-            Document doc = builder.build(xmlConfiguration);
+            // shared, must not be modified
+            final Document doc = TemplateConfigurationCache.getInstance().getConfiguration(templateId, langage, typeTemplate);
 
             // On initialise un nouvel élément racine avec l'élément racine du document.
             Element racine = doc.getRootElement();
@@ -176,6 +199,9 @@ public class OOgenerationXML {
                 meta.applyTo(spreadSheet.getPackage().getMeta(true));
             }
 
+            if (Log.get().isLoggable(Level.FINE)) {
+                Log.get().fine("OOgenerationXML cache : " + rowRefCache.getHitCount() + " hits, " + rowRefCache.getMissCount() + " misses");
+            }
             // Sauvegarde du fichier
             return saveSpreadSheet(spreadSheet, outputDirectory, expectedFileName, templateId, rowLanguage);
 
@@ -311,28 +337,7 @@ public class OOgenerationXML {
      */
 
     protected SQLRowAccessor getForeignRow(SQLRowAccessor row, SQLField field) {
-        Map<Integer, SQLRowAccessor> c = cacheForeign.get(field.getName());
-
-        int i = row.getInt(field.getName());
-
-        if (c != null && c.get(i) != null) {
-            return c.get(i);
-        } else {
-
-            SQLRowAccessor foreign = row.getForeign(field.getName());
-
-            if (c == null) {
-                Map<Integer, SQLRowAccessor> map = new HashMap<Integer, SQLRowAccessor>();
-                map.put(i, foreign);
-                cacheForeign.put(field.getName(), map);
-            } else {
-                c.put(i, foreign);
-            }
-
-            return foreign;
-        }
-        // return row.getForeignRow(field.getName());
-
+        return this.rowRefCache.getForeignRow(row, field);
     }
 
     private int fillTable(Element tableau, SQLRow row, Sheet sheet, Map<String, Map<Integer, String>> mapStyle, boolean test, SQLRow rowLanguage) {
@@ -352,12 +357,14 @@ public class OOgenerationXML {
 
         boolean cache = false;
         String ref = tableau.getAttributeValue("table") + "_" + row.getTable().getName() + row.getID();
+        List<Element> listElts = tableau.getChildren("element");
         if (rowsEltCache.get(ref) == null) {
-            rowsEltCache.put(ref, tableElement.getRows());
+            final List<? extends SQLRowAccessor> rows = tableElement.getRows();
+            rowsEltCache.put(ref, rows);
+            this.rowRefCache.prefetchForeignRows(rows, listElts);
         } else {
             cache = true;
         }
-        List<Element> listElts = tableau.getChildren("element");
 
         if (row.getTable().contains("ID_TAXE_PORT") && row.getTable().contains("PORT_HT")) {
 
@@ -628,6 +635,7 @@ public class OOgenerationXML {
      */
     private void parseElementsXML(List<Element> elts, SQLRow row, SpreadSheet spreadSheet) {
         final SQLElement sqlElt = Configuration.getInstance().getDirectory().getElement(row.getTable());
+        this.rowRefCache.prefetchForeignRows(Collections.singletonList(row), elts);
         for (Element elt : elts) {
             final OOXMLElement OOElt = new OOXMLElement(elt, sqlElt, row.getID(), row, null, this.rowRefCache);
             final Object result = OOElt.getValue();
@@ -879,10 +887,8 @@ public class OOgenerationXML {
 
     public boolean needAnnexe(String templateId, String typeTemplate, SQLRow row, SQLRow rowLanguage) {
         final String langage = rowLanguage != null ? rowLanguage.getString("CHEMIN") : null;
-        final SAXBuilder builder = new SAXBuilder();
         try {
-            final InputStream xmlConfiguration = TemplateManager.getInstance().getTemplateConfiguration(templateId, langage, typeTemplate);
-            final Document doc = builder.build(xmlConfiguration);
+            final Document doc = TemplateConfigurationCache.getInstance().getConfiguration(templateId, langage, typeTemplate);
             final InputStream template = TemplateManager.getInstance().getTemplate(templateId, langage, typeTemplate);
 
             final SpreadSheet spreadSheet = new ODPackage(template).getSpreadSheet();
@@ -82,6 +82,7 @@ public abstract class SheetXml {
     protected static final SQLBase base = ((ComptaPropsConfiguration) Configuration.getInstance()).getSQLBaseSociete();
 
     // single threaded and kill its thread after 3 seconds (to allow the program to exit)
+    // (use SheetXmlBatch to generate many documents concurrently)
     protected static final ExecutorService runnableQueue = new ThreadPoolExecutor(0, 1, 3L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
 
     protected static UncaughtExceptionHandler DEFAULT_HANDLER = new UncaughtExceptionHandler() {
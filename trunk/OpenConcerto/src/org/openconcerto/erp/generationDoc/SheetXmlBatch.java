@@ -0,0 +1,284 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.generationDoc;
+
+import org.openconcerto.erp.config.Log;
+import org.openconcerto.sql.Configuration;
+import org.openconcerto.sql.model.SQLRow;
+import org.openconcerto.sql.model.SQLRowAccessor;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.utils.ThreadFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+import org.jdom.Document;
+import org.jdom.Element;
+
+/**
+ * Génère plusieurs documents en parallèle, e.g. les factures du mois. Les lignes utilisées par les
+ * modèles (éléments des documents et leurs lignes étrangères) sont d'abord chargées pour tous les
+ * documents en une requête par table, puis chaque document est généré par son propre
+ * {@link OOgenerationXML}, au lieu de passer un par un par la file de {@link SheetXml}.
+ */
+@ThreadSafe
+public class SheetXmlBatch {
+
+    static public int getDefaultThreadCount() {
+        // une partie du temps est passée à attendre la base et le disque
+        return Runtime.getRuntime().availableProcessors() + 1;
+    }
+
+    /**
+     * Notifié après chaque document, dans le thread l'ayant généré.
+     */
+    public static interface Listener {
+        void documentGenerated(AbstractSheetXml sheet, int generated, int total);
+    }
+
+    private final int threadCount;
+    private final Boolean overwrite;
+
+    public SheetXmlBatch() {
+        this(getDefaultThreadCount(), Boolean.TRUE);
+    }
+
+    /**
+     * Crée une génération.
+     * 
+     * @param threadCount le nombre maximum de documents générés en même temps.
+     * @param overwrite que faire des documents existants, voir
+     *        {@link OOgenerationXML#setOverwrite(Boolean)}.
+     */
+    public SheetXmlBatch(final int threadCount, final Boolean overwrite) {
+        if (threadCount < 1)
+            throw new IllegalArgumentException("Nombre de threads incorrect : " + threadCount);
+        this.threadCount = threadCount;
+        this.overwrite = overwrite;
+    }
+
+    public final int getThreadCount() {
+        return this.threadCount;
+    }
+
+    public final Rapport generate(final Collection<? extends AbstractSheetXml> sheets) throws InterruptedException {
+        return this.generate(sheets, null);
+    }
+
+    /**
+     * Génère les documents. Une erreur sur un document n'empêche pas la génération des autres,
+     * elle est retournée dans le rapport.
+     * 
+     * @param sheets les documents.
+     * @param l notifié de l'avancement, peut être <code>null</code>.
+     * @return le temps de génération de chaque document et les erreurs.
+     * @throws InterruptedException si le thread courant est interrompu, les générations en cours
+     *         sont alors interrompues.
+     */
+    public final Rapport generate(final Collection<? extends AbstractSheetXml> sheets, final Listener l) throws InterruptedException {
+        final long start = System.nanoTime();
+        final Map<AbstractSheetXml, Long> durees = new LinkedHashMap<AbstractSheetXml, Long>();
+        final Map<AbstractSheetXml, Throwable> erreurs = new LinkedHashMap<AbstractSheetXml, Throwable>();
+        final OOXMLCache prefetched = prefetch(sheets);
+        final long dureePrechargement = System.nanoTime() - start;
+        if (!sheets.isEmpty()) {
+            final int total = sheets.size();
+            final AtomicInteger generated = new AtomicInteger(0);
+            final int nbThreads = Math.min(this.threadCount, total);
+            final ThreadPoolExecutor exec = new ThreadPoolExecutor(nbThreads, nbThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory("Génération document ", true));
+            try {
+                final Map<AbstractSheetXml, Future<Long>> futures = new LinkedHashMap<AbstractSheetXml, Future<Long>>();
+                for (final AbstractSheetXml sheet : sheets) {
+                    futures.put(sheet, exec.submit(new Callable<Long>() {
+                        @Override
+                        public Long call() throws Exception {
+                            final long startDoc = System.nanoTime();
+                            try {
+                                final File f = sheet.generate(prefetched, SheetXmlBatch.this.overwrite);
+                                if (f == null)
+                                    throw new IllegalStateException("Document non généré : " + sheet.getName());
+                                return System.nanoTime() - startDoc;
+                            } finally {
+                                if (l != null)
+                                    l.documentGenerated(sheet, generated.incrementAndGet(), total);
+                            }
+                        }
+                    }));
+                }
+                exec.shutdown();
+                for (final Entry<AbstractSheetXml, Future<Long>> e : futures.entrySet()) {
+                    try {
+                        durees.put(e.getKey(), e.getValue().get());
+                    } catch (ExecutionException exn) {
+                        erreurs.put(e.getKey(), exn.getCause());
+                    }
+                }
+            } finally {
+                // ne fait rien si tout s'est bien passé
+                exec.shutdownNow();
+            }
+        }
+        return new Rapport(durees, erreurs, dureePrechargement, System.nanoTime() - start);
+    }
+
+    /**
+     * Charge en une fois pour tous les documents du même modèle les lignes des tableaux et leurs
+     * lignes étrangères. Le cache retourné n'est plus modifié, il peut donc être partagé.
+     */
+    private OOXMLCache prefetch(final Collection<? extends AbstractSheetXml> sheets) {
+        final OOXMLCache res = new OOXMLCache();
+        // documents by template and table
+        final Map<List<Object>, List<SQLRow>> rowsByTemplate = new LinkedHashMap<List<Object>, List<SQLRow>>();
+        for (final AbstractSheetXml sheet : sheets) {
+            final SQLRow row = sheet.getSQLRow();
+            if (row == null)
+                continue;
+            final String langage = sheet.getRowLanguage() != null ? sheet.getRowLanguage().getString("CHEMIN") : null;
+            final List<Object> key = Arrays.<Object> asList(sheet.getTemplateId(), langage, sheet.getType(), row.getTable());
+            List<SQLRow> rows = rowsByTemplate.get(key);
+            if (rows == null) {
+                rows = new ArrayList<SQLRow>();
+                rowsByTemplate.put(key, rows);
+            }
+            rows.add(row);
+        }
+        for (final Entry<List<Object>, List<SQLRow>> e : rowsByTemplate.entrySet()) {
+            final List<Object> key = e.getKey();
+            try {
+                final Document doc = TemplateConfigurationCache.getInstance().getConfiguration((String) key.get(0), (String) key.get(1), (String) key.get(2));
+                prefetch(res, doc.getRootElement(), e.getValue());
+            } catch (Exception exn) {
+                // the generation will fetch the rows itself (and probably fail)
+                Log.get().log(Level.WARNING, "Impossible de précharger les lignes du modèle " + key, exn);
+            }
+        }
+        return res;
+    }
+
+    private void prefetch(final OOXMLCache cache, final Element racine, final List<SQLRow> rows) {
+        final List<Element> listElts = getChildren(racine, "element");
+        cache.prefetchForeignRows(rows, listElts);
+
+        final List<Element> listTable = getChildren(racine, "table");
+        // the referent rows are cached by table, so a table grouped once can't be prefetched
+        final Set<String> grouped = new HashSet<String>();
+        for (final Element tableau : listTable) {
+            final String groupBy = tableau.getAttributeValue("groupBy");
+            if (groupBy != null && groupBy.trim().length() > 0)
+                grouped.add(tableau.getAttributeValue("table"));
+        }
+        for (final Element tableau : listTable) {
+            final String tableName = tableau.getAttributeValue("table");
+            final String field = tableau.getAttributeValue("field");
+            // TVA isn't a table and other rows are used if "field" is specified
+            if (tableName == null || tableName.equalsIgnoreCase("TVA") || (field != null && field.trim().length() > 0) || grouped.contains(tableName))
+                continue;
+            final SQLTable tableElt = Configuration.getInstance().getRoot().findTable(tableName);
+            if (tableElt != null) {
+                final List<SQLRowAccessor> referents = cache.prefetchReferentRows(rows, tableElt);
+                cache.prefetchForeignRows(referents, getChildren(tableau, "element"));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Element> getChildren(final Element elt, final String name) {
+        return elt.getChildren(name);
+    }
+
+    @Immutable
+    static public final class Rapport {
+        private final Map<AbstractSheetXml, Long> durees;
+        private final Map<AbstractSheetXml, Throwable> erreurs;
+        private final long dureePrechargement;
+        private final long dureeTotale;
+
+        Rapport(final Map<AbstractSheetXml, Long> durees, final Map<AbstractSheetXml, Throwable> erreurs, final long dureePrechargement, final long dureeTotale) {
+            this.durees = Collections.unmodifiableMap(durees);
+            this.erreurs = Collections.unmodifiableMap(erreurs);
+            this.dureePrechargement = dureePrechargement;
+            this.dureeTotale = dureeTotale;
+        }
+
+        /**
+         * Le temps de génération de chaque document.
+         * 
+         * @return la durée en nanosecondes de la génération par document.
+         */
+        public final Map<AbstractSheetXml, Long> getDurees() {
+            return this.durees;
+        }
+
+        /**
+         * Les documents qui n'ont pu être générés.
+         * 
+         * @return l'erreur par document.
+         */
+        public final Map<AbstractSheetXml, Throwable> getErreurs() {
+            return this.erreurs;
+        }
+
+        /**
+         * Le temps de chargement des lignes communes à tous les documents.
+         * 
+         * @return la durée en nanosecondes, comprise dans {@link #getDureeTotale()}.
+         */
+        public final long getDureePrechargement() {
+            return this.dureePrechargement;
+        }
+
+        public final long getDureeTotale() {
+            return this.dureeTotale;
+        }
+
+        /**
+         * Le débit de la génération.
+         * 
+         * @return le nombre de documents générés par seconde.
+         */
+        public final double getDocumentsParSeconde() {
+            return this.dureeTotale == 0 ? 0 : this.durees.size() * (double) TimeUnit.SECONDS.toNanos(1) / this.dureeTotale;
+        }
+
+        @Override
+        public String toString() {
+            long max = 0;
+            for (final Long d : this.durees.values())
+                max = Math.max(max, d.longValue());
+            return this.durees.size() + " document(s) généré(s) en " + TimeUnit.NANOSECONDS.toMillis(this.dureeTotale) + " ms (dont " + TimeUnit.NANOSECONDS.toMillis(this.dureePrechargement)
+                    + " ms de préchargement, " + String.format("%.1f", this.getDocumentsParSeconde()) + " documents/s, le plus long : " + TimeUnit.NANOSECONDS.toMillis(max) + " ms), "
+                    + this.erreurs.size() + " erreur(s)";
+        }
+    }
+}
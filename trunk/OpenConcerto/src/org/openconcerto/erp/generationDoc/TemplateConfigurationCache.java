@@ -0,0 +1,135 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.generationDoc;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+import org.jdom.Document;
+import org.jdom.JDOMException;
+import org.jdom.input.SAXBuilder;
+
+/**
+ * Fichiers xml des modèles (doc.xml pour doc.ods) déjà analysés, pour ne pas relire le même fichier
+ * à chaque document généré. Un fichier est relu s'il a été modifié. Les documents retournés sont
+ * partagés entre les générations, ils ne doivent donc pas être modifiés.
+ */
+@ThreadSafe
+public final class TemplateConfigurationCache {
+
+    private static final TemplateConfigurationCache INSTANCE = new TemplateConfigurationCache(64);
+
+    public static final TemplateConfigurationCache getInstance() {
+        return INSTANCE;
+    }
+
+    @Immutable
+    private static final class Entry {
+        private final File file;
+        private final long lastModified;
+        private final long length;
+        private final Document doc;
+
+        Entry(File file, long lastModified, long length, Document doc) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.doc = doc;
+        }
+
+        final boolean isValid(final File file, final long lastModified, final long length) {
+            // the modification date can have a precision of a second
+            return this.file.equals(file) && this.lastModified == lastModified && this.length == length;
+        }
+    }
+
+    @GuardedBy("this")
+    private final Map<List<String>, Entry> configurations;
+
+    public TemplateConfigurationCache(final int maxSize) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("Size must be positive : " + maxSize);
+        this.configurations = new LinkedHashMap<List<String>, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = -2226329973309846362L;
+
+            @Override
+            protected boolean removeEldestEntry(java.util.Map.Entry<List<String>, Entry> eldest) {
+                return this.size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Retourne la configuration d'un modèle, trouvée comme
+     * {@link TemplateManager#getTemplateConfiguration(String, String, String)}. Seules les
+     * configurations dans des fichiers locaux sont gardées, les autres sont lues à chaque appel.
+     * 
+     * @param templateId l'identifiant du modèle, e.g. "sales.quote".
+     * @param language le langage, peut être <code>null</code>.
+     * @param type le type de modèle, peut être <code>null</code>.
+     * @return le document xml, à ne pas modifier.
+     * @throws IOException si le fichier ne peut être lu.
+     * @throws JDOMException si le fichier est invalide.
+     */
+    public final Document getConfiguration(final String templateId, final String language, final String type) throws IOException, JDOMException {
+        final File f = TemplateManager.getInstance().getTemplateConfigurationFile(templateId, language, type);
+        if (f == null)
+            return parse(templateId, language, type);
+
+        final List<String> key = Arrays.asList(templateId, language, type);
+        final File file = f.getCanonicalFile();
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+        synchronized (this) {
+            final Entry e = this.configurations.get(key);
+            if (e != null && e.isValid(file, lastModified, length))
+                return e.doc;
+        }
+        // don't hold the lock while parsing, at worst the same file is parsed twice
+        final Document res = parse(templateId, language, type);
+        synchronized (this) {
+            this.configurations.put(key, new Entry(file, lastModified, length, res));
+        }
+        return res;
+    }
+
+    private final Document parse(final String templateId, final String language, final String type) throws IOException, JDOMException {
+        final InputStream in = TemplateManager.getInstance().getTemplateConfiguration(templateId, language, type);
+        if (in == null)
+            throw new FileNotFoundException("Configuration du modèle " + templateId + " " + (language == null ? "" : language) + " " + (type == null ? "" : type) + " manquante.");
+        try {
+            return new SAXBuilder().build(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    public synchronized final void clear() {
+        this.configurations.clear();
+    }
+
+    public synchronized final int size() {
+        return this.configurations.size();
+    }
+}
@@ -15,6 +15,7 @@
 
 import org.openconcerto.erp.config.Log;
 
+import java.io.File;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -130,6 +131,58 @@ public class TemplateManager {
         return getTemplate(templateId, null, null);
     }
 
+    /**
+     * Get the file of the template, found like {@link #getTemplate(String, String, String)}.
+     * 
+     * @return the template file, <code>null</code> if the template isn't a local file (use
+     *         {@link #getTemplate(String, String, String)}), IllegalStateException if no provider
+     *         is found
+     * */
+    public File getTemplateFile(String templateId, String language, String type) {
+        return getLocalFile(templateId, language, type, false);
+    }
+
+    /**
+     * Get the file of the template configuration, found like
+     * {@link #getTemplateConfiguration(String, String, String)}.
+     * 
+     * @return the configuration file, <code>null</code> if it isn't a local file (use
+     *         {@link #getTemplateConfiguration(String, String, String)}), IllegalStateException if
+     *         no provider is found
+     * */
+    public File getTemplateConfigurationFile(String templateId, String language, String type) {
+        return getLocalFile(templateId, language, type, true);
+    }
+
+    private File getLocalFile(String templateId, String language, String type, boolean configuration) {
+        TemplateProvider provider = defaultMap.get(templateId);
+        if (provider == null) {
+            for (TemplateProvider pr : providers) {
+                // can't know if the stream of this provider would have been used
+                if (!(pr instanceof AbstractLocalTemplateProvider)) {
+                    return null;
+                }
+                final File f = getLocalFile((AbstractLocalTemplateProvider) pr, templateId, language, type, configuration);
+                if (f != null) {
+                    return f;
+                }
+            }
+            if (defautProvider == null) {
+                throw new IllegalStateException("Not default provider registered when using template id:" + templateId + " language:" + language + " type:" + type);
+            }
+            provider = defautProvider;
+        }
+        return provider instanceof AbstractLocalTemplateProvider ? getLocalFile((AbstractLocalTemplateProvider) provider, templateId, language, type, configuration) : null;
+    }
+
+    private File getLocalFile(AbstractLocalTemplateProvider provider, String templateId, String language, String type, boolean configuration) {
+        if (!configuration)
+            return provider.getFileTemplate(templateId, language, type);
+        // unlike getFileTemplate(), the file isn't checked
+        final File f = provider.getFileTemplateConfiguration(templateId, language, type);
+        return f != null && f.exists() ? f : null;
+    }
+
     public void register(String templateId) {
         if (!knownTemplateIds.contains(templateId)) {
             knownTemplateIds.add(templateId);
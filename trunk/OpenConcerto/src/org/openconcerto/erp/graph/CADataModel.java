@@ -13,17 +13,8 @@
  
  package org.openconcerto.erp.graph;
 
-import org.openconcerto.erp.core.finance.accounting.model.SommeCompte;
-import org.openconcerto.sql.Configuration;
-import org.openconcerto.sql.element.SQLElementDirectory;
-import org.openconcerto.sql.model.SQLSelect;
-import org.openconcerto.sql.model.SQLTable;
-import org.openconcerto.sql.model.Where;
 import org.openconcerto.utils.RTInterruptedException;
 
-import java.util.Calendar;
-import java.util.Date;
-
 import org.jopenchart.DataModel1D;
 import org.jopenchart.barchart.VerticalBarChart;
 
@@ -59,59 +50,22 @@ public class CADataModel extends DataModel1D {
                 // Clear
                 CADataModel.this.clear();
                 fireDataModelChanged();
-                SommeCompte sommeCompte = new SommeCompte();
                 total = 0;
                 try {
+                    // the whole year in one query
+                    final VenteStatsCache.CAAnnee ca = VenteStatsCache.getInstance().getCA(year);
+                    if (isInterrupted()) {
+                        return;
+                    }
                     for (int i = 0; i < 12; i++) {
-                        if (isInterrupted()) {
-                            break;
-                        }
-                        Calendar c = Calendar.getInstance();
-                        c.set(year, i, 1);
-                        Date d1 = new Date(c.getTimeInMillis());
-                        c.set(Calendar.DATE, c.getActualMaximum(Calendar.DATE));
-                        Date d2 = new Date(c.getTimeInMillis());
-                        Thread.yield();
-                        float vCA = 0;
-
-                        final SQLElementDirectory directory = Configuration.getInstance().getDirectory();
-                        SQLTable tableEcr = directory.getElement("ECRITURE").getTable();
-                        SQLTable tableCpt = directory.getElement("COMPTE_PCE").getTable();
-                        SQLSelect sel = new SQLSelect();
-                        sel.addSelect(tableEcr.getField("DEBIT"), "SUM");
-                        sel.addSelect(tableEcr.getField("CREDIT"), "SUM");
-                        Where w = new Where(tableEcr.getField("DATE"), d1, d2);
-                        Where w2 = new Where(tableEcr.getField("ID_COMPTE_PCE"), "=", tableCpt.getKey());
-                        Where w3 = new Where(tableCpt.getField("NUMERO"), "LIKE", "70%");
-                        Where w4 = new Where(tableEcr.getField("NOM"), "LIKE", "Fermeture%");
-                        sel.setWhere(w.and(w2).and(w3).and(w4));
-
-                        Object[] o = tableEcr.getBase().getDataSource().executeA1(sel.asString());
-                        if (o != null && o[0] != null && o[1] != null && (Long.valueOf(o[0].toString()) != 0 || Long.valueOf(o[1].toString()) != 0)) {
-                            long deb = Long.valueOf(o[0].toString());
-                            long cred = Long.valueOf(o[1].toString());
-                            long tot = deb - cred;
-                            vCA = sommeCompte.soldeCompteDebiteur(700, 708, true, d1, d2) - sommeCompte.soldeCompteDebiteur(709, 709, true, d1, d2);
-                            vCA = tot - vCA;
-                        } else {
-                            vCA = sommeCompte.soldeCompteCrediteur(700, 708, true, d1, d2) - sommeCompte.soldeCompteCrediteur(709, 709, true, d1, d2);
-                        }
-
-                        final int value = Math.round(vCA / 100);
+                        final int value = Math.round(ca.getCA(i) / 100f);
                         total += value;
-                        if (((int) value) != 0) {
+                        if (value != 0) {
                             CADataModel.this.setValueAt(i, value);
-                            fireDataModelChanged();
-                            Thread.sleep(20);
                         }
-
                     }
-                    if (!isInterrupted()) {
-                        setState(LOADED);
-                        fireDataModelChanged();
-                    }
-                } catch (InterruptedException e) {
-                    // Thread stopped because of year changed
+                    setState(LOADED);
+                    fireDataModelChanged();
                 } catch (RTInterruptedException e) {
                     // Thread stopped because of year changed
                 }
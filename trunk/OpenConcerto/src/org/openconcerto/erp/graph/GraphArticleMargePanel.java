@@ -13,41 +13,18 @@
  
  package org.openconcerto.erp.graph;
 
-import org.openconcerto.sql.Configuration;
-import org.openconcerto.sql.model.SQLSelect;
-import org.openconcerto.sql.model.SQLTable;
-
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
-import org.apache.commons.dbutils.handlers.ArrayListHandler;
-
 public class GraphArticleMargePanel extends GraphArticleVentePanel {
 
     @Override
     protected void updateDataset(List<String> labels, List<Number> values) {
 
-        final SQLTable tableVFElement = Configuration.getInstance().getDirectory().getElement("SAISIE_VENTE_FACTURE_ELEMENT").getTable();
-
-        final SQLSelect sel = new SQLSelect(tableVFElement.getBase());
-        final String field = "NOM";
-
-        sel.addSelect(tableVFElement.getField(field));
-
-        sel.addSelect(tableVFElement.getField("PA_HT"));
-        sel.addSelect(tableVFElement.getField("PV_HT"));
-        sel.addSelect(tableVFElement.getField("QTE"), "SUM");
-
-        final List<Object[]> rowsArticle = (List<Object[]>) Configuration
-                .getInstance()
-                .getBase()
-                .getDataSource()
-                .execute(
-                        sel.asString() + " GROUP BY \"SAISIE_VENTE_FACTURE_ELEMENT\".\"" + field + "\"" + ",\"SAISIE_VENTE_FACTURE_ELEMENT\".\"PA_HT\"" + ",\"SAISIE_VENTE_FACTURE_ELEMENT\".\"PV_HT\"",
-                        new ArrayListHandler());
+        final List<Object[]> rowsArticle = VenteStatsCache.getInstance().getMargesArticle();
 
         Collections.sort(rowsArticle, new Comparator<Object[]>() {
             @Override
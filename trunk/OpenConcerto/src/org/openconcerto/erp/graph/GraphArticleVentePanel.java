@@ -13,11 +13,6 @@
  
  package org.openconcerto.erp.graph;
 
-import org.openconcerto.sql.Configuration;
-import org.openconcerto.sql.model.SQLDataSource;
-import org.openconcerto.sql.model.SQLSelect;
-import org.openconcerto.sql.model.SQLTable;
-
 import java.awt.Color;
 import java.awt.Dimension;
 import java.util.ArrayList;
@@ -27,7 +22,6 @@ import java.util.List;
 
 import javax.swing.JPanel;
 
-import org.apache.commons.dbutils.handlers.ArrayListHandler;
 import org.jopenchart.ChartPanel;
 import org.jopenchart.Label;
 import org.jopenchart.piechart.PieChart;
@@ -53,17 +47,7 @@ public class GraphArticleVentePanel extends JPanel {
 
     protected void updateDataset(List<String> labels, List<Number> values) {
 
-        SQLTable tableVFElement = Configuration.getInstance().getDirectory().getElement("SAISIE_VENTE_FACTURE_ELEMENT").getTable();
-
-        SQLSelect sel = new SQLSelect(tableVFElement.getBase());
-        String field = "NOM";
-
-        sel.addSelect(tableVFElement.getField(field));
-
-        sel.addSelectFunctionStar("COUNT");
-        final SQLDataSource dataSource = Configuration.getInstance().getBase().getDataSource();
-        @SuppressWarnings("unchecked")
-        List<Object[]> rowsArticle = (List<Object[]>) dataSource.execute(sel.asString() + " GROUP BY \"SAISIE_VENTE_FACTURE_ELEMENT\".\"" + field + "\"", new ArrayListHandler());
+        final List<Object[]> rowsArticle = VenteStatsCache.getInstance().getVentesArticle();
 
         Collections.sort(rowsArticle, new Comparator<Object[]>() {
             @Override
@@ -13,19 +13,12 @@
  
  package org.openconcerto.erp.graph;
 
-import org.openconcerto.sql.Configuration;
-import org.openconcerto.sql.element.SQLElementDirectory;
-import org.openconcerto.sql.model.SQLSelect;
-import org.openconcerto.sql.model.SQLTable;
-import org.openconcerto.sql.model.Where;
-import org.openconcerto.utils.NumberUtils;
 import org.openconcerto.utils.RTInterruptedException;
 
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.math.RoundingMode;
 import java.util.Calendar;
-import java.util.Date;
 
 import org.jopenchart.DataModel1D;
 import org.jopenchart.barchart.VerticalBarChart;
@@ -65,40 +58,19 @@ public class MargeDayDataModel extends DataModel1D {
                 MargeDayDataModel.this.clear();
                 fireDataModelChanged();
                 final Calendar cal = Calendar.getInstance();
+                cal.clear();
                 cal.set(year, month, 1);
-                size = cal.getMaximum(Calendar.DAY_OF_MONTH);
+                size = cal.getActualMaximum(Calendar.DAY_OF_MONTH);
 
                 try {
+                    // the whole year in one query, shared with the other months
+                    final VenteStatsCache.MargeAnnee marges = VenteStatsCache.getInstance().getMarges(year);
+                    if (isInterrupted()) {
+                        return;
+                    }
                     for (int i = 0; i < size; i++) {
-                        if (isInterrupted()) {
-                            break;
-                        }
-                        Calendar c = cal;
-                        c.set(year, month, i);
-                        Date d1 = new Date(c.getTimeInMillis());
-
-                        Date d2 = new Date(c.getTimeInMillis());
-                        Thread.yield();
-
-                        final SQLElementDirectory directory = Configuration.getInstance().getDirectory();
-                        SQLTable tableSaisieVenteF = directory.getElement("SAISIE_VENTE_FACTURE").getTable();
-                        SQLTable tableSaisieVenteFElt = directory.getElement("SAISIE_VENTE_FACTURE_ELEMENT").getTable();
-                        final SQLSelect sel = new SQLSelect(tableSaisieVenteF.getBase());
-                        sel.addSelect(tableSaisieVenteFElt.getField("T_PA_HT"), "SUM");
-                        sel.addSelect(tableSaisieVenteFElt.getField("T_PV_HT"), "SUM");
-                        final Where w = new Where(tableSaisieVenteF.getField("DATE"), d1, d2);
-                        final Where w2 = new Where(tableSaisieVenteFElt.getField("ID_SAISIE_VENTE_FACTURE"), "=", tableSaisieVenteF.getKey());
-                        sel.setWhere(w.and(w2));
-
-                        BigDecimal total = BigDecimal.ZERO;
-                        Object[] o = tableSaisieVenteF.getBase().getDataSource().executeA1(sel.asString());
-                        if (o != null) {
-                            BigDecimal pa = (BigDecimal) o[0];
-                            BigDecimal pv = (BigDecimal) o[1];
-                            if (pa != null && pv != null && (!NumberUtils.areNumericallyEqual(pa, BigDecimal.ZERO) || !NumberUtils.areNumericallyEqual(pv, BigDecimal.ZERO))) {
-                                total = pv.subtract(pa);
-                            }
-                        }
+                        // the axis labels start at 1
+                        final BigDecimal total = marges.getMarge(month, i + 1);
 
                         if (total.doubleValue() > chart.getHigherRange().doubleValue()) {
                             // String currencyToString = GestionDevise.currencyToString(euros * 100,
@@ -111,17 +83,10 @@ public class MargeDayDataModel extends DataModel1D {
                         }
                         if (total.compareTo(BigDecimal.ZERO) != 0) {
                             MargeDayDataModel.this.setValueAt(i, total);
-                            fireDataModelChanged();
-                            Thread.sleep(20);
                         }
-
-                    }
-                    if (!isInterrupted()) {
-                        setState(LOADED);
-                        fireDataModelChanged();
                     }
-                } catch (InterruptedException e) {
-                    // Thread stopped because of year changed
+                    setState(LOADED);
+                    fireDataModelChanged();
                 } catch (RTInterruptedException e) {
                     // Thread stopped because of year changed
                 }
@@ -0,0 +1,614 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.graph;
+
+import org.openconcerto.erp.config.ComptaPropsConfiguration;
+import org.openconcerto.sql.Configuration;
+import org.openconcerto.sql.model.SQLBase;
+import org.openconcerto.sql.model.SQLRow;
+import org.openconcerto.sql.model.SQLRowMode;
+import org.openconcerto.sql.model.SQLSelect;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.model.SQLTable.ListenerAndConfig;
+import org.openconcerto.sql.model.SQLTableEvent;
+import org.openconcerto.sql.model.SQLTableEvent.Mode;
+import org.openconcerto.sql.model.SQLTableModifiedListener;
+import org.openconcerto.sql.model.Where;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.dbutils.handlers.ArrayListHandler;
+
+/**
+ * Chiffre d'affaires et marges par jour, par mois et par article pour les graphes. Chaque année est
+ * chargée avec une requête groupée par jour au lieu d'une requête par mois ou par jour, puis gardée
+ * en mémoire. Une modification d'écriture recharge l'année de sa date, une modification d'élément
+ * de facture recharge le jour de sa facture. Par défaut une année n'est pas réutilisée d'un appel à
+ * l'autre, voir {@link #setMaxAge(long)}.
+ * 
+ * @see CADataModel
+ * @see MargeDataModel
+ * @see GraphArticleVentePanel
+ */
+@ThreadSafe
+public class VenteStatsCache {
+
+    private static final Set<String> ECRITURE_FIELDS = new HashSet<String>(Arrays.asList("DEBIT", "CREDIT", "DATE", "ID_COMPTE_PCE", "NOM", "ARCHIVE"));
+    private static final Set<String> FACTURE_FIELDS = new HashSet<String>(Arrays.asList("DATE", "ARCHIVE"));
+    private static final Set<String> ELEMENT_FIELDS = new HashSet<String>(Arrays.asList("T_PA_HT", "T_PV_HT", "PA_HT", "PV_HT", "QTE", "NOM", "ID_SAISIE_VENTE_FACTURE", "ARCHIVE"));
+
+    private static VenteStatsCache instance = null;
+
+    public static synchronized VenteStatsCache getInstance() {
+        if (instance == null)
+            instance = new VenteStatsCache(((ComptaPropsConfiguration) Configuration.getInstance()).getSQLBaseSociete());
+        return instance;
+    }
+
+    private final SQLBase base;
+    private final SQLTable ecritureTable, compteTable, factureTable, elementTable;
+    private final ListenerAndConfig ecritureListener, factureListener, elementListener;
+    @GuardedBy("this")
+    private final Map<Integer, CAAnnee> ca;
+    @GuardedBy("this")
+    private final Map<Integer, MargeAnnee> marges;
+    @GuardedBy("this")
+    private List<Object[]> ventesArticle, margesArticle;
+    @GuardedBy("this")
+    private long ventesArticleTime, margesArticleTime;
+    // incremented each time the elements are modified
+    @GuardedBy("this")
+    private int elementsModCount;
+    @GuardedBy("this")
+    private long maxAge;
+
+    public VenteStatsCache(final SQLBase base) {
+        this.base = base;
+        this.ecritureTable = base.getTable("ECRITURE");
+        this.compteTable = base.getTable("COMPTE_PCE");
+        this.factureTable = base.getTable("SAISIE_VENTE_FACTURE");
+        this.elementTable = base.getTable("SAISIE_VENTE_FACTURE_ELEMENT");
+        this.ca = new HashMap<Integer, CAAnnee>();
+        this.marges = new HashMap<Integer, MargeAnnee>();
+        this.ventesArticle = null;
+        this.margesArticle = null;
+        this.elementsModCount = 0;
+        // other clients' changes are not notified, so by default always reload
+        this.maxAge = 0;
+        this.ecritureListener = new ListenerAndConfig(new SQLTableModifiedListener() {
+            @Override
+            public void tableModified(SQLTableEvent evt) {
+                ecritureModified(evt);
+            }
+        }, true);
+        this.ecritureTable.addTableModifiedListener(this.ecritureListener);
+        this.factureListener = new ListenerAndConfig(new SQLTableModifiedListener() {
+            @Override
+            public void tableModified(SQLTableEvent evt) {
+                factureModified(evt);
+            }
+        }, true);
+        this.factureTable.addTableModifiedListener(this.factureListener);
+        this.elementListener = new ListenerAndConfig(new SQLTableModifiedListener() {
+            @Override
+            public void tableModified(SQLTableEvent evt) {
+                elementModified(evt);
+            }
+        }, true);
+        this.elementTable.addTableModifiedListener(this.elementListener);
+    }
+
+    public final void die() {
+        this.ecritureTable.removeTableModifiedListener(this.ecritureListener);
+        this.factureTable.removeTableModifiedListener(this.factureListener);
+        this.elementTable.removeTableModifiedListener(this.elementListener);
+        this.clear();
+    }
+
+    /**
+     * Durée maximum pendant laquelle une année est utilisée sans être rechargée, les modifications
+     * des autres postes ne sont pas notifiées. Les modifications de ce poste rechargent toujours
+     * l'année ou le jour concerné.
+     * 
+     * @param ms durée en millisecondes, 0 (par défaut) pour toujours recharger.
+     */
+    public synchronized final void setMaxAge(long ms) {
+        this.maxAge = ms;
+    }
+
+    public synchronized final long getMaxAge() {
+        return this.maxAge;
+    }
+
+    public synchronized final void clear() {
+        this.ca.clear();
+        this.clearMarges();
+    }
+
+    private synchronized void clearMarges() {
+        this.marges.clear();
+        this.clearArticles();
+    }
+
+    private synchronized void clearArticles() {
+        this.ventesArticle = null;
+        this.margesArticle = null;
+        this.elementsModCount++;
+    }
+
+    private void clearMarges(final Date date) {
+        final Calendar c = Calendar.getInstance();
+        c.setTime(date);
+        final MargeAnnee m;
+        synchronized (this) {
+            m = this.marges.get(c.get(Calendar.YEAR));
+        }
+        // outside our lock, the year might be loading
+        if (m != null)
+            m.invalidate(c.get(Calendar.DAY_OF_YEAR) - 1);
+    }
+
+    // the date of the row if it and its previous date are known
+    private Date getDate(final SQLTableEvent evt) {
+        if (evt.getRow() == null || evt.getMode() == Mode.ROW_DELETED || (evt.getMode() == Mode.ROW_UPDATED && evt.getFieldNames().contains("DATE")) || !evt.getRow().exists())
+            return null;
+        return (Date) evt.getRow().getObject("DATE");
+    }
+
+    private void ecritureModified(final SQLTableEvent evt) {
+        if (evt.getRow() != null && evt.getMode() == Mode.ROW_UPDATED && Collections.disjoint(evt.getFieldNames(), ECRITURE_FIELDS))
+            return;
+        // for added rows we can't know if they were committed before or after the query of a
+        // year (summing them again would count them twice), for the others we don't know the
+        // previous values : reload the year of the row
+        final Date date = this.getDate(evt);
+        synchronized (this) {
+            if (date == null) {
+                this.ca.clear();
+            } else {
+                final Calendar c = Calendar.getInstance();
+                c.setTime(date);
+                this.ca.remove(c.get(Calendar.YEAR));
+            }
+        }
+    }
+
+    private void factureModified(final SQLTableEvent evt) {
+        // the amounts are in the elements
+        if (evt.getRow() == null || evt.getMode() == Mode.ROW_DELETED || (evt.getMode() == Mode.ROW_UPDATED && !Collections.disjoint(evt.getFieldNames(), FACTURE_FIELDS))) {
+            final Date date = this.getDate(evt);
+            if (date == null)
+                this.clearMarges();
+            else
+                this.clearMarges(date);
+        }
+    }
+
+    private void elementModified(final SQLTableEvent evt) {
+        if (evt.getRow() != null && evt.getMode() == Mode.ROW_UPDATED && Collections.disjoint(evt.getFieldNames(), ELEMENT_FIELDS))
+            return;
+        // the articles are for all dates
+        this.clearArticles();
+        // same as ecritureModified(), reload the day of the invoice
+        final Date date;
+        if (evt.getRow() == null || evt.getMode() == Mode.ROW_DELETED || (evt.getMode() == Mode.ROW_UPDATED && evt.getFieldNames().contains("ID_SAISIE_VENTE_FACTURE")) || !evt.getRow().exists()) {
+            date = null;
+        } else {
+            final SQLRow facture = evt.getRow().getForeignRow("ID_SAISIE_VENTE_FACTURE", SQLRowMode.NO_CHECK);
+            date = facture == null || !facture.exists() ? null : (Date) facture.getObject("DATE");
+        }
+        if (date == null)
+            this.clearMarges();
+        else
+            this.clearMarges(date);
+    }
+
+    private synchronized boolean isValid(final Annee a) {
+        return a != null && this.isValid(a.loadTime);
+    }
+
+    private synchronized boolean isValid(final long loadTime) {
+        return this.maxAge > 0 && System.currentTimeMillis() - loadTime <= this.maxAge;
+    }
+
+    /**
+     * Le chiffre d'affaires d'une année, calculé à partir des comptes 70.
+     * 
+     * @param year l'année, e.g. 2011.
+     * @return le chiffre d'affaires de l'année.
+     */
+    public final CAAnnee getCA(final int year) {
+        final CAAnnee res;
+        synchronized (this) {
+            final CAAnnee cached = this.ca.get(year);
+            if (this.isValid(cached)) {
+                res = cached;
+            } else {
+                res = new CAAnnee(year);
+                this.ca.put(year, res);
+            }
+        }
+        res.load();
+        return res;
+    }
+
+    /**
+     * Les marges d'une année, calculées à partir des éléments des factures.
+     * 
+     * @param year l'année, e.g. 2011.
+     * @return les marges de l'année.
+     */
+    public final MargeAnnee getMarges(final int year) {
+        final MargeAnnee res;
+        synchronized (this) {
+            final MargeAnnee cached = this.marges.get(year);
+            if (this.isValid(cached)) {
+                res = cached;
+            } else {
+                res = new MargeAnnee(year);
+                this.marges.put(year, res);
+            }
+        }
+        res.load();
+        return res;
+    }
+
+    /**
+     * Le nombre de ventes de chaque article.
+     * 
+     * @return une nouvelle liste de NOM, COUNT(*).
+     */
+    public final List<Object[]> getVentesArticle() {
+        final int modCount;
+        synchronized (this) {
+            if (this.ventesArticle != null && this.isValid(this.ventesArticleTime))
+                return new ArrayList<Object[]>(this.ventesArticle);
+            modCount = this.elementsModCount;
+        }
+        final long loadTime = System.currentTimeMillis();
+        final SQLSelect sel = new SQLSelect();
+        sel.addSelect(this.elementTable.getField("NOM"));
+        sel.addSelectFunctionStar("COUNT");
+        sel.addGroupBy(this.elementTable.getField("NOM"));
+        final List<Object[]> res = this.execute(sel);
+        synchronized (this) {
+            // don't overwrite an invalidation made during the query
+            if (this.elementsModCount == modCount) {
+                this.ventesArticle = res;
+                this.ventesArticleTime = loadTime;
+            }
+        }
+        return new ArrayList<Object[]>(res);
+    }
+
+    /**
+     * Les quantités vendues de chaque article par prix.
+     * 
+     * @return une nouvelle liste de NOM, PA_HT, PV_HT, SUM(QTE).
+     */
+    public final List<Object[]> getMargesArticle() {
+        final int modCount;
+        synchronized (this) {
+            if (this.margesArticle != null && this.isValid(this.margesArticleTime))
+                return new ArrayList<Object[]>(this.margesArticle);
+            modCount = this.elementsModCount;
+        }
+        final long loadTime = System.currentTimeMillis();
+        final SQLSelect sel = new SQLSelect();
+        sel.addSelect(this.elementTable.getField("NOM"));
+        sel.addSelect(this.elementTable.getField("PA_HT"));
+        sel.addSelect(this.elementTable.getField("PV_HT"));
+        sel.addSelect(this.elementTable.getField("QTE"), "SUM");
+        sel.addGroupBy(this.elementTable.getField("NOM"));
+        sel.addGroupBy(this.elementTable.getField("PA_HT"));
+        sel.addGroupBy(this.elementTable.getField("PV_HT"));
+        final List<Object[]> res = this.execute(sel);
+        synchronized (this) {
+            if (this.elementsModCount == modCount) {
+                this.margesArticle = res;
+                this.margesArticleTime = loadTime;
+            }
+        }
+        return new ArrayList<Object[]>(res);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Object[]> execute(final SQLSelect sel) {
+        return Collections.unmodifiableList((List<Object[]>) this.base.getDataSource().execute(sel.asString(), new ArrayListHandler()));
+    }
+
+    private Where createDateWhere(final SQLTable t, final int year) {
+        final Calendar c = Calendar.getInstance();
+        c.clear();
+        c.set(year, Calendar.JANUARY, 1);
+        final Date start = c.getTime();
+        c.add(Calendar.YEAR, 1);
+        return new Where(t.getField("DATE"), start, true, c.getTime(), false);
+    }
+
+    /**
+     * Une année de données, chargée en une fois.
+     */
+    @ThreadSafe
+    private abstract class Annee {
+
+        protected final int year;
+        private final long loadTime;
+        @GuardedBy("this")
+        private boolean loaded;
+
+        Annee(final int year) {
+            this.year = year;
+            this.loadTime = System.currentTimeMillis();
+            this.loaded = false;
+        }
+
+        public final int getYear() {
+            return this.year;
+        }
+
+        synchronized final void load() {
+            if (!this.loaded) {
+                this.loadRows();
+                this.loaded = true;
+            } else {
+                this.reloadRows();
+            }
+        }
+
+        /**
+         * Charge les lignes de l'année.
+         */
+        protected abstract void loadRows();
+
+        /**
+         * Recharge les lignes invalidées depuis le chargement.
+         */
+        protected void reloadRows() {
+        }
+
+        // index in the year, from 0
+        protected final int getDayIndex(final Calendar c, final Date d) {
+            c.setTime(d);
+            return c.get(Calendar.DAY_OF_YEAR) - 1;
+        }
+    }
+
+    /**
+     * Le chiffre d'affaires d'une année, par mois.
+     */
+    @ThreadSafe
+    public final class CAAnnee extends Annee {
+
+        // debit and credit by month of the sale (700 to 708) and discount (709) accounts
+        @GuardedBy("this")
+        private final Map<Number, long[]> comptes;
+        @GuardedBy("this")
+        private final Map<Number, Boolean> rabais;
+        // debit and credit by month of the closing entries
+        @GuardedBy("this")
+        private final long[] fermeture;
+
+        CAAnnee(final int year) {
+            super(year);
+            this.comptes = new HashMap<Number, long[]>();
+            this.rabais = new HashMap<Number, Boolean>();
+            this.fermeture = new long[24];
+        }
+
+        @Override
+        protected void loadRows() {
+            final SQLSelect sel = this.createSelect();
+            sel.addSelect(compteTable.getKey());
+            sel.addSelect(compteTable.getField("NUMERO"));
+            sel.addGroupBy(compteTable.getKey());
+            sel.addGroupBy(compteTable.getField("NUMERO"));
+            final Calendar c = Calendar.getInstance();
+            for (final Object[] o : execute(sel)) {
+                final String numero = ((String) o[4]).trim();
+                // only 700 to 709 and their children, like soldeCompteCrediteur(700, 708, true)
+                if (numero.length() < 3 || !Character.isDigit(numero.charAt(2)))
+                    continue;
+                final boolean isRabais = numero.startsWith("709");
+                final Number idCompte = (Number) o[3];
+                long[] values = this.comptes.get(idCompte);
+                if (values == null) {
+                    values = new long[24];
+                    this.comptes.put(idCompte, values);
+                    this.rabais.put(idCompte, isRabais);
+                }
+                add(values, c, o);
+            }
+
+            final SQLSelect selFermeture = this.createSelect();
+            selFermeture.andWhere(new Where(ecritureTable.getField("NOM"), "LIKE", "Fermeture%"));
+            for (final Object[] o : execute(selFermeture)) {
+                add(this.fermeture, c, o);
+            }
+        }
+
+        private SQLSelect createSelect() {
+            final SQLSelect sel = new SQLSelect();
+            sel.addSelect(ecritureTable.getField("DATE"));
+            sel.addSelect(ecritureTable.getField("DEBIT"), "SUM");
+            sel.addSelect(ecritureTable.getField("CREDIT"), "SUM");
+            Where w = createDateWhere(ecritureTable, this.year);
+            w = w.and(new Where(ecritureTable.getField("ID_COMPTE_PCE"), "=", compteTable.getKey()));
+            w = w.and(new Where(compteTable.getField("NUMERO"), "LIKE", "70%"));
+            sel.setWhere(w);
+            sel.addGroupBy(ecritureTable.getField("DATE"));
+            return sel;
+        }
+
+        // DATE, SUM(DEBIT), SUM(CREDIT)
+        private void add(final long[] values, final Calendar c, final Object[] o) {
+            c.setTime((Date) o[0]);
+            final int month = c.get(Calendar.MONTH);
+            if (o[1] != null)
+                values[month] += ((Number) o[1]).longValue();
+            if (o[2] != null)
+                values[12 + month] += ((Number) o[2]).longValue();
+        }
+
+        /**
+         * Le chiffre d'affaires d'un mois, calculé comme avec SommeCompte : le solde
+         * créditeur des comptes 700 à 708 moins celui du compte 709, ou à partir des écritures de
+         * fermeture s'il y en a.
+         * 
+         * @param month le mois, de 0 à 11.
+         * @return le chiffre d'affaires en centimes.
+         */
+        public synchronized final long getCA(final int month) {
+            long ventesDebiteur = 0, ventesCrediteur = 0, rabaisDebiteur = 0, rabaisCrediteur = 0;
+            for (final Map.Entry<Number, long[]> e : this.comptes.entrySet()) {
+                final long solde = e.getValue()[month] - e.getValue()[12 + month];
+                final boolean isRabais = this.rabais.get(e.getKey()).booleanValue();
+                if (solde > 0) {
+                    if (isRabais)
+                        rabaisDebiteur += solde;
+                    else
+                        ventesDebiteur += solde;
+                } else if (solde < 0) {
+                    if (isRabais)
+                        rabaisCrediteur -= solde;
+                    else
+                        ventesCrediteur -= solde;
+                }
+            }
+            final long debitFermeture = this.fermeture[month];
+            final long creditFermeture = this.fermeture[12 + month];
+            if (debitFermeture != 0 || creditFermeture != 0) {
+                return debitFermeture - creditFermeture - (ventesDebiteur - rabaisDebiteur);
+            } else {
+                return ventesCrediteur - rabaisCrediteur;
+            }
+        }
+    }
+
+    /**
+     * Les marges d'une année, par jour.
+     */
+    @ThreadSafe
+    public final class MargeAnnee extends Annee {
+
+        @GuardedBy("this")
+        private final BigDecimal[] marges;
+        // index of the days to reload
+        @GuardedBy("this")
+        private final Set<Integer> invalidDays;
+
+        MargeAnnee(final int year) {
+            super(year);
+            this.marges = new BigDecimal[366];
+            Arrays.fill(this.marges, BigDecimal.ZERO);
+            this.invalidDays = new TreeSet<Integer>();
+        }
+
+        synchronized final void invalidate(final int day) {
+            this.invalidDays.add(day);
+        }
+
+        @Override
+        protected void loadRows() {
+            this.invalidDays.clear();
+            this.load(createDateWhere(factureTable, this.year));
+        }
+
+        @Override
+        protected void reloadRows() {
+            if (this.invalidDays.isEmpty())
+                return;
+            final Calendar c = Calendar.getInstance();
+            final List<Date> dates = new ArrayList<Date>(this.invalidDays.size());
+            for (final Integer day : this.invalidDays) {
+                this.marges[day] = BigDecimal.ZERO;
+                c.clear();
+                c.set(Calendar.YEAR, this.year);
+                c.set(Calendar.DAY_OF_YEAR, day + 1);
+                dates.add(c.getTime());
+            }
+            this.invalidDays.clear();
+            this.load(new Where(factureTable.getField("DATE"), dates));
+        }
+
+        private void load(final Where dateWhere) {
+            final SQLSelect sel = new SQLSelect();
+            sel.addSelect(factureTable.getField("DATE"));
+            sel.addSelect(elementTable.getField("T_PA_HT"), "SUM");
+            sel.addSelect(elementTable.getField("T_PV_HT"), "SUM");
+            sel.setWhere(dateWhere.and(new Where(elementTable.getField("ID_SAISIE_VENTE_FACTURE"), "=", factureTable.getKey())));
+            sel.addGroupBy(factureTable.getField("DATE"));
+            final Calendar c = Calendar.getInstance();
+            for (final Object[] o : execute(sel)) {
+                final Number pa = (Number) o[1];
+                final Number pv = (Number) o[2];
+                if (pa != null && pv != null) {
+                    final int day = this.getDayIndex(c, (Date) o[0]);
+                    this.marges[day] = this.marges[day].add(toBigDecimal(pv).subtract(toBigDecimal(pa)));
+                }
+            }
+        }
+
+        /**
+         * La marge d'un jour.
+         * 
+         * @param month le mois, de 0 à 11.
+         * @param day le jour du mois, à partir de 1.
+         * @return la marge HT.
+         */
+        public synchronized final BigDecimal getMarge(final int month, final int day) {
+            final Calendar c = Calendar.getInstance();
+            c.clear();
+            c.set(this.year, month, day);
+            return this.marges[c.get(Calendar.DAY_OF_YEAR) - 1];
+        }
+
+        /**
+         * La marge d'un mois.
+         * 
+         * @param month le mois, de 0 à 11.
+         * @return la marge HT.
+         */
+        public synchronized final BigDecimal getMarge(final int month) {
+            final Calendar c = Calendar.getInstance();
+            c.clear();
+            c.set(this.year, month, 1);
+            final int start = c.get(Calendar.DAY_OF_YEAR) - 1;
+            final int stop = start + c.getActualMaximum(Calendar.DAY_OF_MONTH);
+            BigDecimal res = BigDecimal.ZERO;
+            for (int i = start; i < stop; i++) {
+                res = res.add(this.marges[i]);
+            }
+            return res;
+        }
+    }
+
+    static private BigDecimal toBigDecimal(final Number n) {
+        return n instanceof BigDecimal ? (BigDecimal) n : new BigDecimal(n.toString());
+    }
+}
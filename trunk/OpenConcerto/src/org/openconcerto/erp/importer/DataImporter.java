@@ -19,10 +19,20 @@ import org.openconcerto.openoffice.spreadsheet.SpreadSheet;
 import org.openconcerto.sql.Configuration;
 import org.openconcerto.sql.model.SQLBase;
 import org.openconcerto.sql.model.SQLField;
+import org.openconcerto.sql.model.SQLRow;
 import org.openconcerto.sql.model.SQLRowValues;
 import org.openconcerto.sql.model.SQLRowValuesListFetcher;
+import org.openconcerto.sql.model.SQLSelect;
+import org.openconcerto.sql.model.SQLSyntax;
 import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.model.Where;
+import org.openconcerto.sql.request.UpdateBuilder;
 import org.openconcerto.sql.users.UserManager;
+import org.openconcerto.sql.utils.ReOrder;
+import org.openconcerto.sql.utils.SQLUtils;
+import org.openconcerto.sql.utils.SQLUtils.SQLFactory;
+import org.openconcerto.utils.cc.IClosure;
+import org.openconcerto.utils.cc.ITransformer;
 import org.openconcerto.utils.text.CSVReader;
 import org.openconcerto.utils.text.CSVWriter;
 import org.openconcerto.utils.text.CharsetHelper;
@@ -36,16 +46,26 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.math.BigDecimal;
 import java.nio.charset.Charset;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
+import org.apache.commons.dbutils.ResultSetHandler;
+
 import org.apache.poi.hssf.usermodel.HSSFSheet;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
 import org.apache.poi.poifs.filesystem.POIFSFileSystem;
@@ -273,11 +293,19 @@ public class DataImporter {
 
     }
 
-    public ArrayTableModel createModelFromCSV(File csvFile) throws IOException {
+    /**
+     * Ouvre un fichier CSV en devinant son encodage et son séparateur.
+     * 
+     * @param csvFile le fichier.
+     * @return le lecteur, <code>null</code> si le fichier est vide.
+     * @throws IOException si le fichier n'a pu être lu.
+     */
+    private static CSVReader createCSVReader(File csvFile) throws IOException {
         Charset cs = CharsetHelper.guessEncoding(csvFile, 4096, Charset.forName("Cp1252"));
 
         BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(csvFile), cs));
         String l = r.readLine();
+        r.close();
         if (l == null) {
             return null;
         }
@@ -292,12 +320,18 @@ public class DataImporter {
                 scCount++;
             }
         }
-        r.close();
         if (scCount > cCount) {
             separator = ';';
         }
 
-        CSVReader csvReader = new CSVReader(new InputStreamReader(new FileInputStream(csvFile), cs), separator);
+        return new CSVReader(new InputStreamReader(new FileInputStream(csvFile), cs), separator);
+    }
+
+    public ArrayTableModel createModelFromCSV(File csvFile) throws IOException {
+        CSVReader csvReader = createCSVReader(csvFile);
+        if (csvReader == null) {
+            return null;
+        }
         List<String[]> lines = csvReader.readAll();
         final int rowCount = lines.size();
         final int columnCount = lines.get(0).length;
@@ -331,31 +365,13 @@ public class DataImporter {
 
     public ArrayTableModel createConvertedModel(ArrayTableModel model) {
         final int rowCount = model.getRowCount();
-        final ArrayList<Integer> colsUsed = new ArrayList<Integer>(map.keySet());
-        colsUsed.addAll(constraints.keySet());
-
-        final int columnCount = 1 + Collections.max(colsUsed);
+        final int columnCount = getConvertedColumnCount();
 
         final List<List<Object>> rows = new ArrayList<List<Object>>(rowCount);
 
         for (int i = 0; i < rowCount; i++) {
-            boolean validRow = true;
-            final List<Object> row = new ArrayList<Object>();
-            for (int j = 0; j < columnCount; j++) {
-                Object value = model.getValueAt(i, j);
-                ValueConverter converter = map.get(j);
-                if (converter != null) {
-                    value = converter.convertFrom(value);
-                }
-                final Constraint constraint = constraints.get(j);
-                // Verification de la validité de la valeur à importer
-                if (constraint != null && !constraint.isValid(value)) {
-                    validRow = false;
-                    break;
-                }
-                row.add(value);
-            }
-            if (validRow) {
+            final List<Object> row = convertLine(model.getLineValuesAt(i), columnCount);
+            if (row != null) {
                 rows.add(row);
             }
         }
@@ -363,13 +379,42 @@ public class DataImporter {
         return new ArrayTableModel(rows);
     }
 
+    private int getConvertedColumnCount() {
+        final ArrayList<Integer> colsUsed = new ArrayList<Integer>(map.keySet());
+        colsUsed.addAll(constraints.keySet());
+        return 1 + Collections.max(colsUsed);
+    }
+
+    /**
+     * Convertit une ligne.
+     * 
+     * @param line les valeurs lues.
+     * @param columnCount le nombre de colonnes à convertir.
+     * @return les valeurs converties, <code>null</code> si une contrainte n'est pas respectée.
+     */
+    private List<Object> convertLine(List<Object> line, int columnCount) {
+        final List<Object> row = new ArrayList<Object>(columnCount);
+        for (int j = 0; j < columnCount; j++) {
+            Object value = line.get(j);
+            ValueConverter converter = map.get(j);
+            if (converter != null) {
+                value = converter.convertFrom(value);
+            }
+            final Constraint constraint = constraints.get(j);
+            // Verification de la validité de la valeur à importer
+            if (constraint != null && !constraint.isValid(value)) {
+                return null;
+            }
+            row.add(value);
+        }
+        return row;
+    }
+
     protected void customizeRowValuesToFetch(SQLRowValues vals) {
 
     }
 
-    public void importFromModel(ArrayTableModel model) throws IOException {
-        final int rowCount = model.getRowCount();
-        // Load existing data for duplication check
+    private SQLRowValues createRowValuesToFetch() {
         final SQLRowValues vals = new SQLRowValues(table);
 
         for (SQLField field : this.fieldMap.keySet()) {
@@ -383,6 +428,13 @@ public class DataImporter {
             }
         }
         customizeRowValuesToFetch(vals);
+        return vals;
+    }
+
+    public void importFromModel(ArrayTableModel model) throws IOException {
+        final int rowCount = model.getRowCount();
+        // Load existing data for duplication check
+        final SQLRowValues vals = createRowValuesToFetch();
         System.out.println("Fetching values");
         SQLRowValuesListFetcher fetcher = SQLRowValuesListFetcher.create(vals);
         List<SQLRowValues> existingRows = fetcher.fetch();
@@ -406,32 +458,47 @@ public class DataImporter {
         for (int i = 0; i < rowCount; i++) {
 
             // Recherche d'existant
+            final List<Object> line = model.getLineValuesAt(i);
             SQLRowValues existingRow = null;
             for (SQLField field : this.uniqueField) {
-                List<Integer> cols = fieldMap.get(field);
-                Object objectToInsert = null;
-                for (Integer col : cols) {
-                    Object v = model.getValueAt(i, col);
-                    if (objectToInsert == null) {
-                        objectToInsert = v;
-                    } else if (v instanceof String) {
-                        objectToInsert = objectToInsert.toString() + "\n" + (String) v;
-                    }
-
-                }
-
-                existingRow = cache.get(field).get(objectToInsert);
+                existingRow = cache.get(field).get(getValue(line, field));
                 if (existingRow != null) {
                     break;
                 }
             }
 
-            updateOrInsert(model, converters, i, existingRow);
+            final SQLRowValues rowVals = createRowValues(line, converters, existingRow);
+            if (existingRow == null) {
+                this.valuesToInsert.add(rowVals);
+            }
+            // else if (!newValues.equals(existingRow.getAbsolutelyAll())) {
+            else {
+                this.valuesToUpdate.add(rowVals);
+                // for (SQLRowValues ref : rowVals.getReferentRows()) {
+                // this.valuesToUpdate.add(ref);
+                // }
+            }
         }
 
     }
 
-    private void updateOrInsert(ArrayTableModel model, final ValueConverter[] converters, int i, SQLRowValues existingRow) {
+    // la valeur du champ, les colonnes multiples sont concaténées
+    private Object getValue(List<Object> line, SQLField field) {
+        List<Integer> cols = fieldMap.get(field);
+        Object objectToInsert = null;
+        for (Integer col : cols) {
+            Object v = line.get(col);
+            if (objectToInsert == null) {
+                objectToInsert = v;
+            } else if (v instanceof String) {
+                objectToInsert = objectToInsert.toString() + "\n" + (String) v;
+            }
+
+        }
+        return objectToInsert;
+    }
+
+    private SQLRowValues createRowValues(List<Object> line, final ValueConverter[] converters, SQLRowValues existingRow) {
 
         final Map<String, Object> newValues = new HashMap<String, Object>();
         if (existingRow != null) {
@@ -441,17 +508,7 @@ public class DataImporter {
         for (int j = 0; j < converters.length; j++) {
             ValueConverter valueConverter = converters[j];
 
-            List<Integer> cols = fieldMap.get(valueConverter.getField());
-            Object objectToInsert = null;
-            for (Integer col : cols) {
-                Object v = model.getValueAt(i, col);
-                if (objectToInsert == null) {
-                    objectToInsert = v;
-                } else if (v instanceof String) {
-                    objectToInsert = objectToInsert.toString() + "\n" + (String) v;
-                }
-
-            }
+            Object objectToInsert = getValue(line, valueConverter.getField());
 
             final String fieldName = valueConverter.getFieldName();
             if (objectToInsert != null || !valueConverter.isIgnoringEmptyValue()) {
@@ -475,16 +532,376 @@ public class DataImporter {
             }
         }
         final SQLRowValues rowVals = new SQLRowValues(table, newValues);
-        patchRowValues(rowVals, model.getLineValuesAt(i), existingRow);
-        if (existingRow == null) {
-            this.valuesToInsert.add(rowVals);
+        patchRowValues(rowVals, Collections.unmodifiableList(line), existingRow);
+        return rowVals;
+    }
+
+    /**
+     * Importe un fichier ligne par ligne, sans le charger en entier (pour les fichiers CSV, les
+     * tableurs étant chargés par leur bibliothèque), cf.
+     * {@link #importStreamed(Iterator, int, IClosure)}.
+     * 
+     * @param file le fichier.
+     * @param sheetNumber la feuille à importer (ODS et XLS).
+     * @param chunkSize le nombre de lignes par transaction.
+     * @param progress appelé après chaque transaction, peut être <code>null</code>.
+     * @return les statistiques de l'import.
+     * @throws IOException si le fichier n'a pu être lu.
+     * @throws SQLException si les lignes n'ont pu être enregistrées.
+     */
+    public ImportProgress importStreamed(File file, int sheetNumber, int chunkSize, IClosure<ImportProgress> progress) throws IOException, SQLException {
+        if (!file.exists()) {
+            throw new IllegalArgumentException(file.getAbsolutePath() + " does not exist");
+        }
+        if (file.getName().toLowerCase().endsWith(".csv")) {
+            final CSVReader csvReader = createCSVReader(file);
+            if (csvReader == null) {
+                return new ImportProgress();
+            }
+            try {
+                return importStreamed(new CSVLineIterator(csvReader, this.skipFirstLine), chunkSize, progress);
+            } finally {
+                csvReader.close();
+            }
+        } else {
+            final ArrayTableModel model = createModelFrom(file, sheetNumber);
+            final List<List<Object>> lines = new ArrayList<List<Object>>(model.getRowCount());
+            for (int i = 0; i < model.getRowCount(); i++) {
+                lines.add(model.getLineValuesAt(i));
+            }
+            return importStreamed(lines.iterator(), chunkSize, progress);
+        }
+    }
+
+    /**
+     * Importe des lignes au fur et à mesure de leur lecture. Contrairement à
+     * {@link #importFromModel(ArrayTableModel)} puis {@link #commit()}, seuls les champs uniques
+     * des lignes existantes sont chargés (dans un index) et les lignes sont enregistrées par lots,
+     * chacun dans une transaction avec un INSERT de plusieurs lignes et des UPDATE envoyés en une
+     * fois. Une ligne ayant les mêmes valeurs uniques qu'une ligne précédente la met à jour, quelle
+     * que soit la taille des lots. {@link #getValuesToInsert()} et {@link #getValuesToUpdate()} ne
+     * sont pas utilisés.
+     * 
+     * @param lines les lignes à importer, non converties.
+     * @param chunkSize le nombre de lignes par transaction.
+     * @param progress appelé après chaque transaction, peut être <code>null</code>.
+     * @return les statistiques de l'import.
+     * @throws SQLException si les lignes n'ont pu être enregistrées, les lots précédents restent
+     *         enregistrés.
+     */
+    public ImportProgress importStreamed(Iterator<? extends List<Object>> lines, int chunkSize, IClosure<ImportProgress> progress) throws SQLException {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Invalid chunk size : " + chunkSize);
+        }
+        final ImportProgress res = new ImportProgress();
+        final int columnCount = getConvertedColumnCount();
+        final ValueConverter[] converters = map.values().toArray(new ValueConverter[map.size()]);
+        final Map<SQLField, Map<Object, Integer>> index = createUniqueIndex();
+
+        final List<List<Object>> chunk = new ArrayList<List<Object>>(chunkSize);
+        final List<Integer> chunkIDs = new ArrayList<Integer>(chunkSize);
+        while (lines.hasNext()) {
+            final List<Object> line = convertLine(lines.next(), columnCount);
+            res.readCount++;
+            if (line == null) {
+                res.rejectedCount++;
+                continue;
+            }
+            Integer existingID = null;
+            for (final Entry<SQLField, Map<Object, Integer>> e : index.entrySet()) {
+                existingID = e.getValue().get(getValue(line, e.getKey()));
+                if (existingID != null) {
+                    break;
+                }
+            }
+            chunk.add(line);
+            chunkIDs.add(existingID);
+            if (chunk.size() == chunkSize || !lines.hasNext()) {
+                writeChunk(chunk, chunkIDs, converters, index, res);
+                chunk.clear();
+                chunkIDs.clear();
+                if (progress != null)
+                    progress.executeChecked(res);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            writeChunk(chunk, chunkIDs, converters, index, res);
+            if (progress != null)
+                progress.executeChecked(res);
+        }
+        doAfterImport();
+        return res;
+    }
+
+    // pour chaque champ unique, l'ID de la ligne par valeur
+    private Map<SQLField, Map<Object, Integer>> createUniqueIndex() {
+        final Map<SQLField, Map<Object, Integer>> res = new LinkedHashMap<SQLField, Map<Object, Integer>>();
+        if (this.uniqueField.isEmpty()) {
+            return res;
+        }
+        final SQLSelect sel = new SQLSelect();
+        sel.addSelect(table.getKey());
+        for (SQLField field : this.uniqueField) {
+            sel.addSelect(field);
+            res.put(field, new HashMap<Object, Integer>());
+        }
+        final List<Map<Object, Integer>> maps = new ArrayList<Map<Object, Integer>>(res.values());
+        // ne pas garder le résultat en mémoire
+        table.getDBSystemRoot().getDataSource().execute(sel.asString(), new ResultSetHandler() {
+            @Override
+            public Object handle(ResultSet rs) throws SQLException {
+                while (rs.next()) {
+                    final Integer id = rs.getInt(1);
+                    for (int i = 0; i < maps.size(); i++) {
+                        maps.get(i).put(rs.getObject(i + 2), id);
+                    }
+                }
+                return null;
+            }
+        });
+        return res;
+    }
+
+    private void writeChunk(final List<List<Object>> chunk, final List<Integer> chunkIDs, final ValueConverter[] converters, final Map<SQLField, Map<Object, Integer>> index,
+            final ImportProgress progress) throws SQLException {
+        // lignes existantes du lot
+        final Set<Integer> ids = new HashSet<Integer>(chunkIDs);
+        ids.remove(null);
+        final Map<Integer, SQLRowValues> existingRows = new HashMap<Integer, SQLRowValues>();
+        if (!ids.isEmpty()) {
+            final SQLRowValuesListFetcher fetcher = SQLRowValuesListFetcher.create(createRowValuesToFetch());
+            fetcher.setSelTransf(new ITransformer<SQLSelect, SQLSelect>() {
+                @Override
+                public SQLSelect transformChecked(SQLSelect input) {
+                    input.setWhere(new Where(table.getKey(), ids));
+                    return input;
+                }
+            });
+            for (final SQLRowValues r : fetcher.fetch()) {
+                existingRows.put(r.getID(), r);
+            }
+        }
+
+        final List<SQLRowValues> toInsert = new ArrayList<SQLRowValues>();
+        final List<SQLRowValues> toUpdate = new ArrayList<SQLRowValues>();
+        // lignes du lot en attente, une ligne suivante avec les mêmes valeurs les complète comme si
+        // elles avaient été enregistrées dans un lot précédent : le résultat ne dépend pas de la
+        // taille des lots
+        final Map<Integer, Integer> pendingUpdates = new HashMap<Integer, Integer>();
+        final Map<SQLField, Map<Object, Integer>> pendingInserts = new LinkedHashMap<SQLField, Map<Object, Integer>>();
+        for (final SQLField field : index.keySet()) {
+            pendingInserts.put(field, new HashMap<Object, Integer>());
         }
-        // else if (!newValues.equals(existingRow.getAbsolutelyAll())) {
-        else {
-            this.valuesToUpdate.add(rowVals);
-            // for (SQLRowValues ref : rowVals.getReferentRows()) {
-            // this.valuesToUpdate.add(ref);
-            // }
+        int mergedCount = 0;
+        for (int i = 0; i < chunk.size(); i++) {
+            final List<Object> line = chunk.get(i);
+            final Integer id = chunkIDs.get(i);
+            final Integer updateIndex = id == null ? null : pendingUpdates.get(id);
+            Integer insertIndex = null;
+            if (id == null) {
+                for (final Entry<SQLField, Map<Object, Integer>> e : pendingInserts.entrySet()) {
+                    insertIndex = e.getValue().get(getValue(line, e.getKey()));
+                    if (insertIndex != null) {
+                        break;
+                    }
+                }
+            }
+            if (updateIndex != null) {
+                toUpdate.set(updateIndex, mergeRowValues(line, converters, toUpdate.get(updateIndex)));
+                mergedCount++;
+            } else if (insertIndex != null) {
+                toInsert.set(insertIndex, mergeRowValues(line, converters, toInsert.get(insertIndex)));
+                mergedCount++;
+            } else {
+                final SQLRowValues existingRow = id == null ? null : existingRows.get(id);
+                final SQLRowValues rowVals = createRowValues(line, converters, existingRow);
+                if (existingRow == null) {
+                    for (final Entry<SQLField, Map<Object, Integer>> e : pendingInserts.entrySet()) {
+                        e.getValue().put(getValue(line, e.getKey()), toInsert.size());
+                    }
+                    toInsert.add(rowVals);
+                } else {
+                    pendingUpdates.put(id, toUpdate.size());
+                    toUpdate.add(rowVals);
+                }
+            }
+        }
+
+        final List<Number> insertedIDs = SQLUtils.executeAtomic(table.getDBSystemRoot().getDataSource(), new SQLFactory<List<Number>>() {
+            @Override
+            public List<Number> create() throws SQLException {
+                final List<Number> res = insertRows(toInsert);
+                updateRows(toUpdate);
+                return res;
+            }
+        });
+        table.fireTableModified(SQLRow.NONEXISTANT_ID);
+
+        // les lignes suivantes avec les mêmes valeurs mettront à jour celles insérées
+        for (int i = 0; i < toInsert.size(); i++) {
+            final Number id = insertedIDs.get(i);
+            if (id != null) {
+                for (final Entry<SQLField, Map<Object, Integer>> e : index.entrySet()) {
+                    e.getValue().put(toInsert.get(i).getObject(e.getKey().getName()), id.intValue());
+                }
+            }
+        }
+        progress.insertedCount += toInsert.size();
+        progress.updatedCount += toUpdate.size() + mergedCount;
+    }
+
+    // complète une ligne en attente avec une ligne suivante ayant les mêmes valeurs uniques
+    private SQLRowValues mergeRowValues(List<Object> line, final ValueConverter[] converters, SQLRowValues pending) {
+        final SQLRowValues res = createRowValues(line, converters, pending);
+        // la ligne remplacée ne doit pas rester liée aux lignes étrangères reprises par res
+        for (final String field : new ArrayList<String>(pending.getForeigns().keySet())) {
+            pending.remove(field);
+        }
+        return res;
+    }
+
+    // vrai si la ligne ne référence pas de ligne à insérer et que ses valeurs peuvent être écrites
+    // directement en SQL
+    private boolean isBatchable(SQLRowValues rowVals) {
+        for (final Entry<String, Object> e : rowVals.getAbsolutelyAll().entrySet()) {
+            if (e.getValue() instanceof SQLRowValues || !table.getField(e.getKey()).getType().isValid(e.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void addMetadata(final Map<String, String> values, final SQLField userField, final SQLField dateField, final String user, final String date) {
+        if (userField != null && user != null) {
+            values.put(userField.getName(), user);
+        }
+        if (dateField != null) {
+            values.put(dateField.getName(), date);
+        }
+    }
+
+    private Map<String, String> getSQLValues(SQLRowValues rowVals, final boolean insert, final String user, final String date) {
+        final Map<String, String> res = new LinkedHashMap<String, String>();
+        for (final Entry<String, Object> e : rowVals.getAbsolutelyAll().entrySet()) {
+            final SQLField f = table.getField(e.getKey());
+            if (!f.isKey()) {
+                res.put(f.getName(), f.getType().toString(e.getValue()));
+            }
+        }
+        if (insert) {
+            addMetadata(res, table.getCreationUserField(), table.getCreationDateField(), user, date);
+        }
+        addMetadata(res, table.getModifUserField(), table.getModifDateField(), user, date);
+        return res;
+    }
+
+    private String getSQLUser() {
+        final int userID = UserManager.getUserID();
+        return userID < SQLRow.MIN_VALID_ID ? null : String.valueOf(userID);
+    }
+
+    private String getSQLDate() {
+        final SQLField dateField = table.getModifDateField() != null ? table.getModifDateField() : table.getCreationDateField();
+        return dateField == null ? null : dateField.getType().toString(new Timestamp(System.currentTimeMillis()));
+    }
+
+    /**
+     * Insère les lignes, celles avec les mêmes champs en une requête.
+     * 
+     * @param rows les lignes à insérer.
+     * @return l'ID de chaque ligne, <code>null</code> si inconnu.
+     * @throws SQLException si une ligne n'a pu être insérée.
+     */
+    private List<Number> insertRows(final List<SQLRowValues> rows) throws SQLException {
+        final Number[] res = new Number[rows.size()];
+        final String user = getSQLUser();
+        final String date = getSQLDate();
+        final SQLField orderField = table.getOrderField();
+        // lignes par liste de champs
+        final Map<List<String>, List<Integer>> byFields = new LinkedHashMap<List<String>, List<Integer>>();
+        final List<Map<String, String>> sqlValues = new ArrayList<Map<String, String>>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            final SQLRowValues rowVals = rows.get(i);
+            if (isBatchable(rowVals)) {
+                final Map<String, String> values = getSQLValues(rowVals, true, user, date);
+                sqlValues.add(values);
+                final List<String> fields = new ArrayList<String>(values.keySet());
+                List<Integer> l = byFields.get(fields);
+                if (l == null) {
+                    l = new ArrayList<Integer>();
+                    byFields.put(fields, l);
+                }
+                l.add(i);
+            } else {
+                sqlValues.add(null);
+                res[i] = rowVals.insert().getIDNumber();
+            }
+        }
+
+        final SQLSyntax syntax = SQLSyntax.get(table);
+        for (final Entry<List<String>, List<Integer>> e : byFields.entrySet()) {
+            final List<String> fields = new ArrayList<String>(e.getKey());
+            final List<Integer> indexes = e.getValue();
+            // comme SQLRowValues.insert(), ajout à la fin
+            BigDecimal order = null;
+            if (orderField != null && !fields.contains(orderField.getName())) {
+                fields.add(orderField.getName());
+                final SQLSelect sel = new SQLSelect(true);
+                sel.addSelect(orderField, "max");
+                final Number max = (Number) table.getDBSystemRoot().getDataSource().executeScalar(sel.asString());
+                order = max == null ? ReOrder.MIN_ORDER : new BigDecimal(max.toString());
+            }
+            final List<List<String>> valuesRows = new ArrayList<List<String>>(indexes.size());
+            for (final Integer i : indexes) {
+                final List<String> r = new ArrayList<String>(sqlValues.get(i).values());
+                if (order != null) {
+                    order = order.add(BigDecimal.ONE);
+                    r.add(orderField.getType().toString(order));
+                }
+                valuesRows.add(r);
+            }
+            final StringBuilder sql = new StringBuilder(valuesRows.size() * 64);
+            sql.append('(');
+            for (final String f : fields) {
+                if (sql.length() > 1)
+                    sql.append(", ");
+                sql.append(SQLBase.quoteIdentifier(f));
+            }
+            sql.append(") ");
+            sql.append(syntax.getValues(valuesRows, fields.size()));
+            final List<Number> ids = SQLRowValues.insertIDs(table, sql.toString());
+            for (int j = 0; j < indexes.size(); j++) {
+                res[indexes.get(j)] = ids == null ? null : ids.get(j);
+            }
+        }
+        return Arrays.asList(res);
+    }
+
+    /**
+     * Met à jour les lignes, les requêtes étant envoyées en une fois.
+     * 
+     * @param rows les lignes à mettre à jour.
+     * @throws SQLException si une ligne n'a pu être mise à jour.
+     */
+    private void updateRows(final List<SQLRowValues> rows) throws SQLException {
+        final String user = getSQLUser();
+        final String date = getSQLDate();
+        final List<String> requests = new ArrayList<String>(rows.size());
+        for (final SQLRowValues rowVals : rows) {
+            if (isBatchable(rowVals)) {
+                final UpdateBuilder update = new UpdateBuilder(table);
+                for (final Entry<String, String> e : getSQLValues(rowVals, false, user, date).entrySet()) {
+                    update.set(e.getKey(), e.getValue());
+                }
+                update.setWhere(new Where(table.getKey(), "=", rowVals.getID()));
+                requests.add(update.asString());
+            } else {
+                rowVals.update();
+            }
+        }
+        if (!requests.isEmpty()) {
+            final List<ResultSetHandler> handlers = Collections.nCopies(requests.size(), null);
+            SQLUtils.executeMultiple(table.getDBSystemRoot(), requests, handlers);
         }
     }
 
@@ -519,4 +936,104 @@ public class DataImporter {
         throw new IllegalArgumentException("File format not supported");
 
     }
+
+    /**
+     * L'avancement d'un import par lots.
+     * 
+     * @see DataImporter#importStreamed(Iterator, int, IClosure)
+     */
+    public static final class ImportProgress {
+        private final long startTime;
+        private int readCount, rejectedCount, insertedCount, updatedCount;
+
+        ImportProgress() {
+            this.startTime = System.nanoTime();
+        }
+
+        /**
+         * @return le nombre de lignes lues.
+         */
+        public final int getReadCount() {
+            return this.readCount;
+        }
+
+        /**
+         * @return le nombre de lignes ne respectant pas une contrainte.
+         */
+        public final int getRejectedCount() {
+            return this.rejectedCount;
+        }
+
+        public final int getInsertedCount() {
+            return this.insertedCount;
+        }
+
+        public final int getUpdatedCount() {
+            return this.updatedCount;
+        }
+
+        /**
+         * @return le temps écoulé depuis le début de l'import en nanosecondes.
+         */
+        public final long getElapsedNanos() {
+            return System.nanoTime() - this.startTime;
+        }
+
+        /**
+         * @return le nombre de lignes lues par seconde depuis le début de l'import.
+         */
+        public final double getRowsPerSecond() {
+            final long elapsed = this.getElapsedNanos();
+            return elapsed == 0 ? 0 : this.readCount * 1000000000d / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return this.readCount + " rows read (" + this.rejectedCount + " rejected), " + this.insertedCount + " inserted, " + this.updatedCount + " updated, "
+                    + String.format("%.1f", this.getRowsPerSecond()) + " rows/s";
+        }
+    }
+
+    // lignes d'un fichier CSV, toutes de la taille de la première
+    private static final class CSVLineIterator implements Iterator<List<Object>> {
+        private final CSVReader reader;
+        private String[] next;
+        private int columnCount;
+
+        CSVLineIterator(final CSVReader reader, final boolean skipFirstLine) throws IOException {
+            this.reader = reader;
+            this.next = reader.readNext();
+            this.columnCount = this.next == null ? 0 : this.next.length;
+            if (skipFirstLine && this.next != null) {
+                this.next = reader.readNext();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.next != null;
+        }
+
+        @Override
+        public List<Object> next() {
+            if (this.next == null) {
+                throw new NoSuchElementException();
+            }
+            final List<Object> res = new ArrayList<Object>(this.columnCount);
+            for (int j = 0; j < this.columnCount; j++) {
+                res.add(j < this.next.length ? this.next[j] : null);
+            }
+            try {
+                this.next = this.reader.readNext();
+            } catch (IOException e) {
+                throw new IllegalStateException("Couldn't read next line", e);
+            }
+            return res;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
@@ -14,6 +14,8 @@
  package org.openconcerto.erp.model;
 
 import org.openconcerto.erp.core.humanresources.payroll.element.FichePayeSQLElement;
+import org.openconcerto.erp.core.humanresources.payroll.element.VariablePayeSQLElement;
+import org.openconcerto.erp.core.humanresources.payroll.formule.Formules;
 import org.openconcerto.erp.core.humanresources.payroll.report.FichePayeSheet;
 import org.openconcerto.erp.core.humanresources.payroll.ui.VisualisationPayeFrame;
 import org.openconcerto.sql.Configuration;
@@ -27,6 +29,7 @@ import org.openconcerto.utils.ExceptionHandler;
 
 import java.sql.Date;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -229,6 +232,10 @@ public class EditionFichePayeModel extends AbstractTableModel {
 
                     final SQLElement eltSal = Configuration.getInstance().getDirectory().getElement("SALARIE");
                     final SQLElement eltFichePaye = Configuration.getInstance().getDirectory().getElement("FICHE_PAYE");
+                    // les formules ne sont analysées qu'une fois pour toutes les fiches
+                    final Formules formules = new Formules(VariablePayeSQLElement.getMapTree());
+                    // salariés dont la nouvelle fiche est à calculer
+                    final List<Integer> idsSalCalcul = new ArrayList<Integer>();
 
                     // On crée la fiche de paye pour chacun des salariés sélectionnés
                     for (int i = 0; i < EditionFichePayeModel.this.vData.size(); i++) {
@@ -311,11 +318,8 @@ public class EditionFichePayeModel extends AbstractTableModel {
                                 // Validation de la fiche
                                 FichePayeSQLElement.validationFiche(idFiche);
 
-                                // Update des rubriques
-                                SQLRow rowSalNew = eltSal.getTable().getRow(idSal);
-                                final int idFicheNew = rowSalNew.getInt("ID_FICHE_PAYE");
-                                FichePayeModel ficheModel = new FichePayeModel(idFicheNew);
-                                ficheModel.loadAllElements();
+                                // Update des rubriques, une fois toutes les fiches validées
+                                idsSalCalcul.add(idSal);
 
                                 EditionFichePayeModel.this.bar.setValue(tmp++);
 
@@ -353,6 +357,27 @@ public class EditionFichePayeModel extends AbstractTableModel {
 
                         }
                     }
+
+                    // Calcul des nouvelles fiches en parallèle
+                    if (!idsSalCalcul.isEmpty()) {
+                        SwingUtilities.invokeLater(new Runnable() {
+                            public void run() {
+                                EditionFichePayeModel.this.labelEtat.setText("Calcul des nouvelles fiches");
+                            }
+                        });
+                        // validationFiche() associe la nouvelle fiche au salarié dans l'EDT
+                        SwingUtilities.invokeAndWait(new Runnable() {
+                            public void run() {
+                            }
+                        });
+                        final FichePayeBatch.Rapport rapport = new FichePayeBatch(formules).calcul(idsSalCalcul);
+                        System.err.println(rapport);
+                        if (!rapport.getErreurs().isEmpty()) {
+                            final Map.Entry<Integer, Throwable> e = rapport.getErreurs().entrySet().iterator().next();
+                            final SQLRow rowSal = eltSal.getTable().getRow(e.getKey().intValue());
+                            ExceptionHandler.handle(rapport.getErreurs().size() + " fiche(s) n'ont pu être calculées, dont celle de " + rowSal.getString("CODE") + " " + rowSal.getString("NOM"), e.getValue());
+                        }
+                    }
                 } catch (Exception e) {
                     ExceptionHandler.handle("Erreur pendant la création des fiches de paye", e);
                 }
@@ -0,0 +1,174 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.model;
+
+import org.openconcerto.erp.config.ComptaPropsConfiguration;
+import org.openconcerto.erp.core.humanresources.payroll.formule.Formules;
+import org.openconcerto.sql.Configuration;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.utils.ThreadFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Calcule les fiches de paye de plusieurs salariés en parallèle, e.g. pour la création des payes
+ * du mois. Les formules sont analysées une fois pour toutes les fiches, chaque fiche est calculée
+ * en mémoire par son propre {@link FichePayeModel} puis enregistrée en une transaction (voir
+ * {@link FichePayeModel#calculFiche()}).
+ */
+@ThreadSafe
+public class FichePayeBatch {
+
+    static public int getDefaultThreadCount() {
+        // une partie du temps est passée à attendre la base
+        return Runtime.getRuntime().availableProcessors() + 1;
+    }
+
+    private final SQLTable tableSalarie;
+    private final Formules formules;
+    private final int threadCount;
+
+    public FichePayeBatch(final Formules formules) {
+        this(formules, getDefaultThreadCount());
+    }
+
+    /**
+     * Crée un calcul.
+     * 
+     * @param formules les formules, partagées par toutes les fiches.
+     * @param threadCount le nombre maximum de fiches calculées en même temps.
+     */
+    public FichePayeBatch(final Formules formules, final int threadCount) {
+        if (threadCount < 1)
+            throw new IllegalArgumentException("Nombre de threads incorrect : " + threadCount);
+        this.tableSalarie = ((ComptaPropsConfiguration) Configuration.getInstance()).getSQLBaseSociete().getTable("SALARIE");
+        this.formules = formules;
+        this.threadCount = threadCount;
+    }
+
+    public final int getThreadCount() {
+        return this.threadCount;
+    }
+
+    /**
+     * Calcule et enregistre la fiche courante (SALARIE.ID_FICHE_PAYE) de chaque salarié. Une erreur
+     * sur une fiche n'empêche pas le calcul des autres, elle est retournée dans le rapport.
+     * 
+     * @param idsSalarie les salariés.
+     * @return le temps de calcul de chaque fiche et les erreurs.
+     * @throws InterruptedException si le thread courant est interrompu, les calculs en cours sont
+     *         alors interrompus.
+     */
+    public final Rapport calcul(final Collection<Integer> idsSalarie) throws InterruptedException {
+        final long start = System.nanoTime();
+        final Map<Integer, Long> durees = new LinkedHashMap<Integer, Long>();
+        final Map<Integer, Throwable> erreurs = new LinkedHashMap<Integer, Throwable>();
+        if (!idsSalarie.isEmpty()) {
+            final int nbThreads = Math.min(this.threadCount, idsSalarie.size());
+            final ThreadPoolExecutor exec = new ThreadPoolExecutor(nbThreads, nbThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory("Calcul paye ", true));
+            try {
+                final Map<Integer, Future<Long>> futures = new LinkedHashMap<Integer, Future<Long>>();
+                for (final Integer idSal : idsSalarie) {
+                    futures.put(idSal, exec.submit(new Callable<Long>() {
+                        @Override
+                        public Long call() throws Exception {
+                            final long startFiche = System.nanoTime();
+                            final int idFiche = FichePayeBatch.this.tableSalarie.getRow(idSal.intValue()).getInt("ID_FICHE_PAYE");
+                            new FichePayeModel(idFiche, FichePayeBatch.this.formules).calculFiche();
+                            return System.nanoTime() - startFiche;
+                        }
+                    }));
+                }
+                exec.shutdown();
+                for (final Entry<Integer, Future<Long>> e : futures.entrySet()) {
+                    try {
+                        durees.put(e.getKey(), e.getValue().get());
+                    } catch (ExecutionException exn) {
+                        erreurs.put(e.getKey(), exn.getCause());
+                    }
+                }
+            } finally {
+                // ne fait rien si tout s'est bien passé
+                exec.shutdownNow();
+            }
+        }
+        return new Rapport(durees, erreurs, System.nanoTime() - start);
+    }
+
+    @Immutable
+    static public final class Rapport {
+        private final Map<Integer, Long> durees;
+        private final Map<Integer, Throwable> erreurs;
+        private final long dureeTotale;
+
+        Rapport(final Map<Integer, Long> durees, final Map<Integer, Throwable> erreurs, final long dureeTotale) {
+            this.durees = Collections.unmodifiableMap(durees);
+            this.erreurs = Collections.unmodifiableMap(erreurs);
+            this.dureeTotale = dureeTotale;
+        }
+
+        /**
+         * Le temps de calcul de chaque fiche.
+         * 
+         * @return la durée en nanosecondes du calcul de la fiche par ID de salarié.
+         */
+        public final Map<Integer, Long> getDurees() {
+            return this.durees;
+        }
+
+        /**
+         * Les fiches qui n'ont pu être calculées ou enregistrées.
+         * 
+         * @return l'erreur par ID de salarié.
+         */
+        public final Map<Integer, Throwable> getErreurs() {
+            return this.erreurs;
+        }
+
+        public final long getDureeTotale() {
+            return this.dureeTotale;
+        }
+
+        /**
+         * Le débit du calcul.
+         * 
+         * @return le nombre de fiches calculées par seconde.
+         */
+        public final double getFichesParSeconde() {
+            return this.dureeTotale == 0 ? 0 : this.durees.size() * (double) TimeUnit.SECONDS.toNanos(1) / this.dureeTotale;
+        }
+
+        @Override
+        public String toString() {
+            long max = 0;
+            for (final Long d : this.durees.values())
+                max = Math.max(max, d.longValue());
+            return this.durees.size() + " fiche(s) calculée(s) en " + TimeUnit.NANOSECONDS.toMillis(this.dureeTotale) + " ms (" + String.format("%.1f", this.getFichesParSeconde())
+                    + " fiches/s, la plus longue : " + TimeUnit.NANOSECONDS.toMillis(max) + " ms), " + this.erreurs.size() + " erreur(s)";
+        }
+    }
+}
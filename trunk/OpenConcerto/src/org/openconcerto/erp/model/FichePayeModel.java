@@ -14,9 +14,10 @@
  package org.openconcerto.erp.model;
 
 import org.openconcerto.erp.config.ComptaPropsConfiguration;
-import org.openconcerto.erp.core.common.ui.SQLJavaEditor;
 import org.openconcerto.erp.core.humanresources.payroll.element.PeriodeValiditeSQLElement;
 import org.openconcerto.erp.core.humanresources.payroll.element.VariablePayeSQLElement;
+import org.openconcerto.erp.core.humanresources.payroll.formule.FormuleContext;
+import org.openconcerto.erp.core.humanresources.payroll.formule.Formules;
 import org.openconcerto.erp.preferences.PayeGlobalPreferencePanel;
 import org.openconcerto.sql.Configuration;
 import org.openconcerto.sql.model.SQLBase;
@@ -26,6 +27,7 @@ import org.openconcerto.sql.model.SQLSelect;
 import org.openconcerto.sql.model.SQLTable;
 import org.openconcerto.sql.model.Where;
 import org.openconcerto.sql.preferences.SQLPreferences;
+import org.openconcerto.sql.utils.SQLUtils;
 
 import java.sql.SQLException;
 import java.util.Date;
@@ -60,7 +62,12 @@ public class FichePayeModel extends AbstractTableModel {
     private final static SQLTable tableFichePaye = base.getTable("FICHE_PAYE");
     private final static SQLTable tableValidite = Configuration.getInstance().getBase().getTable("PERIODE_VALIDITE");
 
-    private SQLJavaEditor javaEdit = new SQLJavaEditor(VariablePayeSQLElement.getMapTree());
+    // formules analysées, partagées entre les fiches
+    private final Formules formules;
+    // valeurs du salarié de la fiche
+    private FormuleContext context;
+    // pendant calculFiche(), la fiche n'est écrite qu'une fois à la fin
+    private boolean ecritureDifferee;
 
     // liste des variable de paye à calculer
     private float salBrut, cotPat, cotSal, netImp, netAPayer, csg;
@@ -69,10 +76,23 @@ public class FichePayeModel extends AbstractTableModel {
     private final double tauxCSG;
 
     public FichePayeModel(int idFiche) {
+        this(idFiche, new Formules(VariablePayeSQLElement.getMapTree()));
+    }
+
+    /**
+     * Crée un modèle.
+     * 
+     * @param idFiche la fiche de paye.
+     * @param formules les formules, peuvent être partagées entre plusieurs fiches (e.g. pendant la
+     *        création des payes du mois) pour n'analyser chaque formule qu'une fois.
+     */
+    public FichePayeModel(int idFiche, Formules formules) {
 
         System.err.println("NEW FICHE PAYE MODEL");
 
+        this.formules = formules;
         this.idFiche = idFiche;
+        this.ecritureDifferee = false;
         this.vectRubrique = new Vector<SQLRowValues>();
         this.vectRowValsToDelete = new Vector<SQLRowValues>();
 
@@ -149,7 +169,8 @@ public class FichePayeModel extends AbstractTableModel {
 
         SQLRow rowFiche = tableFichePaye.getRow(this.idFiche);
 
-        this.javaEdit.setSalarieID(rowFiche.getInt("ID_SALARIE"));
+        // valeurs rechargées à chaque fois
+        this.context = this.formules.createContext(rowFiche.getForeignRow("ID_SALARIE"));
 
         // éléments de la fiche de paye
         SQLSelect selAllIDFicheElt = new SQLSelect();
@@ -440,6 +461,7 @@ public class FichePayeModel extends AbstractTableModel {
 
     public void setFicheID(int id) {
         this.idFiche = id;
+        this.context = null;
 
         // this.javaEdit.setSalarieID(this.tableFichePaye.getRow(this.idFiche).getInt("ID_SALARIE"));
         this.loadAllElements();
@@ -620,8 +642,7 @@ public class FichePayeModel extends AbstractTableModel {
         return b;
     }
 
-    private void updateValueFiche() {
-
+    private SQLRowValues getValuesFiche() {
         SQLRowValues rowValsFiche = new SQLRowValues(tableFichePaye);
         rowValsFiche.put("SAL_BRUT", Float.valueOf(this.salBrut));
         rowValsFiche.put("NET_IMP", Float.valueOf(this.netImp + this.salBrut));
@@ -629,11 +650,45 @@ public class FichePayeModel extends AbstractTableModel {
         rowValsFiche.put("COT_SAL", Float.valueOf(this.cotSal));
         rowValsFiche.put("COT_PAT", Float.valueOf(this.cotPat));
         rowValsFiche.put("CSG", Float.valueOf((this.salBrut + this.csg) * (float) this.tauxCSG));
+        return rowValsFiche;
+    }
+
+    private void updateValueFiche() {
+
+        SQLRowValues rowValsFiche = getValuesFiche();
+
+        if (!this.ecritureDifferee) {
+            try {
+                rowValsFiche.update(this.idFiche);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        // les formules suivantes utilisent les nouvelles valeurs sans relire la fiche
+        getContext().setValues(tableFichePaye, this.idFiche, rowValsFiche.getAbsolutelyAll());
+    }
 
+    private FormuleContext getContext() {
+        if (this.context == null) {
+            this.context = this.formules.createContext(tableFichePaye.getRow(this.idFiche).getForeignRow("ID_SALARIE"));
+        }
+        return this.context;
+    }
+
+    /**
+     * Calcule une formule pour le salarié de la fiche.
+     * 
+     * @param formule formule à calculer
+     * @param varCallName variable qui recoit la formule
+     * @return la valeur de retour de la formule, <code>null</code> si elle est vide ou incorrecte
+     */
+    private Object calculFormule(String formule, String varCallName) {
         try {
-            rowValsFiche.update(this.idFiche);
-        } catch (SQLException e) {
+            return getContext().evaluate(formule, varCallName);
+        } catch (Exception e) {
+            System.err.println("Formule " + varCallName + " incorrecte : " + formule);
             e.printStackTrace();
+            return null;
         }
     }
 
@@ -651,8 +706,8 @@ public class FichePayeModel extends AbstractTableModel {
         if (!loadElement(rowVals, rowSource, row)) {
 
             // System.err.println("________________________Recalcul des ELT BRUT ");
-            Object baseOb = this.javaEdit.checkFormule(rowSource.getString("BASE"), "BASE");
-            Object tauxSalOb = this.javaEdit.checkFormule(rowSource.getString("TAUX"), "TAUX");
+            Object baseOb = calculFormule(rowSource.getString("BASE"), "BASE");
+            Object tauxSalOb = calculFormule(rowSource.getString("TAUX"), "TAUX");
             rowVals.put("NOM", rowSource.getString("NOM"));
 
             rowVals.put("NB_BASE", (baseOb == null) ? null : Float.valueOf(Math.round(Float.valueOf(baseOb.toString()).floatValue() * 100.0F) / 100.0F));
@@ -698,7 +753,7 @@ public class FichePayeModel extends AbstractTableModel {
             if (formuleMontant.trim().length() == 0) {
                 montant = Math.round(base * tauxSal * 100.0F) / 100.0F;
             } else {
-                Object montantNet = this.javaEdit.checkFormule(rowSource.getString("MONTANT"), "MONTANT");
+                Object montantNet = calculFormule(rowSource.getString("MONTANT"), "MONTANT");
                 String montantNetS = (montantNet == null) ? "0.0" : montantNet.toString();
                 montant = Math.round(Float.valueOf(montantNetS).floatValue() * 100.0F) / 100.0F;
             }
@@ -744,7 +799,7 @@ public class FichePayeModel extends AbstractTableModel {
             if (formuleMontant.trim().length() == 0) {
                 montant = Math.round(base * tauxSal * 100.0F) / 100.0F;
             } else {
-                Object montantNet = this.javaEdit.checkFormule(rowSource.getString("MONTANT"), "MONTANT");
+                Object montantNet = calculFormule(rowSource.getString("MONTANT"), "MONTANT");
                 if (montantNet != null) {
                     montant = Math.round(Float.valueOf(montantNet.toString()).floatValue() * 100.0F) / 100.0F;
                 }
@@ -787,8 +842,8 @@ public class FichePayeModel extends AbstractTableModel {
 
         if (!loadElement(rowVals, rowSource, row)) {
 
-            Object baseOb = this.javaEdit.checkFormule(rowSource.getString("BASE"), "BASE");
-            Object tauxSalOb = this.javaEdit.checkFormule(rowSource.getString("TAUX"), "TAUX");
+            Object baseOb = calculFormule(rowSource.getString("BASE"), "BASE");
+            Object tauxSalOb = calculFormule(rowSource.getString("TAUX"), "TAUX");
             rowVals.put("NOM", rowSource.getString("NOM"));
             rowVals.put("NB_BASE", (baseOb == null) ? null : Float.valueOf(Math.round(Float.valueOf(baseOb.toString()).floatValue() * 100.0F) / 100.0F));
             rowVals.put("TAUX_SAL", (tauxSalOb == null) ? null : Float.valueOf(Float.valueOf(tauxSalOb.toString()).floatValue()));
@@ -862,9 +917,9 @@ public class FichePayeModel extends AbstractTableModel {
         if (!loadElement(rowVals, rowSource, row)) {
 
             // On calcule les valeurs
-            Object baseOb = this.javaEdit.checkFormule(rowSource.getString("BASE"), "BASE");
-            Object tauxSalOb = this.javaEdit.checkFormule(rowSource.getString("TX_SAL"), "TX_SAL");
-            Object tauxPatOb = this.javaEdit.checkFormule(rowSource.getString("TX_PAT"), "TX_PAT");
+            Object baseOb = calculFormule(rowSource.getString("BASE"), "BASE");
+            Object tauxSalOb = calculFormule(rowSource.getString("TX_SAL"), "TX_SAL");
+            Object tauxPatOb = calculFormule(rowSource.getString("TX_PAT"), "TX_PAT");
             rowVals.put("NOM", rowSource.getString("NOM"));
             rowVals.put("NB_BASE", (baseOb == null) ? null : Float.valueOf(Math.round(Float.valueOf(baseOb.toString()).floatValue() * 100.0F) / 100.0F));
             rowVals.put("TAUX_SAL", (tauxSalOb == null) ? null : Float.valueOf(Float.valueOf(tauxSalOb.toString()).floatValue()));
@@ -889,12 +944,12 @@ public class FichePayeModel extends AbstractTableModel {
             return;
         }
 
-        Object baseOb = this.javaEdit.checkFormule(rowSource.getString("NB_BASE"), "BASE");
-        Object tauxSalOb = this.javaEdit.checkFormule(rowSource.getString("TAUX_SAL"), "SAL");
-        Object tauxPatOb = this.javaEdit.checkFormule(rowSource.getString("TAUX_PAT"), "PAT");
-        Object montantPatOb = this.javaEdit.checkFormule(rowSource.getString("MONTANT_PAT"), "MONTANT");
-        Object montantAdOb = this.javaEdit.checkFormule(rowSource.getString("MONTANT_SAL_AJ"), "MONTANT");
-        Object montantDedOb = this.javaEdit.checkFormule(rowSource.getString("MONTANT_SAL_DED"), "MONTANT");
+        Object baseOb = calculFormule(rowSource.getString("NB_BASE"), "BASE");
+        Object tauxSalOb = calculFormule(rowSource.getString("TAUX_SAL"), "SAL");
+        Object tauxPatOb = calculFormule(rowSource.getString("TAUX_PAT"), "PAT");
+        Object montantPatOb = calculFormule(rowSource.getString("MONTANT_PAT"), "MONTANT");
+        Object montantAdOb = calculFormule(rowSource.getString("MONTANT_SAL_AJ"), "MONTANT");
+        Object montantDedOb = calculFormule(rowSource.getString("MONTANT_SAL_DED"), "MONTANT");
         rowVals.put("NOM", rowSource.getBoolean("NOM_VISIBLE") ? rowSource.getString("NOM") : "");
         rowVals.put("NB_BASE", baseOb);
         rowVals.put("TAUX_SAL", tauxSalOb);
@@ -963,6 +1018,41 @@ public class FichePayeModel extends AbstractTableModel {
         System.err.println("End calculValue At " + new Date());
     }
 
+    /**
+     * Calcule tous les éléments de la fiche puis enregistre en une seule transaction les totaux de
+     * la fiche et ses éléments. Contrairement à {@link #loadAllElements()}, la fiche n'est pas
+     * mise à jour après chaque rubrique, ce qui permet de calculer plusieurs fiches en même temps
+     * (avec des modèles différents).
+     * 
+     * @throws SQLException si la fiche n'a pu être enregistrée.
+     * @see FichePayeBatch
+     */
+    public void calculFiche() throws SQLException {
+        this.ecritureDifferee = true;
+        try {
+            loadAllElements();
+        } finally {
+            this.ecritureDifferee = false;
+        }
+        if (this.idFiche <= 1) {
+            return;
+        }
+        final SQLRowValues rowValsFiche = getValuesFiche();
+        SQLUtils.executeAtomic(base.getDataSource(), new SQLUtils.SQLFactory<Object>() {
+            @Override
+            public Object create() throws SQLException {
+                rowValsFiche.update(FichePayeModel.this.idFiche);
+                for (int i = 0; i < FichePayeModel.this.vectRubrique.size(); i++) {
+                    SQLRowValues rowVals = FichePayeModel.this.vectRubrique.get(i);
+                    rowVals.put("ID_FICHE_PAYE", FichePayeModel.this.idFiche);
+                    rowVals.put("POSITION", i);
+                    rowVals.commit();
+                }
+                return null;
+            }
+        });
+    }
+
     public void validElt() {
 
         System.err.println("Validation des éléments de la fiche.");
@@ -101,7 +101,9 @@ import java.util.SortedMap;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -114,6 +116,7 @@ import java.util.prefs.Preferences;
 import javax.swing.SwingUtilities;
 
 import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
 import net.jcip.annotations.ThreadSafe;
 
 /**
@@ -250,6 +253,10 @@ public class ModuleManager {
     private final DependencyGraph dependencyGraph;
     @GuardedBy("this")
     private final Map<ModuleFactory, AbstractModule> createdModules;
+    // installations changing the DB are done one at a time, even for independent modules
+    private final Object installMutex = new String("installMutex");
+    @GuardedBy("startTimings")
+    private final Map<String, StartTiming> startTimings = new LinkedHashMap<String, StartTiming>();
 
     // Another mutex so we can query root or conf without having to wait for modules to
     // install/uninstall, or alternatively so that start() & stop() executed in the EDT don't need
@@ -972,8 +979,8 @@ public class ModuleManager {
         return res;
     }
 
+    // called by prepare(), thus not holding this lock, but the caller of prepare() does
     private void install(final AbstractModule module, final DepSolverGraph graph) throws Exception {
-        assert Thread.holdsLock(this);
         final ModuleFactory factory = module.getFactory();
         final ModuleVersion localVersion = getModuleVersionInstalledLocally(factory.getID());
         final ModuleVersion lastInstalledVersion = getDBInstalledModuleVersion(factory.getID());
@@ -988,80 +995,83 @@ public class ModuleManager {
         if (localVersion != null && moduleVersion.compareTo(localVersion) < 0)
             throw new IllegalArgumentException("Module older than the one installed locally : " + moduleVersion + " < " + localVersion);
         if (!moduleVersion.equals(localVersion) || !dbOK) {
-            // local
-            final File localDir = getLocalDirectory(factory.getID());
-            // There are 2 choices to handle the update of files :
-            // 1. copy dir to a new one and pass it to DBContext, then either rename it to dir or
-            // rename it failed
-            // 2. copy dir to a backup, pass dir to DBContext, then either remove backup or rename
-            // it to dir
-            // Choice 2 is simpler since the module deals with the same directory in both install()
-            // and start()
-            final File backupDir;
-            // check if we need a backup
-            if (localDir.exists()) {
-                backupDir = FileUtils.addSuffix(localDir, ".backup");
-                FileUtils.rm_R(backupDir);
-                FileUtils.copyDirectory(localDir, backupDir);
-            } else {
-                backupDir = null;
-                FileUtils.mkdir_p(localDir);
-            }
-            assert localDir.exists();
-            try {
-                SQLUtils.executeAtomic(getDS(), new ConnectionHandlerNoSetup<Object, IOException>() {
-                    @Override
-                    public Object handle(SQLDataSource ds) throws SQLException, IOException {
-                        final Tuple2<Set<String>, Set<SQLName>> alreadyCreatedItems = getCreatedItems(factory.getID());
-                        final DBContext ctxt = new DBContext(localDir, localVersion, getRoot(), lastInstalledVersion, alreadyCreatedItems.get0(), alreadyCreatedItems.get1());
-                        // install local (i.e. ctxt stores the actions to carry on the DB)
-                        // TODO pass a data source with no rights to modify the data definition (or
-                        // even no rights to modify the data if DB version is up to date)
-                        module.install(ctxt);
-                        if (!localDir.exists())
-                            throw new IOException("Modules shouldn't remove their directory");
-                        // install in DB
-                        if (!dbOK)
-                            ctxt.execute();
-                        updateModuleFields(factory, graph, ctxt);
-                        return null;
-                    }
-                });
-            } catch (Exception e) {
-                // install did not complete successfully
-                if (getRoot().getServer().getSQLSystem() == SQLSystem.MYSQL)
-                    L.warning("MySQL cannot rollback DDL statements");
-                // keep failed install files and restore previous files
-                final File failed = FileUtils.addSuffix(localDir, ".failed");
-                if (failed.exists() && !FileUtils.rmR(failed))
-                    L.warning("Couldn't remove " + failed);
-                if (!localDir.renameTo(failed)) {
-                    L.warning("Couldn't move " + localDir + " to " + failed);
+            synchronized (this.installMutex) {
+                // local
+                final File localDir = getLocalDirectory(factory.getID());
+                // There are 2 choices to handle the update of files :
+                // 1. copy dir to a new one and pass it to DBContext, then either rename it to dir or
+                // rename it failed
+                // 2. copy dir to a backup, pass dir to DBContext, then either remove backup or rename
+                // it to dir
+                // Choice 2 is simpler since the module deals with the same directory in both install()
+                // and start()
+                final File backupDir;
+                // check if we need a backup
+                if (localDir.exists()) {
+                    backupDir = FileUtils.addSuffix(localDir, ".backup");
+                    FileUtils.rm_R(backupDir);
+                    FileUtils.copyDirectory(localDir, backupDir);
                 } else {
-                    assert !localDir.exists();
-                    // restore if needed
-                    if (backupDir != null && !backupDir.renameTo(localDir))
-                        L.warning("Couldn't restore " + backupDir + " to " + localDir);
+                    backupDir = null;
+                    FileUtils.mkdir_p(localDir);
                 }
-                throw e;
+                assert localDir.exists();
+                try {
+                    SQLUtils.executeAtomic(getDS(), new ConnectionHandlerNoSetup<Object, IOException>() {
+                        @Override
+                        public Object handle(SQLDataSource ds) throws SQLException, IOException {
+                            final Tuple2<Set<String>, Set<SQLName>> alreadyCreatedItems = getCreatedItems(factory.getID());
+                            final DBContext ctxt = new DBContext(localDir, localVersion, getRoot(), lastInstalledVersion, alreadyCreatedItems.get0(), alreadyCreatedItems.get1());
+                            // install local (i.e. ctxt stores the actions to carry on the DB)
+                            // TODO pass a data source with no rights to modify the data definition (or
+                            // even no rights to modify the data if DB version is up to date)
+                            module.install(ctxt);
+                            if (!localDir.exists())
+                                throw new IOException("Modules shouldn't remove their directory");
+                            // install in DB
+                            if (!dbOK)
+                                ctxt.execute();
+                            updateModuleFields(factory, graph, ctxt);
+                            return null;
+                        }
+                    });
+                } catch (Exception e) {
+                    // install did not complete successfully
+                    if (getRoot().getServer().getSQLSystem() == SQLSystem.MYSQL)
+                        L.warning("MySQL cannot rollback DDL statements");
+                    // keep failed install files and restore previous files
+                    final File failed = FileUtils.addSuffix(localDir, ".failed");
+                    if (failed.exists() && !FileUtils.rmR(failed))
+                        L.warning("Couldn't remove " + failed);
+                    if (!localDir.renameTo(failed)) {
+                        L.warning("Couldn't move " + localDir + " to " + failed);
+                    } else {
+                        assert !localDir.exists();
+                        // restore if needed
+                        if (backupDir != null && !backupDir.renameTo(localDir))
+                            L.warning("Couldn't restore " + backupDir + " to " + localDir);
+                    }
+                    throw e;
+                }
+                // DB transaction was committed, remove backup files
+                assert localDir.exists();
+                if (backupDir != null)
+                    FileUtils.rm_R(backupDir);
+                setModuleInstalledLocally(factory.getReference(), true);
             }
-            // DB transaction was committed, remove backup files
-            assert localDir.exists();
-            if (backupDir != null)
-                FileUtils.rm_R(backupDir);
-            setModuleInstalledLocally(factory.getReference(), true);
         }
         assert moduleVersion.equals(getModuleVersionInstalledLocally(factory.getID())) && moduleVersion.equals(getDBInstalledModuleVersion(factory.getID()));
     }
 
-    private void registerSQLElements(final AbstractModule module) throws IOException {
+    // @param loadedTablesWithMD the tables for which translations were loaded, null to load them now
+    private void registerSQLElements(final AbstractModule module, final Set<SQLTable> loadedTablesWithMD) throws IOException {
         final ModuleReference id = module.getFactory().getReference();
         synchronized (this.modulesElements) {
             // perhaps check that no other version of the module has been registered
             if (!this.modulesElements.containsKey(id)) {
                 final String mdVariant = getMDVariant(module.getFactory());
                 // load now so that it's available to ModuleElement in setupElements()
-                final Set<SQLTable> tablesWithMD = loadTranslations(getConf().getTranslator(), module, mdVariant);
+                final Set<SQLTable> tablesWithMD = loadedTablesWithMD != null ? loadedTablesWithMD : loadTranslations(getConf().getTranslator(), module, mdVariant);
 
                 final SQLElementDirectory dir = getDirectory();
                 final Map<SQLTable, SQLElement> beforeElements = new HashMap<SQLTable, SQLElement>(dir.getElementsMap());
@@ -1613,11 +1623,13 @@ public class ModuleManager {
         // don't test toStart emptiness as even if all modules were started, they might need to be
         // made persistent
         if (targetState.compareTo(ModuleState.INSTALLED) >= 0) {
+            final Map<AbstractModule, PreparedModule> prepared = prepare(toStart, graph);
+            // elements can replace the ones of dependencies, so keep the graph order
             for (final AbstractModule module : toStart)
-                installAndRegister(module, graph);
+                register(module, prepared.get(module));
 
             if (targetState == ModuleState.STARTED) {
-                start(toStart);
+                start(toStart, prepared);
                 if (startPersistent)
                     // only mark persistent passed modules (not their dependencies)
                     this.setPersistentModules(change.getUserReferencesToInstall());
@@ -1637,10 +1649,11 @@ public class ModuleManager {
             else if (!this.isModuleRunning(f.getID()))
                 modules.add(m);
         }
-        this.start(modules);
+        this.start(modules, Collections.<AbstractModule, PreparedModule> emptyMap());
     }
 
-    synchronized private final void start(final List<AbstractModule> toStart) throws Exception {
+    // @param prepared the result of prepare() for some of the modules
+    synchronized private final void start(final List<AbstractModule> toStart, final Map<AbstractModule, PreparedModule> prepared) throws Exception {
         if (toStart.size() == 0)
             return;
         // check install state before starting
@@ -1665,7 +1678,8 @@ public class ModuleManager {
             try {
                 // do the request here instead of in the EDT in setupComponents()
                 assert !this.runningModules.containsKey(id) : "Doing a request for nothing";
-                final Tuple2<Set<String>, Set<SQLName>> createdItems = getCreatedItems(id);
+                final PreparedModule preparedModule = prepared.get(module);
+                final Tuple2<Set<String>, Set<SQLName>> createdItems = preparedModule != null ? preparedModule.getCreatedItems() : getCreatedItems(id);
                 // execute right away if possible, allowing the caller to handle any exceptions
                 if (SwingUtilities.isEventDispatchThread()) {
                     startModule(module, createdItems, menuAndActions.get());
@@ -1734,25 +1748,127 @@ public class ModuleManager {
         return res;
     }
 
-    private final void installAndRegister(final AbstractModule module, DepSolverGraph graph) throws Exception {
+    /**
+     * Install the passed modules, and load what is needed to register and start them. The modules
+     * are handled in parallel, each one waiting only for its dependencies. Only the installations
+     * that change the database are done one at a time.
+     * 
+     * @param modules the modules, dependencies first.
+     * @param graph the graph of the modules.
+     * @return the prepared modules.
+     * @throws Exception if a module couldn't be installed, all modules not depending on it are
+     *         still prepared.
+     */
+    private final Map<AbstractModule, PreparedModule> prepare(final List<AbstractModule> modules, final DepSolverGraph graph) throws Exception {
         assert Thread.holdsLock(this);
-        assert !isModuleRunning(module.getFactory().getID());
+        final Map<AbstractModule, PreparedModule> res = new HashMap<AbstractModule, PreparedModule>(modules.size());
+        if (modules.isEmpty())
+            return res;
+        final Set<ModuleReference> registeredModules = this.getRegisteredModules();
+        final SQLFieldTranslator trns = getConf().getTranslator();
+        final int threadCount = Math.min(modules.size(), Runtime.getRuntime().availableProcessors() + 1);
+        final ThreadPoolExecutor startExec = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory(
+                ModuleManager.class.getSimpleName()
+                // not daemon since install() is not atomic
+                        + " start thread ", false));
         try {
-            install(module, graph);
-        } catch (Exception e) {
-            throw new Exception("Couldn't install module " + module, e);
+            final Map<AbstractModule, Future<PreparedModule>> futures = new LinkedHashMap<AbstractModule, Future<PreparedModule>>(modules.size());
+            // tasks are started in submission order, so dependencies are either done or running
+            for (final AbstractModule module : modules) {
+                assert !isModuleRunning(module.getFactory().getID());
+                final List<Future<PreparedModule>> dependencies = new ArrayList<Future<PreparedModule>>();
+                for (final ModuleFactory depFactory : graph.getDependencies(module.getFactory()).values()) {
+                    final Future<PreparedModule> depFuture = futures.get(this.createdModules.get(depFactory));
+                    if (depFuture != null)
+                        dependencies.add(depFuture);
+                }
+                final boolean registered = registeredModules.contains(module.getFactory().getReference());
+                futures.put(module, startExec.submit(new Callable<PreparedModule>() {
+                    @Override
+                    public PreparedModule call() throws Exception {
+                        for (final Future<PreparedModule> dep : dependencies) {
+                            try {
+                                dep.get();
+                            } catch (ExecutionException e) {
+                                throw new IllegalStateException("Dependency of " + module + " couldn't be installed", e.getCause());
+                            }
+                        }
+                        final long start = System.nanoTime();
+                        try {
+                            install(module, graph);
+                        } catch (Exception e) {
+                            throw new Exception("Couldn't install module " + module, e);
+                        }
+                        // translations for the tables created by the module
+                        final Set<SQLTable> tablesWithMD = registered ? null : loadTranslations(trns, module, getMDVariant(module.getFactory()));
+                        final PreparedModule res = new PreparedModule(tablesWithMD, getCreatedItems(module.getFactory().getID()));
+                        getStartTiming(module.getFactory().getID()).setPrepareTime(System.nanoTime() - start);
+                        return res;
+                    }
+                }));
+            }
+            startExec.shutdown();
+            Exception exn = null;
+            for (final Entry<AbstractModule, Future<PreparedModule>> e : futures.entrySet()) {
+                try {
+                    res.put(e.getKey(), e.getValue().get());
+                } catch (ExecutionException e1) {
+                    // wait for the other modules before throwing
+                    if (exn == null)
+                        exn = e1.getCause() instanceof Exception ? (Exception) e1.getCause() : e1;
+                }
+            }
+            if (exn != null)
+                throw exn;
+        } finally {
+            // does nothing if all went well
+            startExec.shutdownNow();
         }
+        return res;
+    }
+
+    private final void register(final AbstractModule module, final PreparedModule prepared) throws Exception {
+        assert Thread.holdsLock(this);
+        assert !isModuleRunning(module.getFactory().getID());
+        final long start = System.nanoTime();
         try {
-            this.registerSQLElements(module);
+            this.registerSQLElements(module, prepared.getTablesWithMD());
         } catch (Exception e) {
             throw new Exception("Couldn't register module " + module, e);
         }
+        getStartTiming(module.getFactory().getID()).setRegisterTime(System.nanoTime() - start);
+    }
+
+    private final StartTiming getStartTiming(final String id) {
+        synchronized (this.startTimings) {
+            StartTiming res = this.startTimings.get(id);
+            if (res == null) {
+                res = new StartTiming(id);
+                this.startTimings.put(id, res);
+            }
+            return res;
+        }
+    }
+
+    /**
+     * How long the modules took to start, to find which ones slow down the launch.
+     * 
+     * @return the timings by module ID, in start order.
+     */
+    public final Map<String, StartTiming> getStartTimings() {
+        synchronized (this.startTimings) {
+            return new LinkedHashMap<String, StartTiming>(this.startTimings);
+        }
     }
 
     private final void startModule(final AbstractModule module, final Tuple2<Set<String>, Set<SQLName>> createdItems, final MenuAndActions menuAndActions) throws Exception {
         assert SwingUtilities.isEventDispatchThread();
+        final long start = System.nanoTime();
         this.setupComponents(module, createdItems, menuAndActions);
         module.start();
+        final StartTiming timing = getStartTiming(module.getFactory().getID());
+        timing.setStartTime(System.nanoTime() - start);
+        L.config(timing.toString());
     }
 
     private final void setupMenu(final AbstractModule module, final MenuAndActions menuAndActions) {
@@ -2236,4 +2352,94 @@ public class ModuleManager {
         });
         return true;
     }
+
+    // what is needed to register and start a module, loaded by prepare()
+    @Immutable
+    static private final class PreparedModule {
+        private final Set<SQLTable> tablesWithMD;
+        private final Tuple2<Set<String>, Set<SQLName>> createdItems;
+
+        PreparedModule(final Set<SQLTable> tablesWithMD, final Tuple2<Set<String>, Set<SQLName>> createdItems) {
+            this.tablesWithMD = tablesWithMD;
+            this.createdItems = createdItems;
+        }
+
+        // null if already registered
+        public final Set<SQLTable> getTablesWithMD() {
+            return this.tablesWithMD;
+        }
+
+        public final Tuple2<Set<String>, Set<SQLName>> getCreatedItems() {
+            return this.createdItems;
+        }
+    }
+
+    /**
+     * The time taken by each step of the start of a module, in nanoseconds. A step not yet done
+     * (or not needed, e.g. the module was already registered) takes 0.
+     */
+    @ThreadSafe
+    static public final class StartTiming {
+        private final String id;
+        @GuardedBy("this")
+        private long prepareTime, registerTime, startTime;
+
+        StartTiming(final String id) {
+            this.id = id;
+        }
+
+        public final String getID() {
+            return this.id;
+        }
+
+        /**
+         * The time to install the module (or check that it is), load its translations and the
+         * items it created. Done in parallel with other modules.
+         * 
+         * @return the time in nanoseconds.
+         */
+        public synchronized final long getPrepareTime() {
+            return this.prepareTime;
+        }
+
+        synchronized final void setPrepareTime(long prepareTime) {
+            this.prepareTime = prepareTime;
+        }
+
+        /**
+         * The time to register the SQL elements of the module.
+         * 
+         * @return the time in nanoseconds.
+         */
+        public synchronized final long getRegisterTime() {
+            return this.registerTime;
+        }
+
+        synchronized final void setRegisterTime(long registerTime) {
+            this.registerTime = registerTime;
+        }
+
+        /**
+         * The time to set up the components and menus of the module and to start it, in the EDT.
+         * 
+         * @return the time in nanoseconds.
+         */
+        public synchronized final long getStartTime() {
+            return this.startTime;
+        }
+
+        synchronized final void setStartTime(long startTime) {
+            this.startTime = startTime;
+        }
+
+        public synchronized final long getTotalTime() {
+            return this.prepareTime + this.registerTime + this.startTime;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "module " + this.id + " started in " + TimeUnit.NANOSECONDS.toMillis(this.getTotalTime()) + " ms (prepare : " + TimeUnit.NANOSECONDS.toMillis(this.prepareTime)
+                    + " ms, register : " + TimeUnit.NANOSECONDS.toMillis(this.registerTime) + " ms, start : " + TimeUnit.NANOSECONDS.toMillis(this.startTime) + " ms)";
+        }
+    }
 }
@@ -14,6 +14,7 @@
  package org.openconcerto.erp.panel;
 
 import org.openconcerto.erp.generationDoc.AbstractSheetXml;
+import org.openconcerto.erp.generationDoc.SheetXmlBatch;
 import org.openconcerto.sql.model.SQLRow;
 import org.openconcerto.sql.model.SQLRowAccessor;
 import org.openconcerto.ui.DefaultGridBagConstraints;
@@ -26,7 +27,9 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map.Entry;
 
 import javax.swing.JButton;
 import javax.swing.JFrame;
@@ -157,22 +160,42 @@ public class ListeFastPrintFrame extends JFrame {
                         ListeFastPrintFrame.this.bar.setString("0/" + ListeFastPrintFrame.this.liste.size());
                     }
                 });
+                final List<AbstractSheetXml> sheets = new ArrayList<AbstractSheetXml>(ListeFastPrintFrame.this.liste.size());
+                final List<AbstractSheetXml> toGenerate = new ArrayList<AbstractSheetXml>();
                 for (final SQLRowAccessor rowAt : ListeFastPrintFrame.this.liste) {
-
                     final AbstractSheetXml bSheet = ListeFastPrintFrame.this.createAbstractSheet(rowAt.asRow());
+                    sheets.add(bSheet);
                     if (!bSheet.getGeneratedFile().exists()) {
-
-                        try {
-                            SwingUtilities.invokeLater(new Runnable() {
-                                public void run() {
-                                    ListeFastPrintFrame.this.operation.setText("Création du document " + bSheet.getGeneratedFile());
-                                }
-                            });
-                            bSheet.createDocument();
+                        toGenerate.add(bSheet);
+                    }
+                }
+                // création des documents manquants en parallèle, les lignes étant chargées en une
+                // fois pour tous les documents
+                if (!toGenerate.isEmpty()) {
+                    try {
+                        final SheetXmlBatch.Rapport rapport = new SheetXmlBatch().generate(toGenerate, new SheetXmlBatch.Listener() {
+                            @Override
+                            public void documentGenerated(final AbstractSheetXml sheet, final int generated, final int total) {
+                                SwingUtilities.invokeLater(new Runnable() {
+                                    public void run() {
+                                        ListeFastPrintFrame.this.operation.setText("Création du document " + generated + "/" + total + " : " + sheet.getGeneratedFile());
+                                    }
+                                });
+                            }
+                        });
+                        for (final Entry<AbstractSheetXml, Throwable> e : rapport.getErreurs().entrySet()) {
+                            ExceptionHandler.handle("Erreur lors de la création du document " + e.getKey().getGeneratedFile(), e.getValue());
+                        }
+                        for (final AbstractSheetXml bSheet : rapport.getDurees().keySet()) {
                             bSheet.showPrintAndExportAsynchronous(false, false, true);
-                        } catch (Exception e) {
-                            ExceptionHandler.handle("Erreur lors de la création du document " + bSheet.getGeneratedFile());
                         }
+                    } catch (InterruptedException e) {
+                        ListeFastPrintFrame.this.cancelOp = true;
+                    }
+                }
+                for (final AbstractSheetXml bSheet : sheets) {
+                    if (ListeFastPrintFrame.this.cancelOp) {
+                        break;
                     }
 
                     SwingUtilities.invokeLater(new Runnable() {
@@ -189,9 +212,6 @@ public class ListeFastPrintFrame extends JFrame {
                             ListeFastPrintFrame.this.bar.setString(progress + "/" + ListeFastPrintFrame.this.liste.size());
                         }
                     });
-                    if (ListeFastPrintFrame.this.cancelOp) {
-                        break;
-                    }
                 }
                 SwingUtilities.invokeLater(new Runnable() {
                     public void run() {
@@ -47,6 +47,8 @@ public class Ville {
     private final static List<PropertyChangeListener> listeners = new ArrayList<PropertyChangeListener>();
     private static Thread init = null;
     private static boolean loaded = false;
+    // snapshot of villes for lock-free lookups, replaced after each modification
+    private static volatile VilleIndex index = null;
     private int nbMatch = 0;
 
     public synchronized static void init(final DatabaseAccessor d) {
@@ -62,6 +64,7 @@ public class Ville {
                     for (final Ville ville : l) {
                         addVilleSilently(ville);
                     }
+                    updateIndex();
                     init = null;
                     Ville.class.notifyAll();
                 }
@@ -109,6 +112,7 @@ public class Ville {
         Collections.sort(villesNames);
         Region.parseFile();
         loaded = true;
+        updateIndex();
     }
 
     private static void parse(InputStreamReader fReader) throws IOException {
@@ -156,6 +160,7 @@ public class Ville {
             return;
         }
         addVilleSilently(v);
+        updateIndex();
         accessor.store(v);
         fireListModified();
     }
@@ -166,14 +171,32 @@ public class Ville {
             final String villeEtCode = v.getVilleEtCode();
             villesNames.remove(villeEtCode);
             map.remove(villeEtCode);
+            updateIndex();
 
             accessor.delete(v);
             fireListModified();
         }
     }
 
+    private static synchronized void updateIndex() {
+        index = new VilleIndex(villes);
+    }
+
     // ** getter
 
+    // ne bloque que pendant le chargement
+    private static VilleIndex getIndex() {
+        final VilleIndex res = index;
+        if (res != null)
+            return res;
+        synchronized (Ville.class) {
+            await();
+            if (index == null)
+                updateIndex();
+            return index;
+        }
+    }
+
     private static final synchronized void await() {
         if (init != null) {
             try {
@@ -194,39 +217,19 @@ public class Ville {
         return villesNames;
     }
 
-    public static synchronized Ville getVilleFromVilleEtCode(final String s) {
-        await();
-        return map.get(s);
+    public static Ville getVilleFromVilleEtCode(final String s) {
+        return getIndex().getVilleFromVilleEtCode(s);
     }
 
-    public static synchronized Ville getVilleContaining(String string) {
-        string = string.trim().toLowerCase();
-        final List<Ville> l = getVilles();
-        final int size = l.size();
-        for (int i = 0; i < size; i++) {
-            final Ville v = l.get(i);
-            if (v.getName().toLowerCase().indexOf(string) >= 0) {
-                return v;
-            }
-        }
-        return null;
+    public static Ville getVilleContaining(String string) {
+        return getIndex().getVilleContaining(string.trim().toLowerCase());
     }
 
-    public static synchronized List<Ville> getVillesContaining(String string) {
-        string = string.trim().toLowerCase();
-        List<Ville> list = new ArrayList<Ville>();
-        final List<Ville> l = getVilles();
-        final int size = l.size();
-        for (int i = 0; i < size; i++) {
-            final Ville v = l.get(i);
-            if (v.getName().toLowerCase().indexOf(string) >= 0) {
-                list.add(v);
-            }
-        }
-        return list;
+    public static List<Ville> getVillesContaining(String string) {
+        return getIndex().getVillesContaining(string.trim().toLowerCase());
     }
 
-    public static synchronized Ville getVilleContaining(String string, String codepostal) {
+    public static Ville getVilleContaining(String string, String codepostal) {
         if (codepostal.length() < 0 && string.length() <= 2) {
             return null;
         }
@@ -252,17 +255,20 @@ public class Ville {
     }
 
     private static List<Ville> getVillesFromCode(String cp) {
+        return getIndex().getVillesFromCode(cp);
+    }
 
-        List<Ville> list = new ArrayList<Ville>();
-        final List<Ville> l = getVilles();
-        final int size = l.size();
-        for (int i = 0; i < size; i++) {
-            final Ville v = l.get(i);
-            if (v.getCodepostal().toLowerCase().indexOf(cp) >= 0) {
-                list.add(v);
-            }
-        }
-        return list;
+    /**
+     * Return the cities inside a rectangle.
+     * 
+     * @param minX the minimum Lambert X.
+     * @param minY the minimum Lambert Y.
+     * @param maxX the maximum Lambert X.
+     * @param maxY the maximum Lambert Y.
+     * @return the cities, in the order of {@link #getVilles()}.
+     */
+    public static List<Ville> getVillesIn(final long minX, final long minY, final long maxX, final long maxY) {
+        return getIndex().getVillesIn(minX, minY, maxX, maxY);
     }
 
     /**
@@ -272,7 +278,7 @@ public class Ville {
      * @return the cities, or <code>null</code> si l'integralité des villes ou si la selection
      *         comporte moins de 3 points.
      */
-    public synchronized static List<Ville> getVilleIn(final MapPointSelection sel) {
+    public static List<Ville> getVilleIn(final MapPointSelection sel) {
         ArrayList<Ville> r = null;
         if (sel == null) {
             return null;
@@ -288,31 +294,13 @@ public class Ville {
 
                 p.addPoint((int) x, (int) y);
             }
-            final long minX = sel.getMinX();
-            final long maxX = sel.getMaxX();
-            final long minY = sel.getMinY();
-            final long maxY = sel.getMaxY();
-            final List<Ville> allVilles = Ville.getVilles();
-            // don't use for loop it generates an iterator which uses 25% of the time for this
-            // method
-            final int stop = allVilles.size();
+            // only the cities in the bounding box
+            final List<Ville> villes = getVillesIn(sel.getMinX(), sel.getMinY(), sel.getMaxX(), sel.getMaxY());
+            final int stop = villes.size();
             for (int i = 0; i < stop; i++) {
-                final Ville v = allVilles.get(i);
-                // both get() took another 25%
-                final long x = v.getXLambert();
-                if (x > maxX)
-                    continue;
-                if (x < minX)
-                    continue;
-                final long y = v.getYLambert();
-                if (y > maxY)
-                    continue;
-                if (y < minY)
-                    continue;
-                if (!p.contains(x, y))
-                    continue;
-                r.add(v);
-                // System.out.println("match:" + v);
+                final Ville v = villes.get(i);
+                if (p.contains(v.getXLambert(), v.getYLambert()))
+                    r.add(v);
             }
         }
         return r;
@@ -340,63 +328,20 @@ public class Ville {
         return value;
     }
 
-    public static synchronized long getMinXLambert() {
-        final List<Ville> l = getVilles();
-        if (l.size() > 0) {
-            long min = l.get(0).xLambert;
-            for (int i = 0; i < l.size(); i++) {
-                final Ville v = l.get(i);
-
-                if (v.xLambert < min) {
-                    min = v.xLambert;
-                }
-
-            }
-            return min;
-        } else {
-            return 0;
-        }
-
+    public static long getMinXLambert() {
+        return getIndex().getMinX();
     }
 
-    static synchronized long getMaxXLambert() {
-        final List<Ville> l = getVilles();
-        if (l.size() > 0) {
-            long max = l.get(0).xLambert;
-            for (int i = 0; i < l.size(); i++) {
-                final Ville v = l.get(i);
-                if (v.xLambert > max) {
-                    max = v.xLambert;
-                }
-            }
-            return max;
-        } else {
-            return 0;
-        }
+    static long getMaxXLambert() {
+        return getIndex().getMaxX();
     }
 
-    public static synchronized long getMinYLambert() {
-        final List<Ville> l = getVilles();
-        long min = l.get(0).yLambert;
-        for (int i = 0; i < l.size(); i++) {
-            final Ville v = l.get(i);
-            if (v.yLambert < min) {
-                min = v.yLambert;
-            }
-        }
-        return min;
+    public static long getMinYLambert() {
+        return getIndex().getMinY();
     }
 
-    static synchronized long getMaxYLambert() {
-        final List<Ville> l = getVilles();
-        long max = l.get(0).yLambert;
-        for (int i = 0; i < l.size(); i++) {
-            final Ville v = l.get(i);
-            if (v.yLambert > max) {
-                max = v.yLambert;
-            }
-        }
-        return max;
+    static long getMaxYLambert() {
+        return getIndex().getMaxY();
     }
 
     // *** instance
@@ -522,7 +467,7 @@ public class Ville {
 
     public static synchronized void sortByPopulation() {
         sortByPopulation(villes);
-
+        updateIndex();
     }
 
     public static synchronized void sortByPopulation(List<Ville> list) {
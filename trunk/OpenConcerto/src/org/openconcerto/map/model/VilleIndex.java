@@ -0,0 +1,274 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.map.model;
+
+import org.openconcerto.utils.ArrayListOfInt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * An immutable snapshot of the cities, indexed to answer the queries of {@link Ville} without
+ * scanning all cities : n-grams for the name and postal code substrings, and a grid over the
+ * Lambert coordinates. Cities are always returned in the order of the snapshot, like a scan would.
+ */
+@Immutable
+final class VilleIndex {
+
+    // number of cells on each side of the grid, ~10 cities per cell for France
+    static private final int GRID_SIZE = 64;
+
+    // substrings of the values of length N, each with the sorted indexes of the values containing
+    // it
+    @Immutable
+    static private final class NGramIndex {
+        static private final int N = 3;
+
+        private final String[] values;
+        private final Map<String, int[]> postings;
+
+        NGramIndex(final String[] values) {
+            this.values = values;
+            final Map<String, ArrayListOfInt> m = new HashMap<String, ArrayListOfInt>(values.length * 4);
+            for (int i = 0; i < values.length; i++) {
+                final String v = values[i];
+                for (int j = 0; j + N <= v.length(); j++) {
+                    final String gram = v.substring(j, j + N);
+                    ArrayListOfInt l = m.get(gram);
+                    if (l == null) {
+                        l = new ArrayListOfInt(4);
+                        m.put(gram, l);
+                    }
+                    // the same n-gram can appear twice in a value
+                    if (l.size() == 0 || l.get(l.size() - 1) != i)
+                        l.add(i);
+                }
+            }
+            this.postings = new HashMap<String, int[]>(m.size() * 4 / 3 + 1);
+            for (final Entry<String, ArrayListOfInt> e : m.entrySet()) {
+                this.postings.put(e.getKey(), e.getValue().toArray());
+            }
+        }
+
+        // the indexes that might contain s, null meaning all
+        private int[] getCandidates(final String s) {
+            if (s.length() < N)
+                return null;
+            int[] res = null;
+            for (int j = 0; j + N <= s.length(); j++) {
+                final int[] l = this.postings.get(s.substring(j, j + N));
+                if (l == null)
+                    return new int[0];
+                if (res == null || l.length < res.length)
+                    res = l;
+            }
+            return res;
+        }
+
+        /**
+         * The first value containing the passed string.
+         * 
+         * @param s the string to search.
+         * @return the index of the first value containing <code>s</code>, -1 if none.
+         */
+        final int indexOfFirst(final String s) {
+            final int[] candidates = this.getCandidates(s);
+            final int stop = candidates == null ? this.values.length : candidates.length;
+            for (int i = 0; i < stop; i++) {
+                final int index = candidates == null ? i : candidates[i];
+                if (this.values[index].indexOf(s) >= 0)
+                    return index;
+            }
+            return -1;
+        }
+
+        final ArrayListOfInt indexesOf(final String s) {
+            final ArrayListOfInt res = new ArrayListOfInt();
+            final int[] candidates = this.getCandidates(s);
+            final int stop = candidates == null ? this.values.length : candidates.length;
+            for (int i = 0; i < stop; i++) {
+                final int index = candidates == null ? i : candidates[i];
+                if (this.values[index].indexOf(s) >= 0)
+                    res.add(index);
+            }
+            return res;
+        }
+    }
+
+    private final Ville[] villes;
+    private final Map<String, Ville> byVilleEtCode;
+    private final NGramIndex names;
+    private final NGramIndex codes;
+    private final long minX, maxX, minY, maxY;
+    // indexes of the cities in each cell, row by row
+    private final int[][] grid;
+
+    VilleIndex(final List<Ville> l) {
+        final int size = l.size();
+        this.villes = l.toArray(new Ville[size]);
+        this.byVilleEtCode = new HashMap<String, Ville>(size * 4 / 3 + 1);
+        final String[] lowerNames = new String[size];
+        final String[] lowerCodes = new String[size];
+        long minX = Long.MAX_VALUE, maxX = Long.MIN_VALUE, minY = Long.MAX_VALUE, maxY = Long.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            final Ville v = this.villes[i];
+            this.byVilleEtCode.put(v.getVilleEtCode(), v);
+            lowerNames[i] = v.getName().toLowerCase();
+            lowerCodes[i] = v.getCodepostal().toLowerCase();
+            minX = Math.min(minX, v.getXLambert());
+            maxX = Math.max(maxX, v.getXLambert());
+            minY = Math.min(minY, v.getYLambert());
+            maxY = Math.max(maxY, v.getYLambert());
+        }
+        this.names = new NGramIndex(lowerNames);
+        this.codes = new NGramIndex(lowerCodes);
+        if (size == 0) {
+            this.minX = this.maxX = this.minY = this.maxY = 0;
+        } else {
+            this.minX = minX;
+            this.maxX = maxX;
+            this.minY = minY;
+            this.maxY = maxY;
+        }
+
+        final ArrayListOfInt[] cells = new ArrayListOfInt[GRID_SIZE * GRID_SIZE];
+        for (int i = 0; i < size; i++) {
+            final int cell = this.getCellY(this.villes[i].getYLambert()) * GRID_SIZE + this.getCellX(this.villes[i].getXLambert());
+            if (cells[cell] == null)
+                cells[cell] = new ArrayListOfInt(16);
+            cells[cell].add(i);
+        }
+        this.grid = new int[cells.length][];
+        for (int i = 0; i < cells.length; i++) {
+            this.grid[i] = cells[i] == null ? new int[0] : cells[i].toArray();
+        }
+    }
+
+    static private int getCell(final long value, final long min, final long max) {
+        if (value <= min)
+            return 0;
+        else if (value >= max)
+            return GRID_SIZE - 1;
+        else
+            return (int) ((value - min) * GRID_SIZE / (max - min + 1));
+    }
+
+    private int getCellX(final long x) {
+        return getCell(x, this.minX, this.maxX);
+    }
+
+    private int getCellY(final long y) {
+        return getCell(y, this.minY, this.maxY);
+    }
+
+    public final int size() {
+        return this.villes.length;
+    }
+
+    public final long getMinX() {
+        return this.minX;
+    }
+
+    public final long getMaxX() {
+        return this.maxX;
+    }
+
+    public final long getMinY() {
+        return this.minY;
+    }
+
+    public final long getMaxY() {
+        return this.maxY;
+    }
+
+    public final Ville getVilleFromVilleEtCode(final String s) {
+        return this.byVilleEtCode.get(s);
+    }
+
+    private List<Ville> toVilles(final ArrayListOfInt indexes) {
+        final List<Ville> res = new ArrayList<Ville>(indexes.size());
+        final int stop = indexes.size();
+        for (int i = 0; i < stop; i++) {
+            res.add(this.villes[indexes.get(i)]);
+        }
+        return res;
+    }
+
+    /**
+     * The first city whose name contains the passed string.
+     * 
+     * @param lowerCase a lower case string.
+     * @return the first matching city, <code>null</code> if none.
+     */
+    public final Ville getVilleContaining(final String lowerCase) {
+        final int index = this.names.indexOfFirst(lowerCase);
+        return index < 0 ? null : this.villes[index];
+    }
+
+    public final List<Ville> getVillesContaining(final String lowerCase) {
+        return this.toVilles(this.names.indexesOf(lowerCase));
+    }
+
+    /**
+     * The cities whose postal code contains the passed string.
+     * 
+     * @param lowerCase a lower case string, e.g. "69" or "69100".
+     * @return the matching cities.
+     */
+    public final List<Ville> getVillesFromCode(final String lowerCase) {
+        return this.toVilles(this.codes.indexesOf(lowerCase));
+    }
+
+    /**
+     * The cities inside a rectangle.
+     * 
+     * @param minX the minimum Lambert X, inclusive.
+     * @param minY the minimum Lambert Y, inclusive.
+     * @param maxX the maximum Lambert X, inclusive.
+     * @param maxY the maximum Lambert Y, inclusive.
+     * @return the cities inside the rectangle.
+     */
+    public final List<Ville> getVillesIn(final long minX, final long minY, final long maxX, final long maxY) {
+        if (this.villes.length == 0 || minX > maxX || minY > maxY || maxX < this.minX || minX > this.maxX || maxY < this.minY || minY > this.maxY)
+            return Collections.emptyList();
+        final ArrayListOfInt indexes = new ArrayListOfInt();
+        final int stopX = this.getCellX(maxX), stopY = this.getCellY(maxY);
+        for (int cellY = this.getCellY(minY); cellY <= stopY; cellY++) {
+            for (int cellX = this.getCellX(minX); cellX <= stopX; cellX++) {
+                for (final int i : this.grid[cellY * GRID_SIZE + cellX]) {
+                    final Ville v = this.villes[i];
+                    final long x = v.getXLambert();
+                    final long y = v.getYLambert();
+                    if (x >= minX && x <= maxX && y >= minY && y <= maxY)
+                        indexes.add(i);
+                }
+            }
+        }
+        // keep the order of the snapshot
+        final int[] sorted = indexes.toArray();
+        Arrays.sort(sorted);
+        final List<Ville> res = new ArrayList<Ville>(sorted.length);
+        for (final int i : sorted) {
+            res.add(this.villes[i]);
+        }
+        return res;
+    }
+}
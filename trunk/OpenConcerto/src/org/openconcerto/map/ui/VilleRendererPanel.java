@@ -86,6 +86,8 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
 
     private List<RegionPointsCache> cacheRegions = new ArrayList<RegionPointsCache>();
     private List<Ville> cacheVilles = new ArrayList<Ville>();
+    // same content as cacheVilles, to avoid List.contains()
+    private final Set<Ville> cacheVillesSet = new HashSet<Ville>();
 
     // MODE
     public static final int MODE_MOVE = 0;
@@ -531,7 +533,7 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
      * Ajoute sauf si doublon
      * */
     private void addToCachedVille(Ville v) {
-        if (!this.cacheVilles.contains(v))
+        if (this.cacheVillesSet.add(v))
             this.cacheVilles.add(v);
     }
 
@@ -539,8 +541,10 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
 
         final int zoom = this.currentZoomIndex;
         this.cacheVilles.clear();
+        this.cacheVillesSet.clear();
         final List<Ville> villes = Ville.getVilles();
         this.cacheVilles.addAll(this.alwayVisible);
+        this.cacheVillesSet.addAll(this.alwayVisible);
 
         if (zoom == 0) {
             addToCachedVille(Ville.getVilleFromVilleEtCode("Paris (75000)"));
@@ -605,7 +609,7 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
     }
 
     private void removeIfNotAlwaysVisible(Ville v) {
-        if (!this.alwayVisible.contains(v))
+        if (!this.alwayVisible.contains(v) && this.cacheVillesSet.remove(v))
             this.cacheVilles.remove(v);
     }
 
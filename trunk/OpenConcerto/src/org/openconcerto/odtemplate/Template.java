@@ -36,6 +36,9 @@ import java.io.OutputStream;
  * //...
  * template.createDocument(vars, new FileOutputStream(&quot;document.sxw&quot;));
  * </pre>
+ * 
+ * A template can be executed any number of times, see {@link TemplateCache} to avoid parsing the
+ * same file again.
  */
 public class Template {
 
@@ -0,0 +1,119 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.odtemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Templates parsed from files, so that generating many documents from the same file only costs the
+ * data binding. A template is parsed again if its file has changed.
+ * 
+ * <pre>
+ * final Template template = TemplateCache.getInstance().getTemplate(new File(&quot;template.odt&quot;));
+ * template.createDocument(new OGNLDataModel(data), out);
+ * </pre>
+ */
+@ThreadSafe
+public final class TemplateCache {
+
+    private static final TemplateCache INSTANCE = new TemplateCache(32);
+
+    public static final TemplateCache getInstance() {
+        return INSTANCE;
+    }
+
+    @Immutable
+    private static final class Entry {
+        private final long lastModified;
+        private final long length;
+        private final Template template;
+
+        Entry(long lastModified, long length, Template template) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.template = template;
+        }
+
+        final boolean isValid(final long lastModified, final long length) {
+            // the modification date can have a precision of a second
+            return this.lastModified == lastModified && this.length == length;
+        }
+    }
+
+    @GuardedBy("this")
+    private final Map<File, Entry> templates;
+
+    /**
+     * Create a new cache.
+     * 
+     * @param maxSize the maximum number of templates, the least recently used are removed.
+     */
+    public TemplateCache(final int maxSize) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("Size must be positive : " + maxSize);
+        this.templates = new LinkedHashMap<File, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1856056184778257180L;
+
+            @Override
+            protected boolean removeEldestEntry(java.util.Map.Entry<File, Entry> eldest) {
+                return this.size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Return the template for the passed file. The result is shared, so it must not be modified
+     * but can be executed concurrently.
+     * 
+     * @param f an ODF package.
+     * @return the parsed template.
+     * @throws IOException if the file can't be read.
+     * @throws TemplateException if the template statements are invalid.
+     */
+    public final Template getTemplate(final File f) throws IOException, TemplateException {
+        final File key = f.getCanonicalFile();
+        final long lastModified = key.lastModified();
+        final long length = key.length();
+        synchronized (this) {
+            final Entry e = this.templates.get(key);
+            if (e != null && e.isValid(lastModified, length))
+                return e.template;
+        }
+        // don't hold the lock while parsing, at worst the same file is parsed twice
+        final Template res = new Template(key);
+        synchronized (this) {
+            this.templates.put(key, new Entry(lastModified, length, res));
+        }
+        return res;
+    }
+
+    public synchronized final void remove(final File f) throws IOException {
+        this.templates.remove(f.getCanonicalFile());
+    }
+
+    public synchronized final void clear() {
+        this.templates.clear();
+    }
+
+    public synchronized final int size() {
+        return this.templates.size();
+    }
+}
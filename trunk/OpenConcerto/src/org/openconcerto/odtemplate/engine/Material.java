@@ -88,8 +88,10 @@ public class Material<W> implements Cloneable {
         return OOXML.get(this.getRoot());
     }
 
+    // synchronized since the same template can be executed by multiple threads, and the copy might
+    // initialize some attributes of the whole
     @Override
-    public Material<W> clone() {
+    public synchronized Material<W> clone() {
         final Material<W> res = Material.from(CopyUtils.copy(this.getWhole()));
         res.setBase(this.getBase());
         return res;
@@ -15,6 +15,8 @@
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import ognl.Ognl;
 import ognl.OgnlException;
@@ -24,6 +26,29 @@ import ognl.OgnlException;
  */
 public class OGNLDataModel extends DataModel {
 
+    // parsed expressions, shared since the same templates are executed many times
+    private static final ConcurrentMap<String, Object> EXPRESSIONS = new ConcurrentHashMap<String, Object>(256);
+    // expressions can be generated (e.g. include parameters), so don't grow indefinitely
+    private static final int MAX_EXPRESSIONS = 4096;
+
+    /**
+     * Parse an expression, or return the tree of a previous call. Trees hold no state between
+     * evaluations so they can be shared.
+     * 
+     * @param expression an OGNL expression, e.g. "fmt.format(client.nom)".
+     * @return the parsed expression.
+     * @throws OgnlException if the expression is invalid.
+     */
+    public static Object getTree(final String expression) throws OgnlException {
+        Object res = EXPRESSIONS.get(expression);
+        if (res == null) {
+            res = Ognl.parseExpression(expression);
+            if (EXPRESSIONS.size() < MAX_EXPRESSIONS)
+                EXPRESSIONS.putIfAbsent(expression, res);
+        }
+        return res;
+    }
+
     private Map<String, Object> context;
     private Object root;
 
@@ -61,7 +86,7 @@ public class OGNLDataModel extends DataModel {
 
     @Override
     public Object _eval(String expression) throws OgnlException {
-        return Ognl.getValue(expression, this.context, this.root);
+        return Ognl.getValue(getTree(expression), this.context, this.root);
     }
 
 }
@@ -1120,14 +1120,14 @@ public class ODPackage {
 
     private final Manifest createManifest() {
         try {
-            return this.createManifest(null);
+            return this.createManifest(null, null);
         } catch (IOException e) {
             // shouldn't happen since we're not writing
             throw new IllegalStateException(e);
         }
     }
 
-    private final Manifest createManifest(final Zip z) throws IOException {
+    private final Manifest createManifest(final Zip z, final String skippedEntry) throws IOException {
         final Manifest manifest = new Manifest(this.getFormatVersion(), this.getMimeType());
         final XMLOutputter outputter = z == null ? null : createOutputter();
         for (final String name : this.files.keySet()) {
@@ -1136,7 +1136,8 @@ public class ODPackage {
                 continue;
 
             final ODPackageEntry entry = this.files.get(name);
-            if (z != null) {
+            // still listed in the manifest, but its data will be written by our caller
+            if (z != null && !name.equals(skippedEntry)) {
                 final Object val = entry.getData();
                 if (val != null) {
                     if (val instanceof ODXMLDocument) {
@@ -1176,6 +1177,27 @@ public class ODPackage {
             return;
         }
 
+        this.saveAllBut(out, null).close();
+    }
+
+    /**
+     * Save this package to the passed stream except for one entry. This allows to write a large
+     * entry (e.g. the content of a spreadsheet with many rows) without ever having it in memory.
+     * 
+     * @param out the stream to write to, it will be closed when the returned zip is.
+     * @param entryName the name of the entry to skip, it must be in this package so that the
+     *        manifest lists it, <code>null</code> to write all entries.
+     * @return the zip with all the entries but <code>entryName</code>, the caller must write that
+     *         entry with {@link Zip#createEntry(String)} and then close the zip.
+     * @throws IOException if an error occurs.
+     * @throws IllegalStateException if this is {@link #isSingle() single}.
+     */
+    public final Zip saveAllBut(final OutputStream out, final String entryName) throws IOException {
+        if (this.isSingle())
+            throw new IllegalStateException("Single package, cannot leave out an entry");
+        if (entryName != null && !this.files.containsKey(entryName))
+            throw new IllegalArgumentException("Entry not in this package : " + entryName);
+
         // set the generator
         ProductInfo productInfo = ProductInfo.getInstance();
         if (productInfo == null) {
@@ -1203,10 +1225,10 @@ public class ODPackage {
         // magic number, see section 17.4
         z.zipNonCompressed(MIMETYPE_ENTRY, this.getMimeType().getBytes(MIMETYPE_ENC));
 
-        final Manifest manifest = createManifest(z);
+        final Manifest manifest = createManifest(z, entryName);
 
         z.zip(Manifest.ENTRY_NAME, new StringInputStream(manifest.asString()));
-        z.close();
+        return z;
     }
 
     /**
@@ -0,0 +1,436 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.openoffice.spreadsheet;
+
+import org.openconcerto.openoffice.ODPackage;
+import org.openconcerto.openoffice.ODPackage.RootElement;
+import org.openconcerto.openoffice.ODValueType;
+import org.openconcerto.openoffice.XMLVersion;
+import org.openconcerto.utils.StreamUtils;
+import org.openconcerto.utils.Zip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.text.DateFormat;
+import java.text.NumberFormat;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.jdom.Attribute;
+import org.jdom.Element;
+import org.jdom.Namespace;
+import org.jdom.ProcessingInstruction;
+import org.jdom.Text;
+import org.jdom.output.Format;
+import org.jdom.output.XMLOutputter;
+
+/**
+ * Write the rows of a sheet one at a time, without building them in memory. The rest of the
+ * package (styles, header rows, other sheets...) is taken from a template and written as is, so
+ * the streamed rows can use its cell styles. The rows of the template can also be copied, e.g. to
+ * repeat a page header or to write a footer after the streamed rows, see
+ * {@link #writeRow(int, List, List)}. E.g. :
+ * 
+ * <pre>
+ * final SheetStreamWriter w = new SheetStreamWriter(pkg, 0, 3, out);
+ * try {
+ *     for (...)
+ *         w.writeRow(values, styles);
+ * } finally {
+ *     w.close();
+ * }
+ * </pre>
+ * 
+ * ATTN the rows of the template from <code>firstRow</code> on are removed, as are the formulas
+ * and merged cells that would need them. The streamed rows are kept in a temporary file until
+ * {@link #close()}, so that until then the package can still be modified (e.g. the rows before
+ * <code>firstRow</code> or the print ranges of the sheet).
+ * 
+ * @see ODPackage#saveAllBut(OutputStream, String)
+ */
+public class SheetStreamWriter implements Closeable {
+
+    static private final String ROWS_MARKER = "openconcerto-rows";
+    static private final String ENC = "UTF-8";
+    // attributes of a template cell replaced by a new value
+    static private final Set<String> VALUE_ATTRS = new HashSet<String>(Arrays.asList("value-type", "value", "date-value", "time-value", "boolean-value", "string-value", "currency",
+            "formula", "number-columns-repeated", "style-name"));
+
+    private final ODPackage pkg;
+    private final Sheet sheet;
+    private final XMLVersion version;
+    private final int columnCount;
+    // template rows by index, a repeated row is only stored once
+    private final TreeMap<Integer, Element> templateRows;
+    private final int templateRowCount;
+    private final OutputStream out;
+    private final File rowsFile;
+    private final OutputStream rowsOut;
+    private final XMLStreamWriter writer;
+    // not thread-safe, like this class
+    private final NumberFormat numberFormat;
+    private final DateFormat dateFormat;
+    private int rowCount;
+    private boolean closed;
+
+    /**
+     * Start writing a package.
+     * 
+     * @param pkg the template, not {@link ODPackage#isSingle() single}, its sheet will be
+     *        truncated.
+     * @param sheetIndex the index of the sheet to stream.
+     * @param firstRow the index of the first streamed row, template rows before it are kept.
+     * @param out where to write the package, it will be closed by {@link #close()} (or by this
+     *        constructor if it fails).
+     * @throws IOException if the temporary file for the rows cannot be created.
+     */
+    public SheetStreamWriter(final ODPackage pkg, final int sheetIndex, final int firstRow, final OutputStream out) throws IOException {
+        this.out = out;
+        File rowsFile = null;
+        OutputStream rowsOut = null;
+        try {
+            rowsFile = File.createTempFile("streamedRows", ".xml");
+            rowsOut = new BufferedOutputStream(new FileOutputStream(rowsFile), 512 * 1024);
+            this.writer = XMLOutputFactory.newInstance().createXMLStreamWriter(rowsOut, ENC);
+        } catch (XMLStreamException e) {
+            close(rowsOut, rowsFile, out);
+            throw new IOException("Couldn't create writer", e);
+        } catch (IOException e) {
+            close(rowsOut, rowsFile, out);
+            throw e;
+        } catch (RuntimeException e) {
+            close(rowsOut, rowsFile, out);
+            throw e;
+        }
+        this.rowsFile = rowsFile;
+        this.rowsOut = rowsOut;
+
+        this.pkg = pkg;
+        final SpreadSheet ss = pkg.getSpreadSheet();
+        this.sheet = ss.getSheet(sheetIndex);
+        this.version = ss.getVersion();
+        this.columnCount = this.sheet.getColumnCount();
+        this.templateRowCount = this.sheet.getRowCount();
+        this.templateRows = new TreeMap<Integer, Element>();
+        for (int y = 0; y < this.templateRowCount;) {
+            final Row<SpreadSheet> row = this.sheet.getRow(y);
+            final Element clone = (Element) row.getElement().clone();
+            Axis.ROW.setRepeated(clone, 1);
+            this.templateRows.put(y, clone);
+            y += row.getRepeated();
+        }
+        this.sheet.setRowCount(firstRow);
+        this.numberFormat = NumberFormat.getNumberInstance();
+        this.dateFormat = DateFormat.getDateInstance();
+        this.rowCount = 0;
+        this.closed = false;
+    }
+
+    static private void close(final OutputStream rowsOut, final File rowsFile, final OutputStream out) throws IOException {
+        try {
+            if (rowsOut != null)
+                rowsOut.close();
+            if (rowsFile != null)
+                rowsFile.delete();
+        } finally {
+            out.close();
+        }
+    }
+
+    public final XMLVersion getVersion() {
+        return this.version;
+    }
+
+    /**
+     * The number of rows written so far.
+     * 
+     * @return the number of rows written by this instance.
+     */
+    public final int getRowCount() {
+        return this.rowCount;
+    }
+
+    /**
+     * The number of rows of the template, before it was truncated.
+     * 
+     * @return the number of template rows that can be passed to {@link #writeRow(int, List, List)}.
+     */
+    public final int getTemplateRowCount() {
+        return this.templateRowCount;
+    }
+
+    public final void writeRow(final List<?> values) throws IOException {
+        this.writeRow(values, null);
+    }
+
+    /**
+     * Write the next row. Like {@link MutableCell#setValue(Object)} the value type is inferred
+     * from the value class, but data styles aren't used to format the text.
+     * 
+     * @param values the values of the cells, <code>null</code> meaning an empty cell.
+     * @param cellStyles the cell style names (e.g. "ce1"), can be <code>null</code> or contain
+     *        <code>null</code> for the default style.
+     * @throws IOException if an error occurs while writing.
+     */
+    public final void writeRow(final List<?> values, final List<String> cellStyles) throws IOException {
+        this.writeRow(null, values, cellStyles);
+    }
+
+    /**
+     * Write a copy of a template row, e.g. to repeat the header of a page.
+     * 
+     * @param templateRow the index of the row in the template, from 0 to
+     *        {@link #getTemplateRowCount()} excluded.
+     * @throws IOException if an error occurs while writing.
+     * @see #writeRow(int, List, List)
+     */
+    public final void writeRow(final int templateRow) throws IOException {
+        this.writeRow(templateRow, Collections.emptyList(), null);
+    }
+
+    /**
+     * Write the next row as a copy of a template row : its row style and its cells are kept, except
+     * where a value or a style is passed.
+     * 
+     * @param templateRow the index of the row in the template, from 0 to
+     *        {@link #getTemplateRowCount()} excluded.
+     * @param values the values of the cells, <code>null</code> meaning keep the template cell.
+     * @param cellStyles the cell style names, can be <code>null</code> or contain
+     *        <code>null</code> for the style of the template cell.
+     * @throws IOException if an error occurs while writing.
+     */
+    public final void writeRow(final int templateRow, final List<?> values, final List<String> cellStyles) throws IOException {
+        if (templateRow < 0 || templateRow >= this.templateRowCount)
+            throw new IndexOutOfBoundsException("Not a template row : " + templateRow + " / " + this.templateRowCount);
+        final Entry<Integer, Element> e = this.templateRows.floorEntry(templateRow);
+        this.writeRow(e.getValue(), values, cellStyles);
+    }
+
+    private final void writeRow(final Element templateRow, final List<?> values, final List<String> cellStyles) throws IOException {
+        if (this.closed)
+            throw new IllegalStateException("Closed");
+        final Namespace tableNS = this.version.getTABLE();
+        final int size = Math.max(values.size(), cellStyles == null ? 0 : cellStyles.size());
+        try {
+            this.writer.writeStartElement(tableNS.getPrefix(), "table-row", tableNS.getURI());
+            int x = 0;
+            if (templateRow != null) {
+                this.writeAttributes(templateRow, null);
+                for (final Object o : templateRow.getContent()) {
+                    if (!(o instanceof Element))
+                        continue;
+                    final Element cell = (Element) o;
+                    final String repeatedAttr = cell.getAttributeValue("number-columns-repeated", tableNS);
+                    final int stop = x + (repeatedAttr == null ? 1 : Integer.parseInt(repeatedAttr));
+                    // split the template cell around the passed cells
+                    while (x < stop) {
+                        final Object val = x < values.size() ? values.get(x) : null;
+                        final String styleName = cellStyles == null || x >= cellStyles.size() ? null : cellStyles.get(x);
+                        if (val != null || styleName != null) {
+                            this.writeCell(val, styleName == null ? cell.getAttributeValue("style-name", tableNS) : styleName, cell);
+                            x++;
+                        } else {
+                            int runStop = x + 1;
+                            if (runStop >= size) {
+                                runStop = stop;
+                            } else {
+                                while (runStop < stop && (runStop >= values.size() || values.get(runStop) == null) && (cellStyles == null || runStop >= cellStyles.size() || cellStyles.get(runStop) == null))
+                                    runStop++;
+                            }
+                            this.writeElement(cell, runStop - x);
+                            x = runStop;
+                        }
+                    }
+                }
+            }
+            for (; x < size; x++) {
+                this.writeCell(x < values.size() ? values.get(x) : null, cellStyles == null || x >= cellStyles.size() ? null : cellStyles.get(x), null);
+            }
+            // each row MUST have the same number of columns
+            if (x < this.columnCount) {
+                this.writer.writeEmptyElement(tableNS.getPrefix(), "table-cell", tableNS.getURI());
+                this.writer.writeAttribute(tableNS.getPrefix(), tableNS.getURI(), "number-columns-repeated", String.valueOf(this.columnCount - x));
+            }
+            this.writer.writeEndElement();
+        } catch (XMLStreamException e) {
+            throw new IOException("Couldn't write row " + this.rowCount, e);
+        }
+        this.rowCount++;
+    }
+
+    // write a template cell, repeated
+    private void writeElement(final Element cell, final int repeated) throws XMLStreamException {
+        final Namespace tableNS = this.version.getTABLE();
+        this.writer.writeStartElement(cell.getNamespacePrefix(), cell.getName(), cell.getNamespaceURI());
+        this.writeAttributes(cell, Collections.singleton("number-columns-repeated"));
+        if (repeated > 1)
+            this.writer.writeAttribute(tableNS.getPrefix(), tableNS.getURI(), "number-columns-repeated", String.valueOf(repeated));
+        this.writeContent(cell);
+        this.writer.writeEndElement();
+    }
+
+    private void writeContent(final Element elem) throws XMLStreamException {
+        for (final Object o : elem.getContent()) {
+            if (o instanceof Element) {
+                final Element child = (Element) o;
+                this.writer.writeStartElement(child.getNamespacePrefix(), child.getName(), child.getNamespaceURI());
+                this.writeAttributes(child, null);
+                this.writeContent(child);
+                this.writer.writeEndElement();
+            } else if (o instanceof Text) {
+                this.writer.writeCharacters(((Text) o).getText());
+            }
+        }
+    }
+
+    private void writeAttributes(final Element elem, final Set<String> excluded) throws XMLStreamException {
+        for (final Object o : elem.getAttributes()) {
+            final Attribute attr = (Attribute) o;
+            if (excluded != null && excluded.contains(attr.getName()))
+                continue;
+            if (attr.getNamespace() == Namespace.NO_NAMESPACE)
+                this.writer.writeAttribute(attr.getName(), attr.getValue());
+            else
+                this.writer.writeAttribute(attr.getNamespacePrefix(), attr.getNamespaceURI(), attr.getName(), attr.getValue());
+        }
+    }
+
+    private void writeCell(Object val, final String styleName, final Element templateCell) throws XMLStreamException {
+        final Namespace tableNS = this.version.getTABLE();
+        final Namespace valueNS = this.version == XMLVersion.OD ? this.version.getOFFICE() : tableNS;
+        final Namespace textNS = this.version.getTEXT();
+
+        // keep covered cells and spans of the template
+        if (templateCell == null) {
+            this.writer.writeStartElement(tableNS.getPrefix(), "table-cell", tableNS.getURI());
+        } else {
+            this.writer.writeStartElement(templateCell.getNamespacePrefix(), templateCell.getName(), templateCell.getNamespaceURI());
+            this.writeAttributes(templateCell, VALUE_ATTRS);
+        }
+        if (styleName != null)
+            this.writer.writeAttribute(tableNS.getPrefix(), tableNS.getURI(), "style-name", styleName);
+        if (val != null) {
+            ODValueType type = ODValueType.forObject(val);
+            if (type == null) {
+                type = ODValueType.STRING;
+                val = String.valueOf(val);
+            }
+            this.writer.writeAttribute(valueNS.getPrefix(), valueNS.getURI(), "value-type", type.getName());
+            // Like LO, do not generate string-value
+            if (type != ODValueType.STRING)
+                this.writer.writeAttribute(valueNS.getPrefix(), valueNS.getURI(), type.getValueAttribute(), type.format(val));
+
+            for (final String line : this.getText(type, val).split("\n", -1)) {
+                this.writer.writeStartElement(textNS.getPrefix(), "p", textNS.getURI());
+                this.writer.writeCharacters(line);
+                this.writer.writeEndElement();
+            }
+        }
+        this.writer.writeEndElement();
+    }
+
+    private String getText(final ODValueType type, final Object val) {
+        if (type == ODValueType.FLOAT) {
+            return val instanceof BigDecimal ? this.numberFormat.format(val) : this.numberFormat.format(((Number) val).doubleValue());
+        } else if (type == ODValueType.DATE) {
+            return this.dateFormat.format(val instanceof Calendar ? ((Calendar) val).getTime() : (Date) val);
+        } else if (type == ODValueType.STRING) {
+            return val.toString();
+        } else {
+            return type.format(val);
+        }
+    }
+
+    /**
+     * Write the package. Must be called even if an exception was thrown.
+     * 
+     * @throws IOException if an error occurs while writing.
+     */
+    @Override
+    public final void close() throws IOException {
+        if (this.closed)
+            return;
+        this.closed = true;
+        try {
+            try {
+                // doesn't close the underlying stream
+                this.writer.close();
+            } catch (XMLStreamException e) {
+                throw new IOException("Couldn't flush rows", e);
+            } finally {
+                this.rowsOut.close();
+            }
+            this.writePackage();
+        } finally {
+            this.rowsFile.delete();
+        }
+    }
+
+    private void writePackage() throws IOException {
+        // as per section 8.1.1 rows are the last elements inside a table, so streamed rows go
+        // just before the end of the table
+        final XMLOutputter outputter = new XMLOutputter(Format.getRawFormat());
+        final ProcessingInstruction marker = new ProcessingInstruction(ROWS_MARKER, "");
+        final String content;
+        this.sheet.getElement().addContent(marker);
+        try {
+            content = outputter.outputString(this.pkg.getSpreadSheet().getContentDocument());
+        } finally {
+            marker.detach();
+        }
+        final String markerString = outputter.outputString(marker);
+        final int markerIndex = content.indexOf(markerString);
+        assert markerIndex >= 0 && content.indexOf(markerString, markerIndex + 1) < 0;
+
+        final String contentEntry = RootElement.CONTENT.getZipEntry();
+        Zip zip = null;
+        try {
+            zip = this.pkg.saveAllBut(this.out, contentEntry);
+            final OutputStream entry = zip.createEntry(contentEntry);
+            entry.write(content.substring(0, markerIndex).getBytes(ENC));
+            final InputStream rows = new BufferedInputStream(new FileInputStream(this.rowsFile));
+            try {
+                StreamUtils.copy(rows, entry);
+            } finally {
+                rows.close();
+            }
+            entry.write(content.substring(markerIndex + markerString.length()).getBytes(ENC));
+            entry.close();
+        } finally {
+            if (zip == null)
+                this.out.close();
+            else
+                zip.close();
+        }
+    }
+}
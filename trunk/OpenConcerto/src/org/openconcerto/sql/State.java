@@ -13,10 +13,14 @@
  
  package org.openconcerto.sql;
 
+import org.openconcerto.utils.cache.ICache;
+
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.WeakHashMap;
 
 /**
  * Une classe qui permet de connaître l'état du Framework en temps réel.
@@ -56,6 +60,9 @@ public final class State {
 
     private int cacheHit;
 
+    // weak to let caches be collected
+    private final Map<ICache<?, ?, ?>, Object> caches;
+
     /**
      * Once created, this thread starts immediately.
      */
@@ -69,6 +76,7 @@ public final class State {
         this.frameCount = 0;
         this.framesVisible = 0;
         this.cacheHit = 0;
+        this.caches = new WeakHashMap<ICache<?, ?, ?>, Object>();
         this.upDate = System.currentTimeMillis();
     }
 
@@ -80,6 +88,7 @@ public final class State {
         res += "\nconnections: " + this.connectionCount;
         res += "\ntotal connections: " + this.connectionTotalCount;
         res += "\ncache hit: " + this.cacheHit;
+        res += "\n" + this.getCachesDesc();
         res += "\nuptime: " + this.getUptime();
 
         res += "\n\nvisible frames: " + this.framesVisible;
@@ -89,6 +98,29 @@ public final class State {
         return res;
     }
 
+    private String getCachesDesc() {
+        // copy under our lock since addCache() can modify the map, then query the caches outside it
+        final List<ICache<?, ?, ?>> l;
+        synchronized (this) {
+            l = new ArrayList<ICache<?, ?, ?>>(this.caches.keySet());
+        }
+        long size = 0, weight = 0, hits = 0, misses = 0, evictions = 0;
+        for (final ICache<?, ?, ?> c : l) {
+            size += c.size();
+            weight += c.getWeight();
+            hits += c.getHitCount();
+            misses += c.getMissCount();
+            evictions += c.getEvictionCount();
+        }
+        String res = "caches: " + l.size();
+        res += "\ncached keys: " + size;
+        res += "\ncached bytes (estimated): " + formatBytes(weight);
+        res += "\ncaches hit: " + hits;
+        res += "\ncaches miss: " + misses;
+        res += "\ncaches eviction: " + evictions;
+        return res;
+    }
+
     private String getUptime() {
         return TIME_FMT.format(new Long(System.currentTimeMillis() - this.upDate));
     }
@@ -151,4 +183,13 @@ public final class State {
         this.cacheHit++;
     }
 
+    /**
+     * Include the statistics of the passed cache in {@link #getFull()}.
+     * 
+     * @param c a cache, only weakly referenced.
+     */
+    public synchronized void addCache(final ICache<?, ?, ?> c) {
+        this.caches.put(c, null);
+    }
+
 }
@@ -42,7 +42,9 @@ import org.openconcerto.sql.request.ComboSQLRequest;
 import org.openconcerto.sql.request.ListSQLRequest;
 import org.openconcerto.sql.request.SQLCache;
 import org.openconcerto.sql.request.SQLFieldTranslator;
+import org.openconcerto.sql.request.UpdateBuilder;
 import org.openconcerto.sql.sqlobject.SQLTextCombo;
+import org.openconcerto.sql.users.UserManager;
 import org.openconcerto.sql.users.rights.UserRightsManager;
 import org.openconcerto.sql.utils.SQLUtils;
 import org.openconcerto.sql.utils.SQLUtils.SQLFactory;
@@ -75,6 +77,7 @@ import org.openconcerto.utils.i18n.Phrase;
 import java.awt.Component;
 import java.lang.reflect.Constructor;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -683,12 +686,18 @@ public abstract class SQLElement {
                     // avoid toString() which might make requests to display rows (eg archived)
                     if (Log.get().isLoggable(Level.FINEST))
                         Log.get().finest("will cut : " + externReferences);
+                    // one request per field
+                    final BatchUpdate cut = new BatchUpdate();
                     for (final Entry<SQLField, Set<SQLRow>> e : externReferences.entrySet()) {
                         final SQLField refKey = e.getKey();
+                        final List<Number> ids = new ArrayList<Number>(e.getValue().size());
                         for (final SQLRow ref : e.getValue()) {
-                            ref.createEmptyUpdateRow().putEmptyLink(refKey.getName()).update();
+                            ids.add(ref.getIDNumber());
                         }
+                        final Number emptyLink = refKey.getTable().getForeignTable(refKey.getName()).getUndefinedIDNumber();
+                        cut.update(refKey.getTable(), Collections.<String, Object> singletonMap(refKey.getName(), emptyLink), ids);
                     }
+                    cut.fire();
                     Log.get().finest("done cutting links");
                 }
 
@@ -701,14 +710,56 @@ public abstract class SQLElement {
     }
 
     static private final SQLRowValues setArchive(SQLRowValues r, final boolean archive) throws SQLException {
-        final SQLField archiveField = r.getTable().getArchiveField();
-        final Object newVal;
+        r.put(r.getTable().getArchiveField().getName(), getArchiveValue(r.getTable(), archive));
+        return r;
+    }
+
+    static private final Object getArchiveValue(final SQLTable t, final boolean archive) {
+        final SQLField archiveField = t.getArchiveField();
         if (Boolean.class.equals(archiveField.getType().getJavaType()))
-            newVal = archive;
+            return archive;
         else
-            newVal = archive ? 1 : 0;
-        r.put(archiveField.getName(), newVal);
-        return r;
+            return archive ? 1 : 0;
+    }
+
+    /**
+     * Set the same values to many rows, with one request per table and per call to
+     * {@link #update(SQLTable, Map, Collection)}, instead of one per row. The events are fired
+     * by {@link #fire()}, once per table.
+     */
+    static private final class BatchUpdate {
+        private final SetMap<SQLTable, Number> ids = new SetMap<SQLTable, Number>();
+        private final SetMap<SQLTable, String> fields = new SetMap<SQLTable, String>();
+
+        final void update(final SQLTable t, final Map<String, Object> values, final Collection<? extends Number> ids) throws SQLException {
+            if (ids.isEmpty())
+                return;
+            final UpdateBuilder update = new UpdateBuilder(t);
+            for (final Entry<String, Object> e : values.entrySet()) {
+                update.setObject(e.getKey(), e.getValue());
+            }
+            // like SQLRowValues.update()
+            final int userID = UserManager.getUserID();
+            if (t.getModifUserField() != null && userID >= SQLRow.MIN_VALID_ID)
+                update.setObject(t.getModifUserField(), userID);
+            if (t.getModifDateField() != null)
+                update.setObject(t.getModifDateField(), new Timestamp(System.currentTimeMillis()));
+            update.setWhere(new Where(t.getKey(), ids));
+            t.getDBSystemRoot().getDataSource().execute(update.asString());
+            this.ids.addAll(t, ids);
+            this.fields.addAll(t, update.getFieldsNames());
+        }
+
+        final void fire() {
+            for (final Entry<SQLTable, Set<Number>> e : this.ids.entrySet()) {
+                final SQLTable t = e.getKey();
+                final Set<Number> ids = e.getValue();
+                // a single event for all rows, like MergeRows
+                t.fireTableModified(ids.size() == 1 ? ids.iterator().next().intValue() : SQLRow.NONEXISTANT_ID, this.fields.getNonNull(t));
+            }
+            this.ids.clear();
+            this.fields.clear();
+        }
     }
 
     // all rows will be either archived or unarchived (handling cycles)
@@ -717,38 +768,55 @@ public abstract class SQLElement {
         for (final SQLRowValuesCluster c : clustersToArchive)
             toArchive.addAll(c.getItems());
 
+        // une seule requête par table et par niveau, et un seul fire par table une fois toutes
+        // les lignes archivées : sinon qd on efface plusieurs éléments de la même table, on fire
+        // pour le 1er => updateSearchList => IListe.select(userID) hors si userID a aussi été
+        // archivé (mais il n'y a pas eu son fire correspondant), le component va lancer un
+        // RowNotFound
+        final BatchUpdate batch = new BatchUpdate();
         final Map<SQLRow, SQLRowValues> linksCut = new HashMap<SQLRow, SQLRowValues>();
         while (!toArchive.isEmpty()) {
             // archive the maximum without referents
             // or unarchive the maximum without foreigns
             int archivedCount = -1;
             while (archivedCount != 0) {
-                archivedCount = 0;
+                // a level of the graph, i.e. rows that don't depend on each other
+                final List<SQLRowValues> level = new ArrayList<SQLRowValues>();
                 final Iterator<SQLRowValues> iter = toArchive.iterator();
                 while (iter.hasNext()) {
                     final SQLRowValues desc = iter.next();
                     if (archive && !desc.hasReferents() || !archive && !desc.hasForeigns()) {
-                        SQLRowValues updateVals = linksCut.remove(desc.asRow());
-                        if (updateVals == null)
-                            updateVals = new SQLRowValues(desc.getTable());
-                        // ne pas faire les fire après sinon qd on efface plusieurs éléments
-                        // de la même table :
-                        // on fire pour le 1er => updateSearchList => IListe.select(userID)
-                        // hors si userID a aussi été archivé (mais il n'y a pas eu son fire
-                        // correspondant), le component va lancer un RowNotFound
+                        level.add(desc);
+                        iter.remove();
+                    }
+                }
+                archivedCount = level.size();
+
+                final ListMap<SQLTable, Number> idsByTable = new ListMap<SQLTable, Number>();
+                for (final SQLRowValues desc : level) {
+                    final SQLRowValues updateVals = linksCut.remove(desc.asRow());
+                    if (updateVals == null) {
+                        idsByTable.add(desc.getTable(), desc.getIDNumber());
+                    } else {
+                        // restore the links cut for a cycle, the values differ for each row
                         setArchive(updateVals, archive).setID(desc.getIDNumber());
                         // don't check validity since table events might have not already be
                         // fired
                         assert updateVals.getGraph().size() == 1 : "Archiving a graph : " + updateVals.printGraph();
                         updateVals.getGraph().store(StoreMode.COMMIT, false);
-                        // remove from graph
-                        desc.clear();
-                        desc.clearReferents();
-                        assert desc.getGraph().size() == 1 : "Next loop won't progress : " + desc.printGraph();
-                        archivedCount++;
-                        iter.remove();
                     }
                 }
+                for (final Entry<SQLTable, List<Number>> e : idsByTable.entrySet()) {
+                    final SQLTable t = e.getKey();
+                    batch.update(t, Collections.singletonMap(t.getArchiveField().getName(), getArchiveValue(t, archive)), e.getValue());
+                }
+
+                for (final SQLRowValues desc : level) {
+                    // remove from graph
+                    desc.clear();
+                    desc.clearReferents();
+                    assert desc.getGraph().size() == 1 : "Next loop won't progress : " + desc.printGraph();
+                }
             }
 
             // if not empty there's at least one cycle
@@ -855,6 +923,7 @@ public abstract class SQLElement {
                 e.getValue().update(e.getKey().getID());
             }
         }
+        batch.fire();
     }
 
     public void delete(SQLRowAccessor r) throws SQLException {
@@ -0,0 +1,122 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.sql.model;
+
+import org.openconcerto.sql.Log;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.logging.Level;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * The prepared statements of one connection, the least recently used being closed when there's
+ * more than the maximum. A statement is {@link #checkOut(String, int) checked out} while in use,
+ * so that the same connection can execute the same query in a nested fashion (e.g. from a
+ * ResultSetHandler).
+ */
+@ThreadSafe
+final class PreparedStatementCache {
+
+    static private List<Object> createKey(final String sql, final int autoGeneratedKeys) {
+        return Arrays.<Object> asList(sql, autoGeneratedKeys);
+    }
+
+    static private void close(final PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            // the connection might be already closed
+            Log.get().log(Level.FINE, "Could not close " + stmt, e);
+        }
+    }
+
+    private final int maxSize;
+    @GuardedBy("this")
+    private final LinkedHashMap<List<Object>, PreparedStatement> statements;
+
+    PreparedStatementCache(final int maxSize) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("Size must be positive : " + maxSize);
+        this.maxSize = maxSize;
+        // access order
+        this.statements = new LinkedHashMap<List<Object>, PreparedStatement>(16, 0.75f, true);
+    }
+
+    /**
+     * Remove a statement from this cache.
+     * 
+     * @param sql the query.
+     * @param autoGeneratedKeys the flag passed to <code>prepareStatement()</code>.
+     * @return the statement, <code>null</code> if none is available.
+     */
+    synchronized final PreparedStatement checkOut(final String sql, final int autoGeneratedKeys) {
+        return this.statements.remove(createKey(sql, autoGeneratedKeys));
+    }
+
+    /**
+     * Put a statement back into this cache.
+     * 
+     * @param sql the query of <code>stmt</code>.
+     * @param autoGeneratedKeys the flag passed to <code>prepareStatement()</code>.
+     * @param stmt the statement, with its parameters cleared.
+     */
+    final void checkIn(final String sql, final int autoGeneratedKeys, final PreparedStatement stmt) {
+        final List<PreparedStatement> toClose = new ArrayList<PreparedStatement>();
+        synchronized (this) {
+            final List<Object> key = createKey(sql, autoGeneratedKeys);
+            if (this.statements.containsKey(key)) {
+                // the same query was executed in a nested fashion, keep only one
+                toClose.add(stmt);
+            } else {
+                this.statements.put(key, stmt);
+                final Iterator<Entry<List<Object>, PreparedStatement>> iter = this.statements.entrySet().iterator();
+                while (this.statements.size() > this.maxSize) {
+                    toClose.add(iter.next().getValue());
+                    iter.remove();
+                }
+            }
+        }
+        // don't hold the lock while talking to the db
+        for (final PreparedStatement s : toClose)
+            close(s);
+    }
+
+    final void close() {
+        final List<PreparedStatement> toClose;
+        synchronized (this) {
+            toClose = new ArrayList<PreparedStatement>(this.statements.values());
+            this.statements.clear();
+        }
+        for (final PreparedStatement s : toClose)
+            close(s);
+    }
+
+    synchronized final int size() {
+        return this.statements.size();
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getSimpleName() + " " + this.size() + "/" + this.maxSize;
+    }
+}
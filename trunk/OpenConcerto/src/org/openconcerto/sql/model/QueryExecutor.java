@@ -0,0 +1,223 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.sql.model;
+
+import org.openconcerto.utils.ThreadFactory;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Execute queries in other threads, so that the requesting thread can be interrupted while waiting
+ * for the database. Threads are reused between queries, and the time spent waiting for a free
+ * thread is recorded separately from the time spent in the database.
+ *
+ * @see SQLDataSource#setQueryExecutor(QueryExecutor)
+ */
+@ThreadSafe
+public class QueryExecutor {
+
+    /**
+     * Create an executor with a bounded number of threads. Unused threads are stopped after 30
+     * seconds.
+     *
+     * @param name the prefix of the threads' names.
+     * @param maxThreads the maximum number of queries executing at the same time.
+     * @return a new executor.
+     */
+    static public QueryExecutor createPooled(final String name, final int maxThreads) {
+        final ThreadPoolExecutor exec = new ThreadPoolExecutor(maxThreads, maxThreads, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory(name, true));
+        exec.allowCoreThreadTimeOut(true);
+        return new QueryExecutor(exec);
+    }
+
+    private final ExecutorService exec;
+    private final AtomicLong count, waitNanos, execNanos;
+
+    /**
+     * Create a new instance.
+     *
+     * @param exec the executor to which queries will be submitted, it must be able to execute
+     *        queries concurrently (one query can take several minutes).
+     */
+    public QueryExecutor(final ExecutorService exec) {
+        super();
+        if (exec == null)
+            throw new NullPointerException("Null executor");
+        this.exec = exec;
+        this.count = new AtomicLong();
+        this.waitNanos = new AtomicLong();
+        this.execNanos = new AtomicLong();
+    }
+
+    /**
+     * Start executing the passed query.
+     *
+     * @param stmt the statement to use, if it is a {@link PreparedStatement} it is executed
+     *        as is.
+     * @param query the query to execute.
+     * @return the running query.
+     * @throws java.util.concurrent.RejectedExecutionException if this is shut down.
+     */
+    final Query execute(final Statement stmt, final String query) {
+        final Query res = new Query(stmt, query);
+        this.exec.execute(res);
+        return res;
+    }
+
+    final void shutdown() {
+        // don't interrupt, the queries will still be waited for by their threads
+        this.exec.shutdown();
+    }
+
+    /**
+     * The number of queries that have completed.
+     *
+     * @return the number of executed queries.
+     */
+    public final long getExecutedCount() {
+        return this.count.get();
+    }
+
+    /**
+     * The total time queries have waited for a thread.
+     *
+     * @return the time in nanoseconds.
+     */
+    public final long getTotalWaitNanos() {
+        return this.waitNanos.get();
+    }
+
+    /**
+     * The total time threads have spent executing queries.
+     *
+     * @return the time in nanoseconds.
+     */
+    public final long getTotalExecutionNanos() {
+        return this.execNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getSimpleName() + " " + this.exec + " executed: " + this.getExecutedCount();
+    }
+
+    // ATTN package-private since it's referenced by SQLDataSource.InterruptedQuery
+    final class Query implements Runnable {
+
+        private final Statement stmt;
+        private final String query;
+        private final long submitTime;
+        private final CountDownLatch done;
+
+        // written before done.countDown()
+        private ResultSet rs;
+        private Exception exn;
+        @GuardedBy("this")
+        private boolean canceled;
+
+        Query(final Statement stmt, final String query) {
+            this.stmt = stmt;
+            this.query = query;
+            this.submitTime = System.nanoTime();
+            this.done = new CountDownLatch(1);
+            this.canceled = false;
+        }
+
+        @Override
+        public void run() {
+            final long startTime = System.nanoTime();
+            try {
+                synchronized (this) {
+                    if (this.canceled)
+                        return;
+                }
+                final String origName = Thread.currentThread().getName();
+                Thread.currentThread().setName(origName + " on " + this.query);
+                try {
+                    // do not use executeQuery since this.query might contain several statements
+                    if (this.stmt instanceof PreparedStatement)
+                        ((PreparedStatement) this.stmt).execute();
+                    else
+                        this.stmt.execute(this.query);
+                    synchronized (this) {
+                        if (this.canceled)
+                            return;
+                    }
+                    this.rs = this.stmt.getResultSet();
+                } catch (Exception e) {
+                    // can only be SQLException or RuntimeException
+                    // eg MySQLStatementCancelledException if stopQuery() was called
+                    this.exn = e;
+                } finally {
+                    Thread.currentThread().setName(origName);
+                }
+            } finally {
+                final long endTime = System.nanoTime();
+                final long wait = startTime - this.submitTime;
+                final long exec = endTime - startTime;
+                count.incrementAndGet();
+                waitNanos.addAndGet(wait);
+                execNanos.addAndGet(exec);
+                SQLRequestLog.logExecution(wait, exec);
+                this.done.countDown();
+            }
+        }
+
+        public void stopQuery() throws SQLException {
+            this.stmt.cancel();
+            synchronized (this) {
+                this.canceled = true;
+            }
+        }
+
+        public boolean isDone() {
+            return this.done.getCount() == 0;
+        }
+
+        /**
+         * Wait for the query to complete.
+         *
+         * @param ms the maximum time to wait in milliseconds.
+         * @return <code>true</code> if the query is done.
+         * @throws InterruptedException if the current thread is interrupted while waiting.
+         */
+        public boolean join(final long ms) throws InterruptedException {
+            return this.done.await(ms, TimeUnit.MILLISECONDS);
+        }
+
+        public ResultSet getRs() throws SQLException, InterruptedException {
+            this.done.await();
+            // no need to synchronize since the latch guarantees visibility
+            if (this.exn != null) {
+                if (this.exn instanceof SQLException)
+                    throw (SQLException) this.exn;
+                else
+                    throw (RuntimeException) this.exn;
+            }
+            return this.rs;
+        }
+    }
+}
@@ -21,16 +21,20 @@ import org.openconcerto.utils.ExceptionHandler;
 import org.openconcerto.utils.ExceptionUtils;
 import org.openconcerto.utils.RTInterruptedException;
 import org.openconcerto.utils.ThreadFactory;
+import org.openconcerto.utils.Tuple2;
 import org.openconcerto.utils.cache.CacheResult;
+import org.openconcerto.utils.cache.SizeEstimator;
 
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -45,6 +49,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 
@@ -54,12 +59,14 @@ import net.jcip.annotations.ThreadSafe;
 import org.apache.commons.dbcp.AbandonedConfig;
 import org.apache.commons.dbcp.BasicDataSource;
 import org.apache.commons.dbcp.ConnectionFactory;
+import org.apache.commons.dbcp.DelegatingConnection;
 import org.apache.commons.dbcp.PoolableConnection;
 import org.apache.commons.dbcp.PoolableConnectionFactory;
 import org.apache.commons.dbcp.PoolingConnection;
 import org.apache.commons.dbcp.PoolingDataSource;
 import org.apache.commons.dbcp.SQLNestedException;
 import org.apache.commons.dbutils.BasicRowProcessor;
+import org.apache.commons.dbutils.DbUtils;
 import org.apache.commons.dbutils.ResultSetHandler;
 import org.apache.commons.dbutils.RowProcessor;
 import org.apache.commons.dbutils.handlers.ArrayHandler;
@@ -107,6 +114,13 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
     // in milliseconds
     static public int QUERY_TUNING = 0;
 
+    // maximum number of results in the cache
+    static private final int RESULT_CACHE_SIZE = 512;
+    // maximum estimated size of the results in the cache
+    static private final long RESULT_CACHE_WEIGHT = 16 * 1024 * 1024;
+    // maximum number of prepared statements kept by each connection
+    static private final int STATEMENT_CACHE_SIZE = 64;
+
     static public interface IgnoringRowProcessor extends RowProcessor {
 
         @Override
@@ -175,6 +189,8 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
 
     @GuardedBy("this")
     private ExecutorService exec = null;
+    @GuardedBy("this")
+    private QueryExecutor queryExecutor = null;
 
     private final Object setInitialShemaLock = new String("initialShemaWriteLock");
     // linked to initialSchema and uptodate
@@ -188,6 +204,12 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
     // which Connection aren't invalidated
     @GuardedBy("this")
     private final Map<Connection, Object> uptodate;
+    // the prepared statements of each Connection
+    @GuardedBy("this")
+    private final Map<Connection, PreparedStatementCache> stmtCaches;
+    @GuardedBy("this")
+    private int stmtCacheSize;
+    private final AtomicLong stmtCacheHits, stmtCacheMisses;
 
     private volatile int retryWait;
     @GuardedBy("this")
@@ -295,11 +317,12 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
 
     synchronized SQLCache<List<?>, Object> createCache(final Object o) {
         final SQLCache<List<?>, Object> res;
-        if (this.isCacheEnabled() && this.tables.size() > 0)
+        if (this.isCacheEnabled() && this.tables.size() > 0) {
             // the general cache should wait for transactions to end, but the cache of transactions
             // must not.
-            res = new SQLCache<List<?>, Object>(30, 30, "results of " + o.getClass().getSimpleName(), o == this);
-        else
+            res = new SQLCache<List<?>, Object>(30, RESULT_CACHE_SIZE, "results of " + o.getClass().getSimpleName(), o == this);
+            res.setMaxWeight(RESULT_CACHE_WEIGHT, SizeEstimator.INSTANCE);
+        } else
             res = null;
         return res;
     }
@@ -331,6 +354,11 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
         // on each borrowal
         this.schemaUptodate = new WeakHashMap<Connection, Object>();
         this.uptodate = new WeakHashMap<Connection, Object>();
+        // weak, since connections can be closed by the pool (e.g. evicted)
+        this.stmtCaches = new WeakHashMap<Connection, PreparedStatementCache>();
+        this.stmtCacheSize = STATEMENT_CACHE_SIZE;
+        this.stmtCacheHits = new AtomicLong();
+        this.stmtCacheMisses = new AtomicLong();
         this.initialShemaSet = false;
         this.initialShema = null;
 
@@ -462,6 +490,42 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
         return this.execute(query, rsh, null);
     }
 
+    /**
+     * Exécute la requête en passant ses valeurs comme paramètres (voir
+     * {@link SQLSelect#asPreparedString()}). Ainsi le texte de la requête ne dépend pas des valeurs
+     * et son prepared statement peut être réutilisé.
+     * 
+     * @param sel le requête à exécuter.
+     * @param rsh le handler à utiliser, ou <code>null</code>.
+     * @return le résultat du handler, <code>null</code> si rsh est <code>null</code>.
+     * @see #executePrepared(String, List, ResultSetHandler)
+     */
+    public Object execute(SQLSelect sel, ResultSetHandler rsh) {
+        final Tuple2<String, List<Object>> q = sel.asPreparedString();
+        return this.executePrepared(q.get0(), q.get1(), rsh);
+    }
+
+    /**
+     * Execute <code>query</code> with a prepared statement, passing the result set to
+     * <code>rsh</code>. The statement is kept in the cache of its connection, so executing the same
+     * query again (even with other parameters) won't require the server to parse and plan it.
+     * 
+     * @param query the query to perform, must be a single statement with <code>?</code> for each
+     *        parameter.
+     * @param params the parameters, in the order of the <code>?</code> in <code>query</code>.
+     * @param rsh what to do with the result, can be <code>null</code>.
+     * @return the result of <code>rsh</code>, <code>null</code> if rsh or the resultSet is
+     *         <code>null</code>.
+     * @throws RTInterruptedException if the current thread is interrupted while waiting for the
+     *         cache or for the database.
+     * @see #prepareStatement(Connection, String, int)
+     */
+    public final Object executePrepared(final String query, final List<?> params, final ResultSetHandler rsh) throws RTInterruptedException {
+        if (params == null)
+            throw new NullPointerException("Null parameters for " + query);
+        return this.execute(query, params, rsh, false, null);
+    }
+
     /**
      * Execute <code>query</code> within <code>c</code>, passing the result set to <code>rsh</code>.
      * 
@@ -474,18 +538,20 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
      *         cache or for the database.
      */
     public final Object execute(final String query, final ResultSetHandler rsh, final boolean changeState) throws RTInterruptedException {
-        return this.execute(query, rsh, changeState, null);
+        return this.execute(query, null, rsh, changeState, null);
     }
 
     private Object execute(final String query, final ResultSetHandler rsh, final Connection c) throws RTInterruptedException {
         // false since the vast majority of request do NOT change the state
-        return this.execute(query, rsh, false, c);
+        return this.execute(query, null, rsh, false, c);
     }
 
     /**
      * Execute <code>query</code> within <code>c</code>, passing the result set to <code>rsh</code>.
      * 
      * @param query the query to perform.
+     * @param params the parameters of <code>query</code>, <code>null</code> to not use a prepared
+     *        statement.
      * @param rsh what to do with the result, can be <code>null</code>.
      * @param changeState whether <code>query</code> changes the state of a connection.
      * @param passedConn the sql connection to use.
@@ -494,7 +560,7 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
      * @throws RTInterruptedException if the current thread is interrupted while waiting for the
      *         cache or for the database.
      */
-    private Object execute(final String query, final ResultSetHandler rsh, final boolean changeState, final Connection passedConn) throws RTInterruptedException {
+    private Object execute(final String query, final List<?> params, final ResultSetHandler rsh, final boolean changeState, final Connection passedConn) throws RTInterruptedException {
         final long timeMs = System.currentTimeMillis();
         final long time = System.nanoTime();
         // some systems refuse to execute nothing
@@ -502,6 +568,7 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
             SQLRequestLog.log(query, "Pas de requête.", timeMs, time);
             return null;
         }
+        final String loggedQuery = params == null || params.isEmpty() ? query : query + " " + params;
 
         final IResultSetHandler irsh = rsh instanceof IResultSetHandler ? (IResultSetHandler) rsh : null;
         final SQLCache<List<?>, Object> cache;
@@ -513,7 +580,13 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
             else
                 cache = this.cache;
         }
-        final List<Object> key = cache != null && query.startsWith("SELECT") ? Arrays.asList(new Object[] { query, rsh }) : null;
+        final List<Object> key;
+        if (cache == null || !query.startsWith("SELECT"))
+            key = null;
+        else if (params == null)
+            key = Arrays.asList(new Object[] { query, rsh });
+        else
+            key = Arrays.asList(new Object[] { query, new ArrayList<Object>(params), rsh });
         if (key != null && (irsh == null || irsh.readCache())) {
             final CacheResult<Object> l = cache.check(key);
             if (l.getState() == CacheResult.State.INTERRUPTED)
@@ -522,7 +595,8 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
                 // cache actif
                 if (State.DEBUG)
                     State.INSTANCE.addCacheHit();
-                SQLRequestLog.log(query, "En cache.", timeMs, time);
+                SQLRequestLog.log(loggedQuery, "En cache.", timeMs, time);
+                SQLRequestStats.getInstance().recordCacheHit(query);
                 return l.getRes();
             }
         }
@@ -532,12 +606,13 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
         final long afterCache = System.nanoTime();
         final long afterQueryInfo, afterExecute, afterHandle;
         try {
-            info = new QueryInfo(query, changeState, passedConn);
+            info = new QueryInfo(query, params, changeState, passedConn);
             try {
                 afterQueryInfo = System.nanoTime();
                 final Object[] res = this.executeTwice(info);
                 final Statement stmt = (Statement) res[0];
-                ResultSet rs = (ResultSet) res[1];
+                final ResultSet origRS = (ResultSet) res[1];
+                ResultSet rs = origRS;
                 // TODO 1. rename #execute(String) to #executeN(String)
                 // and make #execute(String) do #execute(String, null)
                 // 2. let null rs pass to rsh
@@ -548,16 +623,31 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
                 // });
                 // and OK won't be returned if "req" returns a null rs.
                 afterExecute = System.nanoTime();
-                if (rsh != null && rs != null) {
-                    if (this.getSystem() == SQLSystem.DERBY || this.getSystem() == SQLSystem.POSTGRESQL) {
-                        rs = new SQLResultSet(rs);
-                    }
+                boolean handled = false;
+                try {
+                    if (rsh != null && rs != null) {
+                        if (this.getSystem() == SQLSystem.DERBY || this.getSystem() == SQLSystem.POSTGRESQL) {
+                            rs = new SQLResultSet(rs);
+                        }
 
-                    result = rsh.handle(rs);
+                        result = rsh.handle(rs);
+                    }
+                    handled = true;
+                } finally {
+                    // prepared statements aren't closed by the pool
+                    if (!handled && stmt instanceof PreparedStatement)
+                        DbUtils.closeQuietly(stmt);
                 }
                 afterHandle = System.nanoTime();
 
-                stmt.close();
+                if (stmt instanceof PreparedStatement) {
+                    // the statement will be reused, so free the result now
+                    if (origRS != null)
+                        origRS.close();
+                    this.releaseStatement(info.getConnection(), query, ((Integer) res[2]).intValue(), (PreparedStatement) stmt);
+                } else {
+                    stmt.close();
+                }
                 // if key was added to the cache
                 if (key != null) {
                     synchronized (this) {
@@ -567,7 +657,7 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
                 info.releaseConnection();
             } catch (SQLException exn) {
                 // don't usually do a getSchema() as it access the db
-                throw new IllegalStateException("Impossible d'accéder au résultat de " + query + "\n in " + this, exn);
+                throw new IllegalStateException("Impossible d'accéder au résultat de " + loggedQuery + "\n in " + this, exn);
             }
         } catch (RuntimeException e) {
             // for each #check() there must be a #removeRunning()
@@ -579,7 +669,10 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
             throw e;
         }
 
-        SQLRequestLog.log(query, "", info.getConnection(), timeMs, time, afterCache, afterQueryInfo, afterExecute, afterHandle, System.nanoTime());
+        final long endTime = System.nanoTime();
+        SQLRequestLog.log(loggedQuery, "", info.getConnection(), timeMs, time, afterCache, afterQueryInfo, afterExecute, afterHandle, endTime);
+        // QueryInfo borrows the connection
+        SQLRequestStats.getInstance().recordExecution(query, params, afterQueryInfo - afterCache, endTime - time);
 
         return result;
     }
@@ -604,8 +697,178 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
         return this.exec;
     }
 
+    /**
+     * The executor used to run queries, so that the calling thread can be interrupted.
+     * 
+     * @return the executor, if none was {@link #setQueryExecutor(QueryExecutor) set} a pool with
+     *         as many threads as there can be connections.
+     */
+    public synchronized final QueryExecutor getQueryExecutor() {
+        if (this.queryExecutor == null) {
+            // each executing query holds a connection so no need for more threads, except for a
+            // few ones stuck in a query that failed to cancel (see InterruptedQuery)
+            final int maxActive = this.getMaxActive();
+            final int maxThreads = maxActive > 0 ? maxActive + 4 : 64;
+            this.queryExecutor = QueryExecutor.createPooled(SQLDataSource.class.getSimpleName() + " " + this.toString() + " query n° ", maxThreads);
+        }
+        return this.queryExecutor;
+    }
+
+    /**
+     * Set the executor used to run queries. The previous one will be shut down, as will the passed
+     * one when this data source is {@link #close() closed}.
+     * 
+     * @param queryExecutor the new executor, <code>null</code> to use the default one.
+     */
+    public synchronized final void setQueryExecutor(QueryExecutor queryExecutor) {
+        if (this.queryExecutor != queryExecutor) {
+            if (this.queryExecutor != null)
+                this.queryExecutor.shutdown();
+            this.queryExecutor = queryExecutor;
+        }
+    }
+
+    /**
+     * Set the maximum number of prepared statements kept by each connection. Existing statements
+     * are closed.
+     * 
+     * @param size the maximum number of statements per connection, 0 to disable the cache.
+     * @see #prepareStatement(Connection, String, int)
+     */
+    public final void setPreparedStatementCacheSize(final int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("Negative size : " + size);
+        synchronized (this) {
+            if (this.stmtCacheSize == size)
+                return;
+            this.stmtCacheSize = size;
+        }
+        this.clearPreparedStatementCaches();
+    }
+
+    public synchronized final int getPreparedStatementCacheSize() {
+        return this.stmtCacheSize;
+    }
+
+    /**
+     * The number of times {@link #prepareStatement(Connection, String, int)} found its statement
+     * in the cache.
+     * 
+     * @return the number of statements reused.
+     */
+    public final long getPreparedStatementCacheHits() {
+        return this.stmtCacheHits.get();
+    }
+
+    /**
+     * The number of times {@link #prepareStatement(Connection, String, int)} had to create a
+     * statement.
+     * 
+     * @return the number of statements created while the cache was enabled.
+     */
+    public final long getPreparedStatementCacheMisses() {
+        return this.stmtCacheMisses.get();
+    }
+
+    /**
+     * Close all cached prepared statements, e.g. after the structure of the database has changed.
+     */
+    public final void clearPreparedStatementCaches() {
+        final List<PreparedStatementCache> toClose;
+        synchronized (this) {
+            toClose = new ArrayList<PreparedStatementCache>(this.stmtCaches.values());
+            this.stmtCaches.clear();
+        }
+        // don't hold our lock while talking to the db
+        for (final PreparedStatementCache c : toClose)
+            c.close();
+    }
+
+    private final void clearPreparedStatementCache(final Connection c) {
+        final PreparedStatementCache cache;
+        synchronized (this) {
+            cache = this.stmtCaches.remove(c);
+        }
+        if (cache != null)
+            cache.close();
+    }
+
+    private synchronized final PreparedStatementCache getPreparedStatementCache(final Connection c) {
+        if (this.stmtCacheSize == 0)
+            return null;
+        PreparedStatementCache res = this.stmtCaches.get(c);
+        if (res == null) {
+            res = new PreparedStatementCache(this.stmtCacheSize);
+            this.stmtCaches.put(c, res);
+        }
+        return res;
+    }
+
+    // statements created by a DelegatingConnection are closed when it returns to the pool, so
+    // cached ones are created by the actual connection
+    static private Connection getStatementConnection(final Connection c) {
+        if (c instanceof DelegatingConnection) {
+            final Connection res = ((DelegatingConnection) c).getDelegate();
+            return res == null ? c : res;
+        } else {
+            return c;
+        }
+    }
+
+    /**
+     * Return a prepared statement, reusing the one of a previous call with the same parameters if
+     * possible. The statement is not shared until it is passed to
+     * {@link #releaseStatement(Connection, String, int, PreparedStatement)}, thus the caller can
+     * execute it freely (e.g. setting its parameters), but must not close it unless an error occurs.
+     * 
+     * @param c the connection, e.g. {@link #getConnection()}.
+     * @param sql the query.
+     * @param autoGeneratedKeys {@link Statement#RETURN_GENERATED_KEYS} or
+     *        {@link Statement#NO_GENERATED_KEYS}.
+     * @return a prepared statement for <code>sql</code>.
+     * @throws SQLException if the statement couldn't be prepared.
+     * @see #setPreparedStatementCacheSize(int)
+     */
+    public final PreparedStatement prepareStatement(final Connection c, final String sql, final int autoGeneratedKeys) throws SQLException {
+        final PreparedStatementCache cache = this.getPreparedStatementCache(c);
+        if (cache == null)
+            return c.prepareStatement(sql, autoGeneratedKeys);
+
+        final PreparedStatement res = cache.checkOut(sql, autoGeneratedKeys);
+        if (res != null) {
+            this.stmtCacheHits.incrementAndGet();
+            return res;
+        } else {
+            this.stmtCacheMisses.incrementAndGet();
+            return getStatementConnection(c).prepareStatement(sql, autoGeneratedKeys);
+        }
+    }
+
+    /**
+     * Signal that the passed statement is no longer used, so that it can be reused or closed.
+     * 
+     * @param c the connection passed to {@link #prepareStatement(Connection, String, int)}.
+     * @param sql the query passed to {@link #prepareStatement(Connection, String, int)}.
+     * @param autoGeneratedKeys the flag passed to {@link #prepareStatement(Connection, String, int)}.
+     * @param stmt the statement returned by {@link #prepareStatement(Connection, String, int)}.
+     * @throws SQLException if the statement couldn't be closed.
+     */
+    public final void releaseStatement(final Connection c, final String sql, final int autoGeneratedKeys, final PreparedStatement stmt) throws SQLException {
+        final PreparedStatementCache cache = this.getPreparedStatementCache(c);
+        boolean cached = false;
+        // the cache might have been enabled after the creation of stmt
+        if (cache != null && stmt.getConnection() == getStatementConnection(c)) {
+            stmt.clearParameters();
+            cache.checkIn(sql, autoGeneratedKeys, stmt);
+            cached = true;
+        }
+        if (!cached)
+            stmt.close();
+    }
+
     private final class QueryInfo {
         private final String query;
+        private final List<?> params;
         // whether query change the state of our connection
         private final boolean changeState;
         // can change if private
@@ -613,9 +876,10 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
         // whether we acquired a new connection (and thus can do whatever we want with it)
         private final boolean privateConnection;
 
-        QueryInfo(String query, boolean changeState, final Connection passedConn) {
+        QueryInfo(String query, final List<?> params, boolean changeState, final Connection passedConn) {
             super();
             this.query = query;
+            this.params = params;
             this.changeState = changeState;
 
             // if passedConn is provided use it, else we need to find one
@@ -648,11 +912,15 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
             return this.query;
         }
 
+        public final List<?> getParameters() {
+            return this.params;
+        }
+
         void releaseConnection(RuntimeException e) {
             // MySQL reste des fois bloqué dans SocketInputStream.socketRead0()
             // (le serveur ayant tué la query)
             if (e instanceof InterruptedQuery && getSystem() == SQLSystem.MYSQL) {
-                final ExecutorThread thread = ((InterruptedQuery) e).getThread();
+                final QueryExecutor.Query runningQuery = ((InterruptedQuery) e).getQuery();
 
                 if (this.privateConnection) {
                     if (this.changeState)
@@ -664,9 +932,8 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
                             public void run() {
                                 // on attend un peu
                                 try {
-                                    thread.join(1500);
                                     // pour voir si on meurt
-                                    if (thread.isAlive()) {
+                                    if (!runningQuery.join(1500)) {
                                         Log.get().warning(getFailedCancelMsg());
                                         closeConnection(getConnection());
                                     } else {
@@ -685,9 +952,9 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
                     // try to save the connection since it is used by others
                     try {
                         // clear the interrupt status set by InterruptedQuery
-                        // so that we can wait on thread
+                        // so that we can wait on the query
                         Thread.interrupted();
-                        thread.join(500);
+                        runningQuery.join(500);
                     } catch (InterruptedException e2) {
                         System.err.println("ignore, we are already interrupted");
                         e2.printStackTrace();
@@ -696,7 +963,7 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
                     Thread.currentThread().interrupt();
 
                     // connection is still stuck
-                    if (thread.isAlive()) {
+                    if (!runningQuery.isDone()) {
                         throw new IllegalStateException(getFailedCancelMsg(), e);
                     } else
                         this.releaseConnection();
@@ -836,7 +1103,7 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
         final String query = queryInfo.getQuery();
         Object[] res;
         try {
-            res = executeOnce(query, queryInfo.getConnection());
+            res = executeOnce(query, queryInfo.getParameters(), queryInfo.getConnection());
         } catch (SQLException exn) {
             if (State.DEBUG)
                 State.INSTANCE.addFailedRequest(query);
@@ -850,7 +1117,7 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
             try {
                 final Connection otherConn = queryInfo.obtainNewConnection();
                 if (otherConn != null) {
-                    res = executeOnce(query, otherConn);
+                    res = executeOnce(query, queryInfo.getParameters(), otherConn);
                 } else
                     throw exn;
             } catch (Exception e) {
@@ -865,10 +1132,34 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
         return res;
     }
 
-    private Object[] executeOnce(String query, Connection c) throws SQLException {
-        final Statement stmt = c.createStatement();
-        final ResultSet rs = execute(query, stmt);
-        return new Object[] { stmt, rs };
+    // if params isn't null, also return the autoGeneratedKeys needed for releaseStatement()
+    private Object[] executeOnce(String query, List<?> params, Connection c) throws SQLException {
+        if (params == null) {
+            final Statement stmt = c.createStatement();
+            final ResultSet rs = execute(query, stmt);
+            return new Object[] { stmt, rs };
+        } else {
+            final int genKeys = isReturningGeneratedKeys(query, c) ? Statement.RETURN_GENERATED_KEYS : Statement.NO_GENERATED_KEYS;
+            final PreparedStatement stmt = this.prepareStatement(c, query, genKeys);
+            boolean ok = false;
+            try {
+                for (int i = 0; i < params.size(); i++) {
+                    stmt.setObject(i + 1, params.get(i));
+                }
+                final ResultSet rs = execute(query, stmt);
+                ok = true;
+                return new Object[] { stmt, rs, genKeys };
+            } finally {
+                // don't put a statement in an unknown state (e.g. interrupted) back in the cache
+                if (!ok)
+                    DbUtils.closeQuietly(stmt);
+            }
+        }
+    }
+
+    // MS SQL doesn't support UPDATE
+    private boolean isReturningGeneratedKeys(final String query, final Connection c) throws SQLException {
+        return query.startsWith("INSERT") && c.getMetaData().supportsGetGeneratedKeys();
     }
 
     /**
@@ -909,7 +1200,8 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
      * statement car elle retourne directement le resultSet.
      * 
      * @param query le requête à exécuter.
-     * @param stmt le statement.
+     * @param stmt le statement, si c'est un {@link PreparedStatement} il doit avoir été préparé
+     *        avec <code>query</code> et ses paramètres.
      * @return le résultat de la requête, should never be null according to the spec but Derby don't
      *         care.
      * @throws SQLException si erreur lors de l'exécution de la requête.
@@ -920,7 +1212,7 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
         if (State.DEBUG)
             State.INSTANCE.beginRequest(query);
 
-        // test before calling JDBC methods and creating threads
+        // test before calling JDBC methods and submitting to the executor
         boolean interrupted = false;
         if (QUERY_TUNING > 0) {
             try {
@@ -941,21 +1233,24 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
             // MAYBE un truc un peu plus formel
             if (query.startsWith("INSERT") || query.startsWith("UPDATE") || query.startsWith("DELETE") || query.startsWith("CREATE") || query.startsWith("ALTER") || query.startsWith("DROP")
                     || query.startsWith("SET")) {
-                // MS SQL doesn't support UPDATE
-                final boolean returnGenK = query.startsWith("INSERT") && stmt.getConnection().getMetaData().supportsGetGeneratedKeys();
-                stmt.executeUpdate(query, returnGenK ? Statement.RETURN_GENERATED_KEYS : Statement.NO_GENERATED_KEYS);
+                final boolean returnGenK = isReturningGeneratedKeys(query, stmt.getConnection());
+                if (stmt instanceof PreparedStatement)
+                    ((PreparedStatement) stmt).executeUpdate();
+                else
+                    stmt.executeUpdate(query, returnGenK ? Statement.RETURN_GENERATED_KEYS : Statement.NO_GENERATED_KEYS);
                 rs = returnGenK ? stmt.getGeneratedKeys() : null;
+                // cached statements might reference the old structure
+                if (query.startsWith("CREATE") || query.startsWith("ALTER") || query.startsWith("DROP"))
+                    this.clearPreparedStatementCaches();
             } else {
-                // TODO en faire qu'un seul par Connection
-                final ExecutorThread thr = new ExecutorThread(stmt, query);
                 // on lance l'exécution
-                thr.start();
+                final QueryExecutor.Query q = this.getQueryExecutor().execute(stmt, query);
                 // et on attend soit qu'elle finisse soit qu'on soit interrompu
                 try {
-                    rs = thr.getRs();
+                    rs = q.getRs();
                 } catch (InterruptedException e) {
-                    thr.stopQuery();
-                    throw new InterruptedQuery("request interrupted : " + query, e, thr);
+                    q.stopQuery();
+                    throw new InterruptedQuery("request interrupted : " + query, e, q);
                 }
             }
         } finally {
@@ -974,77 +1269,15 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
 
     private final class InterruptedQuery extends RTInterruptedException {
 
-        private final ExecutorThread thread;
+        private final QueryExecutor.Query query;
 
-        InterruptedQuery(String message, Throwable cause, ExecutorThread thr) {
+        InterruptedQuery(String message, Throwable cause, QueryExecutor.Query q) {
             super(message, cause);
-            this.thread = thr;
+            this.query = q;
         }
 
-        public final ExecutorThread getThread() {
-            return this.thread;
-        }
-    }
-
-    private static int executorSerial = 0;
-
-    private final class ExecutorThread extends Thread {
-
-        private final Statement stmt;
-        private final String query;
-
-        private ResultSet rs;
-        private Exception exn;
-        private boolean canceled;
-
-        public ExecutorThread(Statement stmt, String query) {
-            super(executorSerial++ + " ExecutorThread on " + query);
-            this.stmt = stmt;
-            this.query = query;
-            this.canceled = false;
-        }
-
-        public void run() {
-            synchronized (this) {
-                if (this.canceled)
-                    return;
-            }
-
-            ResultSet rs = null;
-            try {
-                // do not use executeQuery since this.query might contain several statements
-                this.stmt.execute(this.query);
-                synchronized (this) {
-                    if (this.canceled)
-                        return;
-                }
-                rs = this.stmt.getResultSet();
-            } catch (Exception e) {
-                // can only be SQLException or RuntimeException
-                // eg MySQLStatementCancelledException if stopQuery() was called
-                this.exn = e;
-            }
-            this.rs = rs;
-        }
-
-        public void stopQuery() throws SQLException {
-            this.stmt.cancel();
-            synchronized (this) {
-                this.canceled = true;
-            }
-        }
-
-        public ResultSet getRs() throws SQLException, InterruptedException {
-            this.join();
-            // pas besoin de synchronized puisque seule notre thread ecrit les var
-            // et qu'elle est maintenant terminée
-            if (this.exn != null) {
-                if (this.exn instanceof SQLException)
-                    throw (SQLException) this.exn;
-                else
-                    throw (RuntimeException) this.exn;
-            }
-            return this.rs;
+        public final QueryExecutor.Query getQuery() {
+            return this.query;
         }
     }
 
@@ -1070,6 +1303,8 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
             this.exec.shutdownNow();
             this.exec = null;
         }
+        // let executing queries finish, since their threads wait for them
+        this.setQueryExecutor(null);
 
         // uptodate was cleared by closeConnection()
         // the handlers will clear themselves
@@ -1500,6 +1735,7 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
                 this.uptodate.remove(con);
                 this.schemaUptodate.remove(con);
             }
+            this.clearPreparedStatementCache(con);
             try {
                 // ATTN this always does _numActive--, so we can't call it multiple times
                 // with the same object
@@ -1654,8 +1890,11 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
             throw new UnsupportedOperationException();
         }
 
-        if (q != null)
-            this.execute(q, null, true, c);
+        if (q != null) {
+            this.execute(q, null, null, true, c);
+            // cached statements might not reference the same tables
+            this.clearPreparedStatementCache(c);
+        }
     }
 
     public final String getSchema() {
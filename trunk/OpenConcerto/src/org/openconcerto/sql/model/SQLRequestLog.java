@@ -33,6 +33,7 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 import javax.swing.JButton;
@@ -70,6 +71,10 @@ public class SQLRequestLog {
     private static JLabel textInfo = new JLabel("Total: ");
     private static final DateFormat sdt = new SimpleDateFormat("HH:mm:ss.SS");
     private static final DecimalFormat dformat = new DecimalFormat("##0.00");
+    // always recorded (even if not enabled) since it's cheap
+    private static final AtomicLong executionCount = new AtomicLong();
+    private static final AtomicLong executionWaitNanos = new AtomicLong();
+    private static final AtomicLong executionNanos = new AtomicLong();
 
     private boolean isHighlighted = false;
 
@@ -134,6 +139,30 @@ public class SQLRequestLog {
         log(query, comment, System.identityHashCode(conn), timeMs, startTime, afterCache, afterQueryInfo, afterExecute, afterHandle, endTime);
     }
 
+    /**
+     * Record the execution of a query by a {@link QueryExecutor}.
+     * 
+     * @param waitNanos the time the query waited for a free thread.
+     * @param execNanos the time the query took to execute.
+     */
+    public static void logExecution(long waitNanos, long execNanos) {
+        executionCount.incrementAndGet();
+        executionWaitNanos.addAndGet(waitNanos);
+        executionNanos.addAndGet(execNanos);
+    }
+
+    public static long getExecutionCount() {
+        return executionCount.get();
+    }
+
+    public static long getExecutionWaitNanos() {
+        return executionWaitNanos.get();
+    }
+
+    public static long getExecutionNanos() {
+        return executionNanos.get();
+    }
+
     private static void fireEvent() {
         SwingUtilities.invokeLater(new Runnable() {
             @Override
@@ -145,7 +174,8 @@ public class SQLRequestLog {
                 final long totalMs = getTotalMs();
                 final long totalSQLMs = getTotalSQLMs();
                 textInfo.setText("Total: " + totalMs + " ms,  Swing: " + getTotalSwing() + " ms, SQL: " + totalSQLMs + " ms, processing: " + (totalMs - totalSQLMs) + " ms , " + getNbConnections()
-                        + " conn., " + getNbThread() + " threads");
+                        + " conn., " + getNbThread() + " threads, executor: " + getExecutionCount() + " queries, " + format(getExecutionWaitNanos()) + " waiting, " + format(getExecutionNanos())
+                        + " executing");
             }
         });
     }
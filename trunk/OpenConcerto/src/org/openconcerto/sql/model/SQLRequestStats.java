@@ -0,0 +1,687 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.sql.model;
+
+import org.openconcerto.sql.Log;
+import org.openconcerto.utils.ThreadFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Always on statistics of the executed queries. Unlike {@link SQLRequestLog} which keeps every
+ * query (and thus must be enabled), this only aggregates latency histograms by query shape (i.e.
+ * the query with its values replaced by ?) and by table, so it can be used in production. The
+ * statistics can be periodically {@link #startExport(File, long, TimeUnit) written} to a rolling
+ * file and are available through {@link #registerMBean() JMX}.
+ */
+@ThreadSafe
+public final class SQLRequestStats implements SQLRequestStatsMBean {
+
+    /**
+     * An histogram of durations, with a precision of 1/8. Recording is lock-free.
+     */
+    @ThreadSafe
+    static public final class Histogram {
+        // values below are exact
+        static private final int SUB_BUCKETS = 8;
+        static private final int SUB_BITS = 3;
+        // up to 2^40µs, i.e. 12 days
+        static private final int BUCKETS = (40 - SUB_BITS + 1) * SUB_BUCKETS;
+
+        static private int getIndex(final long micros) {
+            if (micros < SUB_BUCKETS)
+                return (int) micros;
+            final int msb = 63 - Long.numberOfLeadingZeros(micros);
+            final int shift = msb - SUB_BITS;
+            final int res = (shift + 1) * SUB_BUCKETS + (int) ((micros >> shift) & (SUB_BUCKETS - 1));
+            return Math.min(res, BUCKETS - 1);
+        }
+
+        // the highest value of the bucket
+        static private long getValue(final int index) {
+            if (index < SUB_BUCKETS)
+                return index;
+            final int shift = index / SUB_BUCKETS - 1;
+            final long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+            return lower + (1L << shift) - 1;
+        }
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        public final void record(final long nanos) {
+            final long n = Math.max(0, nanos);
+            this.counts.incrementAndGet(getIndex(TimeUnit.NANOSECONDS.toMicros(n)));
+            this.count.incrementAndGet();
+            this.totalNanos.addAndGet(n);
+            long max = this.maxNanos.get();
+            while (n > max && !this.maxNanos.compareAndSet(max, n))
+                max = this.maxNanos.get();
+        }
+
+        public final long getCount() {
+            return this.count.get();
+        }
+
+        public final long getTotalNanos() {
+            return this.totalNanos.get();
+        }
+
+        public final long getMaxNanos() {
+            return this.maxNanos.get();
+        }
+
+        public final long getMeanNanos() {
+            final long c = this.getCount();
+            return c == 0 ? 0 : this.getTotalNanos() / c;
+        }
+
+        /**
+         * The duration below which lie the passed percentage of the recorded durations.
+         * 
+         * @param percentile between 0 and 100, e.g. 95.
+         * @return the duration in nanoseconds, 0 if nothing was recorded.
+         */
+        public final long getPercentileNanos(final double percentile) {
+            // not atomic, but we don't need exact values
+            long total = 0;
+            final long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = this.counts.get(i);
+                total += counts[i];
+            }
+            if (total == 0)
+                return 0;
+            final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100d));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(TimeUnit.MICROSECONDS.toNanos(getValue(i)), this.getMaxNanos());
+            }
+            return this.getMaxNanos();
+        }
+    }
+
+    /**
+     * The statistics of a group of queries.
+     */
+    @ThreadSafe
+    static public final class Stats {
+        private final String name;
+        private final Histogram latency = new Histogram();
+        private final AtomicLong cacheHits = new AtomicLong();
+        private final AtomicLong poolWaitNanos = new AtomicLong();
+
+        Stats(final String name) {
+            this.name = name;
+        }
+
+        public final String getName() {
+            return this.name;
+        }
+
+        /**
+         * The durations of the executed queries, excluding those answered by the cache.
+         * 
+         * @return the latencies.
+         */
+        public final Histogram getLatency() {
+            return this.latency;
+        }
+
+        public final long getCacheHits() {
+            return this.cacheHits.get();
+        }
+
+        public final double getCacheHitRatio() {
+            final long hits = this.getCacheHits();
+            final long total = hits + this.getLatency().getCount();
+            return total == 0 ? 0 : hits / (double) total;
+        }
+
+        /**
+         * The total time spent waiting for a connection.
+         * 
+         * @return the time in nanoseconds.
+         */
+        public final long getPoolWaitNanos() {
+            return this.poolWaitNanos.get();
+        }
+    }
+
+    /**
+     * A query which took longer than {@link SQLRequestStats#getSlowThreshold(TimeUnit)}.
+     */
+    @Immutable
+    static public final class SlowQuery {
+        private final long time;
+        private final long nanos;
+        private final String query;
+        private final String thread;
+
+        SlowQuery(final long time, final long nanos, final String query) {
+            this.time = time;
+            this.nanos = nanos;
+            this.query = query;
+            this.thread = Thread.currentThread().getName();
+        }
+
+        public final long getTime() {
+            return this.time;
+        }
+
+        public final long getNanos() {
+            return this.nanos;
+        }
+
+        public final String getQuery() {
+            return this.query;
+        }
+
+        public final String getThread() {
+            return this.thread;
+        }
+    }
+
+    static private final SQLRequestStats INSTANCE = new SQLRequestStats();
+
+    public static final SQLRequestStats getInstance() {
+        return INSTANCE;
+    }
+
+    static public final String OBJECT_NAME = "org.openconcerto.sql:type=SQLRequestStats";
+
+    // limit memory usage : queries with literal values or generated names are all different
+    static private final int MAX_SHAPES = 2000;
+    static private final int MAX_SHAPE_LENGTH = 2000;
+    static private final String OTHER_SHAPES = "<other>";
+    static private final int MAX_SLOW_QUERIES = 100;
+    static private final int MAX_SLOW_QUERY_LENGTH = 4000;
+    static private final int REPORT_SHAPES = 20;
+    // rolling file
+    static private final String FILE_NAME = "sql-stats.log";
+    static private final long MAX_FILE_SIZE = 1024 * 1024;
+    static private final int MAX_FILES = 5;
+
+    static private final Pattern IN_LIST = Pattern.compile("\\(\\s*\\?(\\s*,\\s*\\?)+\\s*\\)");
+    static private final Pattern TABLE = Pattern.compile("\\b(?:FROM|JOIN|INTO|UPDATE)\\s+((?:[\"`][^\"`]+[\"`]|\\w+)(?:\\.(?:[\"`][^\"`]+[\"`]|\\w+))*)", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * The shape of a query, i.e. without its values : string and numeric literals are replaced by
+     * ? and lists of values are collapsed.
+     * 
+     * @param query a query, e.g. SELECT * FROM "T" WHERE "ID" in (1, 2, 3) and "N" = 'a'.
+     * @return its shape, e.g. SELECT * FROM "T" WHERE "ID" in (?...) and "N" = ?.
+     */
+    static public String getShape(final String query) {
+        final int l = query.length();
+        final StringBuilder sb = new StringBuilder(Math.min(l, MAX_SHAPE_LENGTH));
+        int i = 0;
+        while (i < l && sb.length() < MAX_SHAPE_LENGTH) {
+            final char c = query.charAt(i);
+            if (c == '\'') {
+                // string literal, '' being an escaped quote
+                i++;
+                while (i < l) {
+                    if (query.charAt(i) == '\'') {
+                        if (i + 1 < l && query.charAt(i + 1) == '\'')
+                            i++;
+                        else
+                            break;
+                    }
+                    i++;
+                }
+                sb.append('?');
+                i++;
+            } else if (c == '"' || c == '`') {
+                // identifier
+                final int end = query.indexOf(c, i + 1);
+                final int stop = end < 0 ? l : end + 1;
+                sb.append(query, i, stop);
+                i = stop;
+            } else if (Character.isDigit(c) && (i == 0 || !Character.isLetterOrDigit(query.charAt(i - 1)) && query.charAt(i - 1) != '_')) {
+                while (i < l && (Character.isDigit(query.charAt(i)) || query.charAt(i) == '.'))
+                    i++;
+                sb.append('?');
+            } else if (Character.isWhitespace(c)) {
+                while (i < l && Character.isWhitespace(query.charAt(i)))
+                    i++;
+                sb.append(' ');
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+        return IN_LIST.matcher(sb.toString().trim()).replaceAll("(?...)");
+    }
+
+    /**
+     * The tables used by a query. Only the first table after FROM, JOIN, INTO and UPDATE is found.
+     * 
+     * @param query a query, e.g. SELECT * FROM "s"."T" JOIN "s"."U" ...
+     * @return the tables, e.g. [s.T, s.U].
+     */
+    static public List<String> getTables(final String query) {
+        final List<String> res = new ArrayList<String>(2);
+        final Matcher m = TABLE.matcher(query);
+        while (m.find()) {
+            final String t = m.group(1).replace("\"", "").replace("`", "");
+            if (!res.contains(t))
+                res.add(t);
+        }
+        return res;
+    }
+
+    static private String formatMs(final long nanos) {
+        return new DecimalFormat("##0.00").format(nanos / 1000000d);
+    }
+
+    private final ConcurrentMap<String, Stats> byShape;
+    private final ConcurrentMap<String, Stats> byTable;
+    private final Stats global;
+    private final Histogram poolWait;
+    private volatile long slowThresholdNanos;
+    private final AtomicLong slowCount;
+    @GuardedBy("slowQueries")
+    private final LinkedList<SlowQuery> slowQueries;
+    // slow queries not yet exported
+    @GuardedBy("slowQueries")
+    private int slowToExport;
+
+    @GuardedBy("this")
+    private ScheduledExecutorService exportExec;
+    @GuardedBy("this")
+    private File exportDir;
+
+    private SQLRequestStats() {
+        this.byShape = new ConcurrentHashMap<String, Stats>(128, 0.75f, 8);
+        this.byTable = new ConcurrentHashMap<String, Stats>(128, 0.75f, 8);
+        this.global = new Stats("all");
+        this.poolWait = new Histogram();
+        this.slowThresholdNanos = TimeUnit.SECONDS.toNanos(1);
+        this.slowCount = new AtomicLong();
+        this.slowQueries = new LinkedList<SlowQuery>();
+        this.slowToExport = 0;
+    }
+
+    private Stats getStats(final ConcurrentMap<String, Stats> m, final String key) {
+        Stats res = m.get(key);
+        if (res == null) {
+            final String k = m.size() < MAX_SHAPES ? key : OTHER_SHAPES;
+            res = m.get(k);
+            if (res == null) {
+                final Stats newStats = new Stats(k);
+                res = m.putIfAbsent(k, newStats);
+                if (res == null)
+                    res = newStats;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Record a query answered by the cache.
+     * 
+     * @param query the query.
+     */
+    public final void recordCacheHit(final String query) {
+        this.global.cacheHits.incrementAndGet();
+        this.getStats(this.byShape, getShape(query)).cacheHits.incrementAndGet();
+        for (final String t : getTables(query))
+            this.getStats(this.byTable, t).cacheHits.incrementAndGet();
+    }
+
+    /**
+     * Record an executed query.
+     * 
+     * @param query the query.
+     * @param params the parameters of <code>query</code>, can be <code>null</code>.
+     * @param poolWaitNanos the time spent waiting for a connection.
+     * @param nanos the total duration, including <code>poolWaitNanos</code>.
+     */
+    public final void recordExecution(final String query, final List<?> params, final long poolWaitNanos, final long nanos) {
+        this.global.latency.record(nanos);
+        this.global.poolWaitNanos.addAndGet(poolWaitNanos);
+        this.poolWait.record(poolWaitNanos);
+        final Stats shapeStats = this.getStats(this.byShape, getShape(query));
+        shapeStats.latency.record(nanos);
+        shapeStats.poolWaitNanos.addAndGet(poolWaitNanos);
+        for (final String t : getTables(query)) {
+            final Stats tableStats = this.getStats(this.byTable, t);
+            tableStats.latency.record(nanos);
+            tableStats.poolWaitNanos.addAndGet(poolWaitNanos);
+        }
+
+        if (nanos >= this.slowThresholdNanos) {
+            this.slowCount.incrementAndGet();
+            String s = params == null || params.isEmpty() ? query : query + " " + params;
+            if (s.length() > MAX_SLOW_QUERY_LENGTH)
+                s = s.substring(0, MAX_SLOW_QUERY_LENGTH) + "...";
+            final SlowQuery slow = new SlowQuery(System.currentTimeMillis(), nanos, s);
+            synchronized (this.slowQueries) {
+                this.slowQueries.add(slow);
+                if (this.slowQueries.size() > MAX_SLOW_QUERIES)
+                    this.slowQueries.removeFirst();
+                this.slowToExport = Math.min(this.slowToExport + 1, this.slowQueries.size());
+            }
+        }
+    }
+
+    public final void setSlowThreshold(final long duration, final TimeUnit unit) {
+        this.slowThresholdNanos = unit.toNanos(duration);
+    }
+
+    public final long getSlowThreshold(final TimeUnit unit) {
+        return unit.convert(this.slowThresholdNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public final Stats getGlobalStats() {
+        return this.global;
+    }
+
+    /**
+     * The time spent waiting for a connection for each executed query.
+     * 
+     * @return the pool wait times.
+     */
+    public final Histogram getPoolWait() {
+        return this.poolWait;
+    }
+
+    /**
+     * The statistics by query shape.
+     * 
+     * @return the statistics sorted by total time, descending.
+     * @see #getShape(String)
+     */
+    public final List<Stats> getShapeStats() {
+        return sort(this.byShape);
+    }
+
+    /**
+     * The statistics by table.
+     * 
+     * @return the statistics sorted by total time, descending.
+     */
+    public final List<Stats> getTableStats() {
+        return sort(this.byTable);
+    }
+
+    static private List<Stats> sort(final ConcurrentMap<String, Stats> m) {
+        final List<Stats> res = new ArrayList<Stats>(m.values());
+        Collections.sort(res, new Comparator<Stats>() {
+            @Override
+            public int compare(Stats o1, Stats o2) {
+                final long t1 = o1.getLatency().getTotalNanos();
+                final long t2 = o2.getLatency().getTotalNanos();
+                return t1 < t2 ? 1 : (t1 == t2 ? 0 : -1);
+            }
+        });
+        return res;
+    }
+
+    /**
+     * The last slow queries.
+     * 
+     * @return at most the last 100 slow queries, oldest first.
+     */
+    public final List<SlowQuery> getSlowQueries() {
+        synchronized (this.slowQueries) {
+            return new ArrayList<SlowQuery>(this.slowQueries);
+        }
+    }
+
+    // *** MBean
+
+    @Override
+    public long getQueryCount() {
+        return this.global.getLatency().getCount();
+    }
+
+    @Override
+    public long getCacheHitCount() {
+        return this.global.getCacheHits();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        return this.global.getCacheHitRatio();
+    }
+
+    @Override
+    public double getLatencyP50Millis() {
+        return this.global.getLatency().getPercentileNanos(50) / 1000000d;
+    }
+
+    @Override
+    public double getLatencyP95Millis() {
+        return this.global.getLatency().getPercentileNanos(95) / 1000000d;
+    }
+
+    @Override
+    public double getLatencyP99Millis() {
+        return this.global.getLatency().getPercentileNanos(99) / 1000000d;
+    }
+
+    @Override
+    public double getPoolWaitP95Millis() {
+        return this.poolWait.getPercentileNanos(95) / 1000000d;
+    }
+
+    @Override
+    public long getSlowQueryCount() {
+        return this.slowCount.get();
+    }
+
+    @Override
+    public long getSlowThresholdMillis() {
+        return this.getSlowThreshold(TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void setSlowThresholdMillis(long ms) {
+        this.setSlowThreshold(ms, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int getShapeCount() {
+        return this.byShape.size();
+    }
+
+    @Override
+    public String getReport() {
+        final StringBuilder sb = new StringBuilder(4096);
+        this.appendReport(sb, false);
+        return sb.toString();
+    }
+
+    @Override
+    public void reset() {
+        this.byShape.clear();
+        this.byTable.clear();
+        this.slowCount.set(0);
+        synchronized (this.slowQueries) {
+            this.slowQueries.clear();
+            this.slowToExport = 0;
+        }
+        // global histograms are cumulative, JMX clients compute differences
+    }
+
+    /**
+     * Register this in the platform MBean server as {@value #OBJECT_NAME}.
+     * 
+     * @return <code>true</code> if this was registered, <code>false</code> if already registered.
+     * @throws JMException if this couldn't be registered.
+     */
+    public final boolean registerMBean() throws JMException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+            return true;
+        } catch (InstanceAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    // *** report
+
+    private void appendLine(final StringBuilder sb, final Stats s) {
+        final Histogram h = s.getLatency();
+        sb.append(h.getCount()).append(" exec, ").append(s.getCacheHits()).append(" cached (");
+        sb.append(Math.round(s.getCacheHitRatio() * 100)).append("%), total ").append(formatMs(h.getTotalNanos()));
+        sb.append(" ms, p50 ").append(formatMs(h.getPercentileNanos(50)));
+        sb.append(" p95 ").append(formatMs(h.getPercentileNanos(95)));
+        sb.append(" p99 ").append(formatMs(h.getPercentileNanos(99)));
+        sb.append(" max ").append(formatMs(h.getMaxNanos()));
+        sb.append(" ms, pool wait ").append(formatMs(s.getPoolWaitNanos())).append(" ms : ").append(s.getName()).append('\n');
+    }
+
+    private void appendReport(final StringBuilder sb, final boolean onlyNewSlowQueries) {
+        final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        sb.append("=== ").append(df.format(new Date())).append('\n');
+        sb.append("Pool wait : p50 ").append(formatMs(this.poolWait.getPercentileNanos(50))).append(" p95 ").append(formatMs(this.poolWait.getPercentileNanos(95)));
+        sb.append(" p99 ").append(formatMs(this.poolWait.getPercentileNanos(99))).append(" max ").append(formatMs(this.poolWait.getMaxNanos())).append(" ms\n");
+        sb.append("Executor : ").append(SQLRequestLog.getExecutionCount()).append(" queries, ").append(formatMs(SQLRequestLog.getExecutionWaitNanos())).append(" ms waiting for a thread\n");
+        this.appendLine(sb, this.global);
+
+        final List<Stats> shapes = this.getShapeStats();
+        sb.append("--- Top ").append(Math.min(REPORT_SHAPES, shapes.size())).append(" of ").append(shapes.size()).append(" queries\n");
+        for (final Stats s : shapes.subList(0, Math.min(REPORT_SHAPES, shapes.size())))
+            this.appendLine(sb, s);
+
+        sb.append("--- Tables\n");
+        for (final Stats s : this.getTableStats())
+            this.appendLine(sb, s);
+
+        final List<SlowQuery> slow;
+        synchronized (this.slowQueries) {
+            final int size = this.slowQueries.size();
+            slow = new ArrayList<SlowQuery>(this.slowQueries.subList(onlyNewSlowQueries ? size - this.slowToExport : 0, size));
+            if (onlyNewSlowQueries)
+                this.slowToExport = 0;
+        }
+        sb.append("--- ").append(slow.size()).append(" slow queries (over ").append(this.getSlowThresholdMillis()).append(" ms)\n");
+        for (final SlowQuery q : slow) {
+            sb.append(df.format(new Date(q.getTime()))).append(' ').append(formatMs(q.getNanos())).append(" ms [").append(q.getThread()).append("] ").append(q.getQuery()).append('\n');
+        }
+    }
+
+    /**
+     * Periodically append the {@link #getReport() report} to <code>sql-stats.log</code> in the
+     * passed directory. When the file reaches 1Mo, it is renamed to <code>sql-stats.log.1</code>
+     * (and so on, up to 5 files).
+     * 
+     * @param dir the directory.
+     * @param period the time between two reports.
+     * @param unit the unit of <code>period</code>.
+     */
+    public synchronized final void startExport(final File dir, final long period, final TimeUnit unit) {
+        this.stopExport();
+        this.exportDir = dir;
+        this.exportExec = new ScheduledThreadPoolExecutor(1, new ThreadFactory(SQLRequestStats.class.getSimpleName() + " export ", true));
+        this.exportExec.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    export();
+                } catch (Exception e) {
+                    // don't stop the next exports
+                    Log.get().log(Level.WARNING, "Couldn't export SQL statistics", e);
+                }
+            }
+        }, period, period, unit);
+    }
+
+    public synchronized final void stopExport() {
+        if (this.exportExec != null) {
+            this.exportExec.shutdown();
+            this.exportExec = null;
+        }
+    }
+
+    /**
+     * Append the report to the export file now.
+     * 
+     * @throws IOException if the file couldn't be written.
+     * @throws IllegalStateException if {@link #startExport(File, long, TimeUnit)} wasn't called.
+     */
+    public synchronized final void export() throws IOException {
+        if (this.exportDir == null)
+            throw new IllegalStateException("No export directory");
+        if (!this.exportDir.isDirectory() && !this.exportDir.mkdirs())
+            throw new IOException("Couldn't create " + this.exportDir);
+        final File f = new File(this.exportDir, FILE_NAME);
+        if (f.length() > MAX_FILE_SIZE)
+            this.roll(f);
+        final StringBuilder sb = new StringBuilder(8192);
+        this.appendReport(sb, true);
+        final PrintWriter w = new PrintWriter(new OutputStreamWriter(new FileOutputStream(f, true), "UTF-8"));
+        try {
+            w.print(sb);
+        } finally {
+            w.close();
+        }
+    }
+
+    private void roll(final File f) throws IOException {
+        final File last = new File(f.getPath() + "." + MAX_FILES);
+        if (last.exists() && !last.delete())
+            throw new IOException("Couldn't delete " + last);
+        for (int i = MAX_FILES - 1; i >= 0; i--) {
+            final File src = i == 0 ? f : new File(f.getPath() + "." + i);
+            if (src.exists() && !src.renameTo(new File(f.getPath() + "." + (i + 1))))
+                throw new IOException("Couldn't rename " + src);
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(256);
+        this.appendLine(sb, this.global);
+        return this.getClass().getSimpleName() + " " + sb.toString().trim();
+    }
+}
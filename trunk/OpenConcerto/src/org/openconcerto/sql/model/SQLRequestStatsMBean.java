@@ -0,0 +1,54 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.sql.model;
+
+/**
+ * The JMX view of {@link SQLRequestStats}.
+ */
+public interface SQLRequestStatsMBean {
+
+    public long getQueryCount();
+
+    public long getCacheHitCount();
+
+    public double getCacheHitRatio();
+
+    public double getLatencyP50Millis();
+
+    public double getLatencyP95Millis();
+
+    public double getLatencyP99Millis();
+
+    public double getPoolWaitP95Millis();
+
+    public long getSlowQueryCount();
+
+    public long getSlowThresholdMillis();
+
+    public void setSlowThresholdMillis(long ms);
+
+    public int getShapeCount();
+
+    /**
+     * The statistics of the whole, the most expensive queries, tables and the last slow queries.
+     * 
+     * @return a human readable report.
+     */
+    public String getReport();
+
+    /**
+     * Forget the statistics by query and by table, and the slow queries.
+     */
+    public void reset();
+}
@@ -277,7 +277,10 @@ public class SQLRow extends SQLRowAccessor {
                 return Collections.singleton(SQLRow.this);
             }
         };
-        this.setValues((Map<String, Object>) this.getTable().getBase().getDataSource().execute(this.getQuery(), handler, false));
+        // the same query for all IDs, so that its statement can be reused
+        final Where w = this.getWhere();
+        final String query = "SELECT * FROM " + this.getTable().getSQLName().quote() + " WHERE " + w.getPreparedClause();
+        this.setValues((Map<String, Object>) this.getTable().getBase().getDataSource().executePrepared(query, w.getParameters(), handler));
         return this;
     }
 
@@ -297,10 +300,6 @@ public class SQLRow extends SQLRowAccessor {
         return Collections.unmodifiableSet(this.getValues().keySet());
     }
 
-    private String getQuery() {
-        return "SELECT * FROM " + this.getTable().getSQLName().quote() + " WHERE " + this.getWhere().getClause();
-    }
-
     public Where getWhere() {
         return new Where(this.getTable().getKey(), "=", this.getID());
     }
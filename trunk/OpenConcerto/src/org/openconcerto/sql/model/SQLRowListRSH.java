@@ -143,7 +143,7 @@ public final class SQLRowListRSH implements ResultSetHandler {
     @SuppressWarnings("unchecked")
     static public List<SQLRow> execute(final SQLSelect sel) {
         final Tuple2<SQLTable, List<String>> indexes = getIndexes(sel, null, true);
-        return (List<SQLRow>) indexes.get0().getDBSystemRoot().getDataSource().execute(sel.asString(), create(indexes));
+        return (List<SQLRow>) indexes.get0().getDBSystemRoot().getDataSource().execute(sel, create(indexes));
     }
 
     private final SQLTable t;
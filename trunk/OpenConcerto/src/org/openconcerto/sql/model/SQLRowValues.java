@@ -67,6 +67,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import org.apache.commons.dbutils.DbUtils;
+
 /**
  * A class that represent a row of a table that can be modified before being inserted or updated.
  * The row might not actually exists in the database, and it might not define all the fields. One
@@ -1383,14 +1385,17 @@ public final class SQLRowValues extends SQLRowAccessor {
             final Tuple2<List<String>, Number> fieldsAndID = this.getTable().getBase().getDataSource().useConnection(new ConnectionHandlerNoSetup<Tuple2<List<String>, Number>, SQLException>() {
                 @Override
                 public Tuple2<List<String>, Number> handle(SQLDataSource ds) throws SQLException {
-                    final Tuple2<PreparedStatement, List<String>> pStmt = createInsertStatement(getTable(), copy);
+                    final Tuple2<CachedStatement, List<String>> pStmt = createInsertStatement(getTable(), copy);
+                    final long time = System.nanoTime();
                     try {
-                        final Number newID = insert(pStmt.get0(), getTable());
-                        // MAYBE keep the pStmt around while values.keySet() doesn't change
-                        pStmt.get0().close();
+                        final Number newID = insert(pStmt.get0().getStatement(), getTable());
+                        SQLRequestStats.getInstance().recordExecution(pStmt.get0().getSQL(), null, 0, System.nanoTime() - time);
+                        // the same columns will be inserted again, so keep the statement around
+                        pStmt.get0().release();
                         return Tuple2.create(pStmt.get1(), newID);
                     } catch (Exception e) {
-                        throw new SQLException("Unable to insert " + pStmt.get0(), e);
+                        pStmt.get0().close();
+                        throw new SQLException("Unable to insert " + pStmt.get0().getStatement(), e);
                     }
                 }
             });
@@ -1450,14 +1455,20 @@ public final class SQLRowValues extends SQLRowAccessor {
             updatedCols = this.getTable().getDBSystemRoot().getDataSource().useConnection(new ConnectionHandlerNoSetup<List<String>, SQLException>() {
                 @Override
                 public List<String> handle(SQLDataSource ds) throws SQLException {
-                    final Tuple2<PreparedStatement, List<String>> pStmt = createUpdateStatement(getTable(), updatedValues, id);
+                    final Tuple2<CachedStatement, List<String>> pStmt = createUpdateStatement(getTable(), updatedValues, id);
                     final long timeMs = System.currentTimeMillis();
                     final long time = System.nanoTime();
-                    pStmt.get0().executeUpdate();
+                    try {
+                        pStmt.get0().getStatement().executeUpdate();
+                    } catch (SQLException e) {
+                        pStmt.get0().close();
+                        throw e;
+                    }
                     final long afterExecute = System.nanoTime();
-                    // logging after closing fails to get the connection info
-                    SQLRequestLog.log(pStmt.get0(), "rowValues.update()", timeMs, time, afterExecute, afterExecute, afterExecute, afterExecute, System.nanoTime());
-                    pStmt.get0().close();
+                    // logging after releasing fails to get the parameters
+                    SQLRequestLog.log(pStmt.get0().getStatement(), "rowValues.update()", timeMs, time, afterExecute, afterExecute, afterExecute, afterExecute, System.nanoTime());
+                    SQLRequestStats.getInstance().recordExecution(pStmt.get0().getSQL(), null, 0, afterExecute - time);
+                    pStmt.get0().release();
                     return pStmt.get1();
                 }
             });
@@ -1596,7 +1607,7 @@ public final class SQLRowValues extends SQLRowAccessor {
 
     // *** static
 
-    static private Tuple2<PreparedStatement, List<String>> createInsertStatement(final SQLTable table, Map<String, Object> values) throws SQLException {
+    static private Tuple2<CachedStatement, List<String>> createInsertStatement(final SQLTable table, Map<String, Object> values) throws SQLException {
         final Tuple2<List<String>, List<Object>> l = CollectionUtils.mapToLists(values);
         final List<String> fieldsNames = l.get0();
         final List<Object> vals = l.get1();
@@ -1607,7 +1618,7 @@ public final class SQLRowValues extends SQLRowAccessor {
         return createStatement(table, fieldsNames, vals, true);
     }
 
-    static private Tuple2<PreparedStatement, List<String>> createUpdateStatement(SQLTable table, Map<String, Object> values, int id) throws SQLException {
+    static private Tuple2<CachedStatement, List<String>> createUpdateStatement(SQLTable table, Map<String, Object> values, int id) throws SQLException {
         final Tuple2<List<String>, List<Object>> l = CollectionUtils.mapToLists(values);
         final List<String> fieldsNames = l.get0();
         final List<Object> vals = l.get1();
@@ -1642,14 +1653,16 @@ public final class SQLRowValues extends SQLRowAccessor {
      * @param fieldsNames the columns names of <code>table</code>.
      * @param values their values.
      * @param insert whether to insert or update.
-     * @return the new statement and its columns.
+     * @return the statement, to be released once executed, and its columns.
      * @throws SQLException if an error occurs.
      */
-    static private Tuple2<PreparedStatement, List<String>> createStatement(SQLTable table, List<String> fieldsNames, List<Object> values, boolean insert) throws SQLException {
+    static private Tuple2<CachedStatement, List<String>> createStatement(SQLTable table, List<String> fieldsNames, List<Object> values, boolean insert) throws SQLException {
         addMetadata(fieldsNames, values, table.getModifUserField(), getUser());
         addMetadata(fieldsNames, values, table.getModifDateField(), new Timestamp(System.currentTimeMillis()));
 
-        final PreparedStatement pStmt;
+        final SQLDataSource ds = table.getDBSystemRoot().getDataSource();
+        final Connection c = ds.getConnection();
+        final Tuple2<String, Integer> sqlAndKeys;
         final String tableQuoted = table.getSQLName().quote();
         String req = (insert ? "INSERT INTO " : "UPDATE ") + tableQuoted + " ";
         if (insert) {
@@ -1702,7 +1715,7 @@ public final class SQLRowValues extends SQLRowAccessor {
                     req += ")";
                 }
             }
-            pStmt = createInsertStatement(req, table);
+            sqlAndKeys = getInsertQuery(req, table, c);
         } else {
             // ID at the end
             assert fieldsNames.size() == values.size() - 1;
@@ -1718,30 +1731,75 @@ public final class SQLRowValues extends SQLRowAccessor {
 
             req += "SET " + CollectionUtils.join(fieldAndValues, ", ");
             req += " WHERE " + table.getKey().getFieldRef() + "= ?";
-            final Connection c = table.getBase().getDataSource().getConnection();
-            pStmt = c.prepareStatement(req);
+            sqlAndKeys = Tuple2.create(req, Statement.NO_GENERATED_KEYS);
         }
-        // set fields values
-        int i = 0;
+        // the rows to insert use the same connection, so do it before checking out our statement
+        final List<Object> toInsert = new ArrayList<Object>(values.size());
         for (final Object value : values) {
             // nothing to set if there's no corresponding '?'
             if (value != SQL_DEFAULT) {
-                final Object toIns;
                 if (value instanceof SQLRowValues) {
                     // TODO if we already point to some row, archive it
-                    toIns = ((SQLRowValues) value).insert().getIDNumber();
+                    toInsert.add(((SQLRowValues) value).insert().getIDNumber());
                 } else
-                    toIns = value;
+                    toInsert.add(value);
+            }
+        }
+        final CachedStatement res = new CachedStatement(ds, c, sqlAndKeys.get0(), sqlAndKeys.get1().intValue());
+        final PreparedStatement pStmt = res.getStatement();
+        // set fields values
+        boolean ok = false;
+        try {
+            for (int i = 0; i < toInsert.size(); i++) {
+                final Object toIns = toInsert.get(i);
                 // sql index start at 1
                 if (toIns instanceof Date) {
                     // to convert from java.util to java.sql, needed for pg and MS
                     pStmt.setObject(i + 1, new Timestamp(((Date) toIns).getTime()));
                 } else
                     pStmt.setObject(i + 1, toIns);
-                i++;
             }
+            ok = true;
+        } finally {
+            if (!ok)
+                res.close();
+        }
+        return Tuple2.create(res, fieldsNames);
+    }
+
+    // a statement obtained from the cache of its data source
+    static private final class CachedStatement {
+        private final SQLDataSource ds;
+        private final Connection c;
+        private final String sql;
+        private final int autoGeneratedKeys;
+        private final PreparedStatement pStmt;
+
+        CachedStatement(final SQLDataSource ds, final Connection c, final String sql, final int autoGeneratedKeys) throws SQLException {
+            this.ds = ds;
+            this.c = c;
+            this.sql = sql;
+            this.autoGeneratedKeys = autoGeneratedKeys;
+            this.pStmt = ds.prepareStatement(c, sql, autoGeneratedKeys);
+        }
+
+        final PreparedStatement getStatement() {
+            return this.pStmt;
+        }
+
+        final String getSQL() {
+            return this.sql;
+        }
+
+        // once successfully executed
+        final void release() throws SQLException {
+            this.ds.releaseStatement(this.c, this.sql, this.autoGeneratedKeys, this.pStmt);
+        }
+
+        // after an error, the statement might be in an unknown state
+        final void close() {
+            DbUtils.closeQuietly(this.pStmt);
         }
-        return Tuple2.create(pStmt, fieldsNames);
     }
 
     private static String getFieldValue(final Object value) {
@@ -1766,13 +1824,19 @@ public final class SQLRowValues extends SQLRowAccessor {
      * @see #insert(PreparedStatement, SQLTable)
      */
     static public final PreparedStatement createInsertStatement(String req, final SQLTable table) throws SQLException {
+        final Connection c = table.getDBSystemRoot().getDataSource().getConnection();
+        final Tuple2<String, Integer> sqlAndKeys = getInsertQuery(req, table, c);
+        return c.prepareStatement(sqlAndKeys.get0(), sqlAndKeys.get1().intValue());
+    }
+
+    // the query and the autoGeneratedKeys flag to get the inserted ID
+    static private final Tuple2<String, Integer> getInsertQuery(String req, final SQLTable table, final Connection c) throws SQLException {
         final boolean rowable = table.isRowable();
         final boolean isPG = table.getServer().getSQLSystem() == SQLSystem.POSTGRESQL;
         if (rowable && isPG)
             req += " RETURNING " + SQLBase.quoteIdentifier(table.getKey().getName());
-        final Connection c = table.getDBSystemRoot().getDataSource().getConnection();
         final int returnGenK = rowable && !isPG && c.getMetaData().supportsGetGeneratedKeys() ? Statement.RETURN_GENERATED_KEYS : Statement.NO_GENERATED_KEYS;
-        return c.prepareStatement(req, returnGenK);
+        return Tuple2.create(req, returnGenK);
     }
 
     /**
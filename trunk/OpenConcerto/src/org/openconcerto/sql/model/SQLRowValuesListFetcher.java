@@ -397,7 +397,14 @@ public class SQLRowValuesListFetcher {
         return this.minGraph != null && this.minGraph.followPath(p) != null;
     }
 
-    private boolean fetchReferents() {
+    /**
+     * Whether the main request joins referent rows, i.e. whether it can return more than one row
+     * per row of the {@link #getGraph() primary table}. In that case a LIMIT on the request doesn't
+     * limit the number of returned items.
+     * 
+     * @return <code>true</code> if referents are fetched by the main request.
+     */
+    public final boolean fetchReferents() {
         return this.descendantPath.length() > 0;
     }
 
@@ -974,7 +981,7 @@ public class SQLRowValuesListFetcher {
         // into the result set handler.
         final IResultSetHandler rsh = new IResultSetHandler(new RSH(selectFieldsNames, l), false);
         @SuppressWarnings("unchecked")
-        final List<SQLRowValues> res = (List<SQLRowValues>) table.getBase().getDataSource().execute(req.asString(), rsh, false);
+        final List<SQLRowValues> res = (List<SQLRowValues>) table.getBase().getDataSource().execute(req, rsh);
         // e.g. list of batiment pointing to site
         final List<SQLRowValues> merged = merge && this.fetchReferents() ? merge(res) : res;
         if (this.grafts.size() > 0) {
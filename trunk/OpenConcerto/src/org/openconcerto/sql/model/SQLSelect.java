@@ -18,6 +18,7 @@ import org.openconcerto.sql.model.Order.Nulls;
 import org.openconcerto.sql.model.graph.Path;
 import org.openconcerto.sql.model.graph.Step;
 import org.openconcerto.utils.CollectionUtils;
+import org.openconcerto.utils.Tuple2;
 import org.openconcerto.utils.cc.ITransformer;
 
 import java.util.ArrayList;
@@ -193,6 +194,26 @@ public final class SQLSelect {
     }
 
     public String asString() {
+        return this.asString(null);
+    }
+
+    /**
+     * The SQL of this request with parameters instead of the values of the WHERE and HAVING
+     * clauses, to be executed with {@link SQLDataSource#execute(SQLSelect, org.apache.commons.dbutils.ResultSetHandler)}.
+     * Requests differing only by these values thus have the same SQL, and the database can reuse
+     * its plan.
+     * 
+     * @return the SQL and the values of its parameters.
+     * @see Where#getPreparedClause()
+     */
+    public final Tuple2<String, List<Object>> asPreparedString() {
+        final List<Object> params = new ArrayList<Object>();
+        final String sql = this.asString(params);
+        return Tuple2.create(sql, Collections.unmodifiableList(params));
+    }
+
+    // params : null to inline values
+    private String asString(final List<Object> params) {
         final SQLSystem sys = this.getSQLSystem();
 
         final StringBuffer result = new StringBuffer(512);
@@ -222,7 +243,7 @@ public final class SQLSelect {
         // archive == null si pas d'archive et pas d'undefined
         if (archive != null && archive.getClause() != "") {
             result.append("\n WHERE ");
-            result.append(archive.getClause());
+            append(result, archive, params);
         }
         if (!this.groupBy.isEmpty()) {
             result.append("\n GROUP BY ");
@@ -235,7 +256,7 @@ public final class SQLSelect {
         }
         if (this.having != null) {
             result.append("\n HAVING ");
-            result.append(this.having.getClause());
+            append(result, this.having, params);
         }
         if (!this.order.isEmpty()) {
             result.append("\n ORDER BY ");
@@ -258,6 +279,15 @@ public final class SQLSelect {
         return result.toString();
     }
 
+    static private void append(final StringBuffer sb, final Where w, final List<Object> params) {
+        if (params == null) {
+            sb.append(w.getClause());
+        } else {
+            sb.append(w.getPreparedClause());
+            params.addAll(w.getParameters());
+        }
+    }
+
     Where getArchiveWhere(final SQLTable table, final String alias) {
         final Where res;
         // null key is the default
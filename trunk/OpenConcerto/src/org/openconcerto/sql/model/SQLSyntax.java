@@ -21,12 +21,15 @@ import org.openconcerto.sql.model.graph.Link.Rule;
 import org.openconcerto.sql.model.graph.TablesMap;
 import org.openconcerto.sql.utils.ChangeTable.ClauseType;
 import org.openconcerto.sql.utils.ChangeTable.OutsideClause;
+import org.openconcerto.sql.utils.CSVHandler;
 import org.openconcerto.sql.utils.SQLUtils;
 import org.openconcerto.utils.CollectionUtils;
 import org.openconcerto.utils.CompareUtils;
 import org.openconcerto.utils.ListMap;
 import org.openconcerto.utils.NetUtils;
+import org.openconcerto.utils.RTInterruptedException;
 import org.openconcerto.utils.StringUtils;
+import org.openconcerto.utils.ThreadFactory;
 import org.openconcerto.utils.Tuple2;
 import org.openconcerto.utils.cc.IClosure;
 import org.openconcerto.utils.cc.ITransformer;
@@ -44,6 +47,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -51,6 +55,11 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 
 /**
@@ -633,6 +642,16 @@ public abstract class SQLSyntax {
 
     public abstract String enableFKChecks(DBRoot b);
 
+    /**
+     * Whether {@link #disableFKChecks(DBRoot)} only applies to the connection executing it.
+     * 
+     * @return <code>true</code> if foreign key checks are a session setting, <code>false</code> if
+     *         they're changed for all connections.
+     */
+    protected boolean isFKChecksSessionScoped() {
+        return false;
+    }
+
     /**
      * Alter clause to change the default.
      * 
@@ -733,6 +752,99 @@ public abstract class SQLSyntax {
      * @throws SQLException if an error occurs while loading data into the database.
      */
     public final void loadData(final File dir, final DBRoot r, final Set<String> tableNames, final boolean delete) throws IOException, SQLException {
+        final List<Tuple2<File, SQLTable>> tables = getDataFiles(dir, r, tableNames);
+        // only run at the end to avoid being stopped while loading
+        r.getBase().getDataSource().execute(disableFKChecks(r));
+        for (final Tuple2<File, SQLTable> t : tables)
+            loadData(t.get0(), t.get1(), delete, Level.INFO);
+        r.getBase().getDataSource().execute(enableFKChecks(r));
+    }
+
+    /**
+     * Load data from files, each table with its own connection. Since the tables are loaded by
+     * different connections, this method must not be called inside a transaction (the loading
+     * threads would wait on its locks) and each table is committed independently.
+     * 
+     * @param dir the directory where the files are located.
+     * @param r the root where to load.
+     * @param tableNames the tables to load or <code>null</code> to load all files in
+     *        <code>dir</code>.
+     * @param delete <code>true</code> if tables should be emptied before loading.
+     * @param threadCount the maximum number of tables loaded at the same time, 1 meaning
+     *        {@link #loadData(File, DBRoot, Set, boolean)}.
+     * @throws IOException if an error occurs while reading the files.
+     * @throws SQLException if an error occurs while loading data into the database.
+     */
+    public final void loadData(final File dir, final DBRoot r, final Set<String> tableNames, final boolean delete, final int threadCount) throws IOException, SQLException {
+        if (threadCount < 1)
+            throw new IllegalArgumentException("Thread count must be positive : " + threadCount);
+        if (threadCount == 1) {
+            this.loadData(dir, r, tableNames, delete);
+            return;
+        }
+        final List<Tuple2<File, SQLTable>> tables = getDataFiles(dir, r, tableNames);
+        // start with the biggest files, so that the longest load isn't the last one to begin
+        Collections.sort(tables, new Comparator<Tuple2<File, SQLTable>>() {
+            @Override
+            public int compare(Tuple2<File, SQLTable> o1, Tuple2<File, SQLTable> o2) {
+                return CompareUtils.compareLong(o2.get0().length(), o1.get0().length());
+            }
+        });
+        final SQLDataSource ds = r.getBase().getDataSource();
+        final boolean sessionScoped = this.isFKChecksSessionScoped();
+        if (!sessionScoped)
+            ds.execute(disableFKChecks(r));
+        final ExecutorService exec = Executors.newFixedThreadPool(Math.min(threadCount, Math.max(1, tables.size())), new ThreadFactory(SQLSyntax.class.getSimpleName() + " loadData ", true));
+        try {
+            final List<Future<?>> futures = new ArrayList<Future<?>>(tables.size());
+            for (final Tuple2<File, SQLTable> t : tables) {
+                futures.add(exec.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws IOException, SQLException {
+                        // use the same connection for all statements
+                        return ds.useConnection(new ConnectionHandlerNoSetup<Object, IOException>() {
+                            @Override
+                            public Object handle(SQLDataSource ds) throws SQLException, IOException {
+                                if (sessionScoped)
+                                    ds.execute(disableFKChecks(r));
+                                try {
+                                    loadData(t.get0(), t.get1(), delete, Level.INFO);
+                                } finally {
+                                    if (sessionScoped)
+                                        ds.execute(enableFKChecks(r));
+                                }
+                                return null;
+                            }
+                        });
+                    }
+                }));
+            }
+            for (final Future<?> f : futures) {
+                try {
+                    f.get();
+                } catch (InterruptedException e) {
+                    throw new RTInterruptedException(e);
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof IOException)
+                        throw (IOException) cause;
+                    else if (cause instanceof SQLException)
+                        throw (SQLException) cause;
+                    else if (cause instanceof RuntimeException)
+                        throw (RuntimeException) cause;
+                    else
+                        throw new IllegalStateException("Couldn't load data", cause);
+                }
+            }
+        } finally {
+            // stop the other tables if one failed
+            exec.shutdownNow();
+            if (!sessionScoped)
+                ds.execute(enableFKChecks(r));
+        }
+    }
+
+    private List<Tuple2<File, SQLTable>> getDataFiles(final File dir, final DBRoot r, final Set<String> tableNames) {
         final List<Tuple2<File, SQLTable>> tables = new ArrayList<Tuple2<File, SQLTable>>();
         if (tableNames == null) {
             for (final File f : dir.listFiles(new FileFilter() {
@@ -757,11 +869,7 @@ public abstract class SQLSyntax {
                     Log.get().warning(f.getAbsolutePath() + " doesn't exist");
             }
         }
-        // only run at the end to avoid being stopped while loading
-        r.getBase().getDataSource().execute(disableFKChecks(r));
-        for (final Tuple2<File, SQLTable> t : tables)
-            loadData(t.get0(), t.get1(), delete, Level.INFO);
-        r.getBase().getDataSource().execute(enableFKChecks(r));
+        return tables;
     }
 
     public final void loadData(final File f, final SQLTable t) throws IOException, SQLException {
@@ -814,6 +922,26 @@ public abstract class SQLSyntax {
 
     protected abstract void _storeData(SQLTable t, File f) throws IOException;
 
+    /**
+     * Dump the rows of <code>t</code> through JDBC, e.g. when the server cannot write to
+     * <code>f</code>. The rows are streamed, so this works for tables of any size.
+     * 
+     * @param t the table to dump.
+     * @param f where to dump it.
+     * @throws IOException if an error occurred.
+     * @see CSVHandler#store(SQLDataSource, String, File)
+     */
+    protected final void storeDataJDBC(final SQLTable t, final File f) throws IOException {
+        // if there's no fields, there's no data
+        if (t.getFields().size() == 0)
+            return;
+        try {
+            new CSVHandler(t.getOrderedFields()).store(t.getDBSystemRoot().getDataSource(), new SQLSelect(true).addSelectStar(t).asString(), f);
+        } catch (SQLException e) {
+            throw new IOException("unable to store " + t + " into " + f, e);
+        }
+    }
+
     /**
      * Whether the passed server runs on this machine.
      * 
@@ -21,6 +21,7 @@ import org.openconcerto.utils.NetUtils;
 import org.openconcerto.utils.Tuple2;
 
 import java.io.File;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.sql.Blob;
 import java.sql.Clob;
@@ -163,8 +164,12 @@ class SQLSyntaxH2 extends SQLSyntax {
     }
 
     @Override
-    protected void _storeData(final SQLTable t, final File f) {
-        checkServerLocalhost(t);
+    protected void _storeData(final SQLTable t, final File f) throws IOException {
+        // CSVWRITE writes on the server
+        if (!this.isServerLocalhost(t.getServer())) {
+            storeDataJDBC(t, f);
+            return;
+        }
         final String quotedPath = t.getBase().quoteString(f.getAbsolutePath());
         final String quotedSel = t.getBase().quoteString(SQLSyntaxPG.selectAll(t).asString());
         t.getBase().getDataSource().execute("CALL CSVWRITE(" + quotedPath + ", " + quotedSel + ", 'UTF8', ',', '\"', '\\', '\\N', '\n');");
@@ -162,6 +162,11 @@ class SQLSyntaxMySQL extends SQLSyntax {
         return "SET FOREIGN_KEY_CHECKS=1;";
     }
 
+    @Override
+    protected boolean isFKChecksSessionScoped() {
+        return true;
+    }
+
     @Override
     public String getDropFK() {
         return "DROP FOREIGN KEY ";
@@ -235,7 +240,11 @@ class SQLSyntaxMySQL extends SQLSyntax {
 
     @Override
     protected void _storeData(final SQLTable t, final File file) throws IOException {
-        checkServerLocalhost(t);
+        // INTO OUTFILE writes on the server
+        if (!this.isServerLocalhost(t.getServer())) {
+            storeDataJDBC(t, file);
+            return;
+        }
         final ListMap<String, String> charsets = new ListMap<String, String>();
         for (final SQLField f : t.getFields()) {
             final Object charset = f.getInfoSchema().get("CHARACTER_SET_NAME");
@@ -373,6 +373,23 @@ public abstract class SQLType {
             return this.toStringRaw(o);
     }
 
+    /**
+     * Convert an object to the value to pass to
+     * {@link java.sql.PreparedStatement#setObject(int, Object)}.
+     * 
+     * @param o an instance of getJavaType(), e.g. a {@link java.util.Date}.
+     * @return the JDBC value, e.g. a {@link Timestamp}.
+     * @throws IllegalArgumentException if o is not valid.
+     * @see #toString(Object)
+     */
+    public final Object toJDBC(Object o) {
+        this.check(o);
+        if (o == null)
+            return null;
+        else
+            return this.toJDBCRaw(o);
+    }
+
     /**
      * Serialize an object to its CSV string. <code>null</code> is \N, other values are always
      * quoted.
@@ -420,6 +437,10 @@ public abstract class SQLType {
 
     abstract protected String toCSVRaw(Object o);
 
+    protected Object toJDBCRaw(Object o) {
+        return o;
+    }
+
     // ** static subclasses
 
     private static final class UnknownType extends SQLType {
@@ -530,6 +551,11 @@ public abstract class SQLType {
                 ts = new Date(getTime(o));
             return ts.toString();
         }
+
+        @Override
+        protected Object toJDBCRaw(Object o) {
+            return o instanceof Date ? o : new Date(getTime(o));
+        }
     }
 
     private static class TimestampType extends DateOrTimeType {
@@ -546,6 +572,11 @@ public abstract class SQLType {
                 ts = new Timestamp(getTime(o));
             return ts.toString();
         }
+
+        @Override
+        protected Object toJDBCRaw(Object o) {
+            return o instanceof Timestamp ? o : new Timestamp(getTime(o));
+        }
     }
 
     private static class TimeType extends DateOrTimeType {
@@ -562,6 +593,11 @@ public abstract class SQLType {
                 ts = new Time(getTime(o));
             return ts.toString();
         }
+
+        @Override
+        protected Object toJDBCRaw(Object o) {
+            return o instanceof Time ? o : new Time(getTime(o));
+        }
     }
 
     private static class StringType extends SQLType {
@@ -19,6 +19,7 @@ import org.openconcerto.utils.cc.ITransformer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -27,7 +28,8 @@ import org.apache.commons.collections.functors.InstanceofPredicate;
 
 /**
  * Une clause WHERE dans une requete SQL. Une clause peut être facilement combinée avec d'autre,
- * exemple : prenomPasVide.and(pasIndéfini).and(age_sup_3.or(assez_grand)).
+ * exemple : prenomPasVide.and(pasIndéfini).and(age_sup_3.or(assez_grand)). Les valeurs sont
+ * également disponibles sous forme de paramètres, voir {@link #getPreparedClause()}.
  * 
  * @author ILM Informatique 27 sept. 2004
  */
@@ -37,6 +39,9 @@ public class Where {
     static public final Where TRUE = Where.createRaw("1=1");
     static public final String NULL_IS_DATA_EQ = new String("===");
     static public final String NULL_IS_DATA_NEQ = new String("IS DISTINCT FROM");
+    // above that, IN lists stay literal : each size is a different statement and the number of
+    // parameters is limited
+    static private final int MAX_IN_PARAMS = 64;
 
     private static abstract class Combiner {
         public final Where combine(Where w1, Where w2) {
@@ -144,16 +149,19 @@ public class Where {
 
     private final List<FieldRef> fields;
     private String clause;
+    // same as clause but with ? instead of values
+    private String preparedClause;
+    private List<Object> params;
 
     {
         this.fields = new ArrayList<FieldRef>();
-        this.clause = "";
+        this.setClause("");
     }
 
     public Where(FieldRef field1, String op, FieldRef field2) {
         this.fields.add(field1);
         this.fields.add(field2);
-        this.clause = comparison(field1, op, field2.getFieldRef());
+        this.setClause(comparison(field1, op, field2.getFieldRef()));
     }
 
     public Where(FieldRef field1, String op, int scalar) {
@@ -179,7 +187,13 @@ public class Where {
             else if (op.trim().equals("<>"))
                 op = "is not";
         }
-        this.clause = comparison(ref, op, ref.getField().getType().toString(o));
+        final SQLType type = ref.getField().getType();
+        final String literal = comparison(ref, op, type.toString(o));
+        // NULL_IS_DATA comparisons can use the value more than once
+        if (o == null || op == NULL_IS_DATA_EQ || op == NULL_IS_DATA_NEQ)
+            this.setClause(literal);
+        else
+            this.setClause(literal, comparison(ref, op, "?"), Collections.singletonList(type.toJDBC(o)));
     }
 
     /**
@@ -202,21 +216,37 @@ public class Where {
      */
     public Where(final FieldRef field1, final boolean in, Collection<?> values) {
         if (values.isEmpty()) {
-            this.clause = in ? FALSE.getClause() : TRUE.getClause();
+            this.setClause(in ? FALSE.getClause() : TRUE.getClause());
         } else {
             this.fields.add(field1);
-            this.clause = getInClause(field1, in, CollectionUtils.join(values, ",", new ITransformer<Object, String>() {
+            final SQLType type = field1.getField().getType();
+            final String literal = getInClause(field1, in, CollectionUtils.join(values, ",", new ITransformer<Object, String>() {
                 @Override
                 public String transformChecked(Object input) {
-                    return field1.getField().getType().toString(input);
+                    return type.toString(input);
                 }
             }));
+            List<Object> params = values.size() > MAX_IN_PARAMS ? null : new ArrayList<Object>(values.size());
+            if (params != null) {
+                for (final Object v : values) {
+                    // setObject() needs the type of null
+                    if (v == null) {
+                        params = null;
+                        break;
+                    }
+                    params.add(type.toJDBC(v));
+                }
+            }
+            if (params == null)
+                this.setClause(literal);
+            else
+                this.setClause(literal, getInClause(field1, in, CollectionUtils.join(Collections.nCopies(values.size(), "?"), ",")), params);
         }
     }
 
     public Where(final FieldRef field1, final boolean in, SQLSelect subQuery) {
         this.fields.add(field1);
-        this.clause = getInClause(field1, in, subQuery.asString());
+        this.setClause(getInClause(field1, in, subQuery.asString()));
     }
 
     /**
@@ -229,7 +259,12 @@ public class Where {
     public Where(FieldRef ref, Object borneInf, Object borneSup) {
         final SQLField field1 = ref.getField();
         this.fields.add(ref);
-        this.clause = ref.getFieldRef() + " BETWEEN " + field1.getType().toString(borneInf) + " AND " + field1.getType().toString(borneSup);
+        final SQLType type = field1.getType();
+        final String literal = ref.getFieldRef() + " BETWEEN " + type.toString(borneInf) + " AND " + type.toString(borneSup);
+        if (borneInf == null || borneSup == null)
+            this.setClause(literal);
+        else
+            this.setClause(literal, ref.getFieldRef() + " BETWEEN ? AND ?", Arrays.asList(type.toJDBC(borneInf), type.toJDBC(borneSup)));
     }
 
     /**
@@ -245,15 +280,15 @@ public class Where {
      */
     public Where(FieldRef ref, Object borneInf, boolean infInclusive, Object borneSup, boolean supInclusive) {
         this.fields.add(ref);
-        final String infClause = new Where(ref, infInclusive ? ">=" : ">", borneInf).getClause();
-        final String supClause = new Where(ref, supInclusive ? "<=" : "<", borneSup).getClause();
-        this.clause = infClause + " AND " + supClause;
+        final Where inf = new Where(ref, infInclusive ? ">=" : ">", borneInf);
+        final Where sup = new Where(ref, supInclusive ? "<=" : "<", borneSup);
+        this.setClause(inf.clause + " AND " + sup.clause, inf.preparedClause + " AND " + sup.preparedClause, concat(inf.params, sup.params));
     }
 
     // raw ctor, see static methods
     private Where(String clause, Collection<? extends FieldRef> refs) {
         this.fields.addAll(refs);
-        this.clause = clause;
+        this.setClause(clause);
     }
 
     private Where() {
@@ -267,6 +302,28 @@ public class Where {
      */
     public Where(Where orig) {
         this(orig.clause, orig.fields);
+        this.setClause(orig.clause, orig.preparedClause, orig.params);
+    }
+
+    private void setClause(final String clause) {
+        this.setClause(clause, clause, Collections.<Object> emptyList());
+    }
+
+    private void setClause(final String clause, final String preparedClause, final List<Object> params) {
+        this.clause = clause;
+        this.preparedClause = preparedClause;
+        this.params = params;
+    }
+
+    static private List<Object> concat(final List<Object> l1, final List<Object> l2) {
+        if (l1.isEmpty())
+            return l2;
+        else if (l2.isEmpty())
+            return l1;
+        final List<Object> res = new ArrayList<Object>(l1.size() + l2.size());
+        res.addAll(l1);
+        res.addAll(l2);
+        return Collections.unmodifiableList(res);
     }
 
     public Where or(Where w) {
@@ -279,7 +336,7 @@ public class Where {
 
     public Where not() {
         final Where res = new Where(this);
-        res.clause = "NOT (" + this.clause + ")";
+        res.setClause("NOT (" + this.clause + ")", "NOT (" + this.preparedClause + ")", this.params);
         return res;
     }
 
@@ -291,7 +348,7 @@ public class Where {
         res.fields.addAll(this.fields);
         res.fields.addAll(w.fields);
 
-        res.clause = "(" + this.clause + ") " + op + " (" + w.clause + ")";
+        res.setClause("(" + this.clause + ") " + op + " (" + w.clause + ")", "(" + this.preparedClause + ") " + op + " (" + w.preparedClause + ")", concat(this.params, w.params));
         return res;
     }
 
@@ -304,6 +361,27 @@ public class Where {
         return this.clause;
     }
 
+    /**
+     * La clause avec des paramètres à la place des valeurs, pour un
+     * {@link java.sql.PreparedStatement}. The parameters are already converted with
+     * {@link SQLType#toJDBC(Object)}. Some clauses stay literal, e.g. raw ones or long IN lists.
+     * 
+     * @return the clause, e.g. "ID" = ?.
+     * @see #getParameters()
+     */
+    public String getPreparedClause() {
+        return this.preparedClause;
+    }
+
+    /**
+     * The values of the parameters of the {@link #getPreparedClause() prepared clause}.
+     * 
+     * @return the values in the order of the ?, e.g. [12].
+     */
+    public List<Object> getParameters() {
+        return this.params;
+    }
+
     /**
      * Les champs utilisés dans cette clause.
      * 
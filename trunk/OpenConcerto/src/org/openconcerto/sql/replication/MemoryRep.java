@@ -25,6 +25,10 @@ import org.openconcerto.sql.model.SQLServer;
 import org.openconcerto.sql.model.SQLSyntax;
 import org.openconcerto.sql.model.SQLSystem;
 import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.model.SQLTable.ListenerAndConfig;
+import org.openconcerto.sql.model.SQLTableEvent;
+import org.openconcerto.sql.model.SQLTableModifiedListener;
+import org.openconcerto.sql.model.Where;
 import org.openconcerto.sql.model.graph.TablesMap;
 import org.openconcerto.sql.utils.CSVHandler;
 import org.openconcerto.sql.utils.ChangeTable;
@@ -35,15 +39,24 @@ import org.openconcerto.sql.utils.SQLUtils;
 import org.openconcerto.sql.utils.ChangeTable.FCSpec;
 import org.openconcerto.utils.FileUtils;
 import org.openconcerto.utils.RTInterruptedException;
+import org.openconcerto.utils.StringUtils;
 import org.openconcerto.utils.ThreadFactory;
 import org.openconcerto.utils.cc.IClosure;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -57,6 +70,7 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
@@ -64,7 +78,9 @@ import net.jcip.annotations.ThreadSafe;
 import org.apache.commons.dbutils.ResultSetHandler;
 
 /**
- * Allow to replicate some tables in memory.
+ * Allow to replicate some tables in memory. By default all tables are copied at each period, but in
+ * {@link #setIncremental(long, TimeUnit) incremental mode} changed rows are also copied as soon as
+ * they're known.
  * 
  * @author Sylvain
  */
@@ -89,6 +105,24 @@ public class MemoryRep {
     // final thread-safe object
     private final AtomicInteger count;
 
+    // incremental mode, negative if disabled
+    @GuardedBy("this")
+    private long maxLag;
+    private final ListenerAndConfig changeListener;
+    // changed IDs by master table, null meaning all rows
+    @GuardedBy("this")
+    private final Map<SQLTable, Set<Integer>> changes;
+    // nano time of the first item in changes
+    @GuardedBy("this")
+    private long oldestChange;
+    @GuardedBy("this")
+    private ScheduledFuture<?> changesFuture;
+    // statistics of incremental replications
+    private final AtomicInteger incrementalCount;
+    private final AtomicLong rowsApplied;
+    private volatile int lastRowsApplied;
+    private volatile long lastLatency;
+
     public MemoryRep(final SQLTable table) {
         this(table.getDBSystemRoot(), TablesMap.createByRootFromTable(table));
     }
@@ -135,6 +169,89 @@ public class MemoryRep {
         this.slave.getDataSource().execute(this.slave.getServer().getSQLSystem().getSyntax().disableFKChecks(null));
         this.count = new AtomicInteger(0);
         this.canceledCount = 0;
+
+        this.maxLag = -1;
+        this.changeListener = new ListenerAndConfig(new SQLTableModifiedListener() {
+            @Override
+            public void tableModified(SQLTableEvent evt) {
+                addChanges(evt.getTable(), evt.getRow() == null ? null : Collections.singleton(evt.getId()));
+            }
+        }, true);
+        this.changes = new LinkedHashMap<SQLTable, Set<Integer>>();
+        this.changesFuture = null;
+        this.incrementalCount = new AtomicInteger(0);
+        this.rowsApplied = new AtomicLong(0);
+        this.lastRowsApplied = 0;
+        this.lastLatency = 0;
+    }
+
+    /**
+     * Set the incremental mode. In this mode, events of the master tables (thus only changes made
+     * by this VM) are recorded and only the changed rows are copied to the slave, at most
+     * <code>maxLag</code> after the first recorded change. The periodic full copy still occurs to
+     * get the changes made by other VMs, so the period passed to {@link #start(long, TimeUnit)} can
+     * be longer.
+     * 
+     * @param maxLag the maximum delay between a change and its replication, negative to disable
+     *        the incremental mode.
+     * @param unit the time unit of <code>maxLag</code>.
+     * @throws IllegalStateException if already started.
+     */
+    public synchronized final void setIncremental(final long maxLag, final TimeUnit unit) {
+        if (this.future != null)
+            throw new IllegalStateException("Already started");
+        this.maxLag = maxLag < 0 ? -1 : unit.toNanos(maxLag);
+    }
+
+    public synchronized final boolean isIncremental() {
+        return this.maxLag >= 0;
+    }
+
+    /**
+     * Record that some rows of a master table have changed. Useful for modifications that don't
+     * fire table events.
+     * 
+     * @param masterTable the master table that was modified.
+     * @param ids the modified IDs, <code>null</code> meaning all rows.
+     * @see #setIncremental(long, TimeUnit)
+     */
+    public final void addChanges(final SQLTable masterTable, final Collection<Integer> ids) {
+        final String rootName = masterTable.getDBRoot().getName();
+        if (!this.tables.containsKey(rootName) || !this.tables.get(rootName).contains(masterTable.getName()))
+            throw new IllegalArgumentException("Table not replicated : " + masterTable);
+        synchronized (this) {
+            if (this.maxLag < 0 || this.hasStopped())
+                return;
+            if (this.changes.isEmpty())
+                this.oldestChange = System.nanoTime();
+            // without primary key we can only copy the whole table
+            if (ids == null || masterTable.getKey() == null) {
+                this.changes.put(masterTable, null);
+            } else if (!this.changes.containsKey(masterTable)) {
+                this.changes.put(masterTable, new HashSet<Integer>(ids));
+            } else if (this.changes.get(masterTable) != null) {
+                this.changes.get(masterTable).addAll(ids);
+            }
+            if (this.changesFuture == null) {
+                this.changesFuture = exec.schedule(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        replicateChanges();
+                        return null;
+                    }
+                }, this.maxLag, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private final List<SQLTable> getMasterTables() {
+        final List<SQLTable> res = new ArrayList<SQLTable>();
+        for (final Entry<String, Set<String>> e : this.tables.entrySet()) {
+            final DBRoot root = this.master.getRoot(e.getKey());
+            for (final String tableName : e.getValue())
+                res.add(root.getTable(tableName));
+        }
+        return res;
     }
 
     /**
@@ -165,6 +282,10 @@ public class MemoryRep {
         final Future<?> res = submitReplicate();
         // start after period since we just submitted a replicate()
         this.future = exec.scheduleAtFixedRate(getRunnable(), period, period, unit);
+        if (this.isIncremental()) {
+            for (final SQLTable t : this.getMasterTables())
+                t.addTableModifiedListener(this.changeListener);
+        }
         return res;
     }
 
@@ -184,6 +305,13 @@ public class MemoryRep {
                 return null;
             this.future.cancel(true);
             this.manualFuture.cancel(true);
+            if (this.isIncremental()) {
+                for (final SQLTable t : this.getMasterTables())
+                    t.removeTableModifiedListener(this.changeListener);
+                if (this.changesFuture != null)
+                    this.changesFuture.cancel(true);
+                this.changes.clear();
+            }
         }
         // use exec to be sure not to destroy the server before replicate() notices the interruption
         return exec.submit(new Runnable() {
@@ -350,43 +478,86 @@ public class MemoryRep {
 
     // only called from the executor
     protected final void replicateData() throws SQLException, IOException, InterruptedException {
+        // a full copy includes the pending changes
+        synchronized (this) {
+            this.changes.clear();
+        }
+        final Map<SQLTable, Set<Integer>> all = new LinkedHashMap<SQLTable, Set<Integer>>();
+        for (final SQLTable t : this.getMasterTables())
+            all.put(t, null);
+        this.replicateData(all);
+        this.count.incrementAndGet();
+    }
+
+    // only called from the executor
+    protected final void replicateChanges() throws SQLException, IOException, InterruptedException {
+        final Map<SQLTable, Set<Integer>> toCopy;
+        final long oldest;
+        synchronized (this) {
+            this.changesFuture = null;
+            if (this.changes.isEmpty())
+                return;
+            toCopy = new LinkedHashMap<SQLTable, Set<Integer>>(this.changes);
+            this.changes.clear();
+            oldest = this.oldestChange;
+        }
+        final int rows = this.replicateData(toCopy);
+        this.lastLatency = System.nanoTime() - oldest;
+        this.lastRowsApplied = rows;
+        this.rowsApplied.addAndGet(rows);
+        this.incrementalCount.incrementAndGet();
+    }
+
+    /**
+     * Copy rows from master to slave.
+     * 
+     * @param toCopy the IDs to copy by master table, <code>null</code> meaning all rows.
+     * @return the number of rows copied or deleted.
+     */
+    private final int replicateData(final Map<SQLTable, Set<Integer>> toCopy) throws SQLException, IOException, InterruptedException {
         final SQLSyntax slaveSyntax = SQLSyntax.get(this.slave);
         final File tempDir = FileUtils.createTempDir(getClass().getCanonicalName() + "_StoreData");
         try {
             final List<String> queries = new ArrayList<String>();
             final List<ResultSetHandler> handlers = new ArrayList<ResultSetHandler>();
             final Map<File, SQLTable> files = new HashMap<File, SQLTable>();
-            for (final Entry<String, Set<String>> e : this.tables.entrySet()) {
+            for (final Entry<SQLTable, Set<Integer>> e : toCopy.entrySet()) {
                 if (Thread.interrupted())
                     throw new InterruptedException("While creating handlers");
-                final String rootName = e.getKey();
+                final SQLTable masterT = e.getKey();
+                final String rootName = masterT.getDBRoot().getName();
+                final String tableName = masterT.getName();
                 final File rootDir = new File(tempDir, rootName);
                 FileUtils.mkdir_p(rootDir);
-                final DBRoot root = this.master.getRoot(rootName);
                 final DBRoot slaveRoot = this.slave.getRoot(rootName);
-                for (final String tableName : e.getValue()) {
-                    final SQLTable masterT = root.getTable(tableName);
-                    final SQLSelect select = new SQLSelect(true).addSelectStar(masterT);
-                    queries.add(select.asString());
-                    // don't use cache to be sure to have up to date data
-                    handlers.add(new IResultSetHandler(new ResultSetHandler() {
-
-                        private final CSVHandler csvH = new CSVHandler(masterT.getOrderedFields());
-
-                        @Override
-                        public Object handle(ResultSet rs) throws SQLException {
-                            final File tempFile = new File(rootDir, FileUtils.FILENAME_ESCAPER.escape(tableName) + ".csv");
-                            assert !tempFile.exists();
+                final SQLSelect select = new SQLSelect(true).addSelectStar(masterT);
+                if (e.getValue() != null)
+                    select.setWhere(new Where(masterT.getKey(), e.getValue()));
+                queries.add(select.asString());
+                // don't use cache to be sure to have up to date data
+                handlers.add(new IResultSetHandler(new ResultSetHandler() {
+
+                    private final CSVHandler csvH = new CSVHandler(masterT.getOrderedFields());
+
+                    @Override
+                    public Object handle(ResultSet rs) throws SQLException {
+                        final File tempFile = new File(rootDir, FileUtils.FILENAME_ESCAPER.escape(tableName) + ".csv");
+                        assert !tempFile.exists();
+                        try {
+                            // don't build the whole table in memory
+                            final Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), StringUtils.UTF8), CSVHandler.BUFFER_SIZE);
                             try {
-                                FileUtils.write(this.csvH.handle(rs), tempFile);
-                                files.put(tempFile, slaveRoot.getTable(tableName));
-                            } catch (IOException e) {
-                                throw new SQLException(e);
+                                this.csvH.write(rs, w);
+                            } finally {
+                                w.close();
                             }
-                            return null;
+                            files.put(tempFile, slaveRoot.getTable(tableName));
+                        } catch (IOException e) {
+                            throw new SQLException(e);
                         }
-                    }, false));
-                }
+                        return null;
+                    }
+                }, false));
             }
             try {
                 SQLUtils.executeAtomic(this.master.getDataSource(), new ConnectionHandlerNoSetup<Object, SQLException>() {
@@ -401,23 +572,64 @@ public class MemoryRep {
                 exn.initCause(e);
                 throw exn;
             }
-            SQLUtils.executeAtomic(this.slave.getDataSource(), new ConnectionHandlerNoSetup<Object, IOException>() {
+            return SQLUtils.executeAtomic(this.slave.getDataSource(), new ConnectionHandlerNoSetup<Integer, IOException>() {
                 @Override
-                public Object handle(SQLDataSource ds) throws SQLException, IOException {
+                public Integer handle(SQLDataSource ds) throws SQLException, IOException {
+                    int res = 0;
                     for (final Entry<File, SQLTable> e : files.entrySet()) {
                         final SQLTable slaveT = e.getValue();
-                        // loadData() fires table modified
-                        slaveSyntax.loadData(e.getKey(), slaveT, true);
+                        final Set<Integer> ids = toCopy.get(getMasterTable(slaveT.getDBRoot().getName(), slaveT.getName()));
+                        if (ids == null) {
+                            // loadData() fires table modified
+                            slaveSyntax.loadData(e.getKey(), slaveT, true);
+                            res += ((Number) ds.executeScalar(new SQLSelect(true).addSelectFunctionStar("count").addFrom(slaveT).asString())).intValue();
+                        } else {
+                            // rows deleted from the master are simply not re-inserted
+                            ds.execute("DELETE FROM " + slaveT.getSQLName().quote() + " WHERE " + new Where(slaveT.getKey(), ids).getClause());
+                            slaveSyntax.loadData(e.getKey(), slaveT, false);
+                            res += ids.size();
+                        }
                     }
-                    return null;
+                    return res;
                 }
             });
-            this.count.incrementAndGet();
         } finally {
             FileUtils.rm_R(tempDir);
         }
     }
 
+    /**
+     * The number of rows applied by the last incremental replication.
+     * 
+     * @return the number of rows copied or deleted.
+     */
+    public final int getLastRowsApplied() {
+        return this.lastRowsApplied;
+    }
+
+    /**
+     * The delay between the first change and the end of the last incremental replication.
+     * 
+     * @param unit the unit of the result.
+     * @return the replication latency.
+     */
+    public final long getLastLatency(final TimeUnit unit) {
+        return unit.convert(this.lastLatency, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * The total number of rows applied by incremental replications.
+     * 
+     * @return the number of rows copied or deleted.
+     */
+    public final long getRowsApplied() {
+        return this.rowsApplied.get();
+    }
+
+    public final int getIncrementalCount() {
+        return this.incrementalCount.get();
+    }
+
     final int getCount() {
         return this.count.get();
     }
@@ -27,7 +27,9 @@ import org.openconcerto.sql.model.graph.Path;
 import org.openconcerto.utils.CollectionUtils;
 import org.openconcerto.utils.CompareUtils;
 import org.openconcerto.utils.Tuple2;
+import org.openconcerto.utils.cc.ITransformer;
 
+import java.math.BigDecimal;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
@@ -142,6 +144,54 @@ public abstract class FilteredFillSQLRequest extends BaseFillSQLRequest {
         return this.setupFetcher(f, w).fetch();
     }
 
+    /**
+     * Whether {@link #getValues(BigDecimal, int)} can be used, i.e. if one fetched item is one row
+     * of the primary table.
+     * 
+     * @return <code>true</code> if values can be fetched a page at a time.
+     */
+    public final boolean canFetchPages() {
+        return this.getPrimaryTable().isOrdered() && !this.getFetcher(null).fetchReferents();
+    }
+
+    /**
+     * Fetch a page of values. The values are ordered by the {@link SQLTable#getOrderField() order}
+     * of the primary table (even if there's a search, see {@link #setSearch(String)}), so to fetch
+     * the next page just pass the order of the last value. This avoids OFFSET which would have to
+     * skip all previous rows and which would miss or repeat rows if the table changes between
+     * pages.
+     * 
+     * @param after only rows strictly after this order are returned, <code>null</code> for the
+     *        first page.
+     * @param count the maximum number of values to return.
+     * @return at most <code>count</code> values.
+     * @throws IllegalStateException if this {@link #canFetchPages() cannot fetch pages}.
+     */
+    public final List<SQLRowValues> getValues(final BigDecimal after, final int count) {
+        if (count <= 0)
+            throw new IllegalArgumentException("Count must be positive : " + count);
+        final SQLRowValuesListFetcher fetcher = this.getFetcher(null);
+        if (!this.getPrimaryTable().isOrdered() || fetcher.fetchReferents())
+            throw new IllegalStateException("Cannot limit the number of rows of " + this);
+        final String tableName = this.getPrimaryTable().getName();
+        final String orderName = this.getPrimaryTable().getOrderField().getName();
+        final ITransformer<SQLSelect, SQLSelect> origSelTransf = fetcher.getSelTransf();
+        fetcher.setSelTransf(new ITransformer<SQLSelect, SQLSelect>() {
+            @Override
+            public SQLSelect transformChecked(SQLSelect sel) {
+                sel = origSelTransf.transformChecked(sel);
+                // the order must be unique and the same as the where, so remove the search score
+                final TableRef primary = sel.getTableRef(tableName);
+                sel.getOrder().clear();
+                sel.addOrder(primary);
+                if (after != null)
+                    sel.andWhere(new Where(primary.getField(orderName), ">", after));
+                return sel.setLimit(count);
+            }
+        });
+        return fetcher.fetch();
+    }
+
     @Override
     protected SQLSelect transformSelect(SQLSelect sel) {
         final Tuple2<Set<SQLRow>, Path> filterInfo = getFilterInfo();
@@ -13,6 +13,7 @@
  
  package org.openconcerto.sql.request;
 
+import org.openconcerto.sql.State;
 import org.openconcerto.sql.model.SQLData;
 import org.openconcerto.utils.cache.CacheWatcherFactory;
 import org.openconcerto.utils.cache.ICache;
@@ -66,6 +67,7 @@ public final class SQLCache<K, V> extends ICache<K, V, SQLData> {
                 return new SQLCacheWatcher<K>(c, o);
             }
         });
+        State.INSTANCE.addCache(this);
     }
 
     public final boolean isClearedAfterTransaction() {
@@ -13,13 +13,24 @@
  
  package org.openconcerto.sql.utils;
 
+import org.openconcerto.sql.model.ConnectionHandlerNoSetup;
+import org.openconcerto.sql.model.SQLDataSource;
 import org.openconcerto.sql.model.SQLField;
 import org.openconcerto.sql.model.SQLSyntax;
+import org.openconcerto.sql.model.SQLSystem;
 import org.openconcerto.sql.model.SQLType;
 import org.openconcerto.utils.StringUtils;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -28,13 +39,18 @@ import org.apache.commons.dbutils.ResultSetHandler;
 
 /**
  * Serialize rows into the CSV format. Lines are separated by newlines, <code>null</code> is \N, all
- * other values are double quoted.
+ * other values are double quoted. {@link #handle(ResultSet)} returns the whole result as a string,
+ * for large tables use {@link #store(SQLDataSource, String, File)} which only ever holds
+ * {@link #BUFFER_SIZE} characters and {@link #FETCH_SIZE} rows in memory.
  * 
  * @author Sylvain
  * @see SQLSyntax#loadData(java.io.File, org.openconcerto.sql.model.SQLTable)
  */
 public class CSVHandler implements ResultSetHandler {
 
+    public static final int FETCH_SIZE = 1000;
+    public static final int BUFFER_SIZE = 64 * 1024;
+
     private final List<String> names;
     private final List<SQLType> types;
 
@@ -59,26 +75,87 @@ public class CSVHandler implements ResultSetHandler {
 
     @Override
     public String handle(ResultSet rs) throws SQLException {
+        final StringWriter sw = new StringWriter(16 * 1024);
+        try {
+            this.write(rs, sw);
+        } catch (IOException e) {
+            // StringWriter doesn't throw
+            throw new IllegalStateException(e);
+        }
+        return sw.toString();
+    }
+
+    /**
+     * Write the column names then all the rows of <code>rs</code> to <code>w</code>, each row
+     * being written as soon as it is read.
+     * 
+     * @param rs the rows to serialize.
+     * @param w where to write, not closed by this method.
+     * @return the number of rows written.
+     * @throws SQLException if the rows couldn't be read.
+     * @throws IOException if <code>w</code> couldn't be written to.
+     */
+    public final long write(ResultSet rs, Writer w) throws SQLException, IOException {
         final int colCount = this.names.size();
-        final StringBuilder sb = new StringBuilder(16 * 1024);
 
         for (int i = 0; i < colCount; i++) {
             if (i > 0)
-                sb.append(',');
-            sb.append(StringUtils.doubleQuote(this.names.get(i)));
+                w.write(',');
+            w.write(StringUtils.doubleQuote(this.names.get(i)));
         }
-        sb.append('\n');
+        w.write('\n');
 
+        long res = 0;
         while (rs.next()) {
             for (int i = 0; i < colCount; i++) {
                 if (i > 0)
-                    sb.append(',');
+                    w.write(',');
                 final Object obj = rs.getObject(i + 1);
-                sb.append(this.types.get(i).toCSV(obj));
+                w.write(this.types.get(i).toCSV(obj));
             }
-            sb.append('\n');
+            w.write('\n');
+            res++;
         }
-        return sb.toString();
+        return res;
+    }
+
+    /**
+     * Execute <code>query</code> and write its rows to <code>f</code> in UTF-8. The rows are read
+     * through a cursor and written with a fixed-size buffer, so the memory needed doesn't depend on
+     * the size of the result.
+     * 
+     * @param ds the data source to query.
+     * @param query the query, its columns must match the ones of this handler.
+     * @param f the file to write.
+     * @return the number of rows written.
+     * @throws SQLException if the query failed.
+     * @throws IOException if the file couldn't be written.
+     */
+    public final long store(final SQLDataSource ds, final String query, final File f) throws SQLException, IOException {
+        // PostgreSQL only uses a cursor inside a transaction
+        return SQLUtils.executeAtomic(ds, new ConnectionHandlerNoSetup<Long, IOException>() {
+            @Override
+            public Long handle(SQLDataSource ds) throws SQLException, IOException {
+                final Statement stmt = ds.getConnection().createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                try {
+                    // MySQL only streams rows with Integer.MIN_VALUE
+                    stmt.setFetchSize(ds.getSystem() == SQLSystem.MYSQL ? Integer.MIN_VALUE : FETCH_SIZE);
+                    final ResultSet rs = stmt.executeQuery(query);
+                    try {
+                        final Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), StringUtils.UTF8), BUFFER_SIZE);
+                        try {
+                            return write(rs, w);
+                        } finally {
+                            w.close();
+                        }
+                    } finally {
+                        rs.close();
+                    }
+                } finally {
+                    stmt.close();
+                }
+            }
+        });
     }
 
     @Override
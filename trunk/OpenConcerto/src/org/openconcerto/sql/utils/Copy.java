@@ -54,6 +54,7 @@ public class Copy {
     private static final String NO_DATA = "noData";
     public static final String DELETE_TABLE = "deleteTable";
     public static final String NAME_TO_STORE = "nameToStore";
+    public static final String LOAD_THREADS = "loadThreads";
 
     private static void usage() {
         System.out.println("Usage: " + Copy.class.getName() + " [ -store | -load ] url directory");
@@ -64,6 +65,7 @@ public class Copy {
         System.out.println("\t" + NO_DATA + " = true to avoid dumping/restoring the data");
         System.out.println("\t" + DELETE_TABLE + " = (only for loading) true to empty tables before loading data");
         System.out.println("\t" + NAME_TO_STORE + " = (only for storing) root name to use when storing, e.g. allow to copy one root to another");
+        System.out.println("\t" + LOAD_THREADS + " = (only for loading) number of tables loaded at the same time, if more than 1 each table is loaded in its own transaction");
     }
 
     public static void main(String[] args) throws SQLException, IOException, URISyntaxException {
@@ -96,20 +98,43 @@ public class Copy {
                 input.addConnectionProperty("allowMultiQueries", "true");
             }
         });
-        new Copy(store, dir, sysRoot, Boolean.getBoolean(NO_STRUCT), Boolean.getBoolean(NO_DATA)).applyTo(url.getRootName(), System.getProperty(NAME_TO_STORE), url.getTableName());
+        new Copy(store, dir, sysRoot, Boolean.getBoolean(NO_STRUCT), Boolean.getBoolean(NO_DATA), Integer.getInteger(LOAD_THREADS, 1)).applyTo(url.getRootName(), System.getProperty(NAME_TO_STORE), url.getTableName());
         sysRoot.getServer().destroy();
     }
 
     private final boolean store;
     private final boolean noStruct;
     private final boolean noData;
+    private final int loadThreads;
     private final File dir;
     private final DBSystemRoot sysRoot;
 
     public Copy(final boolean store, final File dir, final DBSystemRoot base, boolean noStruct, boolean noData) throws SQLException, IOException {
+        this(store, dir, base, noStruct, noData, 1);
+    }
+
+    /**
+     * Create a new instance.
+     * 
+     * @param store <code>true</code> to dump, <code>false</code> to restore.
+     * @param dir the directory containing the files.
+     * @param base the system root to dump or restore.
+     * @param noStruct <code>true</code> to avoid dumping/restoring the structure.
+     * @param noData <code>true</code> to avoid dumping/restoring the data.
+     * @param loadThreads only for restoring, the number of tables loaded at the same time. If 1
+     *        the whole copy is done in one transaction, otherwise the structure is restored in one
+     *        transaction, then each table in its own.
+     * @throws SQLException if the database couldn't be accessed.
+     * @throws IOException if <code>dir</code> couldn't be created.
+     * @see SQLSyntax#loadData(File, DBRoot, Set, boolean, int)
+     */
+    public Copy(final boolean store, final File dir, final DBSystemRoot base, boolean noStruct, boolean noData, final int loadThreads) throws SQLException, IOException {
+        if (loadThreads < 1)
+            throw new IllegalArgumentException("Thread count must be positive : " + loadThreads);
         this.store = store;
         this.noStruct = noStruct;
         this.noData = noData;
+        this.loadThreads = loadThreads;
         this.dir = dir;
         FileUtils.mkdir_p(dir);
 
@@ -129,16 +154,21 @@ public class Copy {
     }
 
     public final void applyTo(final String rootName, final String newRootName, final String tableName) throws SQLException, IOException {
+        final String newName = newRootName == null ? rootName : newRootName;
+        // tables loaded by different connections can't be in the same transaction
+        final boolean parallelLoad = !this.store && !this.noData && this.loadThreads > 1;
         SQLUtils.executeAtomic(this.sysRoot.getDataSource(), new ConnectionHandlerNoSetup<Object, IOException>() {
             @Override
             public Object handle(SQLDataSource ds) throws SQLException, IOException {
-                applyToP(rootName, newRootName == null ? rootName : newRootName, tableName);
+                applyToP(rootName, newName, tableName, !parallelLoad);
                 return null;
             }
         });
+        if (parallelLoad)
+            applyData(this.sysRoot.contains(rootName) ? this.sysRoot.getRoot(rootName) : null, rootName, newName, tableName);
     }
 
-    private void applyToP(final String rootName, final String newRootName, final String tableName) throws IOException, SQLException {
+    private void applyToP(final String rootName, final String newRootName, final String tableName, final boolean data) throws IOException, SQLException {
         DBRoot r = this.sysRoot.contains(rootName) ? this.sysRoot.getRoot(rootName) : null;
 
         if (!this.noStruct) {
@@ -184,19 +214,22 @@ public class Copy {
             System.err.println("done");
         }
 
-        if (!this.noData) {
-            System.err.println("Data of " + rootName + " ... ");
-            final SQLSyntax syntax = this.sysRoot.getServer().getSQLSystem().getSyntax();
-            final Set<String> tableNames = tableName == null ? null : singleton(tableName);
-            // TODO support table with non-ASCII chars
-            // eg : if on win with MySQL SET character_set_filesystem = latin1
-            // may be just zip all data
-            if (this.store)
-                syntax.storeData(r, tableNames, this.getDir(newRootName));
-            else
-                syntax.loadData(this.getDir(rootName), r, tableNames, Boolean.getBoolean(DELETE_TABLE));
-            System.err.println("Data done");
-        }
+        if (data && !this.noData)
+            applyData(r, rootName, newRootName, tableName);
+    }
+
+    private void applyData(final DBRoot r, final String rootName, final String newRootName, final String tableName) throws IOException, SQLException {
+        System.err.println("Data of " + rootName + " ... ");
+        final SQLSyntax syntax = this.sysRoot.getServer().getSQLSystem().getSyntax();
+        final Set<String> tableNames = tableName == null ? null : singleton(tableName);
+        // TODO support table with non-ASCII chars
+        // eg : if on win with MySQL SET character_set_filesystem = latin1
+        // may be just zip all data
+        if (this.store)
+            syntax.storeData(r, tableNames, this.getDir(newRootName));
+        else
+            syntax.loadData(this.getDir(rootName), r, tableNames, Boolean.getBoolean(DELETE_TABLE), this.loadThreads);
+        System.err.println("Data done");
     }
 
     private File getDir(final String rootName) {
@@ -73,6 +73,8 @@ import java.awt.Font;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Insets;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.HierarchyEvent;
 import java.awt.event.HierarchyListener;
@@ -124,6 +126,8 @@ import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
 import javax.swing.event.AncestorEvent;
 import javax.swing.event.AncestorListener;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import javax.swing.event.TableColumnModelEvent;
@@ -537,6 +541,19 @@ public final class IListe extends JPanel {
                     updateButtons();
             }
         });
+        // the sorter can only sort the loaded lines
+        final PropertyChangeListener sortedListener = new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                if (evt.getOldValue() instanceof ITableModel)
+                    ((ITableModel) evt.getOldValue()).getLinesSource().setAllLinesNeeded("sort", false);
+                final ITableModel m = getModel();
+                if (m != null)
+                    m.getLinesSource().setAllLinesNeeded("sort", isSorted());
+            }
+        };
+        this.sorter.addPropertyChangeListener("sorted", sortedListener);
+        this.addModelListener(sortedListener);
         this.searchFormats = new HashMap<Class<?>, FormatGroup>(this.getFormats());
         // localized boolean search
         this.searchFormats.put(Boolean.class, new FormatGroup(new BooleanFormat(), BooleanFormat.getNumberInstance(), BooleanFormat.createYesNo(Locale.getDefault())));
@@ -818,6 +835,21 @@ public final class IListe extends JPanel {
 
         final JScrollPane scrollPane = new JScrollPane(this.jTable);
         scrollPane.setFocusable(false);
+        // if the lines are loaded a page at a time, load the next one before reaching the end
+        scrollPane.getViewport().addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                final ITableModel m = getModel();
+                if (m == null || !m.getLinesSource().hasNextPage())
+                    return;
+                final Rectangle visible = scrollPane.getViewport().getViewRect();
+                final int lastVisible = IListe.this.jTable.rowAtPoint(new Point(0, visible.y + visible.height - 1));
+                // prefetch one screen ahead
+                final int margin = visible.height / Math.max(1, IListe.this.jTable.getRowHeight());
+                if (lastVisible < 0 || lastVisible + margin >= IListe.this.jTable.getRowCount())
+                    m.fetchNextPage();
+            }
+        });
         scrollPane.addMouseListener(new PopupMouseListener() {
             @Override
             protected JPopupMenu createPopup(MouseEvent e) {
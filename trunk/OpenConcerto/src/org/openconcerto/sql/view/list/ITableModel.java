@@ -249,6 +249,17 @@ public class ITableModel extends AbstractTableModel {
         this.updateQ.putUpdateAll();
     }
 
+    /**
+     * Load the lines after those already loaded, if the {@link #getLinesSource() lines source}
+     * loads a page at a time. Nothing is done if all lines are loaded.
+     * 
+     * @see SQLTableModelLinesSource#hasNextPage()
+     */
+    public void fetchNextPage() {
+        if (this.getLinesSource().hasNextPage())
+            this.updateQ.putNextPage();
+    }
+
     /**
      * If there's a where not on the primary table, the list doesn't know which lines to refresh and
      * it must reload all lines.
@@ -496,6 +507,8 @@ public class ITableModel extends AbstractTableModel {
      * @param r sera exécuté dans la queue de recherche une fois <code>list</code> recherchée.
      */
     public synchronized void search(SearchSpec list, Runnable r) {
+        // only the loaded lines can be searched
+        this.getLinesSource().setAllLinesNeeded("search", list != null && !list.isEmpty());
         this.getSearchQueue().setSearch(list);
         if (r != null)
             this.getSearchQueue().put(r);
@@ -22,6 +22,7 @@ import java.beans.PropertyChangeListener;
 import java.lang.ref.WeakReference;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -58,6 +59,36 @@ public abstract class SQLTableModelLinesSource {
 
     public abstract List<ListSQLLine> getAll();
 
+    /**
+     * Whether there's lines after those returned by {@link #getAll()} and {@link #getNextPage()}.
+     * This implementation returns <code>false</code> since {@link #getAll()} returns all lines.
+     * 
+     * @return <code>true</code> if {@link #getNextPage()} should be called.
+     */
+    public boolean hasNextPage() {
+        return false;
+    }
+
+    /**
+     * Fetch the lines after those returned by {@link #getAll()} and previous calls to this method.
+     * This implementation returns an empty list.
+     * 
+     * @return the next lines, empty if there's none.
+     */
+    public List<ListSQLLine> getNextPage() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Signal that all lines are needed, e.g. to search or sort them in memory. This implementation
+     * does nothing since {@link #getAll()} returns all lines.
+     * 
+     * @param cause why the lines are needed, e.g. "search".
+     * @param needed <code>true</code> if all lines are needed for <code>cause</code>.
+     */
+    public void setAllLinesNeeded(final String cause, final boolean needed) {
+    }
+
     /**
      * A row in the db has been changed, fetch its current value.
      * 
@@ -23,7 +23,10 @@ import java.beans.PropertyChangeListener;
 import java.math.BigDecimal;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Lines are taken directly from the database.
@@ -34,6 +37,13 @@ public class SQLTableModelLinesSourceOnline extends SQLTableModelLinesSource {
 
     private final SQLTableModelSourceOnline parent;
     private final PropertyChangeListener listener;
+    // 0 to fetch all lines at once
+    private int pageSize;
+    // while not empty, all lines are fetched at once
+    private final Set<String> allLinesNeeded;
+    // only accessed from the UpdateQueue
+    private BigDecimal lastOrder;
+    private volatile boolean hasNextPage;
 
     public SQLTableModelLinesSourceOnline(SQLTableModelSourceOnline parent, final ITableModel model) {
         super(model);
@@ -45,6 +55,10 @@ public class SQLTableModelLinesSourceOnline extends SQLTableModelLinesSource {
             }
         };
         this.getReq().addWhereListener(this.listener);
+        this.pageSize = parent.getPageSize();
+        this.allLinesNeeded = new HashSet<String>();
+        this.lastOrder = null;
+        this.hasNextPage = false;
     }
 
     @Override
@@ -62,8 +76,88 @@ public class SQLTableModelLinesSourceOnline extends SQLTableModelLinesSource {
         return this.getParent().getReq();
     }
 
+    /**
+     * Set the number of lines to fetch at a time. Big tables can take a lot of time and memory to
+     * load, so instead only the first lines are loaded, and the following ones are fetched as
+     * needed (e.g. when the user scrolls down). Since only loaded lines can be searched by
+     * {@link ITableModel#search(org.openconcerto.sql.view.list.search.SearchSpec)} or sorted by
+     * {@link IListe}, all lines are fetched while one of them is active, see
+     * {@link #setAllLinesNeeded(String, boolean)}.
+     * 
+     * @param pageSize the number of lines, 0 to fetch all lines at once.
+     * @see ListSQLRequest#canFetchPages()
+     */
+    public final void setPageSize(final int pageSize) {
+        if (pageSize < 0)
+            throw new IllegalArgumentException("Negative page size : " + pageSize);
+        final int old;
+        synchronized (this) {
+            old = this.pageSize;
+            this.pageSize = pageSize;
+        }
+        if (old != pageSize)
+            this.fireChanged(new PropertyChangeEvent(this, "pageSize", old, pageSize));
+    }
+
+    public synchronized final int getPageSize() {
+        return this.pageSize;
+    }
+
+    /**
+     * Signal that all lines are needed. If only some lines are loaded, they are all reloaded. Once
+     * all causes are gone, {@link #getAll()} only fetches the first page again (but the lines
+     * already loaded are kept until then).
+     * 
+     * @param cause why the lines are needed, e.g. "search".
+     * @param needed <code>true</code> if all lines are needed for <code>cause</code>.
+     */
+    @Override
+    public final void setAllLinesNeeded(final String cause, final boolean needed) {
+        final boolean changed;
+        synchronized (this) {
+            changed = needed ? this.allLinesNeeded.add(cause) : this.allLinesNeeded.remove(cause);
+        }
+        if (changed && needed && this.hasNextPage())
+            this.fireChanged(new PropertyChangeEvent(this, "allLinesNeeded", null, cause));
+    }
+
+    // 0 if all lines must be fetched at once
+    private synchronized int getEffectivePageSize() {
+        return this.allLinesNeeded.isEmpty() ? this.pageSize : 0;
+    }
+
     public List<ListSQLLine> getAll() {
-        final List<SQLRowValues> values = this.getReq().getValues();
+        final int pageSize = this.getEffectivePageSize();
+        if (pageSize > 0 && this.getReq().canFetchPages()) {
+            this.lastOrder = null;
+            return this.fetchPage(pageSize);
+        }
+        this.hasNextPage = false;
+        return this.createLines(this.getReq().getValues());
+    }
+
+    @Override
+    public boolean hasNextPage() {
+        return this.hasNextPage;
+    }
+
+    @Override
+    public List<ListSQLLine> getNextPage() {
+        final int pageSize = this.getEffectivePageSize();
+        if (!this.hasNextPage || pageSize == 0)
+            return Collections.emptyList();
+        return this.fetchPage(pageSize);
+    }
+
+    private List<ListSQLLine> fetchPage(final int pageSize) {
+        final List<SQLRowValues> values = this.getReq().getValues(this.lastOrder, pageSize);
+        if (!values.isEmpty())
+            this.lastOrder = getOrder(values.get(values.size() - 1));
+        this.hasNextPage = values.size() == pageSize;
+        return this.createLines(values);
+    }
+
+    private List<ListSQLLine> createLines(final List<SQLRowValues> values) {
         final List<ListSQLLine> res = new ArrayList<ListSQLLine>(values.size());
         for (final SQLRowValues v : values) {
             final ListSQLLine newLine = createLine(v);
@@ -74,7 +168,11 @@ public class SQLTableModelLinesSourceOnline extends SQLTableModelLinesSource {
     }
 
     public ListSQLLine get(final int id) {
-        return createLine(this.getReq().getValues(id));
+        final SQLRowValues vals = this.getReq().getValues(id);
+        // not yet loaded, it will be when fetching its page
+        if (vals != null && this.hasNextPage && this.lastOrder != null && getOrder(vals).compareTo(this.lastOrder) > 0)
+            return null;
+        return createLine(vals);
     }
 
     @Override
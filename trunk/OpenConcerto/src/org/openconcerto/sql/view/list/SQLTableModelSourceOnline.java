@@ -28,21 +28,40 @@ import org.openconcerto.utils.change.ListChangeIndex;
 public class SQLTableModelSourceOnline extends SQLTableModelSource {
 
     private final ListSQLRequest req;
+    private int pageSize;
 
     public SQLTableModelSourceOnline(ListSQLRequest req) {
         super(req.getGraph());
         this.req = req;
+        this.pageSize = 0;
     }
 
     public SQLTableModelSourceOnline(SQLTableModelSourceOnline src) {
         super(src);
         this.req = src.req;
+        this.pageSize = src.pageSize;
     }
 
     public final ListSQLRequest getReq() {
         return this.req;
     }
 
+    /**
+     * Set the page size of the lines sources created afterwards.
+     * 
+     * @param pageSize the number of lines, 0 to fetch all lines at once.
+     * @see SQLTableModelLinesSourceOnline#setPageSize(int)
+     */
+    public final void setPageSize(final int pageSize) {
+        if (pageSize < 0)
+            throw new IllegalArgumentException("Negative page size : " + pageSize);
+        this.pageSize = pageSize;
+    }
+
+    public final int getPageSize() {
+        return this.pageSize;
+    }
+
     @Override
     protected void colsChanged(ListChangeIndex<SQLTableModelColumn> change) {
         super.colsChanged(change);
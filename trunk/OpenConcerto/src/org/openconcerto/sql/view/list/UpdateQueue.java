@@ -21,6 +21,7 @@ import org.openconcerto.sql.model.SQLTableEvent;
 import org.openconcerto.sql.model.SQLTableEvent.Mode;
 import org.openconcerto.sql.model.SQLTableModifiedListener;
 import org.openconcerto.sql.model.graph.Link.Direction;
+import org.openconcerto.sql.view.list.UpdateRunnable.NextPageRunnable;
 import org.openconcerto.sql.view.list.UpdateRunnable.RmAllRunnable;
 import org.openconcerto.utils.IFutureTask;
 import org.openconcerto.utils.RecursionType;
@@ -34,6 +35,7 @@ import java.util.Deque;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.collections.CollectionUtils;
 
@@ -49,6 +51,10 @@ final class UpdateQueue extends SleepingQueue {
         return (f instanceof IFutureTask) && ((IFutureTask<?>) f).getRunnable() instanceof UpdateRunnable;
     }
 
+    private static boolean isNextPage(FutureTask<?> f) {
+        return isUpdate(f) && ((IFutureTask<?>) f).getRunnable() instanceof NextPageRunnable;
+    }
+
     private static boolean isCancelableUpdate(FutureTask<?> f) {
         // don't cancel RmAll so we can put an UpdateAll right after it (the UpdateAll won't be
         // executed since RmAll put the queue to sleep)
@@ -159,6 +165,26 @@ final class UpdateQueue extends SleepingQueue {
         this.put(UpdateRunnable.create(this.tableModel));
     }
 
+    /**
+     * Fetch the next page of lines, unless it is already to be fetched.
+     */
+    void putNextPage() {
+        final AtomicBoolean pending = new AtomicBoolean(isNextPage(getBeingRun()));
+        if (!pending.get()) {
+            this.tasksDo(new IClosure<Deque<FutureTask<?>>>() {
+                @Override
+                public void executeChecked(final Deque<FutureTask<?>> tasks) {
+                    for (final FutureTask<?> t : tasks) {
+                        if (isNextPage(t))
+                            pending.set(true);
+                    }
+                }
+            });
+        }
+        if (!pending.get())
+            this.put(UpdateRunnable.createNextPage(this.tableModel));
+    }
+
     /**
      * If this is sleeping, empty the list and call {@link #putUpdateAll()} so that the list reload
      * itself when this wakes up.
@@ -17,6 +17,7 @@ import org.openconcerto.sql.model.SQLRow;
 import org.openconcerto.sql.model.SQLTable;
 import org.openconcerto.sql.model.SQLTableEvent;
 import org.openconcerto.sql.view.list.search.SearchQueue;
+import org.openconcerto.utils.RTInterruptedException;
 
 import java.util.Collections;
 import java.util.List;
@@ -43,6 +44,26 @@ abstract class UpdateRunnable implements Runnable {
         }
     }
 
+    static final class NextPageRunnable extends UpdateRunnable {
+
+        private NextPageRunnable(ITableModel model) {
+            super(model, new SQLRow(model.getTable(), SQLRow.NONEXISTANT_ID));
+        }
+
+        @Override
+        public void run() {
+            if (Thread.currentThread().isInterrupted())
+                return;
+            try {
+                final List<ListSQLLine> tmp = this.getReq().getNextPage();
+                if (!tmp.isEmpty() && !Thread.currentThread().isInterrupted())
+                    this.getSearchQ().addToFullList(tmp);
+            } catch (RTInterruptedException e) {
+                // ne rien faire
+            }
+        }
+    }
+
     static UpdateRunnable create(ITableModel model) {
         return new UpdateAllRunnable(model);
     }
@@ -51,6 +72,10 @@ abstract class UpdateRunnable implements Runnable {
         return new RmAllRunnable(tableModel, updateQueue);
     }
 
+    static UpdateRunnable createNextPage(ITableModel model) {
+        return new NextPageRunnable(model);
+    }
+
     static UpdateRunnable create(ITableModel model, SQLTableEvent evt) {
         return new UpdateOneRunnable(model, evt);
     }
@@ -15,20 +15,42 @@
 
 import org.openconcerto.sql.view.list.ListSQLLine;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 final class ChangeListAll extends ChangeListRunnable {
     private final List<ListSQLLine> l;
+    // false to add to the current list
+    private final boolean replace;
 
-    ChangeListAll(String name, SearchQueue q, List<ListSQLLine> l) {
+    ChangeListAll(String name, SearchQueue q, List<ListSQLLine> l, final boolean replace) {
         super(name, q);
         this.l = l;
+        this.replace = replace;
     }
 
     public void run() {
-        this.getFullList().clear();
-        this.getFullList().addAll(this.l);
+        final List<ListSQLLine> toAdd;
+        if (this.replace) {
+            this.getFullList().clear();
+            this.getIndex().clear();
+            toAdd = this.l;
+        } else {
+            // a line might already have been added by ChangeListOne
+            final Set<Integer> ids = new HashSet<Integer>(this.getFullList().size());
+            for (final ListSQLLine line : this.getFullList())
+                ids.add(line.getID());
+            toAdd = new ArrayList<ListSQLLine>(this.l.size());
+            for (final ListSQLLine line : this.l) {
+                if (ids.add(line.getID()))
+                    toAdd.add(line);
+            }
+        }
+        this.getFullList().addAll(toAdd);
+        this.getIndex().addAll(toAdd);
         // MAYBE order the SELECT to avoid sort()
         // but comparing ints (field ORDRE) is quite fast : 170ms for 100,000 items
         Collections.sort(this.getFullList());
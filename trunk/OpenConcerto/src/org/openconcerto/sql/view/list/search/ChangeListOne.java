@@ -40,6 +40,7 @@ final class ChangeListOne extends ChangeListRunnable {
                     // mais elle existe : ajout
                     // ATTN on ajoute à la fin, sans se soucier de l'ordre
                     this.getFullList().add(this.line);
+                    this.getIndex().add(this.line);
                     Collections.sort(this.getFullList());
                     this.search.setMode(Mode.ADD);
                 } else {
@@ -50,12 +51,13 @@ final class ChangeListOne extends ChangeListRunnable {
                 // la ligne était dans notre liste
                 if (this.line != null) {
                     // mettre à jour
-                    this.getFullList().set(modifiedIndex, this.line);
+                    this.getIndex().remove(this.getFullList().set(modifiedIndex, this.line));
+                    this.getIndex().add(this.line);
                     Collections.sort(this.getFullList());
                     this.search.setMode(Mode.CHANGE);
                 } else {
                     // elle est effacée ou filtrée
-                    this.getFullList().remove(modifiedIndex);
+                    this.getIndex().remove(this.getFullList().remove(modifiedIndex));
                     this.search.setMode(Mode.REMOVE);
                 }
             }
@@ -35,6 +35,10 @@ abstract class ChangeListRunnable implements Runnable {
     protected final List<ListSQLLine> getFullList() {
         return this.q.getFullList();
     }
+
+    protected final LinesIndex getIndex() {
+        return this.q.getIndex();
+    }
     
     /**
      * Retourne l'index dans la liste complète de la ligne d'ID voulue.
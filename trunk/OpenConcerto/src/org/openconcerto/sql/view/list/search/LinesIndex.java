@@ -0,0 +1,159 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.sql.view.list.search;
+
+import org.openconcerto.sql.model.SQLRowValues;
+import org.openconcerto.sql.model.SQLRowValues.CreateMode;
+import org.openconcerto.sql.model.SQLRowValuesCluster.State;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.model.graph.Link.Direction;
+import org.openconcerto.sql.model.graph.Path;
+import org.openconcerto.sql.view.list.ListSQLLine;
+import org.openconcerto.utils.ListMap;
+import org.openconcerto.utils.RecursionType;
+import org.openconcerto.utils.Tuple2;
+import org.openconcerto.utils.cc.ITransformer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * Index the lines of a list by the IDs of the rows they contain, so that the lines affected by a
+ * modified row can be found without going through all lines. Only accessed from the search queue.
+ * 
+ * @see SearchQueue#getAffectedLines(org.openconcerto.sql.model.SQLRow)
+ */
+@NotThreadSafe
+final class LinesIndex {
+
+    // the graph used to compute the paths
+    private SQLRowValues graph;
+    // all paths from the primary table of graph, by last table
+    private final ListMap<SQLTable, Path> pathsByTable;
+    // for each path, the lines by ID of the rows at the end of the path
+    private final Map<Path, Map<Integer, Set<ListSQLLine>>> linesByPath;
+    // where each line was added, to be able to remove it even if it has changed since
+    private final Map<ListSQLLine, List<Tuple2<Map<Integer, Set<ListSQLLine>>, Integer>>> entries;
+
+    LinesIndex() {
+        this.graph = null;
+        this.pathsByTable = new ListMap<SQLTable, Path>();
+        this.linesByPath = new HashMap<Path, Map<Integer, Set<ListSQLLine>>>();
+        this.entries = new IdentityHashMap<ListSQLLine, List<Tuple2<Map<Integer, Set<ListSQLLine>>, Integer>>>();
+    }
+
+    /**
+     * Set the graph of the lines. If it has changed, the index is emptied.
+     * 
+     * @param graph the maximum graph of the lines.
+     * @return <code>true</code> if the index was emptied.
+     */
+    final boolean setGraph(final SQLRowValues graph) {
+        if (this.graph == graph)
+            return false;
+        this.clear();
+        this.graph = graph;
+        this.pathsByTable.clear();
+        graph.getGraph().walk(graph, this.pathsByTable, new ITransformer<State<ListMap<SQLTable, Path>>, ListMap<SQLTable, Path>>() {
+            @Override
+            public ListMap<SQLTable, Path> transformChecked(State<ListMap<SQLTable, Path>> input) {
+                input.getAcc().add(input.getCurrent().getTable(), input.getPath());
+                return input.getAcc();
+            }
+        }, RecursionType.BREADTH_FIRST, Direction.ANY);
+        return true;
+    }
+
+    final void clear() {
+        this.linesByPath.clear();
+        this.entries.clear();
+    }
+
+    final void addAll(final Collection<ListSQLLine> lines) {
+        for (final ListSQLLine line : lines)
+            this.add(line);
+    }
+
+    final void add(final ListSQLLine line) {
+        // a line can be passed again after being modified
+        this.remove(line);
+        final List<Tuple2<Map<Integer, Set<ListSQLLine>>, Integer>> lineEntries = new ArrayList<Tuple2<Map<Integer, Set<ListSQLLine>>, Integer>>();
+        for (final List<Path> paths : this.pathsByTable.values()) {
+            for (final Path p : paths) {
+                Map<Integer, Set<ListSQLLine>> byID = this.linesByPath.get(p);
+                for (final SQLRowValues current : line.getRow().followPath(p, CreateMode.CREATE_NONE, false)) {
+                    if (current == null)
+                        continue;
+                    if (byID == null) {
+                        byID = new HashMap<Integer, Set<ListSQLLine>>();
+                        this.linesByPath.put(p, byID);
+                    }
+                    final Integer id = current.getID();
+                    Set<ListSQLLine> lines = byID.get(id);
+                    if (lines == null) {
+                        lines = new LinkedHashSet<ListSQLLine>(4);
+                        byID.put(id, lines);
+                    }
+                    if (lines.add(line))
+                        lineEntries.add(Tuple2.create(byID, id));
+                }
+            }
+        }
+        this.entries.put(line, lineEntries);
+    }
+
+    final void remove(final ListSQLLine line) {
+        final List<Tuple2<Map<Integer, Set<ListSQLLine>>, Integer>> lineEntries = this.entries.remove(line);
+        if (lineEntries != null) {
+            for (final Tuple2<Map<Integer, Set<ListSQLLine>>, Integer> e : lineEntries) {
+                final Set<ListSQLLine> lines = e.get0().get(e.get1());
+                lines.remove(line);
+                if (lines.isEmpty())
+                    e.get0().remove(e.get1());
+            }
+        }
+    }
+
+    /**
+     * The paths from the primary table to the passed table.
+     * 
+     * @param t a table.
+     * @return the paths ending at <code>t</code>.
+     */
+    final List<Path> getPaths(final SQLTable t) {
+        return this.pathsByTable.getNonNull(t);
+    }
+
+    /**
+     * The lines containing a row at the end of the passed path with the passed ID.
+     * 
+     * @param p a path from the primary table.
+     * @param id the ID of a row.
+     * @return the matching lines.
+     */
+    final Set<ListSQLLine> getLines(final Path p, final int id) {
+        final Map<Integer, Set<ListSQLLine>> byID = this.linesByPath.get(p);
+        final Set<ListSQLLine> res = byID == null ? null : byID.get(id);
+        return res == null ? Collections.<ListSQLLine> emptySet() : res;
+    }
+}
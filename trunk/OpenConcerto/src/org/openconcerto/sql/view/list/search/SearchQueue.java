@@ -15,8 +15,6 @@
 
 import org.openconcerto.sql.model.SQLRow;
 import org.openconcerto.sql.model.SQLRowValues;
-import org.openconcerto.sql.model.SQLRowValues.CreateMode;
-import org.openconcerto.sql.model.SQLRowValuesCluster.State;
 import org.openconcerto.sql.model.SQLTable;
 import org.openconcerto.sql.model.graph.Link.Direction;
 import org.openconcerto.sql.model.graph.Path;
@@ -29,10 +27,8 @@ import org.openconcerto.sql.view.search.SearchSpec;
 import org.openconcerto.utils.IFutureTask;
 import org.openconcerto.utils.ListMap;
 import org.openconcerto.utils.RTInterruptedException;
-import org.openconcerto.utils.RecursionType;
 import org.openconcerto.utils.SleepingQueue;
 import org.openconcerto.utils.cc.IPredicate;
-import org.openconcerto.utils.cc.ITransformer;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -70,6 +66,8 @@ public final class SearchQueue extends SleepingQueue {
     private final ITableModel model;
     SearchSpec search;
     private final List<ListSQLLine> fullList;
+    // lines of fullList by the IDs of their rows
+    private final LinesIndex index;
     private final ListAccess listAccess;
     private final LineListener lineListener;
 
@@ -79,6 +77,7 @@ public final class SearchQueue extends SleepingQueue {
         this.model = la.getModel();
         this.search = null;
         this.fullList = new ArrayList<ListSQLLine>();
+        this.index = new LinesIndex();
 
         this.lineListener = new LineListener() {
             @Override
@@ -142,40 +141,21 @@ public final class SearchQueue extends SleepingQueue {
         if (id < SQLRow.MIN_VALID_ID)
             throw new IllegalArgumentException("invalid ID: " + id);
         if (!this.fullList.isEmpty()) {
-            final SQLRowValues proto = this.getModel().getLinesSource().getParent().getMaxGraph();
-            final List<Path> pathsToT = new ArrayList<Path>();
-            proto.getGraph().walk(proto, pathsToT, new ITransformer<State<List<Path>>, List<Path>>() {
-                @Override
-                public List<Path> transformChecked(State<List<Path>> input) {
-                    if (input.getCurrent().getTable() == t) {
-                        input.getAcc().add(input.getPath());
-                    }
-                    return input.getAcc();
-                }
-            }, RecursionType.BREADTH_FIRST, Direction.ANY);
-            for (final Path p : pathsToT) {
+            final LinesIndex index = this.getIndex();
+            for (final Path p : index.getPaths(t)) {
                 final String lastReferentField = getLastReferentField(p);
-                for (final ListSQLLine line : this.fullList) {
-                    boolean put = false;
-                    for (final SQLRowValues current : line.getRow().followPath(p, CreateMode.CREATE_NONE, false)) {
-                        // works for rowValues w/o any ID
-                        if (current != null && current.getID() == id) {
-                            put = true;
-                        }
-                    }
-                    // if the modified row isn't in the existing line, it might still affect it if
-                    // it's a referent row insertion
-                    if (!put && lastReferentField != null && r.exists()) {
-                        final int foreignID = r.getInt(lastReferentField);
-                        for (final SQLRowValues current : line.getRow().followPath(p.minusLast(), CreateMode.CREATE_NONE, false)) {
-                            if (current.getID() == foreignID) {
-                                put = true;
-                            }
-                        }
-                    }
-                    if (put) {
-                        // add to the list of paths that have been refreshed
-                        add(byLine, res, p, line);
+                final Set<ListSQLLine> lines = index.getLines(p, id);
+                for (final ListSQLLine line : lines) {
+                    // add to the list of paths that have been refreshed
+                    add(byLine, res, p, line);
+                }
+                // if the modified row isn't in the existing line, it might still affect it if
+                // it's a referent row insertion
+                if (lastReferentField != null && r.exists()) {
+                    final int foreignID = r.getInt(lastReferentField);
+                    for (final ListSQLLine line : index.getLines(p.minusLast(), foreignID)) {
+                        if (!lines.contains(line))
+                            add(byLine, res, p, line);
                     }
                 }
             }
@@ -200,7 +180,20 @@ public final class SearchQueue extends SleepingQueue {
     public synchronized void setFullList(final List<ListSQLLine> l) {
         if (l == null)
             throw new NullPointerException();
-        this.putTask(new ChangeListAll("setFullList", this, l));
+        this.putTask(new ChangeListAll("setFullList", this, l, true));
+        fullDataChange();
+    }
+
+    /**
+     * Add lines to the full list, e.g. the next page of lines. Lines already in the list are
+     * ignored.
+     * 
+     * @param l the lines to add.
+     */
+    public synchronized void addToFullList(final List<ListSQLLine> l) {
+        if (l == null)
+            throw new NullPointerException();
+        this.putTask(new ChangeListAll("addToFullList", this, l, false));
         fullDataChange();
     }
 
@@ -243,6 +236,15 @@ public final class SearchQueue extends SleepingQueue {
         return this.fullList;
     }
 
+    // must be called from within this queue, like fullList
+    final LinesIndex getIndex() {
+        final SQLRowValues proto = this.getModel().getLinesSource().getParent().getMaxGraph();
+        // the paths have changed
+        if (this.index.setGraph(proto))
+            this.index.addAll(this.fullList);
+        return this.index;
+    }
+
     final ListAccess getAccess() {
         return this.listAccess;
     }
@@ -20,21 +20,61 @@ import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.util.Collection;
 import java.util.Deque;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
 
 /**
  * A queue that can be put to sleep. Submitted runnables are converted to FutureTask, that can later
- * be cancelled.
+ * be cancelled. Tasks are executed one at a time, in order, but a queue doesn't own a thread : all
+ * queues share an {@link Executor} (by default {@link #getDefaultExecutor()}) which is only used
+ * while a queue has tasks to execute.
  * 
  * @author Sylvain
  */
 public class SleepingQueue {
 
+    // threads are only kept while there's tasks to execute
+    private static final ThreadPoolExecutor SHARED_EXECUTOR = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory(
+            SleepingQueue.class.getSimpleName() + " executor ", true).setPriority(Thread.MIN_PRIORITY));
+    private static Executor DEFAULT_EXECUTOR = SHARED_EXECUTOR;
+
+    /**
+     * The executor used by queues created without one. By default threads have the minimum
+     * priority and are only created when all others are busy, so that idle queues don't use any.
+     * 
+     * @return the executor for new queues.
+     */
+    public static synchronized final Executor getDefaultExecutor() {
+        return DEFAULT_EXECUTOR;
+    }
+
+    /**
+     * Set the executor used by queues created afterwards. ATTN if it has a bounded number of
+     * threads, it must be greater than the number of queues that can wait on each other (e.g. a
+     * task of UpdateQueue waits for its SearchQueue), otherwise they might deadlock.
+     * 
+     * @param exec the executor, <code>null</code> to use the default one.
+     */
+    public static synchronized final void setDefaultExecutor(final Executor exec) {
+        DEFAULT_EXECUTOR = exec == null ? SHARED_EXECUTOR : exec;
+    }
+
     private final String name;
 
     private final PropertyChangeSupport support;
@@ -49,7 +89,19 @@ public class SleepingQueue {
     }
 
     public SleepingQueue(String name) {
+        this(name, getDefaultExecutor());
+    }
+
+    /**
+     * Create a new queue.
+     * 
+     * @param name the name of this queue, used for the thread executing the tasks.
+     * @param exec executes the tasks of this queue, at most one at a time.
+     */
+    public SleepingQueue(String name, Executor exec) {
         super();
+        if (exec == null)
+            throw new NullPointerException("null executor");
         this.name = name;
 
         this.canceling = false;
@@ -57,19 +109,7 @@ public class SleepingQueue {
         this.support = new PropertyChangeSupport(this);
         this.setBeingRun(null);
 
-        this.tasksQueue = new SingleThreadedExecutor();
-
-        this.tasksQueue.start();
-    }
-
-    /**
-     * Customize the thread used to execute the passed runnables. This implementation sets the
-     * priority to the minimum.
-     * 
-     * @param thr the thread used by this queue.
-     */
-    protected void customizeThread(Thread thr) {
-        thr.setPriority(Thread.MIN_PRIORITY);
+        this.tasksQueue = new SingleThreadedExecutor(exec);
     }
 
     public final FutureTask<?> put(Runnable workRunnable) {
@@ -339,6 +379,81 @@ public class SleepingQueue {
         return this.tasksQueue.isDead();
     }
 
+    /**
+     * The number of tasks waiting and how long they waited.
+     * 
+     * @return the statistics of this queue since its creation.
+     */
+    public final Stats getStats() {
+        return this.tasksQueue.getStats();
+    }
+
+    @Immutable
+    public static final class Stats {
+        private final int backlog;
+        private final long executed;
+        private final long totalWait, maxWait;
+        private final long totalRun, maxRun;
+
+        Stats(int backlog, long executed, long totalWait, long maxWait, long totalRun, long maxRun) {
+            this.backlog = backlog;
+            this.executed = executed;
+            this.totalWait = totalWait;
+            this.maxWait = maxWait;
+            this.totalRun = totalRun;
+            this.maxRun = maxRun;
+        }
+
+        /**
+         * The number of tasks not yet started.
+         * 
+         * @return the number of tasks in the queue.
+         */
+        public final int getBacklog() {
+            return this.backlog;
+        }
+
+        public final long getExecutedCount() {
+            return this.executed;
+        }
+
+        /**
+         * The time tasks waited between being put in the queue and being started.
+         * 
+         * @return the total in nanoseconds.
+         */
+        public final long getTotalWaitNanos() {
+            return this.totalWait;
+        }
+
+        public final long getMaxWaitNanos() {
+            return this.maxWait;
+        }
+
+        public final long getAverageWaitNanos() {
+            return this.executed == 0 ? 0 : this.totalWait / this.executed;
+        }
+
+        public final long getTotalRunNanos() {
+            return this.totalRun;
+        }
+
+        public final long getMaxRunNanos() {
+            return this.maxRun;
+        }
+
+        public final long getAverageRunNanos() {
+            return this.executed == 0 ? 0 : this.totalRun / this.executed;
+        }
+
+        @Override
+        public String toString() {
+            return "backlog: " + this.getBacklog() + ", executed: " + this.getExecutedCount() + ", wait avg/max: " + TimeUnit.NANOSECONDS.toMillis(this.getAverageWaitNanos()) + "/"
+                    + TimeUnit.NANOSECONDS.toMillis(this.getMaxWaitNanos()) + " ms, run avg/max: " + TimeUnit.NANOSECONDS.toMillis(this.getAverageRunNanos()) + "/"
+                    + TimeUnit.NANOSECONDS.toMillis(this.getMaxRunNanos()) + " ms";
+        }
+    }
+
     public void addPropertyChangeListener(PropertyChangeListener l) {
         this.support.addPropertyChangeListener(l);
     }
@@ -347,10 +462,211 @@ public class SleepingQueue {
         this.support.removePropertyChangeListener(l);
     }
 
-    private final class SingleThreadedExecutor extends DropperQueue<FutureTask<?>> {
-        private SingleThreadedExecutor() {
-            super(SleepingQueue.this.name + System.currentTimeMillis());
-            customizeThread(this);
+    /**
+     * Holds the tasks and give them one at a time to {@link #process(FutureTask)}, like
+     * {@link DropperQueue} but using a shared executor instead of its own thread. At any time this
+     * can be put to sleep.
+     */
+    private final class SingleThreadedExecutor implements Runnable {
+        private static final int BATCH_SIZE = 16;
+
+        private final Executor exec;
+        private final Lock itemsLock;
+        @GuardedBy("itemsLock")
+        private final Deque<FutureTask<?>> items;
+        // when tasks were put, to compute their wait (weak since items can be removed by
+        // itemsDo())
+        @GuardedBy("itemsLock")
+        private final Map<FutureTask<?>, Long> putTimes;
+        @GuardedBy("this")
+        private boolean stop;
+        @GuardedBy("this")
+        private boolean sleeping;
+        // this has been passed to the executor and hasn't returned yet
+        @GuardedBy("this")
+        private boolean scheduled;
+        // the thread processing an item
+        @GuardedBy("this")
+        private Thread executing;
+
+        @GuardedBy("this")
+        private long executed, totalWait, maxWait, totalRun, maxRun;
+
+        private SingleThreadedExecutor(final Executor exec) {
+            this.exec = exec;
+            this.itemsLock = new ReentrantLock();
+            this.items = new LinkedList<FutureTask<?>>();
+            this.putTimes = new WeakHashMap<FutureTask<?>, Long>();
+            this.stop = false;
+            this.sleeping = false;
+            this.scheduled = false;
+            this.executing = null;
+        }
+
+        // *** boolean
+
+        public final boolean setSleeping(boolean b) {
+            synchronized (this) {
+                if (this.sleeping == b)
+                    return false;
+                this.sleeping = b;
+            }
+            if (!b)
+                this.schedule();
+            return true;
+        }
+
+        public synchronized boolean isSleeping() {
+            return this.sleeping;
+        }
+
+        /**
+         * Signal that this must stop indefinitely. Once this method returns, it is guaranteed that
+         * no new item will be processed, and that this will {@link #isDead() die}.
+         * 
+         * @param mayInterruptIfRunning <code>true</code> to interrupt while in
+         *        {@link #process(FutureTask)}.
+         */
+        public synchronized final void die(boolean mayInterruptIfRunning) {
+            this.stop = true;
+            if (mayInterruptIfRunning && this.executing != null && this.executing != Thread.currentThread())
+                this.executing.interrupt();
+        }
+
+        public synchronized final boolean isDying() {
+            return this.dieCalled() && this.executing != null;
+        }
+
+        public synchronized final boolean isDead() {
+            return this.dieCalled() && !this.scheduled;
+        }
+
+        public synchronized final boolean dieCalled() {
+            return this.stop;
+        }
+
+        // *** Run
+
+        // pass this to the executor if there's something to do
+        private void schedule() {
+            this.itemsLock.lock();
+            try {
+                synchronized (this) {
+                    if (this.scheduled || this.stop || this.sleeping || this.items.isEmpty())
+                        return;
+                    this.scheduled = true;
+                }
+            } finally {
+                this.itemsLock.unlock();
+            }
+            try {
+                this.exec.execute(this);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    this.scheduled = false;
+                }
+                throw e;
+            }
+        }
+
+        // process a few items, then give the thread back to the executor to be fair with other
+        // queues
+        @Override
+        public void run() {
+            final Thread thr = Thread.currentThread();
+            final String thrName = thr.getName();
+            thr.setName(SleepingQueue.this.name);
+            try {
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    final FutureTask<?> item;
+                    final long wait;
+                    this.itemsLock.lock();
+                    try {
+                        synchronized (this) {
+                            if (this.stop || this.sleeping || this.items.isEmpty())
+                                break;
+                            item = this.items.removeFirst();
+                            this.executing = thr;
+                        }
+                        final Long putTime = this.putTimes.remove(item);
+                        wait = putTime == null ? -1 : System.nanoTime() - putTime.longValue();
+                    } finally {
+                        this.itemsLock.unlock();
+                    }
+                    final long start = System.nanoTime();
+                    try {
+                        // we should not carry the interrupted status of a previous task in
+                        // process()
+                        Thread.interrupted();
+                        process(item);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                        // une exn s'est produite, on considère qu'on peut passer à la suite
+                    } finally {
+                        final long run = System.nanoTime() - start;
+                        synchronized (this) {
+                            this.executing = null;
+                            this.executed++;
+                            this.totalRun += run;
+                            this.maxRun = Math.max(this.maxRun, run);
+                            if (wait >= 0) {
+                                this.totalWait += wait;
+                                this.maxWait = Math.max(this.maxWait, wait);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    this.scheduled = false;
+                }
+                thr.setName(thrName);
+                // don't leak an interrupt (e.g. from die()) to the next task of the executor
+                Thread.interrupted();
+            }
+            this.schedule();
+        }
+
+        // *** items
+
+        public final void put(FutureTask<?> item) {
+            this.itemsLock.lock();
+            try {
+                this.items.add(item);
+                this.putTimes.put(item, System.nanoTime());
+            } finally {
+                this.itemsLock.unlock();
+            }
+            this.schedule();
+        }
+
+        /**
+         * Allows <code>c</code> to arbitrarily modify our queue as it is locked during this
+         * method. I.e. no items will be removed (passed to the closure) nor added.
+         * 
+         * @param c what to do with our queue.
+         */
+        public final void itemsDo(IClosure<? super Deque<FutureTask<?>>> c) {
+            this.itemsLock.lock();
+            try {
+                c.executeChecked(this.items);
+            } finally {
+                this.itemsLock.unlock();
+            }
+            this.schedule();
+        }
+
+        public final Stats getStats() {
+            final int backlog;
+            this.itemsLock.lock();
+            try {
+                backlog = this.items.size();
+            } finally {
+                this.itemsLock.unlock();
+            }
+            synchronized (this) {
+                return new Stats(backlog, this.executed, this.totalWait, this.maxWait, this.totalRun, this.maxRun);
+            }
         }
 
         protected <T> IFutureTask<T> newTaskFor(final Runnable task) {
@@ -361,7 +677,6 @@ public class SleepingQueue {
             return new IFutureTask<T>(task, value, " for {" + SleepingQueue.this.name + "}");
         }
 
-        @Override
         protected void process(FutureTask<?> task) {
             if (!task.isDone()) {
                 /*
@@ -407,7 +722,7 @@ public class SleepingQueue {
     }
 
     public String toString() {
-        return super.toString() + " Queue: " + this.tasksQueue + " run:" + this.getBeingRun();
+        return super.toString() + " Queue: " + this.name + " (" + this.getStats() + ") run:" + this.getBeingRun();
     }
 
 }
@@ -113,6 +113,8 @@ public class TableSorter extends AbstractTableModel {
 
     private boolean enabled;
     private boolean sorting;
+    // the value of isSorting() last time sortingColumns changed
+    private boolean sorted;
     private final PropertyChangeSupport supp;
 
     public TableSorter() {
@@ -120,6 +122,7 @@ public class TableSorter extends AbstractTableModel {
         this.tableModelListener = new TableModelHandler();
         this.enabled = true;
         this.sorting = false;
+        this.sorted = false;
         this.supp = new PropertyChangeSupport(this);
     }
 
@@ -245,6 +248,9 @@ public class TableSorter extends AbstractTableModel {
         if (tableHeader != null) {
             tableHeader.repaint();
         }
+        final boolean old = this.sorted;
+        this.sorted = isSorting();
+        this.supp.firePropertyChange("sorted", old, this.sorted);
     }
 
     public void setSortingStatus(int column, int status) {
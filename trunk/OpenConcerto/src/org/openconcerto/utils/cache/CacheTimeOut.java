@@ -19,14 +19,12 @@ import java.util.TimerTask;
 final class CacheTimeOut<K> extends TimerTask {
 
     private final ICache<K, ?, ?> c;
-    private final K key;
 
-    public CacheTimeOut(ICache<K, ?, ?> c, K key) {
+    public CacheTimeOut(ICache<K, ?, ?> c) {
         this.c = c;
-        this.key = key;
     }
 
     public void run() {
-        this.c.clear(this.key);
+        this.c.expire();
     }
 }
@@ -13,8 +13,9 @@
  
  package org.openconcerto.utils.cache;
 
+import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -51,7 +52,7 @@ abstract public class CacheWatcher<K, D> {
         this.keys.remove(key);
     }
 
-    public final synchronized void die() {
+    public final void die() {
         this.dying();
         this.clearCache();
     }
@@ -60,18 +61,15 @@ abstract public class CacheWatcher<K, D> {
     }
 
     protected final void clearCache() {
-        // synch on the cache since otherwise we take and release its lock on each iteration
-        // but keep ours all the time. Thus if another thread call a synchronized method of the
-        // cache inbetween an iteration and tries to access us, a deadlock occurs.
-        synchronized (this.c) {
-            synchronized (this) {
-                final Iterator<K> iter = this.keys.iterator();
-                while (iter.hasNext()) {
-                    final K key = iter.next();
-                    iter.remove();
-                    this.c.clear(key);
-                }
-            }
+        // don't keep our lock while clearing : the cache locks itself then its watchers, so if
+        // we held ours while calling the cache a deadlock could occur.
+        final List<K> toClear;
+        synchronized (this) {
+            toClear = new ArrayList<K>(this.keys);
+            this.keys.clear();
+        }
+        for (final K key : toClear) {
+            this.c.clear(key);
         }
     }
 
@@ -17,45 +17,175 @@ import org.openconcerto.utils.ExceptionUtils;
 import org.openconcerto.utils.Log;
 import org.openconcerto.utils.SetMap;
 import org.openconcerto.utils.cache.CacheResult.State;
+import org.openconcerto.utils.cc.ITransformer;
 import org.openconcerto.utils.cc.Transformer;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
 import org.apache.commons.collections.map.LazyMap;
 
 /**
  * To keep results computed from some data. The results will be automatically invalidated after some
  * period of time or when the data is modified.
+ * <p>
+ * Keys are spread among segments each with its own lock, so that reading doesn't block other
+ * threads. When full, a segment evicts its least recently used keys. The size of the cache can be
+ * bounded both by the number of keys and by the estimated size of values (see
+ * {@link #setMaxWeight(long, ITransformer)}), the latter being enforced over the whole cache.
+ * </p>
  * 
  * @author Sylvain CUAZ
  * @param <K> key type, eg String.
  * @param <V> value type, eg List of SQLRow.
  * @param <D> source data type, eg SQLTable.
  */
+@ThreadSafe
 public class ICache<K, V, D> {
 
     private static final Level LEVEL = Level.FINEST;
+    private static final int MAX_SEGMENTS = 16;
+    // so that small caches keep a meaningful LRU order
+    private static final int MIN_SEGMENT_SIZE = 8;
+    // the resolution of time outs
+    private static final long EXPIRY_PERIOD = 1000;
 
-    // linked to fifo
-    private final LinkedHashMap<K, V> cache;
-    private final Set<K> running;
-    private final int delay;
-    private final int size;
     // lazy initialization to avoid creating unnecessary threads
-    private Timer timer;
+    @GuardedBy("ICache.class")
+    private static Timer timer;
+
+    private static synchronized final Timer getTimer() {
+        if (timer == null)
+            timer = new Timer("cache time outs", true);
+        return timer;
+    }
+
+    private static final class Entry<K, V> {
+        private final K key;
+        private final V value;
+        private final long weight;
+        private final long expiry;
+
+        Entry(K key, V value, long weight, long expiry) {
+            super();
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.expiry = expiry;
+        }
+
+        final boolean isExpired(final long now) {
+            return now - this.expiry >= 0;
+        }
+    }
+
+    @ThreadSafe
+    private static final class Segment<K, V> {
+        // access ordered, i.e. LRU
+        @GuardedBy("this")
+        private final LinkedHashMap<K, Entry<K, V>> map;
+        private final int maxSize;
+
+        Segment(final int maxSize) {
+            this.map = new LinkedHashMap<K, Entry<K, V>>(maxSize < 0 ? 16 : maxSize, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        synchronized final Entry<K, V> get(final K key) {
+            return this.map.get(key);
+        }
+
+        /**
+         * Put an entry and evict least recently used ones if this segment has too many keys.
+         * 
+         * @param e the new entry.
+         * @param evicted where to add evicted entries.
+         * @return the entry replaced by <code>e</code>, <code>null</code> if none.
+         */
+        synchronized final Entry<K, V> put(final Entry<K, V> e, final List<Entry<K, V>> evicted) {
+            final Entry<K, V> old = this.map.put(e.key, e);
+            final Iterator<Entry<K, V>> iter = this.map.values().iterator();
+            while (this.maxSize > 0 && this.map.size() > this.maxSize) {
+                final Entry<K, V> eldest = iter.next();
+                iter.remove();
+                evicted.add(eldest);
+            }
+            return old;
+        }
+
+        // the least recently used entry, null if empty
+        synchronized final Entry<K, V> getEldest() {
+            final Iterator<Entry<K, V>> iter = this.map.values().iterator();
+            return iter.hasNext() ? iter.next() : null;
+        }
+
+        // remove the entry for key only if it's expected (if not null)
+        synchronized final Entry<K, V> remove(final K key, final Entry<K, V> expected) {
+            final Entry<K, V> current = this.map.get(key);
+            if (current == null || (expected != null && current != expected))
+                return null;
+            this.map.remove(key);
+            return current;
+        }
+
+        synchronized final void clear() {
+            this.map.clear();
+        }
+
+        synchronized final int size() {
+            return this.map.size();
+        }
+
+        synchronized final void addKeys(final Set<K> res) {
+            res.addAll(this.map.keySet());
+        }
+    }
+
+    private final List<Segment<K, V>> segments;
+    // a latch for each key being computed
+    private final ConcurrentMap<K, CountDownLatch> running;
+    private final long delay;
+    private final int size;
     private final String name;
-    private final Map<K, CacheTimeOut<K>> timeoutTasks;
+    // delay is constant so entries expire in the order they're added
+    @GuardedBy("expiryQueue")
+    private final LinkedHashSet<Entry<K, V>> expiryQueue;
+    @GuardedBy("this")
+    private CacheTimeOut<K> expiryTask;
+    // write operations hold this lock to keep the cache and its watchers coherent
+    private final Object watchersLock = new String("watchersLock");
+    @GuardedBy("watchersLock")
     private Map<D, CacheWatcher<K, D>> watchers;
+    @GuardedBy("watchersLock")
     private final SetMap<K, CacheWatcher<K, D>> watchersByKey;
+    @GuardedBy("this")
+    private ITransformer<? super V, ? extends Number> weigher;
+    private volatile long maxWeight;
+    // total of all segments, since the weight limit applies to the whole cache
+    @GuardedBy("watchersLock")
+    private long weight;
 
-    private ICache<K, V, D> parent;
+    private final AtomicLong hitCount, missCount, evictionCount;
+
+    private volatile ICache<K, V, D> parent;
 
     public ICache() {
         this(60);
@@ -74,46 +204,88 @@ public class ICache<K, V, D> {
      * 
      * @param delay the delay in seconds before a key is cleared.
      * @param size the maximum size of the cache, negative means no limit.
-     * @param name name of this cache and associated thread.
+     * @param name name of this cache.
      * @throws IllegalArgumentException if size is 0.
      */
     public ICache(int delay, int size, String name) {
-        this.running = new HashSet<K>();
-        this.delay = delay;
+        this.running = new ConcurrentHashMap<K, CountDownLatch>();
+        this.delay = TimeUnit.SECONDS.toNanos(delay);
         if (size == 0)
             throw new IllegalArgumentException("0 size");
         this.size = size;
-        this.cache = new LinkedHashMap<K, V>(size < 0 ? 64 : size);
-        this.timer = null;
+        final int segmentCount = size < 0 ? MAX_SEGMENTS : Math.max(1, Math.min(MAX_SEGMENTS, size / MIN_SEGMENT_SIZE));
+        this.segments = new ArrayList<Segment<K, V>>(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            // spread the remainder so that the total is exactly size
+            this.segments.add(new Segment<K, V>(size < 0 ? -1 : size / segmentCount + (i < size % segmentCount ? 1 : 0)));
+        }
         this.name = name;
-        this.timeoutTasks = new HashMap<K, CacheTimeOut<K>>();
+        this.expiryQueue = new LinkedHashSet<Entry<K, V>>();
+        this.expiryTask = null;
 
         this.watchers = null;
         this.watchersByKey = new SetMap<K, CacheWatcher<K, D>>();
+        this.weigher = null;
+        this.maxWeight = -1;
+        this.weight = 0;
+
+        this.hitCount = new AtomicLong();
+        this.missCount = new AtomicLong();
+        this.evictionCount = new AtomicLong();
 
         this.parent = null;
     }
 
-    private final Timer getTimer() {
-        if (this.timer == null)
-            this.timer = this.name == null ? new Timer(true) : new Timer("cache for " + this.name, true);
-        return this.timer;
+    private final Segment<K, V> getSegment(final Object key) {
+        // spread bits like HashMap since hash codes are often poorly distributed
+        int h = key == null ? 0 : key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return this.segments.get((h & 0x7fffffff) % this.segments.size());
     }
 
     @SuppressWarnings("unchecked")
     public final void setWatcherFactory(final CacheWatcherFactory<K, D> f) {
-        this.watchers = LazyMap.decorate(new HashMap(), new Transformer<D, CacheWatcher<K, D>>() {
-
-            @Override
-            public CacheWatcher<K, D> transformChecked(D input) {
-                try {
-                    return f.createWatcher(ICache.this, input);
-                } catch (Exception e) {
-                    throw ExceptionUtils.createExn(IllegalStateException.class, "could not create watcher for " + input, e);
+        synchronized (this.watchersLock) {
+            this.watchers = LazyMap.decorate(new HashMap(), new Transformer<D, CacheWatcher<K, D>>() {
+
+                @Override
+                public CacheWatcher<K, D> transformChecked(D input) {
+                    try {
+                        return f.createWatcher(ICache.this, input);
+                    } catch (Exception e) {
+                        throw ExceptionUtils.createExn(IllegalStateException.class, "could not create watcher for " + input, e);
+                    }
                 }
-            }
-        });
+            });
+        }
+    }
+
+    /**
+     * Bound this cache by the estimated size of its values. When the total exceeds the limit, the
+     * least recently used values of all segments are evicted, so a value bigger than
+     * <code>maxWeight</code> won't be kept. Values already in this cache are not weighed.
+     * 
+     * @param maxWeight the maximum total weight, negative means no limit.
+     * @param weigher how to compute the weight of a value, e.g. {@link SizeEstimator#INSTANCE}.
+     */
+    public final synchronized void setMaxWeight(final long maxWeight, final ITransformer<? super V, ? extends Number> weigher) {
+        if (maxWeight >= 0 && weigher == null)
+            throw new NullPointerException("Null weigher");
+        this.maxWeight = maxWeight;
+        this.weigher = maxWeight < 0 ? null : weigher;
+    }
+
+    public final long getMaxWeight() {
+        return this.maxWeight;
+    }
 
+    private final long weigh(final V value) {
+        final ITransformer<? super V, ? extends Number> w;
+        synchronized (this) {
+            w = this.weigher;
+        }
+        return w == null ? 0 : w.transformChecked(value).longValue();
     }
 
     /**
@@ -131,7 +303,7 @@ public class ICache<K, V, D> {
         this.parent = parent;
     }
 
-    public final synchronized ICache<K, V, D> getParent() {
+    public final ICache<K, V, D> getParent() {
         return this.parent;
     }
 
@@ -149,27 +321,42 @@ public class ICache<K, V, D> {
     }
 
     private final CacheResult<V> get(K sel, final boolean checkRunning) {
-        synchronized (this) {
-            if (this.cache.containsKey(sel)) {
-                log("IN cache", sel);
-                return new CacheResult<V>(this.cache.get(sel));
-            } else if (checkRunning && isRunning(sel)) {
-                log("RUNNING", sel);
-                try {
-                    this.wait();
-                } catch (InterruptedException e) {
-                    // return sinon thread ne peut sortir que lorsque sel sera fini
-                    return CacheResult.getInterrupted();
-                }
-                return this.get(sel);
-            } else if (this.parent != null) {
-                log("CALLING parent", sel);
-                return this.parent.get(sel, false);
-            } else {
-                log("NOT in cache", sel);
-                return CacheResult.getNotInCache();
+        final Entry<K, V> e = this.getValid(sel);
+        if (e != null) {
+            log("IN cache", sel);
+            this.hitCount.incrementAndGet();
+            return new CacheResult<V>(e.value);
+        }
+        final CountDownLatch latch = checkRunning ? this.running.get(sel) : null;
+        if (latch != null) {
+            log("RUNNING", sel);
+            try {
+                latch.await();
+            } catch (InterruptedException exn) {
+                // return sinon thread ne peut sortir que lorsque sel sera fini
+                return CacheResult.getInterrupted();
             }
+            return this.get(sel);
+        }
+        final ICache<K, V, D> p = this.parent;
+        if (p != null) {
+            log("CALLING parent", sel);
+            return p.get(sel, false);
+        } else {
+            log("NOT in cache", sel);
+            this.missCount.incrementAndGet();
+            return CacheResult.getNotInCache();
+        }
+    }
+
+    // the entry for key if it has not timed out
+    private final Entry<K, V> getValid(final K key) {
+        final Entry<K, V> e = this.getSegment(key).get(key);
+        if (e != null && e.isExpired(System.nanoTime())) {
+            this.clear(e);
+            return null;
         }
+        return e;
     }
 
     /**
@@ -180,17 +367,19 @@ public class ICache<K, V, D> {
      * @param key the key we're getting the value for.
      * @see #put(Object, Object, Set)
      */
-    public final synchronized void addRunning(K key) {
-        this.running.add(key);
+    public final void addRunning(K key) {
+        if (this.running.get(key) == null)
+            this.running.putIfAbsent(key, new CountDownLatch(1));
     }
 
-    public final synchronized void removeRunning(K key) {
-        this.running.remove(key);
-        this.notifyAll();
+    public final void removeRunning(K key) {
+        final CountDownLatch latch = this.running.remove(key);
+        if (latch != null)
+            latch.countDown();
     }
 
-    public final synchronized boolean isRunning(K sel) {
-        return this.running.contains(sel);
+    public final boolean isRunning(K sel) {
+        return this.running.containsKey(sel);
     }
 
     /**
@@ -201,11 +390,22 @@ public class ICache<K, V, D> {
      * @return the associated value, or <code>null</code>.
      * @see #addRunning(Object)
      */
-    public final synchronized CacheResult<V> check(K key) {
-        final CacheResult<V> l = this.get(key);
-        if (l.getState() == State.NOT_IN_CACHE)
-            this.addRunning(key);
-        return l;
+    public final CacheResult<V> check(K key) {
+        while (true) {
+            final CacheResult<V> l = this.get(key);
+            if (l.getState() != State.NOT_IN_CACHE)
+                return l;
+            if (this.running.putIfAbsent(key, new CountDownLatch(1)) == null) {
+                // the value might have been put between get() and putIfAbsent()
+                final Entry<K, V> e = this.getValid(key);
+                if (e == null)
+                    return l;
+                this.removeRunning(key);
+                this.hitCount.incrementAndGet();
+                return new CacheResult<V>(e.value);
+            }
+            // else another thread has just started computing key, wait for it
+        }
     }
 
     /**
@@ -214,7 +414,7 @@ public class ICache<K, V, D> {
      * @param sel the key.
      * @param res the result associated with <code>sel</code>.
      */
-    public final synchronized void put(K sel, V res) {
+    public final void put(K sel, V res) {
         this.put(sel, res, Collections.<D> emptySet());
     }
 
@@ -226,68 +426,197 @@ public class ICache<K, V, D> {
      * @param data the data from which <code>res</code> is computed.
      * @return the watchers monitoring the passed key.
      */
-    public final synchronized Set<? extends CacheWatcher<K, D>> put(K sel, V res, Set<? extends D> data) {
-        if (this.size > 0 && this.cache.size() == this.size)
-            this.clear(this.cache.keySet().iterator().next());
-        this.cache.put(sel, res);
+    public final Set<? extends CacheWatcher<K, D>> put(K sel, V res, Set<? extends D> data) {
+        final Entry<K, V> e = new Entry<K, V>(sel, res, this.weigh(res), System.nanoTime() + this.delay);
+        final List<Entry<K, V>> evicted = new ArrayList<Entry<K, V>>(2);
+        final List<CacheWatcher<K, D>> dead = new ArrayList<CacheWatcher<K, D>>();
+        final Set<CacheWatcher<K, D>> result;
+        synchronized (this.watchersLock) {
+            final Entry<K, V> old = this.getSegment(sel).put(e, evicted);
+            if (old != null) {
+                this.weight -= old.weight;
+                this.removeFromExpiry(old);
+            }
+            this.weight += e.weight;
+            for (final Entry<K, V> evictedEntry : evicted)
+                this.weight -= evictedEntry.weight;
+            this.evictOverweight(evicted);
+            boolean kept = true;
+            for (final Entry<K, V> evictedEntry : evicted) {
+                if (evictedEntry == e) {
+                    kept = false;
+                } else {
+                    removeWatchers(evictedEntry.key, dead);
+                    this.removeFromExpiry(evictedEntry);
+                }
+            }
+            if (kept) {
+                synchronized (this.expiryQueue) {
+                    this.expiryQueue.add(e);
+                }
+            }
+            if (kept && this.watchers != null) {
+                for (final D datum : data) {
+                    final CacheWatcher<K, D> watcher = this.watchers.get(datum);
+                    watcher.add(sel);
+                    this.watchersByKey.add(sel, watcher);
+                }
+            }
+            result = new HashSet<CacheWatcher<K, D>>(this.watchersByKey.getNonNull(sel));
+        }
         this.removeRunning(sel);
+        if (evicted.size() > 0) {
+            log("evicted " + evicted.size() + " for", sel);
+            this.evictionCount.addAndGet(evicted.size());
+        }
+        for (final CacheWatcher<K, D> w : dead)
+            w.die();
 
-        for (final D datum : data) {
-            if (this.watchers != null) {
-                final CacheWatcher<K, D> watcher = this.watchers.get(datum);
-                watcher.add(sel);
-                this.watchersByKey.add(sel, watcher);
+        synchronized (this) {
+            if (this.expiryTask == null) {
+                this.expiryTask = new CacheTimeOut<K>(this);
+                getTimer().schedule(this.expiryTask, EXPIRY_PERIOD, EXPIRY_PERIOD);
             }
         }
 
-        final CacheTimeOut<K> timeout = new CacheTimeOut<K>(this, sel);
-        this.timeoutTasks.put(sel, timeout);
-        this.getTimer().schedule(timeout, this.delay * 1000);
+        return result;
+    }
+
+    // while the total weight is over the limit, evict the oldest of the least recently used entries
+    // of each segment
+    @GuardedBy("watchersLock")
+    private final void evictOverweight(final List<Entry<K, V>> evicted) {
+        final long max = this.maxWeight;
+        while (max >= 0 && this.weight > max) {
+            Segment<K, V> eldestSegment = null;
+            Entry<K, V> eldest = null;
+            for (final Segment<K, V> s : this.segments) {
+                final Entry<K, V> candidate = s.getEldest();
+                if (candidate != null && (eldest == null || candidate.expiry - eldest.expiry < 0)) {
+                    eldestSegment = s;
+                    eldest = candidate;
+                }
+            }
+            if (eldest == null)
+                return;
+            eldestSegment.remove(eldest.key, eldest);
+            this.weight -= eldest.weight;
+            evicted.add(eldest);
+        }
+    }
 
-        return this.watchersByKey.getNonNull(sel);
+    @GuardedBy("watchersLock")
+    private final void removeFromExpiry(final Entry<K, V> e) {
+        synchronized (this.expiryQueue) {
+            this.expiryQueue.remove(e);
+        }
     }
 
-    public final synchronized void clear(K select) {
-        log("clear", select);
-        if (this.cache.containsKey(select)) {
-            this.cache.remove(select);
-            this.timeoutTasks.remove(select).cancel();
-            final Set<CacheWatcher<K, D>> keyWatchers = this.watchersByKey.remove(select);
-            // a key can specify no watchers at all
-            if (keyWatchers != null) {
-                for (final CacheWatcher<K, D> w : keyWatchers) {
-                    w.remove(select);
-                    if (w.isEmpty()) {
-                        w.die();
-                        this.watchers.remove(w.getData());
-                    }
+    // remove the watchers of key, adding to dead the ones with no keys left
+    @GuardedBy("watchersLock")
+    private final void removeWatchers(final K key, final List<CacheWatcher<K, D>> dead) {
+        final Set<CacheWatcher<K, D>> keyWatchers = this.watchersByKey.remove(key);
+        // a key can specify no watchers at all
+        if (keyWatchers != null) {
+            for (final CacheWatcher<K, D> w : keyWatchers) {
+                w.remove(key);
+                if (w.isEmpty()) {
+                    this.watchers.remove(w.getData());
+                    dead.add(w);
                 }
             }
         }
     }
 
-    public final synchronized void clear() {
-        if (this.size() > 0) {
-            this.cache.clear();
-            if (this.timer != null) {
-                this.timer.cancel();
-                this.timer = null;
-                this.timeoutTasks.clear();
+    public final void clear(K select) {
+        this.clear(select, null);
+    }
+
+    private final void clear(final Entry<K, V> e) {
+        this.clear(e.key, e);
+    }
+
+    private final void clear(final K select, final Entry<K, V> expected) {
+        log("clear", select);
+        final List<CacheWatcher<K, D>> dead = new ArrayList<CacheWatcher<K, D>>();
+        synchronized (this.watchersLock) {
+            final Entry<K, V> removed = this.getSegment(select).remove(select, expected);
+            if (removed == null)
+                return;
+            this.weight -= removed.weight;
+            this.removeFromExpiry(removed);
+            removeWatchers(select, dead);
+        }
+        // outside our lock since watchers call us back
+        for (final CacheWatcher<K, D> w : dead)
+            w.die();
+    }
+
+    /**
+     * Remove the keys that have timed out.
+     */
+    final void expire() {
+        final long now = System.nanoTime();
+        final List<Entry<K, V>> expired = new ArrayList<Entry<K, V>>();
+        synchronized (this.expiryQueue) {
+            final Iterator<Entry<K, V>> iter = this.expiryQueue.iterator();
+            while (iter.hasNext()) {
+                final Entry<K, V> e = iter.next();
+                if (!e.isExpired(now))
+                    break;
+                iter.remove();
+                expired.add(e);
+            }
+        }
+        // ATTN the same entry could have been replaced or removed by another thread
+        for (final Entry<K, V> e : expired)
+            this.clear(e);
+        synchronized (this) {
+            final boolean empty;
+            synchronized (this.expiryQueue) {
+                empty = this.expiryQueue.isEmpty();
+            }
+            // stop referencing this from the timer thread when nothing is left
+            if (empty && this.expiryTask != null) {
+                this.expiryTask.cancel();
+                this.expiryTask = null;
+            }
+        }
+    }
+
+    public final void clear() {
+        final List<CacheWatcher<K, D>> dead;
+        synchronized (this.watchersLock) {
+            for (final Segment<K, V> s : this.segments)
+                s.clear();
+            this.weight = 0;
+            synchronized (this.expiryQueue) {
+                this.expiryQueue.clear();
             }
             if (this.watchers != null) {
+                dead = new ArrayList<CacheWatcher<K, D>>(this.watchers.values());
                 this.watchersByKey.clear();
-                for (final CacheWatcher<K, D> w : this.watchers.values()) {
-                    // die() will call clear() but since this.cache is now empty it won't do
-                    // anything
-                    w.die();
-                }
                 this.watchers.clear();
+            } else {
+                dead = Collections.emptyList();
+            }
+        }
+        synchronized (this) {
+            if (this.expiryTask != null) {
+                this.expiryTask.cancel();
+                this.expiryTask = null;
             }
         }
+        for (final CacheWatcher<K, D> w : dead) {
+            // die() will call clear() but since the segments are now empty it won't do anything
+            w.die();
+        }
     }
 
-    final synchronized boolean dependsOn(D data) {
-        return this.watchers.containsKey(data);
+    final boolean dependsOn(D data) {
+        synchronized (this.watchersLock) {
+            return this.watchers.containsKey(data);
+        }
     }
 
     private final void log(String msg, Object subject) {
@@ -296,11 +625,63 @@ public class ICache<K, V, D> {
             Log.get().log(LEVEL, msg + ": " + subject);
     }
 
-    public final synchronized int size() {
-        return this.cache.size();
+    public final int size() {
+        int res = 0;
+        for (final Segment<K, V> s : this.segments)
+            res += s.size();
+        return res;
+    }
+
+    /**
+     * The total weight of the values in this cache.
+     * 
+     * @return the total weight, 0 if no {@link #setMaxWeight(long, ITransformer) weigher} was set.
+     */
+    public final long getWeight() {
+        synchronized (this.watchersLock) {
+            return this.weight;
+        }
+    }
+
+    public final int getMaxSize() {
+        return this.size;
+    }
+
+    public final String getName() {
+        return this.name;
+    }
+
+    /**
+     * The number of times {@link #get(Object)} found a value in this cache.
+     * 
+     * @return the number of hits.
+     */
+    public final long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    /**
+     * The number of times {@link #get(Object)} found neither a value in this cache nor a parent.
+     * 
+     * @return the number of misses.
+     */
+    public final long getMissCount() {
+        return this.missCount.get();
+    }
+
+    /**
+     * The number of keys removed because this cache was full.
+     * 
+     * @return the number of evictions.
+     */
+    public final long getEvictionCount() {
+        return this.evictionCount.get();
     }
 
     public final String toString() {
-        return this.getClass().getName() + ", keys cached: " + this.timeoutTasks.keySet();
+        final Set<K> keys = new HashSet<K>();
+        for (final Segment<K, V> s : this.segments)
+            s.addKeys(keys);
+        return this.getClass().getName() + ", keys cached: " + keys;
     }
 }
@@ -0,0 +1,80 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.utils.cache;
+
+import org.openconcerto.utils.cc.ITransformer;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Roughly estimate the number of bytes used by query results, i.e. collections, maps and arrays of
+ * strings, numbers and dates. Only the first items of big collections are measured, the rest is
+ * extrapolated.
+ * 
+ * @see ICache#setMaxWeight(long, ITransformer)
+ */
+public final class SizeEstimator implements ITransformer<Object, Long> {
+
+    public static final SizeEstimator INSTANCE = new SizeEstimator();
+
+    // object header and reference
+    private static final int OBJECT_SIZE = 16;
+    private static final int SAMPLE_SIZE = 32;
+    private static final int MAX_DEPTH = 4;
+
+    private SizeEstimator() {
+    }
+
+    @Override
+    public Long transformChecked(Object input) {
+        return estimate(input, 0);
+    }
+
+    private final long estimate(final Object o, final int depth) {
+        if (o == null)
+            return 0;
+        else if (o instanceof String)
+            return OBJECT_SIZE + 24 + 2 * ((String) o).length();
+        else if (o instanceof Number || o instanceof Boolean || o instanceof Character)
+            return OBJECT_SIZE + 8;
+        else if (o instanceof byte[])
+            return OBJECT_SIZE + ((byte[]) o).length;
+        else if (depth >= MAX_DEPTH)
+            return 4 * OBJECT_SIZE;
+        else if (o instanceof Object[])
+            return OBJECT_SIZE + estimate(((Object[]) o).length, Arrays.asList((Object[]) o).iterator(), depth);
+        else if (o instanceof Collection)
+            return 2 * OBJECT_SIZE + estimate(((Collection<?>) o).size(), ((Collection<?>) o).iterator(), depth);
+        else if (o instanceof Map) {
+            final Map<?, ?> m = (Map<?, ?>) o;
+            // keys are usually shared (eg field names) so only count entries and values
+            return 3 * OBJECT_SIZE + m.size() * 2 * OBJECT_SIZE + estimate(m.size(), m.values().iterator(), depth);
+        } else
+            // dates, SQLRow, etc.
+            return 4 * OBJECT_SIZE;
+    }
+
+    private final long estimate(final int size, final Iterator<?> iter, final int depth) {
+        long res = 0;
+        int sampled = 0;
+        while (sampled < SAMPLE_SIZE && iter.hasNext()) {
+            res += 4 + estimate(iter.next(), depth + 1);
+            sampled++;
+        }
+        return sampled == 0 ? 0 : res * size / sampled;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.utils.sync;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The block hashes of a remote file, as written by {@link HashWriter#writeHash(java.io.OutputStream)}
+ * , allowing to find which blocks of a local file are already present.
+ */
+final class BlockHashes {
+
+    static interface BlockListener {
+        /**
+         * Called when a block of the local file is found in the remote file.
+         * 
+         * @param localOffset the offset of the block in the local file.
+         * @param remoteOffset the offset of the block in the remote file.
+         * @param block the content of the block, only valid during this call.
+         * @throws IOException if an error occurs.
+         */
+        void blockFound(long localOffset, long remoteOffset, byte[] block) throws IOException;
+    }
+
+    static BlockHashes read(final DataInputStream in) throws IOException {
+        final HashWriter.Header header = HashWriter.readHeader(in);
+        final int nb = header.getBlockCount();
+        final Map<Integer, byte[]> md5s = new HashMap<Integer, byte[]>(nb * 2 + 1);
+        final Map<Integer, Integer> indexes = new HashMap<Integer, Integer>(nb * 2 + 1);
+        for (int i = 0; i < nb; i++) {
+            final int r32 = in.readInt();
+            final byte[] b = new byte[16];
+            in.readFully(b);
+            md5s.put(r32, b);
+            indexes.put(r32, i);
+        }
+        // The hash (SHA256) of the remote file
+        final byte[] fileHash = new byte[32];
+        in.readFully(fileHash);
+        return new BlockHashes(header, md5s, indexes, fileHash);
+    }
+
+    private final HashWriter.Header header;
+    private final Map<Integer, byte[]> md5s;
+    private final Map<Integer, Integer> indexes;
+    private final byte[] fileHash;
+
+    private BlockHashes(final HashWriter.Header header, final Map<Integer, byte[]> md5s, final Map<Integer, Integer> indexes, final byte[] fileHash) {
+        this.header = header;
+        this.md5s = md5s;
+        this.indexes = indexes;
+        this.fileHash = fileHash;
+    }
+
+    public final long getSize() {
+        return this.header.getSize();
+    }
+
+    public final int getBlockSize() {
+        return this.header.getBlockSize();
+    }
+
+    public final byte[] getFileHash() {
+        return this.fileHash;
+    }
+
+    // number of bytes read
+    public final int getByteCount() {
+        return this.header.getByteCount() + this.header.getBlockCount() * (4 + 16) + this.fileHash.length;
+    }
+
+    /**
+     * Search the remote blocks in a local file, at every offset.
+     * 
+     * @param f the local file.
+     * @param l called for each block found.
+     * @throws IOException if an error occurs while reading <code>f</code> or in <code>l</code>.
+     */
+    public final void findBlocks(final File f, final BlockListener l) throws IOException {
+        final int blockSize = this.getBlockSize();
+        final InputStream fb = new BufferedInputStream(new FileInputStream(f), 64 * 1024);
+        try {
+            // the last blockSize bytes read, the oldest one at head
+            final byte[] ring = new byte[blockSize];
+            final int read = HashWriter.readBlock(fb, ring);
+            // only the last block of the remote file can be shorter, and its MD5 is computed on the
+            // actual bytes : cannot be found in a shorter local file
+            if (read < blockSize)
+                return;
+            final byte[] block = new byte[blockSize];
+            final MessageDigest md5Digest = HashWriter.createDigest("MD5");
+            final RollingChecksum32 checksum = new RollingChecksum32();
+            checksum.check(ring, 0, read);
+            int head = 0;
+            long start = 0;
+            int v;
+            do {
+                final int r32 = checksum.getValue();
+                final byte[] md5 = this.md5s.get(r32);
+                if (md5 != null) {
+                    // local block maybe exists in the remote file
+                    // let's check if true with md5
+                    System.arraycopy(ring, head, block, 0, blockSize - head);
+                    System.arraycopy(ring, 0, block, blockSize - head, head);
+                    md5Digest.update(block);
+                    if (HashWriter.compareHash(md5, md5Digest.digest())) {
+                        // Block found!!!
+                        l.blockFound(start, (long) this.indexes.get(r32) * blockSize, block);
+                    }
+                }
+
+                // read
+                v = fb.read();
+                start++;
+                // Update
+                ring[head] = (byte) v;
+                if (++head == blockSize)
+                    head = 0;
+                checksum.roll((byte) v);
+            } while (v >= 0);
+        } finally {
+            fb.close();
+        }
+    }
+}
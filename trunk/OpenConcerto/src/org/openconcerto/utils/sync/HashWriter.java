@@ -15,18 +15,103 @@
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class HashWriter {
-    public static int blockSize = 1024;
-    private File in;
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+    public static int blockSize = DEFAULT_BLOCK_SIZE;
+    // file size marking that the real size is a long followed by the block size
+    static final int LARGE_FORMAT = -1;
+
+    /**
+     * The size of a file and of its blocks.
+     */
+    static final class Header {
+        private final long size;
+        private final int blockSize;
+
+        Header(long size, int blockSize) {
+            this.size = size;
+            this.blockSize = blockSize;
+        }
+
+        public final long getSize() {
+            return this.size;
+        }
+
+        public final int getBlockSize() {
+            return this.blockSize;
+        }
+
+        // was the header written with longs
+        public final boolean isLarge() {
+            return HashWriter.isLarge(this.size, this.blockSize);
+        }
+
+        // number of bytes written
+        public final int getByteCount() {
+            return this.isLarge() ? 16 : 4;
+        }
+
+        public final int getBlockCount() {
+            return (int) ((this.size + this.blockSize - 1) / this.blockSize);
+        }
+    }
+
+    static boolean isLarge(long size, int blockSize) {
+        return size > Integer.MAX_VALUE || blockSize != DEFAULT_BLOCK_SIZE;
+    }
+
+    /**
+     * Write the size of a file, only as an int if possible so that older clients can read it.
+     * 
+     * @param out where to write.
+     * @param size the size of the file.
+     * @param blockSize the size of the blocks.
+     * @throws IOException if an error occurs while writing.
+     * @see #readHeader(DataInput)
+     */
+    static void writeHeader(DataOutput out, long size, int blockSize) throws IOException {
+        if (isLarge(size, blockSize)) {
+            out.writeInt(LARGE_FORMAT);
+            out.writeLong(size);
+            out.writeInt(blockSize);
+        } else {
+            out.writeInt((int) size);
+        }
+    }
+
+    static Header readHeader(DataInput in) throws IOException {
+        final int size = in.readInt();
+        if (size == LARGE_FORMAT) {
+            return new Header(in.readLong(), in.readInt());
+        } else {
+            return new Header(size, DEFAULT_BLOCK_SIZE);
+        }
+    }
+
+    private final File in;
+    private final int hashBlockSize;
 
     public HashWriter(File inputFile) {
+        this(inputFile, blockSize);
+    }
+
+    public HashWriter(File inputFile, int blockSize) {
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("Invalid block size : " + blockSize);
         this.in = inputFile;
+        this.hashBlockSize = blockSize;
     }
 
     public void saveHash(File outputFile) {
@@ -34,60 +119,92 @@ public class HashWriter {
             if (!outputFile.exists()) {
                 new File(outputFile.getParent()).mkdirs();
             }
-            DataOutputStream bOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)));
-            bOut.writeInt((int) this.in.length());
-            System.out.println("FileSize:" + this.in.length());
-            MessageDigest hashSum = MessageDigest.getInstance("SHA-256");
-            MessageDigest md5 = MessageDigest.getInstance("MD5");
-            BufferedInputStream fb = new BufferedInputStream(new FileInputStream(in));
-            RollingChecksum32 r32 = new RollingChecksum32();
-            byte[] buffer = new byte[blockSize];
+            final OutputStream bOut = new BufferedOutputStream(new FileOutputStream(outputFile));
+            try {
+                this.writeHash(bOut);
+            } finally {
+                bOut.close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
 
-            int readSize = fb.read(buffer);
+        }
+    }
+
+    /**
+     * Write the size, the rolling checksum and MD5 of each block, and the SHA-256 of the file.
+     * 
+     * @param out where to write, not closed.
+     * @throws IOException if an error occurs while reading or writing.
+     */
+    public void writeHash(OutputStream out) throws IOException {
+        final DataOutputStream bOut = new DataOutputStream(out);
+        final long size = this.in.length();
+        writeHeader(bOut, size, this.hashBlockSize);
+        final MessageDigest hashSum = createDigest("SHA-256");
+        final MessageDigest md5 = createDigest("MD5");
+        final InputStream fb = new BufferedInputStream(new FileInputStream(in), 64 * 1024);
+        try {
+            final RollingChecksum32 r32 = new RollingChecksum32();
+            final byte[] buffer = new byte[this.hashBlockSize];
+
+            int readSize = readBlock(fb, buffer);
             while (readSize > 0) {
                 // Update
                 r32.check(buffer, 0, readSize);
-                md5.reset();
                 md5.update(buffer, 0, readSize);
                 hashSum.update(buffer, 0, readSize);
-                // read
-                readSize = fb.read(buffer);
-                // System.out.print(r32.getValue() + " : ");
-                final byte[] engineDigest = md5.digest();
-
-                // System.out.println(Base64.encodeBytes(engineDigest));
+                // digest() resets md5
                 bOut.writeInt(r32.getValue());
-                bOut.write(engineDigest);
-
+                bOut.write(md5.digest());
+                // read
+                readSize = readBlock(fb, buffer);
             }
+        } finally {
+            fb.close();
+        }
+        bOut.write(hashSum.digest());
+        bOut.flush();
+    }
 
-            byte[] fileHash = new byte[hashSum.getDigestLength()];
-            fileHash = hashSum.digest();
-            bOut.write(fileHash);
-            bOut.close();
-
-        } catch (Exception e) {
-            e.printStackTrace();
+    // fill buffer unless the end of the stream is reached
+    static int readBlock(InputStream in, byte[] buffer) throws IOException {
+        int res = 0;
+        while (res < buffer.length) {
+            final int r = in.read(buffer, res, buffer.length - res);
+            if (r < 0)
+                break;
+            res += r;
+        }
+        return res;
+    }
 
+    static MessageDigest createDigest(final String algo) {
+        try {
+            return MessageDigest.getInstance(algo);
+        } catch (NoSuchAlgorithmException e) {
+            // MD5 and SHA-256 are required
+            throw new IllegalStateException(e);
         }
     }
 
-    public static byte[] getHash(File f) throws Exception {
-        MessageDigest hashSum = MessageDigest.getInstance("SHA-256");
-
-        final BufferedInputStream fb = new BufferedInputStream(new FileInputStream(f));
-        byte[] buffer = new byte[blockSize];
-        int readSize = fb.read(buffer);
-        while (readSize > 0) {
-            // Update
-            hashSum.update(buffer, 0, readSize);
-            // read
-            readSize = fb.read(buffer);
+    public static byte[] getHash(File f) throws IOException {
+        final MessageDigest hashSum = createDigest("SHA-256");
+
+        final InputStream fb = new FileInputStream(f);
+        try {
+            final byte[] buffer = new byte[64 * 1024];
+            int readSize = fb.read(buffer);
+            while (readSize >= 0) {
+                // Update
+                hashSum.update(buffer, 0, readSize);
+                // read
+                readSize = fb.read(buffer);
+            }
+        } finally {
+            fb.close();
         }
-        fb.close();
-        byte[] fileHash = new byte[hashSum.getDigestLength()];
-        fileHash = hashSum.digest();
-        return fileHash;
+        return hashSum.digest();
     }
 
     public static boolean compareHash(byte[] h1, byte[] h2) {
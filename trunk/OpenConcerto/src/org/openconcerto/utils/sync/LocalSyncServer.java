@@ -0,0 +1,397 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.utils.sync;
+
+import org.openconcerto.utils.Base64;
+import org.openconcerto.utils.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A minimal server for {@link SyncClient}, serving a local directory. It stands in for the real
+ * server to test the client, e.g. <code>java LocalSyncServer /tmp/root 8080</code>, or
+ * <code>java LocalSyncServer check /tmp/work</code> to run {@link #check(File)}. Tokens are
+ * ignored.
+ */
+public class LocalSyncServer {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: " + LocalSyncServer.class.getName() + " rootDir port");
+            System.out.println("       " + LocalSyncServer.class.getName() + " check workDir");
+            return;
+        }
+        if (args[0].equals("check")) {
+            check(new File(args[1]));
+            System.out.println("OK");
+            return;
+        }
+        final LocalSyncServer server = new LocalSyncServer(new File(args[0]), Integer.parseInt(args[1]));
+        server.start();
+        System.out.println("Serving " + server.getRoot().getAbsolutePath() + " at " + server.getURL());
+    }
+
+    /**
+     * Exercise {@link SyncClient} against this server, for the default and a larger block size :
+     * a download in concurrent parts, then the download and the upload of a modified file which
+     * must only transfer the changed blocks.
+     * 
+     * @param workDir where to create the served and the local directories, emptied first.
+     * @throws Exception if a transfer fails.
+     * @throws IllegalStateException if a transferred file differs from its source.
+     */
+    public static void check(final File workDir) throws Exception {
+        for (final int blockSize : new int[] { HashWriter.DEFAULT_BLOCK_SIZE, 4 * HashWriter.DEFAULT_BLOCK_SIZE }) {
+            final File serverDir = new File(workDir, "server-" + blockSize);
+            final File clientDir = new File(workDir, "client-" + blockSize);
+            FileUtils.rm_R(serverDir);
+            FileUtils.rm_R(clientDir);
+            FileUtils.mkdir_p(serverDir);
+            FileUtils.mkdir_p(clientDir);
+            final LocalSyncServer server = new LocalSyncServer(serverDir, 0, blockSize);
+            server.start();
+            try {
+                final SyncClient client = new SyncClient(server.getURL());
+                client.setMaxConcurrentTransfers(4);
+                client.setPartSize(256 * 1024);
+                final Random random = new Random(blockSize);
+                final String name = "data.bin";
+                final File serverFile = new File(serverDir, name);
+                final File clientFile = new File(clientDir, name);
+
+                final byte[] data = new byte[3 * 1024 * 1024 + 123];
+                random.nextBytes(data);
+                write(serverFile, data);
+                client.retrieveFile(clientDir, "/", name, "");
+                checkSame(serverFile, clientFile, "download");
+
+                // insert bytes so that most blocks are found at another offset
+                final byte[] modified = new byte[data.length + 1000];
+                random.nextBytes(modified);
+                System.arraycopy(data, 0, modified, 0, 1024 * 1024);
+                System.arraycopy(data, 1024 * 1024, modified, 1024 * 1024 + 1000, data.length - 1024 * 1024);
+                write(serverFile, modified);
+                final long received = client.getByteReceived();
+                client.retrieveFile(clientDir, "/", name, "");
+                checkSame(serverFile, clientFile, "delta download");
+                if (client.getByteReceived() - received > modified.length / 2)
+                    throw new IllegalStateException("delta download : local blocks not reused");
+
+                modified[10] ^= 1;
+                write(clientFile, modified);
+                final long sent = client.getByteSent();
+                client.sendFile(clientFile, "/", name, "");
+                checkSame(clientFile, serverFile, "upload");
+                if (client.getByteSent() - sent > modified.length / 2)
+                    throw new IllegalStateException("upload : remote blocks not reused");
+            } finally {
+                server.stop();
+            }
+        }
+    }
+
+    static private void write(final File f, final byte[] data) throws IOException {
+        final FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    static private void checkSame(final File expected, final File actual, final String transfer) throws Exception {
+        if (!actual.isFile() || actual.length() != expected.length() || !HashWriter.compareHash(HashWriter.getHash(expected), HashWriter.getHash(actual)))
+            throw new IllegalStateException(transfer + " : " + actual + " differs from " + expected);
+    }
+
+    private final File root;
+    private final int blockSize;
+    private final ExecutorService executor;
+    private final HttpServer server;
+
+    public LocalSyncServer(final File root, final int port) throws IOException {
+        this(root, port, HashWriter.blockSize);
+    }
+
+    /**
+     * Create a new server, only listening on the loopback interface.
+     * 
+     * @param root the served directory.
+     * @param port the port, 0 for any free port.
+     * @param blockSize the size of the blocks to hash.
+     * @throws IOException if the server cannot be created.
+     */
+    public LocalSyncServer(final File root, final int port, final int blockSize) throws IOException {
+        this.root = root;
+        this.blockSize = blockSize;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 0);
+        this.executor = Executors.newCachedThreadPool();
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/getHash", new Handler() {
+            @Override
+            protected void handle(HttpExchange exchange, Map<String, String> params) throws IOException {
+                getHash(exchange, params);
+            }
+        });
+        this.server.createContext("/getFile", new Handler() {
+            @Override
+            protected void handle(HttpExchange exchange, Map<String, String> params) throws IOException {
+                getFile(exchange, params);
+            }
+        });
+        this.server.createContext("/getDir", new Handler() {
+            @Override
+            protected void handle(HttpExchange exchange, Map<String, String> params) throws IOException {
+                getDir(exchange, params);
+            }
+        });
+        this.server.createContext("/putFile", new Handler() {
+            @Override
+            protected void handle(HttpExchange exchange, Map<String, String> params) throws IOException {
+                putFile(exchange);
+            }
+        });
+    }
+
+    public final File getRoot() {
+        return this.root;
+    }
+
+    public final int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    public final String getURL() {
+        return "http://127.0.0.1:" + this.getPort();
+    }
+
+    public final void start() {
+        this.server.start();
+    }
+
+    public final void stop() {
+        this.server.stop(0);
+        this.executor.shutdown();
+    }
+
+    private abstract class Handler implements HttpHandler {
+        @Override
+        public final void handle(HttpExchange exchange) throws IOException {
+            try {
+                final Map<String, String> params;
+                // putFile isn't form encoded
+                if (exchange.getHttpContext().getPath().equals("/putFile"))
+                    params = null;
+                else
+                    params = parseForm(exchange.getRequestBody());
+                this.handle(exchange, params);
+            } catch (IllegalArgumentException e) {
+                exchange.sendResponseHeaders(400, -1);
+            } catch (Exception e) {
+                e.printStackTrace();
+                exchange.sendResponseHeaders(500, -1);
+            } finally {
+                exchange.close();
+            }
+        }
+
+        protected abstract void handle(HttpExchange exchange, Map<String, String> params) throws IOException;
+    }
+
+    static private Map<String, String> parseForm(final InputStream in) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        StreamUtils.copy(in, bytes, 4096);
+        final Map<String, String> res = new HashMap<String, String>();
+        for (final String pair : bytes.toString("UTF-8").split("&")) {
+            final int i = pair.indexOf('=');
+            if (i > 0)
+                res.put(URLDecoder.decode(pair.substring(0, i), "UTF-8"), URLDecoder.decode(pair.substring(i + 1), "UTF-8"));
+        }
+        return res;
+    }
+
+    private File resolve(final String remotePath, final String remoteName) {
+        if (remotePath == null || remotePath.contains("..") || (remoteName != null && (remoteName.contains("..") || remoteName.contains("/") || remoteName.contains("\\"))))
+            throw new IllegalArgumentException("Invalid path " + remotePath + " " + remoteName);
+        final File dir = new File(this.root, remotePath);
+        return remoteName == null ? dir : new File(dir, remoteName);
+    }
+
+    private void getHash(HttpExchange exchange, Map<String, String> params) throws IOException {
+        final File f = resolve(params.get("rp"), params.get("rn"));
+        if (!f.isFile()) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(200, 0);
+        final OutputStream out = new BufferedOutputStream(exchange.getResponseBody());
+        if (Boolean.parseBoolean(params.get("shaOnly"))) {
+            final DataOutputStream dOut = new DataOutputStream(out);
+            HashWriter.writeHeader(dOut, f.length(), this.blockSize);
+            dOut.write(HashWriter.getHash(f));
+        } else {
+            new HashWriter(f, this.blockSize).writeHash(out);
+        }
+        out.close();
+    }
+
+    private void getFile(HttpExchange exchange, Map<String, String> params) throws IOException {
+        final File f = resolve(params.get("rp"), params.get("rn"));
+        if (!f.isFile()) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        final List<Range> ranges = RangeList.readRanges(new DataInputStream(new ByteArrayInputStream(Base64.decode(params.get("ra")))));
+        exchange.sendResponseHeaders(200, 0);
+        final OutputStream out = new GZIPOutputStream(new BufferedOutputStream(exchange.getResponseBody()));
+        final RandomAccessFile in = new RandomAccessFile(f, "r");
+        try {
+            final byte[] buffer = new byte[64 * 1024];
+            for (final Range r : ranges) {
+                in.seek(r.getStart());
+                long remaining = r.size();
+                while (remaining > 0) {
+                    final int l = (int) Math.min(buffer.length, remaining);
+                    in.readFully(buffer, 0, l);
+                    out.write(buffer, 0, l);
+                    remaining -= l;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        out.close();
+    }
+
+    private void getDir(HttpExchange exchange, Map<String, String> params) throws IOException {
+        final File dir = resolve(params.get("rp"), null);
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        Arrays.sort(files);
+        exchange.sendResponseHeaders(200, 0);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(exchange.getResponseBody()));
+        out.writeInt(files.length);
+        for (final File f : files) {
+            out.writeUTF(f.getName());
+            // the listing only supports int sizes, larger files must use getHash
+            out.writeInt(f.isDirectory() ? -1 : (int) Math.min(Integer.MAX_VALUE, f.length()));
+            out.writeLong(f.lastModified());
+            if (!f.isDirectory())
+                out.write(HashWriter.getHash(f));
+        }
+        out.close();
+    }
+
+    private void putFile(HttpExchange exchange) throws IOException {
+        final DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(exchange.getRequestBody())));
+        final File f = resolve(in.readUTF(), in.readUTF());
+        // token
+        in.readUTF();
+        final byte[] hash = new byte[32];
+        in.readFully(hash);
+        final HashWriter.Header header = HashWriter.readHeader(in);
+        final boolean large = header.isLarge();
+        final MoveOperationList moves = MoveOperationList.read(in, large);
+
+        f.getParentFile().mkdirs();
+        final File tmp = new File(f.getParentFile(), f.getName() + ".put");
+        final RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            out.setLength(header.getSize());
+            final byte[] buffer = new byte[64 * 1024];
+            // blocks already on the server
+            if (!moves.getOperations().isEmpty()) {
+                final RandomAccessFile old = new RandomAccessFile(f, "r");
+                try {
+                    for (final MoveOperation m : moves.getOperations()) {
+                        long remaining = m.getLength();
+                        long from = m.getFrom();
+                        long to = m.getTo();
+                        while (remaining > 0) {
+                            final int l = (int) Math.min(buffer.length, remaining);
+                            old.seek(from);
+                            old.readFully(buffer, 0, l);
+                            out.seek(to);
+                            out.write(buffer, 0, l);
+                            remaining -= l;
+                            from += l;
+                            to += l;
+                        }
+                    }
+                } finally {
+                    old.close();
+                }
+            }
+            // sent data
+            final int rangeCount = in.readInt();
+            for (int i = 0; i < rangeCount; i++) {
+                final long start = large ? in.readLong() : in.readInt();
+                final long stop = large ? in.readLong() : in.readInt();
+                out.seek(start);
+                long remaining = stop - start;
+                while (remaining > 0) {
+                    final int l = (int) Math.min(buffer.length, remaining);
+                    in.readFully(buffer, 0, l);
+                    out.write(buffer, 0, l);
+                    remaining -= l;
+                }
+            }
+        } finally {
+            out.close();
+        }
+        final byte[] newHash = HashWriter.getHash(tmp);
+        if (HashWriter.compareHash(hash, newHash)) {
+            if (f.exists())
+                FileUtils.rm(f);
+            if (!tmp.renameTo(f))
+                throw new IOException("Couldn't rename " + tmp + " to " + f);
+        } else {
+            FileUtils.rm(tmp);
+        }
+        exchange.sendResponseHeaders(200, 0);
+        final OutputStream res = exchange.getResponseBody();
+        res.write(newHash);
+        res.close();
+    }
+}
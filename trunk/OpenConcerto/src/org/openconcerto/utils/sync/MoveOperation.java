@@ -18,39 +18,63 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 
 public class MoveOperation {
-    private int from;
-    private int to;
-    private int length;
+    private long from;
+    private long to;
+    private long length;
 
-    public MoveOperation(int from, int to, int length) {
+    public MoveOperation(long from, long to, long length) {
         this.from = from;
         this.to = to;
         this.length = length;
     }
 
     public void write(DataOutputStream out) throws IOException {
-        out.writeInt(from);
-        out.writeInt(to);
-        out.writeInt(length);
+        this.write(out, false);
+    }
+
+    /**
+     * Write this operation.
+     * 
+     * @param out where to write.
+     * @param large <code>true</code> if offsets don't fit in an int.
+     * @throws IOException if an error occurs while writing.
+     */
+    public void write(DataOutputStream out, final boolean large) throws IOException {
+        if (large) {
+            out.writeLong(from);
+            out.writeLong(to);
+            out.writeLong(length);
+        } else {
+            out.writeInt((int) from);
+            out.writeInt((int) to);
+            out.writeInt((int) length);
+        }
+    }
+
+    public static MoveOperation read(DataInputStream in, final boolean large) throws IOException {
+        if (large)
+            return new MoveOperation(in.readLong(), in.readLong(), in.readLong());
+        else
+            return new MoveOperation(in.readInt(), in.readInt(), in.readInt());
     }
 
     public MoveOperation read(DataInputStream in) throws IOException {
-        return new MoveOperation(in.readInt(), in.readInt(), in.readInt());
+        return read(in, false);
     }
 
-    public int getFrom() {
+    public long getFrom() {
         return from;
     }
 
-    public int getTo() {
+    public long getTo() {
         return to;
     }
 
-    public int getLength() {
+    public long getLength() {
         return length;
     }
 
-    public void setLength(int newLength) {
+    public void setLength(long newLength) {
         this.length = newLength;
     }
 
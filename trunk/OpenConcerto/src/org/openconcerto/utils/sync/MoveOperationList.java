@@ -13,6 +13,7 @@
  
  package org.openconcerto.utils.sync;
 
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -39,9 +40,26 @@ public class MoveOperationList {
     }
 
     public void write(DataOutputStream wr) throws IOException {
+        this.write(wr, false);
+    }
+
+    public void write(DataOutputStream wr, final boolean large) throws IOException {
         wr.writeInt(list.size());
         for (MoveOperation op : list) {
-            op.write(wr);
+            op.write(wr, large);
+        }
+    }
+
+    public List<MoveOperation> getOperations() {
+        return this.list;
+    }
+
+    public static MoveOperationList read(DataInputStream in, final boolean large) throws IOException {
+        final MoveOperationList res = new MoveOperationList();
+        final int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            res.list.add(MoveOperation.read(in, large));
         }
+        return res;
     }
 }
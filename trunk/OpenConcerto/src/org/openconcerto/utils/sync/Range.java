@@ -14,29 +14,29 @@
  package org.openconcerto.utils.sync;
 
 public class Range {
-    private int start, stop;
+    private long start, stop;
 
-    public Range(int start, int stop) {
+    public Range(long start, long stop) {
         this.start = start;
         this.stop = stop;
     }
 
-    public int getStart() {
+    public long getStart() {
         return start;
     }
 
-    public int getStop() {
+    public long getStop() {
         return stop;
     }
 
-    public void setStop(int stop) {
+    public void setStop(long stop) {
         this.stop = stop;
         if (stop <= start) {
             throw new IllegalArgumentException("Invalid range " + start + " - " + stop);
         }
     }
 
-    public void setStart(int start) {
+    public void setStart(long start) {
         this.start = start;
         if (stop <= start) {
             throw new IllegalArgumentException("Invalid range " + start + " - " + stop);
@@ -52,7 +52,7 @@ public class Range {
         return start >= stop;
     }
 
-    public int size() {
+    public long size() {
         return stop - start;
     }
 
@@ -13,20 +13,75 @@
  
  package org.openconcerto.utils.sync;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 public class RangeList {
+    // count of ranges marking offsets written as long
+    static final int LARGE_FORMAT = -1;
+
+    /**
+     * Write ranges, as int if possible to stay compatible with older servers.
+     * 
+     * @param out where to write.
+     * @param ranges the ranges to write.
+     * @throws IOException if an error occurs while writing.
+     * @see #readRanges(DataInput)
+     */
+    static void writeRanges(final DataOutput out, final List<Range> ranges) throws IOException {
+        boolean large = false;
+        for (final Range r : ranges) {
+            if (r.getStop() > Integer.MAX_VALUE) {
+                large = true;
+                break;
+            }
+        }
+        if (large)
+            out.writeInt(LARGE_FORMAT);
+        out.writeInt(ranges.size());
+        for (final Range r : ranges) {
+            if (large) {
+                out.writeLong(r.getStart());
+                out.writeLong(r.getStop());
+            } else {
+                out.writeInt((int) r.getStart());
+                out.writeInt((int) r.getStop());
+            }
+        }
+    }
+
+    static List<Range> readRanges(final DataInput in) throws IOException {
+        int count = in.readInt();
+        final boolean large = count == LARGE_FORMAT;
+        if (large)
+            count = in.readInt();
+        final List<Range> res = new ArrayList<Range>(count);
+        for (int i = 0; i < count; i++) {
+            if (large)
+                res.add(new Range(in.readLong(), in.readLong()));
+            else
+                res.add(new Range(in.readInt(), in.readInt()));
+        }
+        return res;
+    }
+
     private final List<Range> list = new ArrayList<Range>();
-    private final int limit;
+    private final long limit;
 
-    public RangeList(int limit) {
+    public RangeList(long limit) {
         this.limit = limit;
     }
 
-    // Add a Range at the end of the list
-    // The range MUST start after the last added range
-    // to preserve the global order
+    public final long getLimit() {
+        return this.limit;
+    }
+
+    // Add a Range, merging it with the ranges it overlaps or touches. Adding after the last added
+    // range is the fastest, but any order is allowed (e.g. when blocks are found out of order or
+    // parts are downloaded concurrently)
     public void add(Range range) {
         if (range.getStart() < 0 || range.getStart() >= limit) {
             throw new IllegalArgumentException(range + " start out of limit");
@@ -34,18 +89,56 @@ public class RangeList {
         if (range.getStop() < 0 || range.getStop() > limit) {
             throw new IllegalArgumentException(range + " stop out of limit");
         }
-        if (list.size() > 0) {
-            Range last = list.get(list.size() - 1);
-            if (last.getStart() > range.getStop() || last.getStop() < range.getStart()) {
-                list.add(range);
-            } else if (range.getStart() >= last.getStart()) {
-                last.setStop(Math.max(last.getStop(), range.getStop()));
-            } else {
-                throw new IllegalArgumentException(range + " before " + last);
-            }
+        // index of the first range that ends at or after the start of the new one
+        int low = 0;
+        int high = list.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (list.get(mid).getStop() < range.getStart())
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        if (low == list.size() || list.get(low).getStart() > range.getStop()) {
+            list.add(low, new Range(range.getStart(), range.getStop()));
         } else {
-            list.add(range);
+            final Range merged = list.get(low);
+            merged.setStart(Math.min(merged.getStart(), range.getStart()));
+            merged.setStop(Math.max(merged.getStop(), range.getStop()));
+            // absorb the following ranges now overlapped
+            while (low + 1 < list.size() && list.get(low + 1).getStart() <= merged.getStop()) {
+                merged.setStop(Math.max(merged.getStop(), list.remove(low + 1).getStop()));
+            }
+        }
+    }
+
+    public final boolean isComplete() {
+        return this.limit == 0 || (this.list.size() == 1 && this.list.get(0).getStart() == 0 && this.list.get(0).getStop() == this.limit);
+    }
+
+    /**
+     * Write this list, so that an interrupted transfer can be resumed.
+     * 
+     * @param out where to write.
+     * @throws IOException if an error occurs while writing.
+     * @see #read(DataInput)
+     */
+    public void write(final DataOutput out) throws IOException {
+        out.writeLong(this.limit);
+        out.writeInt(this.list.size());
+        for (final Range r : this.list) {
+            out.writeLong(r.getStart());
+            out.writeLong(r.getStop());
+        }
+    }
+
+    public static RangeList read(final DataInput in) throws IOException {
+        final RangeList res = new RangeList(in.readLong());
+        final int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            res.add(new Range(in.readLong(), in.readLong()));
         }
+        return res;
     }
 
     public List<Range> getUsedRanges() {
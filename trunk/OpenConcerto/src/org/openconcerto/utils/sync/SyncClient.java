@@ -15,6 +15,7 @@
 
 import org.openconcerto.utils.Base64;
 import org.openconcerto.utils.FileUtils;
+import org.openconcerto.utils.ThreadFactory;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -34,14 +35,22 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLEncoder;
-import java.security.MessageDigest;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Random;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -49,15 +58,29 @@ import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSession;
 
+/**
+ * Synchronize files with a server, only transferring the blocks that differ. Several files (and
+ * parts of a downloaded file) can be transferred at the same time, see
+ * {@link #setMaxConcurrentTransfers(int)}. Interrupted downloads are resumed : completed parts are
+ * saved next to the file.
+ */
 public class SyncClient {
-    private long byteSent;
-    private long byteReceived;
-    private long byteSyncDownload;
-    private long byteSyncUpload;
-    private long filesSyncDownload;
-    private long filesSyncUpload;
+    static private final String PART_SUFFIX = ".sync-part";
+    static private final String STATE_SUFFIX = ".sync-state";
+
+    private final AtomicLong byteSent = new AtomicLong();
+    private final AtomicLong byteReceived = new AtomicLong();
+    private final AtomicLong byteSyncDownload = new AtomicLong();
+    private final AtomicLong byteSyncUpload = new AtomicLong();
+    private final AtomicLong filesSyncDownload = new AtomicLong();
+    private final AtomicLong filesSyncUpload = new AtomicLong();
+    private volatile long startTime = System.nanoTime();
     private String baseUrl = "http://127.0.0.1:80";
     private boolean verifyHost = true;
+    // null to transfer sequentially
+    private ExecutorService executor = null;
+    private int maxConcurrentTransfers = 1;
+    private long partSize = 4 * 1024 * 1024;
 
     /**
      * @param args
@@ -157,19 +180,31 @@ public class SyncClient {
     }
 
     private void sendDirectory(File localDir, String remotePath) throws Exception {
+        final List<Callable<?>> tasks = new ArrayList<Callable<?>>();
+        addSendTasks(localDir, remotePath, tasks);
+        runAll(tasks);
+    }
+
+    private void addSendTasks(File localDir, String remotePath, final List<Callable<?>> tasks) {
         if (!remotePath.endsWith("/")) {
             remotePath += "/";
         }
         File[] fl = localDir.listFiles();
         for (int i = 0; i < fl.length; i++) {
-            File file = fl[i];
+            final File file = fl[i];
             if (file.isDirectory()) {
-                sendDirectory(file, remotePath + file.getName());
+                addSendTasks(file, remotePath + file.getName(), tasks);
             } else {
-                sendFile(file, remotePath, file.getName());
+                final String path = remotePath;
+                tasks.add(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        sendFile(file, path, file.getName());
+                        return null;
+                    }
+                });
             }
         }
-
     }
 
     public SyncClient() {
@@ -179,6 +214,133 @@ public class SyncClient {
         this.baseUrl = baseUrl;
     }
 
+    /**
+     * Set the number of files or parts of a file that can be transferred at the same time.
+     * 
+     * @param max the maximum number of simultaneous connections, 1 to transfer sequentially.
+     */
+    public synchronized void setMaxConcurrentTransfers(int max) {
+        if (max < 1)
+            throw new IllegalArgumentException("Invalid count : " + max);
+        if (this.executor != null)
+            this.executor.shutdown();
+        this.maxConcurrentTransfers = max;
+        if (max == 1) {
+            this.executor = null;
+        } else {
+            final ThreadPoolExecutor exec = new ThreadPoolExecutor(max - 1, max - 1, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory(
+                    SyncClient.class.getSimpleName() + " transfer ", true));
+            exec.allowCoreThreadTimeOut(true);
+            this.executor = exec;
+        }
+    }
+
+    public synchronized int getMaxConcurrentTransfers() {
+        return this.maxConcurrentTransfers;
+    }
+
+    /**
+     * Set the size of the parts of a download. Parts can be downloaded concurrently and an
+     * interrupted download restarts at the first missing part.
+     * 
+     * @param size the maximum number of bytes requested at once.
+     */
+    public synchronized void setPartSize(long size) {
+        if (size <= 0)
+            throw new IllegalArgumentException("Invalid size : " + size);
+        this.partSize = size;
+    }
+
+    public synchronized long getPartSize() {
+        return this.partSize;
+    }
+
+    /**
+     * Execute the passed tasks, concurrently if {@link #setMaxConcurrentTransfers(int) allowed}.
+     * The current thread also executes tasks, so this can be called from a task.
+     * 
+     * @param tasks the tasks to execute.
+     * @throws Exception the first exception thrown by a task, the remaining tasks are then not
+     *         executed.
+     */
+    private void runAll(final List<? extends Callable<?>> tasks) throws Exception {
+        final ExecutorService exec;
+        final int max;
+        synchronized (this) {
+            exec = this.executor;
+            max = this.maxConcurrentTransfers;
+        }
+        if (exec == null || tasks.size() < 2) {
+            for (final Callable<?> c : tasks) {
+                c.call();
+            }
+            return;
+        }
+        final TaskBatch batch = new TaskBatch(tasks);
+        for (int i = Math.min(max, tasks.size()) - 1; i > 0; i--) {
+            exec.execute(batch);
+        }
+        batch.runAndWait();
+    }
+
+    // tasks are pulled by the threads of the pool and by the caller, so a task can itself run a
+    // batch (e.g. a directory of a directory) without exhausting the pool
+    static private final class TaskBatch implements Runnable {
+        private final Queue<Callable<?>> queue;
+        private final AtomicReference<Exception> error;
+        // number of pool threads executing tasks, guarded by this
+        private int active;
+        private boolean closed;
+
+        TaskBatch(final List<? extends Callable<?>> tasks) {
+            this.queue = new ConcurrentLinkedQueue<Callable<?>>(tasks);
+            this.error = new AtomicReference<Exception>();
+            this.active = 0;
+            this.closed = false;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                // the caller has already done all the work
+                if (this.closed)
+                    return;
+                this.active++;
+            }
+            try {
+                this.drain();
+            } finally {
+                synchronized (this) {
+                    this.active--;
+                    this.notifyAll();
+                }
+            }
+        }
+
+        private void drain() {
+            Callable<?> c;
+            while (this.error.get() == null && (c = this.queue.poll()) != null) {
+                try {
+                    c.call();
+                } catch (Exception e) {
+                    this.error.compareAndSet(null, e);
+                }
+            }
+        }
+
+        void runAndWait() throws Exception {
+            this.drain();
+            synchronized (this) {
+                // don't wait for pool threads that haven't started, the queue is empty
+                this.closed = true;
+                while (this.active > 0)
+                    this.wait();
+            }
+            if (this.error.get() != null)
+                throw this.error.get();
+        }
+    }
+
     private String setServerUrlFrom(String url) {
         if (!url.startsWith("http://") || !url.startsWith("https://")) {
             System.out.println(url + " is not an http url, exiting.");
@@ -209,24 +371,46 @@ public class SyncClient {
     public void dumpStat() {
         System.out.println("SyncClient statistics");
         System.out.println("Download:");
-        System.out.println("- files received: " + this.filesSyncDownload);
-        System.out.println("- bytes sync'ed :" + this.byteSyncDownload);
-        System.out.print("- bytes received: " + this.byteReceived);
-        if (this.byteSyncDownload > 0) {
-            System.out.println(" (" + ((100f * this.byteReceived) / this.byteSyncDownload) + "%)");
+        System.out.println("- files received: " + this.filesSyncDownload.get());
+        System.out.println("- bytes sync'ed :" + this.byteSyncDownload.get());
+        System.out.print("- bytes received: " + this.byteReceived.get());
+        if (this.byteSyncDownload.get() > 0) {
+            System.out.println(" (" + ((100f * this.byteReceived.get()) / this.byteSyncDownload.get()) + "%)");
         } else {
             System.out.println();
         }
 
         System.out.println("Upload:");
-        System.out.println("- files sent: " + this.filesSyncUpload);
-        System.out.println("- bytes sync'ed :" + this.byteSyncUpload);
-        System.out.print("- bytes sent: " + this.byteSent);
-        if (this.byteSyncUpload > 0) {
-            System.out.println(" (" + ((100f * this.byteSent) / this.byteSyncUpload) + "%)");
+        System.out.println("- files sent: " + this.filesSyncUpload.get());
+        System.out.println("- bytes sync'ed :" + this.byteSyncUpload.get());
+        System.out.print("- bytes sent: " + this.byteSent.get());
+        if (this.byteSyncUpload.get() > 0) {
+            System.out.println(" (" + ((100f * this.byteSent.get()) / this.byteSyncUpload.get()) + "%)");
         } else {
             System.out.println();
         }
+        System.out.println("Throughput: " + (this.getThroughput() / 1024) + " KB/s");
+    }
+
+    /**
+     * The number of bytes sent and received per second since the creation of this instance or
+     * the last {@link #clearStat()}.
+     * 
+     * @return the number of bytes per second.
+     */
+    public long getThroughput() {
+        final long elapsed = System.nanoTime() - this.startTime;
+        if (elapsed <= 0)
+            return 0;
+        return (long) ((this.byteSent.get() + this.byteReceived.get()) * 1e9 / elapsed);
+    }
+
+    public final long getByteSent() {
+        return this.byteSent.get();
+    }
+
+    public final long getByteReceived() {
+        return this.byteReceived.get();
     }
 
     private File localHashDirectory;
@@ -246,7 +430,7 @@ public class SyncClient {
         if (!localFile.exists()) {
             throw new IllegalArgumentException(localFile.getAbsolutePath() + " does not exist");
         }
-        this.filesSyncUpload++;
+        this.filesSyncUpload.incrementAndGet();
 
         // Construct data
         String data = URLEncoder.encode("rp", "UTF-8") + "=" + URLEncoder.encode(remotePath, "UTF-8");
@@ -254,110 +438,46 @@ public class SyncClient {
         if (token != null) {
             data += "&" + URLEncoder.encode("tk", "UTF-8") + "=" + URLEncoder.encode(token, "UTF-8");
         }
-        this.byteSent += data.getBytes().length;
         // Send the path, file name and token
-        URLConnection conn = getConnection(this.baseUrl + "/getHash");
-        conn.setDoOutput(true);
-        OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
-        wr.write(data);
-        wr.flush();
-        wr.close();
+        URLConnection conn = post(this.baseUrl + "/getHash", data);
         // Get the info about the remote file
         byte[] localFileHash = null;
-        int localFileSize = (int) localFile.length();
-        RangeList rangesOk = new RangeList(localFileSize);
-        MoveOperationList moves = new MoveOperationList();
-        this.byteSyncUpload = localFileSize;
+        final long localFileSize = localFile.length();
+        final RangeList rangesOk = new RangeList(localFileSize);
+        final MoveOperationList moves = new MoveOperationList();
+        this.byteSyncUpload.addAndGet(localFileSize);
+        int blockSize = HashWriter.DEFAULT_BLOCK_SIZE;
         try {
             // Process the response
             DataInputStream in = new DataInputStream(new BufferedInputStream(conn.getInputStream()));
-
-            // Remote file size
-            int remoteFileSize = in.readInt();
-            this.byteReceived += 4;
-
-            final float a = (float) remoteFileSize / HashWriter.blockSize;
-
-            int nb = (int) Math.ceil(a);
-
-            HashMap<Integer, byte[]> map = new HashMap<Integer, byte[]>(nb * 2 + 1);
-            HashMap<Integer, Integer> mapBlock = new HashMap<Integer, Integer>(nb * 2 + 1);
-            for (int i = 0; i < nb; i++) {
-                byte[] b = new byte[16];
-                final int r32 = in.readInt();
-                // System.out.print("Known hash " + r32 + " : ");
-                in.read(b);
-                this.byteReceived += 4 + 16;
-                // MD5 hash
-                map.put(r32, b);
-                //
-                mapBlock.put(r32, i);
+            final BlockHashes remote;
+            try {
+                remote = BlockHashes.read(in);
+            } finally {
+                in.close();
             }
-            // The hash (SHA256) of the remote file
-            byte[] remoteFileHash = new byte[32];
-            in.read(remoteFileHash);
-            this.byteReceived += 32;
-            in.close();
+            this.byteReceived.addAndGet(remote.getByteCount());
+            blockSize = remote.getBlockSize();
 
-            if (localFileSize == remoteFileSize) {
+            if (localFileSize == remote.getSize()) {
                 localFileHash = HashWriter.getHash(localFile);
-                if (HashWriter.compareHash(localFileHash, remoteFileHash)) {
+                if (HashWriter.compareHash(localFileHash, remote.getFileHash())) {
                     // Already in sync
                     return;
                 }
             }
 
             if (localFileSize > 0) {
-
                 // compare delta
-                RollingChecksum32 checksum = new RollingChecksum32();
-                byte[] buffer = new byte[HashWriter.blockSize];
-
-                BufferedInputStream fb = new BufferedInputStream(new FileInputStream(localFile));
-                final int read = fb.read(buffer);
-                this.byteReceived += read;
-                checksum.check(buffer, 0, read);
-                int v = 0;
-                int start = 0;
-
-                MessageDigest md5Digest = MessageDigest.getInstance("MD5");
-
-                do {
-
-                    int r32 = checksum.getValue();
-
-                    byte[] md5 = map.get(r32);
-                    if (md5 != null) {
-                        // local block maybe exists in the remote file
-                        // let's check if true with md5
-                        md5Digest.reset();
-                        md5Digest.update(buffer);
-                        byte[] localMd5 = md5Digest.digest();
-                        if (HashWriter.compareHash(md5, localMd5)) {
-
-                            // Block found!!!
-                            // Copy block to: mapBlock.get(r32)*blockSize;
-                            int offset = mapBlock.get(r32) * HashWriter.blockSize;
-                            //
-                            MoveOperation m = new MoveOperation(offset, start, HashWriter.blockSize);
-                            moves.add(m);
-                            //
-                            rangesOk.add(new Range(start, start + HashWriter.blockSize));
-                        }
-
+                final int remoteBlockSize = blockSize;
+                remote.findBlocks(localFile, new BlockHashes.BlockListener() {
+                    @Override
+                    public void blockFound(long localOffset, long remoteOffset, byte[] block) {
+                        // Copy block to: remoteOffset
+                        moves.add(new MoveOperation(remoteOffset, localOffset, remoteBlockSize));
+                        rangesOk.add(new Range(localOffset, localOffset + remoteBlockSize));
                     }
-
-                    // read
-                    v = fb.read();
-
-                    start++;
-                    // Update
-                    System.arraycopy(buffer, 1, buffer, 0, buffer.length - 1);
-                    buffer[buffer.length - 1] = (byte) v;
-                    checksum.roll((byte) v);
-
-                } while (v >= 0);
-                fb.close();
+                });
             }
         } catch (FileNotFoundException e) {
             // System.out.println("Sending the complete file");
@@ -366,7 +486,7 @@ public class SyncClient {
             localFileHash = HashWriter.getHash(localFile);
         }
         try {
-            sendDelta(localFile, remotePath, remoteName, moves, rangesOk.getUnusedRanges(), localFileHash, token);
+            sendDelta(localFile, remotePath, remoteName, moves, rangesOk.getUnusedRanges(), localFileHash, blockSize, token);
         } catch (Exception e) {
             System.err.println("Unable to send delta: " + localFile.getAbsolutePath() + " to " + remoteName + " " + moves);
             rangesOk.dump();
@@ -374,7 +494,9 @@ public class SyncClient {
         }
     }
 
-    private void sendDelta(File localFile, String remotePath, String remoteName, MoveOperationList moves, List<Range> rangesToSend, byte[] localFileHash, String token) throws IOException {
+    // the server applies all the changes at once, so ranges cannot be sent concurrently
+    private void sendDelta(File localFile, String remotePath, String remoteName, MoveOperationList moves, List<Range> rangesToSend, byte[] localFileHash, int blockSize, String token)
+            throws IOException {
         if (token == null) {
             token = "";
         }
@@ -385,50 +507,61 @@ public class SyncClient {
         final DataOutputStream wr = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(conn.getOutputStream())) {
             @Override
             public synchronized void write(byte[] b, int off, int len) throws IOException {
-                SyncClient.this.byteSent += len;
+                SyncClient.this.byteSent.addAndGet(len);
                 super.write(b, off, len);
             }
 
             @Override
             public synchronized void write(int b) throws IOException {
-                SyncClient.this.byteSent++;
+                SyncClient.this.byteSent.incrementAndGet();
                 super.write(b);
             }
         });
 
+        final long size = localFile.length();
         wr.writeUTF(remotePath);
         wr.writeUTF(remoteName);
         wr.writeUTF(token);
         wr.write(localFileHash);
-        wr.writeInt((int) localFile.length());
+        // older servers only support int sizes, so only use longs for large files
+        HashWriter.writeHeader(wr, size, blockSize);
+        final boolean large = HashWriter.isLarge(size, blockSize);
         // Moves
-        moves.write(wr);
+        moves.write(wr, large);
 
         // Delta
         wr.writeInt(rangesToSend.size());
-        RandomAccessFile rIn = new RandomAccessFile(localFile, "r");
-
-        for (Range r : rangesToSend) {
-            rIn.seek(r.getStart());
-            byte[] buffer = new byte[r.getStop() - r.getStart()];
-            rIn.readFully(buffer);
-
-            wr.writeInt(r.getStart());
-            wr.writeInt(r.getStop());
-            wr.write(buffer);
-            // System.out.println("SyncClient.sendDelta() : " + r.getStart() + "-" + r.getStop() +
-            // " " + buffer.length);
-
+        final RandomAccessFile rIn = new RandomAccessFile(localFile, "r");
+        try {
+            final byte[] buffer = new byte[64 * 1024];
+            for (Range r : rangesToSend) {
+                if (large) {
+                    wr.writeLong(r.getStart());
+                    wr.writeLong(r.getStop());
+                } else {
+                    wr.writeInt((int) r.getStart());
+                    wr.writeInt((int) r.getStop());
+                }
+                rIn.seek(r.getStart());
+                long remaining = r.size();
+                while (remaining > 0) {
+                    final int l = (int) Math.min(buffer.length, remaining);
+                    rIn.readFully(buffer, 0, l);
+                    wr.write(buffer, 0, l);
+                    remaining -= l;
+                }
+            }
+        } finally {
+            rIn.close();
         }
-        rIn.close();
         wr.flush();
         wr.close();
 
         // Reading data is mandatory
         DataInputStream in = new DataInputStream(new BufferedInputStream(conn.getInputStream()));
-        this.byteReceived += 32;
+        this.byteReceived.addAndGet(32);
         byte[] rHash = new byte[32];
-        in.read(rHash);
+        in.readFully(rHash);
         in.close();
         if (!HashWriter.compareHash(localFileHash, rHash)) {
             throw new IllegalStateException("Hash error");
@@ -436,7 +569,7 @@ public class SyncClient {
 
     }
 
-    public void retrieveDirectory(File dir, String remotePath, String token) throws Exception {
+    public void retrieveDirectory(final File dir, final String remotePath, final String token) throws Exception {
 
         ArrayList<FileProperty> list = null;
         try {
@@ -445,16 +578,24 @@ public class SyncClient {
             throw new IllegalStateException("Unable to retrieve the file list of " + remotePath, e);
         }
         // Check locally
+        final List<Callable<?>> tasks = new ArrayList<Callable<?>>(list.size());
         for (int i = 0; i < list.size(); i++) {
             final FileProperty fp = list.get(i);
-            if (!fp.isDirectory()) {
-                retrieveFile(dir, remotePath, fp.getName(), fp.getSize(), fp.getSha256(), token);
-            } else {
-                final File dir2 = new File(dir, fp.getName());
-                dir2.mkdirs();
-                retrieveDirectory(dir2, remotePath + "/" + fp.getName(), token);
-            }
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    if (!fp.isDirectory()) {
+                        retrieveFile(dir, remotePath, fp.getName(), fp.getSize(), fp.getSha256(), token);
+                    } else {
+                        final File dir2 = new File(dir, fp.getName());
+                        dir2.mkdirs();
+                        retrieveDirectory(dir2, remotePath + "/" + fp.getName(), token);
+                    }
+                    return null;
+                }
+            });
         }
+        runAll(tasks);
 
     }
 
@@ -508,31 +649,25 @@ public class SyncClient {
         if (token != null) {
             data += "&tk=" + URLEncoder.encode(token, "UTF-8");
         }
-        this.byteSent += data.getBytes().length;
         // Send data
-        URLConnection conn = getConnection(baseUrl + "/getDir");
-        conn.setDoOutput(true);
-        OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
-        wr.write(data);
-        wr.flush();
-        wr.close();
+        URLConnection conn = post(baseUrl + "/getDir", data);
 
         // Get the response ASAP in order to not block the server while computing locally hash256
         DataInputStream in = new DataInputStream(new BufferedInputStream(conn.getInputStream()));
         int fileCount = in.readInt();
-        this.byteReceived += 4;
+        this.byteReceived.addAndGet(4);
         ArrayList<FileProperty> list = new ArrayList<FileProperty>();
         for (int i = 0; i < fileCount; i++) {
             final String fileName = in.readUTF();
-            this.byteReceived += fileName.getBytes().length;
+            this.byteReceived.addAndGet(fileName.getBytes().length);
             final int fileSize = in.readInt();
-            this.byteReceived += 4;
+            this.byteReceived.addAndGet(4);
             final long fileDate = in.readLong();
-            this.byteReceived += 8;
+            this.byteReceived.addAndGet(8);
             final byte[] sha256 = new byte[32];
             if (fileSize >= 0) {
-                in.read(sha256);
-                this.byteReceived += 32;
+                in.readFully(sha256);
+                this.byteReceived.addAndGet(32);
             }
             FileProperty fp = new FileProperty(fileName, fileSize, fileDate, sha256);
             list.add(fp);
@@ -555,40 +690,30 @@ public class SyncClient {
         if (token != null) {
             data += "&tk=" + URLEncoder.encode(token, "UTF-8");
         }
-        this.byteSent += data.getBytes().length;
         // Send data
-        URLConnection conn = getConnection(this.baseUrl + "/getHash");
-        conn.setDoOutput(true);
-        OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
-        wr.write(data);
-        wr.flush();
-        wr.close();
+        URLConnection conn = post(this.baseUrl + "/getHash", data);
 
         // Get the response
 
         DataInputStream in = new DataInputStream(new BufferedInputStream(conn.getInputStream()));
-        int fileSize = in.readInt();
-        this.byteReceived += 4;
+        final HashWriter.Header header = HashWriter.readHeader(in);
+        this.byteReceived.addAndGet(header.getByteCount());
 
         byte[] fileHash = new byte[32];
-        in.read(fileHash);
-        this.byteReceived += 32;
+        in.readFully(fileHash);
+        this.byteReceived.addAndGet(32);
         in.close();
 
-        retrieveFile(dir, remotePath, remoteName, fileSize, fileHash, token);
+        retrieveFile(dir, remotePath, remoteName, header.getSize(), fileHash, token);
 
     }
 
-    private void retrieveFile(File dir, String remotePath, String remoteName, int fileSize, byte[] fileHash, String token) throws IOException, Exception {
-        this.filesSyncDownload++;
-        this.byteSyncDownload += fileSize;
+    private void retrieveFile(File dir, String remotePath, String remoteName, long fileSize, byte[] fileHash, String token) throws IOException, Exception {
+        this.filesSyncDownload.incrementAndGet();
+        this.byteSyncDownload.addAndGet(fileSize);
         File localFile = resolveFile(dir, remoteName);
         if (!localFile.exists()) {
-            downloadFile(localFile, remotePath, remoteName, fileSize, token);
-            byte[] fileLocalHash = HashWriter.getHash(localFile);
-            if (!HashWriter.compareHash(fileHash, fileLocalHash)) {
-                throw new IllegalStateException("Full download failed. Hash error");
-            }
+            download(localFile, remotePath, remoteName, fileSize, fileHash, null, token);
         } else {
             boolean needToResync = false;
             // File exists
@@ -604,24 +729,17 @@ public class SyncClient {
             }
 
             if (needToResync) {
-                if (localFile.length() > HashWriter.blockSize) {
+                // an interrupted download already knows which blocks to get
+                if (localFile.length() > HashWriter.blockSize && !getStateFile(localFile).exists()) {
                     retrieveFileWithDelta(localFile, remotePath, remoteName, token);
                 } else {
-                    downloadFile(localFile, remotePath, remoteName, fileSize, token);
-                    byte[] fileLocalHash = HashWriter.getHash(localFile);
-                    if (!HashWriter.compareHash(fileHash, fileLocalHash)) {
-                        throw new IllegalStateException("Full download failed. Hash error");
-                    }
+                    download(localFile, remotePath, remoteName, fileSize, fileHash, null, token);
                 }
             }
 
         }
     }
 
-    /**
-     * @param fileHash2
-     * @return true if the file exists and is retrieved :)
-     * */
     private void retrieveFileWithDelta(File localFile, String remotePath, String remoteName, String token) throws Exception {
 
         // Construct data
@@ -630,165 +748,180 @@ public class SyncClient {
         if (token != null) {
             data += "&tk=" + URLEncoder.encode(token, "UTF-8");
         }
-        this.byteSent += data.getBytes().length;
         // Send data
-        URLConnection conn = getConnection(this.baseUrl + "/getHash");
-        conn.setDoOutput(true);
-        OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
-        wr.write(data);
-        wr.flush();
-        wr.close();
+        URLConnection conn = post(this.baseUrl + "/getHash", data);
 
         // Get the response
         DataInputStream in = new DataInputStream(new BufferedInputStream(conn.getInputStream()));
-        int fileSize = in.readInt();
-        this.byteReceived += 4;
-        this.byteSyncDownload = fileSize;
+        final BlockHashes remote;
+        try {
+            remote = BlockHashes.read(in);
+        } finally {
+            in.close();
+        }
+        this.byteReceived.addAndGet(remote.getByteCount());
 
-        final float a = (float) fileSize / HashWriter.blockSize;
+        download(localFile, remotePath, remoteName, remote.getSize(), remote.getFileHash(), remote, token);
+    }
 
-        int nb = (int) Math.ceil(a);
+    static File getPartFile(File localFile) {
+        return new File(localFile.getParentFile(), localFile.getName() + PART_SUFFIX);
+    }
 
-        HashMap<Integer, byte[]> map = new HashMap<Integer, byte[]>(nb * 2 + 1);
-        HashMap<Integer, Integer> mapBlock = new HashMap<Integer, Integer>(nb * 2 + 1);
-        for (int i = 0; i < nb; i++) {
-            byte[] b = new byte[16];
-            final int r32 = in.readInt();
-            // System.out.print("Known hash " + r32 + " : ");
-            in.read(b);
-            this.byteReceived += 4 + 16;
+    static File getStateFile(File localFile) {
+        return new File(localFile.getParentFile(), localFile.getName() + STATE_SUFFIX);
+    }
 
-            map.put(r32, b);
-            mapBlock.put(r32, i);
+    // the parts of the file already downloaded, null if none or if the remote file has changed
+    private RangeList readState(final File stateFile, final File partFile, final long fileSize, final byte[] fileHash) {
+        if (!stateFile.exists() || !partFile.exists() || partFile.length() != fileSize)
+            return null;
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+            try {
+                final byte[] hash = new byte[fileHash.length];
+                in.readFully(hash);
+                final RangeList res = RangeList.read(in);
+                return HashWriter.compareHash(hash, fileHash) && res.getLimit() == fileSize ? res : null;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // corrupted state, just restart the download
+            e.printStackTrace();
+            return null;
         }
-        byte[] fileHash = new byte[32];
-        in.read(fileHash);
-        this.byteReceived += 32;
-        in.close();
+    }
 
-        // create the new file
-        File newFile = createEmptyFile(localFile.getParentFile(), fileSize);
-        RandomAccessFile rNewFile = new RandomAccessFile(newFile, "rw");
-        // compare delta
-        RollingChecksum32 checksum = new RollingChecksum32();
-        byte[] buffer = new byte[HashWriter.blockSize];
-
-        BufferedInputStream fb = new BufferedInputStream(new FileInputStream(localFile));
-        final int read = fb.read(buffer);
-        checksum.check(buffer, 0, read);
-        int v = 0;
-        int start = 0;
-        int end = read;
-        MessageDigest md5Digest = MessageDigest.getInstance("MD5");
-        RangeList rangesOk = new RangeList(fileSize);
-        do {
-
-            int r32 = checksum.getValue();
-
-            byte[] md5 = map.get(r32);
-            if (md5 != null) {
-                // local block maybe exists in the remote file
-                // let's check if true with md5
-                md5Digest.reset();
-                md5Digest.update(buffer);
-                byte[] localMd5 = md5Digest.digest();
-                if (HashWriter.compareHash(md5, localMd5)) {
-
-                    // Block found!!!
-                    // Copy block to: mapBlock.get(r32)*blockSize;
-                    int offset = mapBlock.get(r32) * HashWriter.blockSize;
-                    //
-                    rNewFile.seek(offset);
-                    rNewFile.write(buffer);
-                    //
-                    rangesOk.add(new Range(offset, offset + HashWriter.blockSize));
-                }
+    private void writeState(final File stateFile, final byte[] fileHash, final RangeList rangesOk) throws IOException {
+        // write then rename, so that an interruption doesn't corrupt the state
+        final File tmp = new File(stateFile.getParentFile(), stateFile.getName() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.write(fileHash);
+            rangesOk.write(out);
+        } finally {
+            out.close();
+        }
+        if (stateFile.exists())
+            FileUtils.rm(stateFile);
+        if (!tmp.renameTo(stateFile))
+            throw new IOException("Couldn't rename " + tmp + " to " + stateFile);
+    }
 
+    /**
+     * Download a file in a part file, resuming a previous download if possible. The missing parts
+     * are downloaded concurrently, each completed part is recorded in a state file.
+     * 
+     * @param localFile the file to create or replace.
+     * @param remotePath the remote directory.
+     * @param remoteName the remote file name.
+     * @param fileSize the size of the remote file.
+     * @param fileHash the SHA-256 of the remote file.
+     * @param remote the blocks of the remote file to find in <code>localFile</code>,
+     *        <code>null</code> to download everything that isn't already in the part file.
+     * @param token the token, can be <code>null</code>.
+     * @throws Exception if an error occurs.
+     */
+    private void download(final File localFile, final String remotePath, final String remoteName, final long fileSize, final byte[] fileHash, final BlockHashes remote, final String token)
+            throws Exception {
+        final File partFile = getPartFile(localFile);
+        final File stateFile = getStateFile(localFile);
+        final RangeList resumed = readState(stateFile, partFile, fileSize, fileHash);
+        final RangeList rangesOk = resumed != null ? resumed : new RangeList(fileSize);
+
+        final RandomAccessFile rNewFile = new RandomAccessFile(partFile, "rw");
+        try {
+            final FileChannel channel = rNewFile.getChannel();
+            if (resumed == null) {
+                rNewFile.setLength(fileSize);
+                if (remote != null) {
+                    // compare delta
+                    remote.findBlocks(localFile, new BlockHashes.BlockListener() {
+                        @Override
+                        public void blockFound(long localOffset, long offset, byte[] block) throws IOException {
+                            // the last block can be shorter
+                            final int length = (int) Math.min(block.length, fileSize - offset);
+                            write(channel, ByteBuffer.wrap(block, 0, length), offset);
+                            rangesOk.add(new Range(offset, offset + length));
+                        }
+                    });
+                }
+                writeState(stateFile, fileHash, rangesOk);
             }
 
-            // read
-            v = fb.read();
-            start++;
-            // Update
-            System.arraycopy(buffer, 1, buffer, 0, buffer.length - 1);
-            buffer[buffer.length - 1] = (byte) v;
-            checksum.roll((byte) v);
-            end++;
-        } while (v >= 0);
-        fb.close();
-        rangesOk.dump();
-
-        // DOwnload missing parts
-        final List<Range> unusedRanges = rangesOk.getUnusedRanges();
-        DataInputStream zIn = getContent(remotePath, remoteName, unusedRanges, token);
-
-        BufferedOutputStream fOut = new BufferedOutputStream(new FileOutputStream(localFile));
-
-        final int size = unusedRanges.size();
-        for (int i = 0; i < size; i++) {
-            Range range = unusedRanges.get(i);
-            rNewFile.seek(range.getStart());
-            byte[] b = new byte[(int) range.size()];
-            zIn.readFully(b);
-
-            rNewFile.write(b);
-
+            // Download missing parts
+            final List<Callable<?>> tasks = new ArrayList<Callable<?>>();
+            for (final Range part : split(rangesOk.getUnusedRanges(), this.getPartSize())) {
+                tasks.add(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        downloadPart(channel, remotePath, remoteName, part, token);
+                        synchronized (rangesOk) {
+                            rangesOk.add(part);
+                            writeState(stateFile, fileHash, rangesOk);
+                        }
+                        return null;
+                    }
+                });
+            }
+            runAll(tasks);
+        } finally {
+            rNewFile.close();
         }
 
-        fOut.close();
-        zIn.close();
-
-        rNewFile.close();
-
         // Check hash sha256
-        byte[] fileLocalHash = HashWriter.getHash(newFile);
+        byte[] fileLocalHash = HashWriter.getHash(partFile);
         if (!HashWriter.compareHash(fileHash, fileLocalHash)) {
-            throw new IllegalStateException("Partial download failed. Hash error");
-        }
-        FileUtils.rm(localFile);
-        FileUtils.mv(newFile, localFile);
-
+            FileUtils.rm(partFile);
+            FileUtils.rm(stateFile);
+            throw new IllegalStateException((remote == null ? "Full" : "Partial") + " download failed. Hash error");
+        }
+        if (localFile.exists())
+            FileUtils.rm(localFile);
+        final String error = FileUtils.mv(partFile, localFile);
+        if (error != null)
+            throw new IOException("Couldn't move " + partFile + " to " + localFile + " : " + error);
+        FileUtils.rm(stateFile);
     }
 
-    private File createEmptyFile(File dir, int fileSize) throws FileNotFoundException, IOException {
-        Random r = new Random();
-        File newFile = new File(dir, "sync." + r.nextInt());
-        BufferedOutputStream bOut = new BufferedOutputStream(new FileOutputStream(newFile));
-        int l = fileSize;
-        byte[] emptyBuffer = new byte[4096];
-        while (l > 0) {
-            bOut.write(emptyBuffer, 0, Math.min(4096, (int) l));
-            l -= 4096;
+    static List<Range> split(final List<Range> ranges, final long maxSize) {
+        final List<Range> res = new ArrayList<Range>();
+        for (final Range r : ranges) {
+            for (long start = r.getStart(); start < r.getStop(); start += maxSize) {
+                res.add(new Range(start, Math.min(start + maxSize, r.getStop())));
+            }
         }
-        bOut.close();
-        return newFile;
+        return res;
     }
 
-    private void downloadFile(File localFile, String remotePath, String remoteName, int fileSize, String token) throws IOException {
-        List<Range> list = new ArrayList<Range>(1);
-        list.add(new Range(0, fileSize));
-
-        DataInputStream zIn = getContent(remotePath, remoteName, list, token);
-
-        BufferedOutputStream fOut = new BufferedOutputStream(new FileOutputStream(localFile));
-        StreamUtils.copy(zIn, fOut);
-        fOut.close();
-        zIn.close();
+    static private void write(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException {
+        // positional writes are safe from several threads
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
 
+    private void downloadPart(final FileChannel channel, String remotePath, String remoteName, final Range part, String token) throws IOException {
+        final DataInputStream zIn = getContent(remotePath, remoteName, Collections.singletonList(part), token);
+        try {
+            final byte[] b = new byte[(int) Math.min(64 * 1024, part.size())];
+            long position = part.getStart();
+            while (position < part.getStop()) {
+                final int l = (int) Math.min(b.length, part.getStop() - position);
+                zIn.readFully(b, 0, l);
+                write(channel, ByteBuffer.wrap(b, 0, l), position);
+                position += l;
+            }
+        } finally {
+            zIn.close();
+        }
     }
 
     private DataInputStream getContent(String remotePath, String remoteName, List<Range> list, String token) throws MalformedURLException, IOException, UnsupportedEncodingException {
-        URLConnection conn = getConnection(this.baseUrl + "/getFile");
-        conn.setDoOutput(true);
-
         final ByteArrayOutputStream bOutputStream = new ByteArrayOutputStream();
         final DataOutputStream wr = new DataOutputStream(bOutputStream);
-        wr.writeInt(list.size());
-        for (Range range : list) {
-            // System.out.println("SyncClient.getContent() from server: " + range);
-            wr.writeInt(range.getStart());
-            wr.writeInt(range.getStop());
-        }
+        RangeList.writeRanges(wr, list);
         wr.close();
 
         String data = "rp=" + URLEncoder.encode(remotePath, "UTF-8");
@@ -797,17 +930,15 @@ public class SyncClient {
         if (token != null) {
             data += "&tk=" + URLEncoder.encode(token, "UTF-8");
         }
-        this.byteSent += data.getBytes().length;
-        OutputStreamWriter osw = new OutputStreamWriter(conn.getOutputStream());
-        osw.write(data);
-        osw.flush();
-        osw.close();
+        URLConnection conn = post(this.baseUrl + "/getFile", data);
 
         final InputStream inputStream = new BufferedInputStream(conn.getInputStream()) {
             @Override
             public synchronized int read(byte[] b, int off, int len) throws IOException {
-                byteReceived += len;
-                return super.read(b, off, len);
+                final int res = super.read(b, off, len);
+                if (res > 0)
+                    byteReceived.addAndGet(res);
+                return res;
             }
         };
         // System.out.println("SyncClient.downloadFile() " + inputStream.available());
@@ -815,6 +946,17 @@ public class SyncClient {
         return new DataInputStream(zIn);
     }
 
+    private URLConnection post(String strUrl, String data) throws IOException {
+        this.byteSent.addAndGet(data.getBytes().length);
+        final URLConnection conn = getConnection(strUrl);
+        conn.setDoOutput(true);
+        OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
+        wr.write(data);
+        wr.flush();
+        wr.close();
+        return conn;
+    }
+
     List<Date> getVersions(String remotePath, String remoteName) {
         List<Date> l = new ArrayList<Date>();
         return l;
@@ -833,12 +975,13 @@ public class SyncClient {
     }
 
     public void clearStat() {
-        byteSent = 0;
-        byteReceived = 0;
-        byteSyncDownload = 0;
-        byteSyncUpload = 0;
-        filesSyncDownload = 0;
-        filesSyncUpload = 0;
+        byteSent.set(0);
+        byteReceived.set(0);
+        byteSyncDownload.set(0);
+        byteSyncUpload.set(0);
+        filesSyncDownload.set(0);
+        filesSyncUpload.set(0);
+        startTime = System.nanoTime();
     }
 
     public static final HostnameVerifier HostnameNonVerifier = new HostnameVerifier() {